@@ -0,0 +1,170 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * AdaptiveJoin runs the joins of a plan whose tables with filters are read
+ * into {@link Materialize} operators. Materializing is a pipeline breaker:
+ * when AdaptiveJoin is opened it builds them before any join runs, and
+ * compares the number of tuples each of them holds with the estimate the join
+ * order was chosen for. If one of them is off by more than the threshold, the
+ * joins are ordered again with the observed selectivities, and the new join
+ * tree is run instead, over the same (already materialized) inputs.
+ * <p>
+ * The output always has the fields in the order of the original join tree, so
+ * the operators above AdaptiveJoin are not affected by a new order.
+ */
+public class AdaptiveJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final LogicalPlan plan;
+    private final Vector<LogicalJoinNode> joins;
+    private final HashMap<String, OpIterator> leaves;
+    private final HashMap<String, Materialize> materialized;
+    private final HashMap<String, TableStats> statsMap;
+    private final HashMap<String, Double> filterSelectivities;
+    private final double threshold;
+    private final TupleDesc td;
+    private OpIterator child;
+    private boolean reoptimized = false;
+
+    /**
+     * @param plan
+     *            the plan the joins come from
+     * @param joins
+     *            the joins, in the order of child
+     * @param leaves
+     *            the subplan of each table alias, the inputs of the joins
+     * @param materialized
+     *            the leaves that are materialized, by alias
+     * @param statsMap
+     *            the statistics of the tables, by table name
+     * @param filterSelectivities
+     *            the estimated selectivities of the filters on each table
+     *            alias the join order was chosen for
+     * @param child
+     *            the join tree
+     * @param threshold
+     *            the factor by which a cardinality must be off to re-order
+     *            the joins
+     */
+    public AdaptiveJoin(LogicalPlan plan, Vector<LogicalJoinNode> joins,
+            HashMap<String, OpIterator> leaves, HashMap<String, Materialize> materialized,
+            HashMap<String, TableStats> statsMap, HashMap<String, Double> filterSelectivities,
+            OpIterator child, double threshold) {
+        this.plan = plan;
+        this.joins = joins;
+        this.leaves = leaves;
+        this.materialized = materialized;
+        this.statsMap = statsMap;
+        this.filterSelectivities = filterSelectivities;
+        this.child = child;
+        this.threshold = threshold;
+        this.td = child.getTupleDesc();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return true if a misestimate made the joins be ordered again when this
+     *         was opened
+     */
+    public boolean isReoptimized() {
+        return reoptimized;
+    }
+
+    /**
+     * @return true if actual and estimated differ by more than factor, where
+     *         counts below 1 are taken as 1
+     */
+    static boolean misestimated(long actual, double estimated, double factor) {
+        double a = Math.max(actual, 1);
+        double e = Math.max(estimated, 1);
+        return a > e * factor || e > a * factor;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        HashMap<String, Double> observed = new HashMap<String, Double>(filterSelectivities);
+        boolean reorder = false;
+        for (Map.Entry<String, Materialize> e : materialized.entrySet()) {
+            Materialize m = e.getValue();
+            m.build();
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(
+                    plan.getTableId(e.getKey())));
+            double estimated = s.estimateTableCardinality(filterSelectivities.get(e.getKey()));
+            if (misestimated(m.getActualCardinality(), estimated, threshold)) {
+                reorder = true;
+                observed.put(e.getKey(), s.totalTuples() > 0
+                        ? Math.min(1.0, (double) m.getActualCardinality() / s.totalTuples()) : 1.0);
+            }
+        }
+        if (reorder && !reoptimized) {
+            reoptimized = true;
+            try {
+                Vector<LogicalJoinNode> order = new JoinOptimizer(plan, joins)
+                        .orderJoins(statsMap, observed, false);
+                if (!order.equals(joins)) {
+                    child = reorder(order);
+                }
+            } catch (ParsingException e) {
+                // keep the original order
+            }
+        }
+        child.open();
+        super.open();
+    }
+
+    /**
+     * @return the joins in the given order, projected to the fields of the
+     *         original join tree
+     */
+    private OpIterator reorder(Vector<LogicalJoinNode> order) throws ParsingException {
+        OpIterator root = plan.instantiateJoins(order, new HashMap<String, OpIterator>(leaves),
+                new JoinOptimizer(plan, order));
+        TupleDesc rootTd = root.getTupleDesc();
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        Type[] types = new Type[td.numFields()];
+        HashSet<String> names = new HashSet<String>();
+        for (int i = 0; i < td.numFields(); i++) {
+            String name = td.getFieldName(i);
+            if (name == null || !names.add(name)) {
+                // the fields cannot be matched by name, keep the original order
+                return child;
+            }
+            fields.add(rootTd.fieldNameToIndex(name));
+            types[i] = td.getFieldType(i);
+        }
+        return new Project(fields, types, root);
+    }
+
+    public void close() {
+        child.close();
+        super.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (child.hasNext()) {
+            return child.next();
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child = children[0];
+    }
+}
@@ -0,0 +1,385 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * AggregateView is a materialized <tt>SELECT g, op(a) FROM t GROUP BY g</tt>
+ * over a single base table. Once registered with the BufferPool (see
+ * {@link BufferPool#registerAggregateView}) it is kept up to date by
+ * {@link BufferPool#insertTuple} and {@link BufferPool#deleteTuple}, so a
+ * matching query can be answered from the maintained state in O(groups)
+ * instead of rescanning the table.
+ * <p>
+ * COUNT, SUM and AVG only need a running count and sum per group. MIN and MAX
+ * keep a multiset of the values of each group, so that deleting the current
+ * extreme value exposes the next one without rescanning.
+ * <p>
+ * The maintained state only holds committed changes. The changes of a
+ * transaction are kept aside until it completes, folded in if it commits and
+ * dropped if it aborts, so other transactions never see them; the
+ * transaction itself sees the committed state with its own changes on top.
+ * Reading the view takes a shared lock on the base table, like a scan of the
+ * whole table would, so the results stay the same until the reader
+ * completes. A transaction that reads a snapshot cannot be answered from the current
+ * state, so its scans of the view recompute the aggregate over its snapshot
+ * of the base table.
+ */
+public class AggregateView {
+
+    private final int tableId;
+    private final int afield;
+    private final int gfield;
+    private final Aggregator.Op op;
+
+    private final HashMap<Field, GroupState> groups;
+    private final HashMap<TransactionId, ArrayList<Change>> pendingChanges;
+
+    /**
+     * The aggregate state of one group.
+     */
+    private static class GroupState {
+        int count = 0;
+        long sum = 0;
+        // value -> number of occurrences, only maintained for MIN and MAX
+        TreeMap<Integer, Integer> values;
+
+        GroupState copy() {
+            GroupState state = new GroupState();
+            state.count = count;
+            state.sum = sum;
+            if (values != null) {
+                state.values = new TreeMap<>(values);
+            }
+            return state;
+        }
+    }
+
+    /**
+     * A change done by a transaction that has not completed yet.
+     */
+    private static class Change {
+        final Tuple tuple;
+        final boolean inserted;
+
+        Change(Tuple tuple, boolean inserted) {
+            this.tuple = tuple;
+            this.inserted = inserted;
+        }
+    }
+
+    /**
+     * Constructor. The view is empty until {@link #populate} is called.
+     *
+     * @param tableId
+     *            the base table of the view
+     * @param afield
+     *            the 0-based index of the aggregate field in the base table
+     * @param gfield
+     *            the 0-based index of the group-by field in the base table, or
+     *            {@link Aggregator#NO_GROUPING}
+     * @param op
+     *            the aggregation operator; only COUNT is supported over
+     *            string fields
+     * @throws IllegalArgumentException if op cannot be maintained incrementally
+     */
+    public AggregateView(int tableId, int afield, int gfield, Aggregator.Op op) {
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+        if (op == Aggregator.Op.SUM_COUNT || op == Aggregator.Op.SC_AVG
+                || op == Aggregator.Op.COUNT_DISTINCT) {
+            throw new IllegalArgumentException("Unsupported aggregate operator " + op);
+        }
+        if (op != Aggregator.Op.COUNT && td.getFieldType(afield) != Type.INT_TYPE) {
+            throw new IllegalArgumentException("Only COUNT is supported over non-integer fields");
+        }
+
+        this.tableId = tableId;
+        this.afield = afield;
+        this.gfield = gfield;
+        this.op = op;
+
+        groups = new HashMap<>();
+        pendingChanges = new HashMap<>();
+    }
+
+    public int getTableId() {
+        return tableId;
+    }
+
+    public int aggregateField() {
+        return afield;
+    }
+
+    public int groupField() {
+        return gfield;
+    }
+
+    public Aggregator.Op aggregateOp() {
+        return op;
+    }
+
+    /**
+     * @return true if this view computes <tt>op(afield)</tt> grouped by gfield over tableId
+     */
+    public boolean matches(int tableId, int afield, int gfield, Aggregator.Op op) {
+        return this.tableId == tableId && this.afield == afield
+                && this.gfield == gfield && this.op == op;
+    }
+
+    /**
+     * Rebuild the state of this view with one scan over the base table.
+     *
+     * @param tid the transaction the scan runs as a part of
+     */
+    public synchronized void populate(TransactionId tid)
+            throws DbException, TransactionAbortedException {
+        groups.clear();
+        DbFileIterator iterator = Database.getCatalog().getDatabaseFile(tableId).iterator(tid);
+        iterator.open();
+        while (iterator.hasNext()) {
+            apply(groups, iterator.next(), true, null);
+        }
+        iterator.close();
+    }
+
+    /**
+     * Called by the BufferPool after t was added to the base table.
+     */
+    public synchronized void tupleInserted(TransactionId tid, Tuple t) {
+        remember(tid, t, true);
+    }
+
+    /**
+     * Called by the BufferPool after t was removed from the base table.
+     */
+    public synchronized void tupleDeleted(TransactionId tid, Tuple t) {
+        remember(tid, t, false);
+    }
+
+    /**
+     * Called by the BufferPool when tid completes. The changes of a committed
+     * transaction are folded into the view, those of an aborted one dropped.
+     */
+    public synchronized void transactionComplete(TransactionId tid, boolean commit) {
+        ArrayList<Change> changes = pendingChanges.remove(tid);
+        if (changes == null || !commit) {
+            return;
+        }
+        for (Change c : changes) {
+            apply(groups, c.tuple, c.inserted, null);
+        }
+    }
+
+    private void remember(TransactionId tid, Tuple t, boolean inserted) {
+        if (tid == null) {
+            // not part of any transaction, so already committed
+            apply(groups, t, inserted, null);
+            return;
+        }
+        ArrayList<Change> changes = pendingChanges.get(tid);
+        if (changes == null) {
+            changes = new ArrayList<>();
+            pendingChanges.put(tid, changes);
+        }
+        changes.add(new Change(t, inserted));
+    }
+
+    /**
+     * Apply the insert or delete of t to the groups in target.
+     *
+     * @param copied if not null, target shares its states with the
+     *        committed groups, and the keys of the states already copied
+     *        from them; a shared state is copied before it is changed
+     */
+    private void apply(Map<Field, GroupState> target, Tuple t, boolean insert, Set<Field> copied) {
+        Field key = gfield == Aggregator.NO_GROUPING ? null : t.getField(gfield);
+        GroupState state = target.get(key);
+        if (state != null && copied != null && copied.add(key)) {
+            state = state.copy();
+            target.put(key, state);
+        }
+        if (state == null) {
+            if (!insert) {
+                return;
+            }
+            state = new GroupState();
+            if (op == Aggregator.Op.MIN || op == Aggregator.Op.MAX) {
+                state.values = new TreeMap<>();
+            }
+            target.put(key, state);
+            if (copied != null) {
+                copied.add(key);
+            }
+        }
+
+        int delta = insert ? 1 : -1;
+        state.count += delta;
+        if (op != Aggregator.Op.COUNT) {
+            int v = ((IntField) t.getField(afield)).getValue();
+            state.sum += delta * (long) v;
+            if (state.values != null) {
+                Integer occurrences = state.values.get(v);
+                int n = (occurrences == null ? 0 : occurrences) + delta;
+                if (n > 0) {
+                    state.values.put(v, n);
+                } else {
+                    state.values.remove(v);
+                }
+            }
+        }
+
+        if (state.count <= 0) {
+            target.remove(key);
+        }
+    }
+
+    private int aggregateValue(GroupState state) {
+        switch (op) {
+            case MIN:
+                return state.values.firstKey();
+            case MAX:
+                return state.values.lastKey();
+            case SUM:
+                return (int) state.sum;
+            case AVG:
+                return (int) (state.sum / state.count);
+            case COUNT:
+            default:
+                return state.count;
+        }
+    }
+
+    /**
+     * Returns the TupleDesc of the view: (groupVal, aggregateVal) if grouping,
+     * or (aggregateVal) otherwise, named after the base table fields.
+     *
+     * @param tableAlias the alias to qualify the field names with
+     */
+    public TupleDesc getTupleDesc(String tableAlias) {
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+        String aggName = tableAlias + "." + td.getFieldName(afield);
+        if (gfield == Aggregator.NO_GROUPING) {
+            return new TupleDesc(new Type[]{Type.INT_TYPE}, new String[]{aggName});
+        }
+        return new TupleDesc(new Type[]{td.getFieldType(gfield), Type.INT_TYPE},
+                new String[]{tableAlias + "." + td.getFieldName(gfield), aggName});
+    }
+
+    /**
+     * Create an OpIterator over the group aggregate results. They are
+     * computed again whenever the iterator is opened, so a plan that is
+     * executed several times sees the current results.
+     *
+     * @param tid the transaction the iterator runs as a part of
+     * @param tableAlias the alias to qualify the field names with
+     */
+    public Scan iterator(TransactionId tid, String tableAlias) {
+        return new Scan(tid, tableAlias);
+    }
+
+    /**
+     * @return the results of the view as seen by tid
+     */
+    private ArrayList<Tuple> results(TransactionId tid, String tableAlias, TupleDesc td)
+            throws DbException, TransactionAbortedException {
+        ArrayList<Tuple> tuples = new ArrayList<>();
+        if (tid != null && Database.getBufferPool().isSnapshot(tid)) {
+            OpIterator aggregate = new Aggregate(new SeqScan(tid, tableId, tableAlias), afield, gfield, op);
+            aggregate.open();
+            while (aggregate.hasNext()) {
+                Tuple a = aggregate.next();
+                Tuple t = new Tuple(td);
+                for (int i = 0; i < td.numFields(); i++) {
+                    t.setField(i, a.getField(i));
+                }
+                tuples.add(t);
+            }
+            aggregate.close();
+        } else {
+            if (tid != null) {
+                // the results cover every tuple of the table, so no writer
+                // may change it until tid completes
+                Database.getBufferPool().lockTable(tid, tableId, Permissions.READ_ONLY);
+            }
+            synchronized (this) {
+                Map<Field, GroupState> visible = groups;
+                ArrayList<Change> changes = pendingChanges.get(tid);
+                if (changes != null) {
+                    visible = new HashMap<>(groups);
+                    HashSet<Field> copied = new HashSet<>();
+                    for (Change c : changes) {
+                        apply(visible, c.tuple, c.inserted, copied);
+                    }
+                }
+                for (Map.Entry<Field, GroupState> e : visible.entrySet()) {
+                    Tuple t = new Tuple(td);
+                    if (gfield == Aggregator.NO_GROUPING) {
+                        t.setField(0, new IntField(aggregateValue(e.getValue())));
+                    } else {
+                        t.setField(0, e.getKey());
+                        t.setField(1, new IntField(aggregateValue(e.getValue())));
+                    }
+                    tuples.add(t);
+                }
+            }
+        }
+        if (tuples.isEmpty() && gfield == Aggregator.NO_GROUPING && op == Aggregator.Op.COUNT) {
+            // counting an empty table gives 0, not no result
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(0));
+            tuples.add(t);
+        }
+        return tuples;
+    }
+
+    /**
+     * An OpIterator over the results of the view, see {@link #iterator}.
+     */
+    public class Scan implements OpIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private TransactionId tid;
+        private final String tableAlias;
+        private final TupleDesc td;
+        private Iterator<Tuple> it = null;
+
+        Scan(TransactionId tid, String tableAlias) {
+            this.tid = tid;
+            this.tableAlias = tableAlias;
+            this.td = AggregateView.this.getTupleDesc(tableAlias);
+        }
+
+        /**
+         * Rebind the scan to another transaction, so that a prepared plan can
+         * be executed again.
+         */
+        void setTransactionId(TransactionId tid) {
+            this.tid = tid;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            it = results(tid, tableAlias, td).iterator();
+        }
+
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+
+        public Tuple next() {
+            return it.next();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            it = null;
+        }
+    }
+}
@@ -194,8 +194,23 @@ public class BTreeFile implements DbFile {
 	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
 			Field f) 
 					throws DbException, TransactionAbortedException {
-		// some code goes here
-        return null;
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		}
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			// keys equal to f may also be in the left subtree
+			if(f == null || f.compare(Op.LESS_THAN_OR_EQ, e.getKey())) {
+				return findLeafPage(tid, dirtypages, e.getLeftChild(), perm, f);
+			}
+		}
+		if(e == null) {
+			throw new DbException("internal page " + pid + " has no entries");
+		}
+		return findLeafPage(tid, dirtypages, e.getRightChild(), perm, f);
 	}
 	
 	/**
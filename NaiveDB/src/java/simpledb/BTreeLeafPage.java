@@ -11,7 +11,7 @@ import java.io.*;
  * @see BufferPool
  *
  */
-public class BTreeLeafPage extends BTreePage {
+public class BTreeLeafPage extends BTreePage implements SlottedPage {
 	private final byte header[];
 	private final Tuple tuples[];
 	private final int numSlots;
@@ -452,6 +452,37 @@ public class BTreeLeafPage extends BTreePage {
 		return cnt;
 	}
 
+	public int getNumSlots() {
+		return numSlots;
+	}
+
+	public byte[] getSlotData(int i) {
+		if (!isSlotUsed(i))
+			return null;
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			for (int j=0; j<td.numFields(); j++)
+				tuples[i].getField(j).serialize(dos);
+		} catch (IOException e) {
+			// this really shouldn't happen
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	public void setSlotData(int i, byte[] tuple) {
+		if (tuple == null) {
+			markSlotUsed(i, false);
+			return;
+		}
+		if (tuple.length != td.getSize())
+			throw new IllegalArgumentException("tuple of " + tuple.length
+					+ " bytes in a slot of " + td.getSize() + " bytes");
+		markSlotUsed(i, true);
+		tuples[i] = readNextTuple(new DataInputStream(new ByteArrayInputStream(tuple)), i);
+	}
+
 	/**
 	 * Returns true if associated slot on this page is filled.
 	 */
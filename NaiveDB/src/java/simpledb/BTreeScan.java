@@ -15,6 +15,7 @@ public class BTreeScan implements OpIterator {
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
 	private transient DbFileIterator it;
+	private int tableid;
 	private String tablename;
 	private String alias;
 
@@ -60,6 +61,39 @@ public class BTreeScan implements OpIterator {
 		return this.alias;
 	}
 
+	/**
+	 * @return the id of the table this operator scans
+	 */
+	public int getTableId() {
+		return this.tableid;
+	}
+
+	/**
+	 * @return the index predicate the scanned tuples match, or null if the
+	 *         scan returns all tuples
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return this.ipred;
+	}
+
+	/**
+	 * Replace the index predicate of the scan, e.g. when a prepared statement
+	 * is executed with a new parameter. The scan must be closed.
+	 */
+	void setIndexPredicate(IndexPredicate ipred) {
+		this.ipred = ipred;
+		reset(tableid, alias);
+	}
+
+	/**
+	 * Run the scan as a part of another transaction, e.g. when a prepared
+	 * plan is executed again. The scan must be closed.
+	 */
+	void setTransactionId(TransactionId tid) {
+		this.tid = tid;
+		reset(tableid, alias);
+	}
+
 	/**
 	 * Reset the tableid, and tableAlias of this operator.
 	 * @param tableid
@@ -74,6 +108,7 @@ public class BTreeScan implements OpIterator {
 	 */
 	public void reset(int tableid, String tableAlias) {
 		this.isOpen=false;
+		this.tableid = tableid;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
 		if(ipred == null) {
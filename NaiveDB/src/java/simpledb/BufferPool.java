@@ -1,12 +1,12 @@
 package simpledb;
 
-import com.google.common.collect.HashBasedTable;
-import com.google.common.collect.Table;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
 
 
 /**
@@ -16,7 +16,25 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * <p>
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
- * locks to read/write the page.
+ * locks to read/write the page.  Locks are kept by a {@link LockManager} on
+ * tables, pages and tuples: a page fetched with {@link #getPage} is locked
+ * as a whole, while heap files insert and delete tuples under tuple locks
+ * and intention locks on the page (see {@link #lockTuple}), so transactions
+ * write different tuples of one page at the same time.  Each such write is
+ * logged at once, under the latch of the page (its monitor), so that the
+ * log and the before image of the page never mix the changes of two
+ * transactions.
+ * <p>
+ * Pages are managed STEAL/NO-FORCE: a dirty page may be written to disk
+ * before its transaction commits, once the log has its changes, and a
+ * commit only logs the changes of its pages (see {@link #logPages}).  The
+ * buffer pool keeps the LSN of the last record that changed each cached
+ * page, and the dirty page table, the LSN of the first record that changed
+ * it since it was last written.
+ * <p>
+ * Read-only transactions that call {@link #beginSnapshot} read the pages as
+ * of their start instead, from the committed versions kept by
+ * {@link PageVersions}, and take no locks.
  * 
  * @Threadsafe, all fields are final
  */
@@ -24,6 +42,7 @@ public class BufferPool {
     private static Logger LOG = Logger.getLogger(BufferPool.class);
 
     private ArrayList<Page> pageBuffer;
+    private final int numPages;
 
     /** Bytes per page, including header. */
     private static final int DEFAULT_PAGE_SIZE = 4096;
@@ -36,8 +55,20 @@ public class BufferPool {
     public static final int DEFAULT_PAGES = 50;
 
     private Object lock;
-    private HashMap<PageId, ReentrantReadWriteLock> pageLocks;
-    private Table<TransactionId, PageId, Permissions> trsPagePerms;
+    private final LockManager locks = new LockManager();
+
+    // LSNs of the last record that changed each page, and the dirty page
+    // table; guarded by lock
+    private HashMap<PageId, Long> pageLSNs;
+    private HashMap<PageId, Long> recLSNs;
+
+    // materialized aggregate views, keyed by the id of their base table
+    private ConcurrentHashMap<Integer, CopyOnWriteArrayList<AggregateView>> aggregateViews;
+
+    private Thread backgroundWriter;
+
+    // committed versions of pages, for snapshot reads
+    private final PageVersions versions = new PageVersions();
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -46,9 +77,11 @@ public class BufferPool {
      */
     public BufferPool(int numPages) {
         // some code goes here
+        this.numPages = numPages;
         pageBuffer = new ArrayList<>();
-        pageLocks = new HashMap<>();
-        trsPagePerms = HashBasedTable.create();
+        pageLSNs = new HashMap<>();
+        recLSNs = new HashMap<>();
+        aggregateViews = new ConcurrentHashMap<>();
         lock = new Object();
     }
     
@@ -77,6 +110,9 @@ public class BufferPool {
      * space in the buffer pool, a page should be evicted and the new page
      * should be added in its place.
      *
+     * A transaction that reads a snapshot gets a private copy of the
+     * version of the page it reads, without taking a lock.
+     *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
@@ -85,41 +121,305 @@ public class BufferPool {
         throws TransactionAbortedException, DbException {
         Page ret = null;
 
-        // only allow one thread to access page locks at a time
-        // to add new locks to pages.
-        synchronized (lock) {
-            if (!pageLocks.containsKey(pid)) {
-                pageLocks.put(pid, new ReentrantReadWriteLock());
+        if (versions.isSnapshot(tid)) {
+            if (perm != Permissions.READ_ONLY) {
+                throw new DbException("transaction " + tid.getId() + " is read-only");
+            }
+            try {
+                return versions.read(tid, fetchPage(pid));
+            } catch (IOException e) {
+                throw new DbException("could not read a version of the page: " + e.getMessage());
             }
         }
 
-        if(trsPagePerms.contains(tid, pid)) {
-            releasePage(tid, pid);
+        // a lock the transaction holds already is upgraded
+        locks.lockPage(tid, pid, perm == Permissions.READ_ONLY
+                ? LockManager.LockMode.S : LockManager.LockMode.X);
+
+        ret = fetchPage(pid);
+        if (perm == Permissions.READ_WRITE) {
+            writeLocked(tid, ret, true);
         }
 
-        if (perm == Permissions.READ_ONLY) {
-            pageLocks.get(pid).readLock().lock();
-        } else {
-            pageLocks.get(pid).writeLock().lock();
+        return ret;
+    }
+
+    /**
+     * Retrieve the specified page to insert or delete tuples of it under
+     * tuple locks, with an intention lock on the page that lets other
+     * transactions do the same.  Tuples must be changed under the latch of
+     * the page, and logged with {@link #tupleChanged}.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     */
+    Page getPageForTuples(TransactionId tid, PageId pid)
+        throws TransactionAbortedException, DbException {
+        if (versions.isSnapshot(tid)) {
+            throw new DbException("transaction " + tid.getId() + " is read-only");
         }
-        trsPagePerms.put(tid, pid, perm);
+        locks.lockPage(tid, pid, LockManager.LockMode.IX);
+        Page ret = fetchPage(pid);
+        writeLocked(tid, ret, false);
+        return ret;
+    }
 
+    /**
+     * Retrieve the specified page to read some of its tuples under tuple
+     * locks (see {@link #lockTuple}), with an intention lock on the page
+     * instead of a lock on the whole page, so that other transactions can
+     * write its other tuples meanwhile.  Tuples must be read under the latch
+     * of the page.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     */
+    Page getPageForTupleReads(TransactionId tid, PageId pid)
+        throws TransactionAbortedException, DbException {
+        if (versions.isSnapshot(tid)) {
+            throw new DbException("transaction " + tid.getId() + " reads a snapshot");
+        }
+        locks.lockPage(tid, pid, LockManager.LockMode.IS);
+        return fetchPage(pid);
+    }
 
-        for (Iterator<Page> iterator = pageBuffer.iterator(); iterator.hasNext();) {
-            Page aPage = iterator.next();
-            if (aPage.getId().equals(pid)) {
-                ret = aPage;
-                break;
+    private void writeLocked(TransactionId tid, Page page, boolean whole) throws DbException {
+        // snapshots read the committed page while it is changed
+        try {
+            versions.writeLocked(tid, page, whole);
+        } catch (IOException e) {
+            throw new DbException("could not keep the committed page: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Lock a tuple, waiting as long as needed, with intention locks on its
+     * page and table.  The tuple locks of a transaction are escalated to a
+     * lock on their page or table once there are more than the thresholds
+     * set with {@link #setLockEscalation}.  A transaction reading a snapshot
+     * takes no lock.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param rid the tuple to lock
+     * @param perm the requested permissions on the tuple
+     * @throws TransactionAbortedException if waiting would deadlock
+     */
+    public void lockTuple(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        if (versions.isSnapshot(tid)) {
+            if (perm != Permissions.READ_ONLY) {
+                throw new DbException("transaction " + tid.getId() + " is read-only");
+            }
+            return;
+        }
+        locks.lockTuple(tid, rid, perm == Permissions.READ_ONLY
+                ? LockManager.LockMode.S : LockManager.LockMode.X, true);
+    }
+
+    /**
+     * Lock a whole table, waiting as long as needed, such as to read results
+     * derived from all of its tuples.  A transaction reading a snapshot
+     * takes no lock.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param tableId the table to lock
+     * @param perm the requested permissions on the table
+     * @throws TransactionAbortedException if waiting would deadlock
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        if (versions.isSnapshot(tid)) {
+            if (perm != Permissions.READ_ONLY) {
+                throw new DbException("transaction " + tid.getId() + " is read-only");
             }
+            return;
+        }
+        locks.lockTable(tid, tableId, perm == Permissions.READ_ONLY
+                ? LockManager.LockMode.S : LockManager.LockMode.X);
+    }
+
+    /**
+     * Lock a tuple for writing if no other transaction has a lock on it,
+     * without waiting, such as an empty slot to insert into.  The caller must
+     * hold an intention lock on the page (see {@link #getPageForTuples}).
+     *
+     * @return true if tid holds the lock
+     */
+    boolean tryLockTuple(TransactionId tid, RecordId rid) throws TransactionAbortedException {
+        return locks.lockTuple(tid, rid, LockManager.LockMode.X, false);
+    }
+
+    /**
+     * Set how many tuple locks a transaction may hold on one page, and how
+     * many locks below one table, before they are escalated to a lock on the
+     * page or the table.
+     */
+    public void setLockEscalation(int tuplesPerPage, int locksPerTable) {
+        locks.setEscalation(tuplesPerPage, locksPerTable);
+    }
+
+    /**
+     * Log a change of one slot of a page that tid made under the tuple lock
+     * of the slot.  Must be called under the latch of the page, right after
+     * the change, so that the before image of the page stays equal to what
+     * the log has.
+     *
+     * @param before the contents of the slot before the change, or null
+     */
+    void tupleChanged(TransactionId tid, SlottedPage page, int slot, byte[] before)
+        throws IOException {
+        SlotUpdate update = SlotUpdate.of(page, slot, before);
+        LogFile log = Database.getLogFile();
+        Lock lsnLock = log.lsnLock();
+        lsnLock.lock();
+        try {
+            long lsn = log.logUpdate(tid, update);
+            page.setBeforeImage();
+            logged(page.getId(), lsn);
+        } finally {
+            lsnLock.unlock();
         }
+        page.markDirty(true, tid);
+        versions.tupleChanged(tid, page.getId(), update);
+    }
+
+    /** Return the cached page, reading it into the buffer pool if needed */
+    private synchronized Page fetchPage(PageId pid) throws DbException {
+        Page ret = cachedPage(pid);
         if (ret == null) {
+            if (pageBuffer.size() >= numPages) {
+                evictPage();
+            }
             ret = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-            pageBuffer.add(ret);
+            synchronized (lock) {
+                pageBuffer.add(ret);
+            }
         }
-
         return ret;
     }
 
+    /**
+     * Start a read-only transaction that reads a snapshot of the database:
+     * the pages as the transactions that committed before this call left
+     * them.  It takes no locks, so it neither waits for writers nor blocks
+     * them, and ends with {@link #transactionComplete}.
+     *
+     * @param tid the ID of the transaction
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versions.begin(tid);
+    }
+
+    /** @return the number of pages with versions kept for snapshots */
+    int numVersionedPages() {
+        return versions.numChains();
+    }
+
+    /**
+     * Return the cached version of the specified page, or else read it from
+     * disk without adding it to the buffer pool. Used by rollback, which
+     * holds the lock of the buffer pool, and to keep the versions of the
+     * pages of a commit.
+     */
+    Page recoveryPage(PageId pid) {
+        Page p = cachedPage(pid);
+        if (p == null) {
+            p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        }
+        return p;
+    }
+
+    /**
+     * Put a page changed by rollback into the buffer pool, replacing the
+     * cached version of it.
+     *
+     * @param lsn the LSN of the record that logged the change
+     */
+    synchronized void installPage(Page page, TransactionId tid, long lsn) throws IOException {
+        try {
+            replacePage(page);
+        } catch (DbException e) {
+            throw new IOException(e);
+        }
+        page.markDirty(true, tid);
+        page.setBeforeImage();
+        logged(page.getId(), lsn);
+        // the page may have been written without the tuples put back
+        DbFile file = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+        if (file instanceof HeapFile) {
+            ((HeapFile) file).getZoneMap().pageWidened((HeapPage) page);
+        }
+    }
+
+    /**
+     * Make page the cached version of its page, evicting another page if it
+     * is not cached and the buffer pool is full.
+     */
+    private synchronized void replacePage(Page page) throws DbException {
+        synchronized (lock) {
+            for (int i = 0; i < pageBuffer.size(); i++) {
+                if (pageBuffer.get(i).getId().equals(page.getId())) {
+                    pageBuffer.set(i, page);
+                    return;
+                }
+            }
+        }
+        if (pageBuffer.size() >= numPages) {
+            evictPage();
+        }
+        synchronized (lock) {
+            pageBuffer.add(page);
+        }
+    }
+
+    /** Note that the record at lsn logged a change of the page */
+    private void logged(PageId pid, long lsn) {
+        synchronized (lock) {
+            pageLSNs.put(pid, lsn);
+            if (!recLSNs.containsKey(pid)) {
+                recLSNs.put(pid, lsn);
+            }
+        }
+    }
+
+    /** @return the LSN of the last logged change of a cached page, or -1 */
+    long getPageLSN(PageId pid) {
+        synchronized (lock) {
+            Long lsn = pageLSNs.get(pid);
+            return lsn == null ? -1 : lsn;
+        }
+    }
+
+    /**
+     * @return the dirty page table: the LSN of the first logged change of
+     *         each page since it was last written
+     */
+    Map<PageId, Long> getDirtyPageTable() {
+        synchronized (lock) {
+            return new HashMap<>(recLSNs);
+        }
+    }
+
+    /**
+     * Return the cached version of the specified page, without taking any
+     * lock on it. The page may be modified concurrently by the transaction
+     * holding its write lock, so this is only suitable for approximate
+     * readers such as {@link TableStats}.
+     *
+     * @param pid the ID of the requested page
+     * @return the page, or null if it is not in the buffer pool
+     */
+    Page cachedPage(PageId pid) {
+        synchronized (lock) {
+            for (Page page : pageBuffer) {
+                if (page.getId().equals(pid)) {
+                    return page;
+                }
+            }
+        }
+        return null;
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -130,14 +430,9 @@ public class BufferPool {
      * @param pid the ID of the page to unlock
      */
     public  void releasePage(TransactionId tid, PageId pid) {
-        if (trsPagePerms.get(tid, pid) == Permissions.READ_ONLY)
-            pageLocks.get(pid).readLock().unlock();
-        else
-            pageLocks.get(pid).writeLock().unlock();
-
-        synchronized (lock) {
-            trsPagePerms.remove(tid, pid);
-        }
+        // the tuple locks below the page go with it
+        locks.releasePage(tid, pid);
+        versions.prune(pid, this);
     }
 
     /**
@@ -146,33 +441,131 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the unlock
      */
     public void transactionComplete(TransactionId tid) throws IOException {
-        Map<PageId, Permissions> pageToPerms = trsPagePerms.row(tid);
-        Iterator<Map.Entry<PageId, Permissions>> iter = pageToPerms.entrySet().iterator();
-        while (iter.hasNext()) {
-            Map.Entry<PageId, Permissions> entry = iter.next();
-            if (entry.getValue() == Permissions.READ_ONLY) {
-                pageLocks.get(entry.getKey()).readLock().unlock();
-            } else {
-                pageLocks.get(entry.getKey()).writeLock().unlock();
-            }
-        }
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        return trsPagePerms.contains(tid, p);
+        return locks.holdsLock(tid, p);
+    }
+
+    /** @return true if the specified transaction reads a snapshot */
+    boolean isSnapshot(TransactionId tid) {
+        return versions.isSnapshot(tid);
+    }
+
+    /** @return the number of locks the specified transaction holds */
+    int numLocks(TransactionId tid) {
+        return locks.numLocks(tid);
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
-     * the transaction.
+     * the transaction.  Pages are not forced on commit: the log has their
+     * changes.  On abort the changes the log does not have are taken back;
+     * the log rolls back the others (see {@link LogFile#rollback}).
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
     public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
+        if (versions.isSnapshot(tid)) {
+            versions.end(tid, this);
+            completeAggregateViews(tid, commit);
+            return;
+        }
+        if (!commit) {
+            revertPages(tid);
+        } else {
+            // the new versions are published before other writers can
+            // change the pages
+            versions.committed(tid, this);
+        }
+        // readers of the views wait for the table locks, so the views must
+        // hold the changes by then
+        completeAggregateViews(tid, commit);
+        Set<PageId> written = versions.forget(tid);
+        locks.releaseAll(tid);
+        for (PageId pid : written) {
+            versions.prune(pid, this);
+        }
+        TableStats.transactionComplete(tid, commit);
+    }
+
+    /**
+     * Take back the changes of a transaction that are not logged yet, by
+     * replacing each page it dirtied with its before image.  Pages with all
+     * changes logged, like those written under tuple locks, are left alone,
+     * as other transactions may be writing them.
+     */
+    synchronized void revertPages(TransactionId tid) {
+        for (Page page : cachedPages()) {
+            synchronized (page) {
+                if (!tid.equals(page.isDirty())) {
+                    continue;
+                }
+                Page before = page.getBeforeImage();
+                if (Arrays.equals(before.getPageData(), page.getPageData())) {
+                    continue;
+                }
+                // the before image may hold logged changes not on disk
+                before.markDirty(true, tid);
+                synchronized (lock) {
+                    int i = pageBuffer.indexOf(page);
+                    if (i >= 0) {
+                        pageBuffer.set(i, before);
+                    }
+                }
+            }
+        }
+    }
 
+    private void completeAggregateViews(TransactionId tid, boolean commit) {
+        for (List<AggregateView> views : aggregateViews.values()) {
+            for (AggregateView view : views) {
+                view.transactionComplete(tid, commit);
+            }
+        }
+    }
+
+    /**
+     * Register a materialized aggregate view so that it is maintained by
+     * {@link #insertTuple} and {@link #deleteTuple}. The view should already
+     * be populated.
+     *
+     * @param view the view to maintain
+     */
+    public void registerAggregateView(AggregateView view) {
+        aggregateViews.computeIfAbsent(view.getTableId(), k -> new CopyOnWriteArrayList<>()).add(view);
+    }
+
+    /**
+     * Stop maintaining the specified view.
+     */
+    public void unregisterAggregateView(AggregateView view) {
+        List<AggregateView> views = aggregateViews.get(view.getTableId());
+        if (views != null) {
+            views.remove(view);
+        }
+    }
+
+    /**
+     * Find a registered view computing <tt>op(afield)</tt> grouped by gfield
+     * over the specified table.
+     *
+     * @return the matching view, or null if there is none
+     */
+    public AggregateView getAggregateView(int tableId, int afield, int gfield, Aggregator.Op op) {
+        List<AggregateView> views = aggregateViews.get(tableId);
+        if (views != null) {
+            for (AggregateView view : views) {
+                if (view.matches(tableId, afield, gfield, op)) {
+                    return view;
+                }
+            }
+        }
+        return null;
     }
 
     /**
@@ -196,6 +589,21 @@ public class BufferPool {
         ArrayList<Page> pages = file.insertTuple(tid, t);
         for (Page page : pages) {
             page.markDirty(true, tid);
+            // the page may have been evicted while it was changed
+            replacePage(page);
+            locks.escalate(tid, page.getId());
+        }
+
+        List<AggregateView> views = aggregateViews.get(tableId);
+        if (views != null) {
+            for (AggregateView view : views) {
+                view.tupleInserted(tid, t);
+            }
+        }
+
+        TableStats stats = tableStats(tableId);
+        if (stats != null) {
+            stats.tupleInserted(tid, t);
         }
     }
 
@@ -214,22 +622,48 @@ public class BufferPool {
      */
     public  void deleteTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
-        DbFile file = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+        int tableId = t.getRecordId().getPageId().getTableId();
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> pages = file.deleteTuple(tid, t);
         for (Page page : pages) {
             page.markDirty(true, tid);
+            replacePage(page);
+        }
+
+        List<AggregateView> views = aggregateViews.get(tableId);
+        if (views != null) {
+            for (AggregateView view : views) {
+                view.tupleDeleted(tid, t);
+            }
+        }
+
+        TableStats stats = tableStats(tableId);
+        if (stats != null) {
+            stats.tupleDeleted(tid, t);
         }
     }
 
+    /** @return the statistics of the specified table, or null if it has none */
+    private TableStats tableStats(int tableId) {
+        String name = Database.getCatalog().getTableName(tableId);
+        return name == null ? null : TableStats.getTableStats(name);
+    }
+
     /**
      * Flush all dirty pages to disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
     public synchronized void flushAllPages() throws IOException {
-        // some code goes here
-        // not necessary for lab1
+        for (Page page : cachedPages()) {
+            flushPage(page.getId());
+        }
+    }
 
+    private List<Page> cachedPages() {
+        synchronized (lock) {
+            return new ArrayList<>(pageBuffer);
+        }
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -241,33 +675,188 @@ public class BufferPool {
         are removed from the cache so they can be reused safely
     */
     public synchronized void discardPage(PageId pid) {
-        // some code goes here
-        // not necessary for lab1
+        synchronized (lock) {
+            for (Iterator<Page> it = pageBuffer.iterator(); it.hasNext(); ) {
+                if (it.next().getId().equals(pid)) {
+                    it.remove();
+                }
+            }
+            pageLSNs.remove(pid);
+            recLSNs.remove(pid);
+        }
     }
 
     /**
-     * Flushes a certain page to disk
+     * Flushes a certain page to disk.  Changes that are not logged yet are
+     * logged first, and the log is forced before the page is written.
      * @param pid an ID indicating the page to flush
      */
     private synchronized void flushPage(PageId pid) throws IOException {
-        // some code goes here
-        // not necessary for lab1
+        Page page = cachedPage(pid);
+        if (page == null) {
+            return;
+        }
+        // tuples of the page may be written under tuple locks meanwhile
+        synchronized (page) {
+            if (page.isDirty() == null) {
+                return;
+            }
+            logChanges(page.isDirty(), page);
+            Database.getLogFile().force();
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+            page.markDirty(false, null);
+            synchronized (lock) {
+                recLSNs.remove(pid);
+            }
+        }
+    }
+
+    /** Log the changes of a page since its before image, if there are any */
+    private void logChanges(TransactionId tid, Page page) throws IOException {
+        synchronized (page) {
+            Page before = page.getBeforeImage();
+            if (!Arrays.equals(before.getPageData(), page.getPageData())) {
+                LogFile log = Database.getLogFile();
+                // a checkpoint must not copy the dirty page table in between
+                Lock lsnLock = log.lsnLock();
+                lsnLock.lock();
+                try {
+                    long lsn = log.logWrite(tid, before, page);
+                    page.setBeforeImage();
+                    logged(page.getId(), lsn);
+                } finally {
+                    lsnLock.unlock();
+                }
+            }
+        }
     }
 
     /** Write all pages of the specified transaction to disk.
      */
     public synchronized void flushPages(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        for (Page page : cachedPages()) {
+            if (tid.equals(page.isDirty())) {
+                flushPage(page.getId());
+            }
+        }
+    }
+
+    /**
+     * Write out up to max dirty pages that no transaction is writing,
+     * those dirtied by the earliest records first, so that the redo start
+     * of the next checkpoint moves forward.  Takes the lock of the buffer
+     * pool for one page at a time.
+     *
+     * @return the number of pages written
+     */
+    public int writeDirtyPages(int max) throws IOException {
+        final Map<PageId, Long> dpt = getDirtyPageTable();
+        ArrayList<PageId> dirty = new ArrayList<>();
+        for (Page page : cachedPages()) {
+            if (page.isDirty() != null) {
+                dirty.add(page.getId());
+            }
+        }
+        dirty.sort(Comparator.comparingLong(pid -> dpt.getOrDefault(pid, Long.MAX_VALUE)));
+
+        int written = 0;
+        for (PageId pid : dirty) {
+            if (written >= max) {
+                break;
+            }
+            synchronized (this) {
+                if (!isWriteLocked(pid)) {
+                    flushPage(pid);
+                    written++;
+                }
+            }
+        }
+        return written;
+    }
+
+    boolean isWriteLocked(PageId pid) {
+        return locks.isWriteLocked(pid);
+    }
+
+    /**
+     * Start a daemon thread that calls {@link #writeDirtyPages} every
+     * intervalMillis milliseconds, until {@link #stopBackgroundWriter}.
+     */
+    public synchronized void startBackgroundWriter(final long intervalMillis, final int pagesPerRound) {
+        stopBackgroundWriter();
+        backgroundWriter = new Thread("BufferPool writer") {
+            public void run() {
+                while (!isInterrupted()) {
+                    try {
+                        Thread.sleep(intervalMillis);
+                        writeDirtyPages(pagesPerRound);
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (IOException e) {
+                        LOG.warn("background page write failed", e);
+                    }
+                }
+            }
+        };
+        backgroundWriter.setDaemon(true);
+        backgroundWriter.start();
+    }
+
+    /** Stop the thread started by {@link #startBackgroundWriter} */
+    public synchronized void stopBackgroundWriter() {
+        if (backgroundWriter != null) {
+            backgroundWriter.interrupt();
+            backgroundWriter = null;
+        }
+    }
+
+    /**
+     * Log the changes of all pages of the specified transaction, which stay
+     * dirty in the buffer pool.  This is all a commit needs before its
+     * COMMIT record.
+     */
+    public synchronized void logPages(TransactionId tid) throws IOException {
+        for (Page page : cachedPages()) {
+            if (tid.equals(page.isDirty())) {
+                logChanges(tid, page);
+            }
+        }
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Clean pages are preferred over dirty ones, and pages that no
+     * transaction is writing over the others.  Pages whose tuples are
+     * written under tuple locks are not evicted, since their writers would
+     * go on changing the evicted copy.
      */
     private synchronized void evictPage() throws DbException {
-        // some code goes here
-        // not necessary for lab1
+        Page victim = null;
+        int best = Integer.MAX_VALUE;
+        for (Page page : cachedPages()) {
+            if (locks.hasTupleWriters(page.getId())) {
+                continue;
+            }
+            int rank = (page.isDirty() == null ? 0 : 1)
+                    + (isWriteLocked(page.getId()) ? 2 : 0);
+            if (rank < best) {
+                victim = page;
+                best = rank;
+                if (rank == 0) {
+                    break;
+                }
+            }
+        }
+        if (victim == null) {
+            throw new DbException("no page to evict");
+        }
+        try {
+            flushPage(victim.getId());
+        } catch (IOException e) {
+            throw new DbException("could not flush page: " + e.getMessage());
+        }
+        discardPage(victim.getId());
     }
 
 }
@@ -0,0 +1,112 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * CardinalityFeedback feeds the cardinalities observed while running a query
+ * back into the {@link TableStats} of its tables.
+ * <p>
+ * After a query ran, the tuples each scan and filter returned are known (see
+ * {@link Operator#getActualCardinality()}). For every table that was read
+ * completely, the number of tuples that passed all of its filters, divided by
+ * the number of tuples of the table, is the selectivity of the conjunction of
+ * the filters. It is recorded under the conjunction (see {@link #key}), so a
+ * later query with the same filters on the same table is planned with the
+ * observed selectivity instead of the estimate from the histograms, which
+ * assume that the filters are independent.
+ */
+public class CardinalityFeedback {
+
+    private CardinalityFeedback() {
+    }
+
+    /**
+     * @return the key of a conjunction of predicates over the fields of a
+     *         table, which does not depend on their order
+     */
+    public static String key(Collection<Predicate> predicates) {
+        ArrayList<String> terms = new ArrayList<String>();
+        for (Predicate p : predicates) {
+            terms.add(p.getField() + " " + p.getOp() + " " + p.getOperand());
+        }
+        Collections.sort(terms);
+        StringBuilder key = new StringBuilder();
+        for (String term : terms) {
+            if (key.length() > 0) {
+                key.append(" AND ");
+            }
+            key.append(term);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Record the selectivities observed by an executed plan.
+     *
+     * @param plan
+     *            the plan, before it is closed
+     */
+    public static void record(OpIterator plan) {
+        if (plan == null) {
+            return;
+        }
+        if (recordTable(plan)) {
+            return;
+        }
+        if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                record(child);
+            }
+        }
+    }
+
+    /**
+     * If o reads a single table, through filters and materializations only,
+     * record the selectivity of the filters on it.
+     *
+     * @return true if o reads a single table
+     */
+    private static boolean recordTable(OpIterator o) {
+        long rows;
+        if (o instanceof Operator) {
+            rows = ((Operator) o).hasCompletedPass() ? ((Operator) o).getActualCardinality() : -1;
+        } else if (o instanceof SeqScan) {
+            rows = ((SeqScan) o).hasCompletedPass() ? ((SeqScan) o).getActualCardinality() : -1;
+        } else {
+            return false;
+        }
+
+        ArrayList<Predicate> predicates = new ArrayList<Predicate>();
+        String tableName;
+        while (true) {
+            if (o instanceof Filter) {
+                predicates.add(((Filter) o).getPredicate());
+                o = ((Filter) o).getChildren()[0];
+            } else if (o instanceof Materialize) {
+                o = ((Materialize) o).getChildren()[0];
+            } else if (o instanceof SeqScan) {
+                predicates.addAll(((SeqScan) o).getPredicates());
+                tableName = ((SeqScan) o).getTableName();
+                break;
+            } else if (o instanceof BTreeScan) {
+                BTreeScan scan = (BTreeScan) o;
+                IndexPredicate ipred = scan.getIndexPredicate();
+                if (ipred != null) {
+                    int key = ((BTreeFile) Database.getCatalog().getDatabaseFile(
+                            scan.getTableId())).keyField();
+                    predicates.add(new Predicate(key, ipred.getOp(), ipred.getField()));
+                }
+                tableName = scan.getTableName();
+                break;
+            } else {
+                return false;
+            }
+        }
+
+        TableStats stats = TableStats.getTableStats(tableName);
+        if (rows >= 0 && !predicates.isEmpty() && stats != null && stats.totalTuples() > 0) {
+            stats.recordObservedSelectivity(key(predicates), (double) rows / stats.totalTuples());
+        }
+        return true;
+    }
+}
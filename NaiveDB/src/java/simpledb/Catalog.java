@@ -24,6 +24,8 @@ public class Catalog {
     // mapping between a table name and table metadata
     private TreeMap<Integer, TableMeta> metaTreeMap;
     private HashMap<String, Integer> nameToTableId;
+    // incremented whenever the set of tables changes
+    private volatile long version = 0;
 
     /**
      * Constructor.
@@ -51,6 +53,7 @@ public class Catalog {
 
         nameToTableId.put(name, file.getId());
         metaTreeMap.put(file.getId(), new TableMeta(name, pkeyField, file));
+        version++;
     }
 
     public void addTable(DbFile file, String name) {
@@ -143,6 +146,15 @@ public class Catalog {
         // some code goes here
         metaTreeMap.clear();
         nameToTableId.clear();
+        version++;
+    }
+
+    /**
+     * @return a number that changes whenever a table is added to or removed
+     *         from the catalog, so that cached plans can tell they are stale
+     */
+    public long getVersion() {
+        return version;
     }
     
     /**
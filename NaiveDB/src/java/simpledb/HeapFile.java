@@ -21,6 +21,7 @@ public class HeapFile implements DbFile {
 
     private File file;
     private TupleDesc tupleDesc;
+    private ZoneMap zoneMap;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -32,6 +33,7 @@ public class HeapFile implements DbFile {
     public HeapFile(File f, TupleDesc td) {
         file = f;
         tupleDesc = td;
+        zoneMap = new ZoneMap(f, td);
     }
 
     /**
@@ -43,6 +45,13 @@ public class HeapFile implements DbFile {
         return file;
     }
 
+    /**
+     * Returns the per-page min/max of the integer columns of this file.
+     */
+    public ZoneMap getZoneMap() {
+        return zoneMap;
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere to ensure that each
@@ -85,6 +94,9 @@ public class HeapFile implements DbFile {
                 randomAccessFile.read(buffer);
                 ret = new HeapPage(pageId, buffer);
                 randomAccessFile.close();
+                if (!Database.getBufferPool().isWriteLocked(pageId)) {
+                    zoneMap.pageUpdated((HeapPage) ret, true);
+                }
             } catch (FileNotFoundException e ) {
                 LOG.error(e);
                 e.printStackTrace();
@@ -109,6 +121,12 @@ public class HeapFile implements DbFile {
         randomAccessFile.seek(page.getId().getPageNumber() * Database.getBufferPool().getPageSize());
         randomAccessFile.write(page.getPageData());
         randomAccessFile.close();
+        // a page that is being written may hold uncommitted deletes
+        if (Database.getBufferPool().isWriteLocked(page.getId())) {
+            zoneMap.pageWidened((HeapPage) page);
+        } else {
+            zoneMap.pageUpdated((HeapPage) page, false);
+        }
     }
 
     /**
@@ -124,67 +142,192 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
-        int numPage = numPages();
-        for (int i = 0; i < numPage; i++) {
+        BufferPool pool = Database.getBufferPool();
+        // reading the page past the last one adds it
+        for (int i = 0; ; i++) {
             PageId pageId = new HeapPageId(getId(), i);
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
-            if (page.getNumEmptySlots() > 0) {
-                page.insertTuple(t);
-                return new ArrayList<>(Arrays.asList(page));
-            } else {
-                Database.getBufferPool().releasePage(tid, pageId);
+            boolean held = pool.holdsLock(tid, pageId);
+            HeapPage page = (HeapPage) pool.getPageForTuples(tid, pageId);
+            synchronized (page) {
+                int slot = freeSlot(tid, page);
+                if (slot >= 0) {
+                    page.insertTuple(t, slot);
+                    pool.tupleChanged(tid, page, slot, null);
+                    zoneMap.tupleInserted(i, t);
+                    return new ArrayList<>(Arrays.asList(page));
+                }
+            }
+            if (!held) {
+                pool.releasePage(tid, pageId);
             }
         }
-        HeapPageId newPageId = new HeapPageId(getId(), numPage);
-        HeapPage newHeapPage = (HeapPage) Database.getBufferPool().getPage(tid, newPageId, Permissions.READ_WRITE);
-        newHeapPage.insertTuple(t);
-        return new ArrayList<>(Arrays.asList(newHeapPage));
+    }
+
+    /**
+     * @return an empty slot of the page that tid got the tuple lock of, or
+     *         -1. Slots emptied by transactions that are still running are
+     *         skipped, as they may be filled again on abort.
+     */
+    private int freeSlot(TransactionId tid, HeapPage page) throws TransactionAbortedException {
+        if (page.getNumEmptySlots() == 0) {
+            return -1;
+        }
+        for (int i = 0; i < page.getNumSlots(); i++) {
+            if (!page.isSlotUsed(i)
+                    && Database.getBufferPool().tryLockTuple(tid, new RecordId(page.getId(), i))) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
-            TransactionAbortedException {
+            IOException, TransactionAbortedException {
         RecordId recordId = t.getRecordId();
         if (recordId.getPageId() == null) {
             return new ArrayList<>();
         }
-        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, recordId.getPageId(), Permissions.READ_WRITE);
-        page.deleteTuple(t);
+        BufferPool pool = Database.getBufferPool();
+        HeapPage page = (HeapPage) pool.getPageForTuples(tid, recordId.getPageId());
+        pool.lockTuple(tid, recordId, Permissions.READ_WRITE);
+        synchronized (page) {
+            int slot = recordId.getTupleNumber();
+            byte[] before = page.getSlotData(slot);
+            page.deleteTuple(t);
+            pool.tupleChanged(tid, page, slot, before);
+        }
         return new ArrayList<>(Arrays.asList(page));
     }
 
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new HeapFileIterator(this, tid);
+        return new HeapFileIterator(this, tid, null, null, false);
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that satisfy all of
+     * the predicates. The predicates are evaluated against the raw page data
+     * (see {@link HeapPage#iterator(Predicate[])}), so tuples that do not
+     * qualify are never built.
+     *
+     * @param tid the transaction the iterator runs as a part of
+     * @param predicates the predicates over the fields of this file, or null
+     */
+    public DbFileIterator iterator(TransactionId tid, Predicate[] predicates) {
+        return new HeapFileIterator(this, tid, predicates, null, false);
+    }
+
+    /**
+     * Like {@link #iterator(TransactionId, Predicate[])}, but only decodes
+     * the projected fields of the returned tuples; the other fields are
+     * skipped by offset and left unset.
+     *
+     * @param tid the transaction the iterator runs as a part of
+     * @param predicates the predicates over the fields of this file, or null
+     * @param projection projection[i] is true if field i is needed, or null
+     *        for all fields
+     */
+    public DbFileIterator iterator(TransactionId tid, Predicate[] predicates, boolean[] projection) {
+        return new HeapFileIterator(this, tid, predicates, projection, false);
+    }
+
+    /**
+     * Like {@link #iterator(TransactionId, Predicate[], boolean[])}, but if
+     * lockTuples is true and there are predicates, the pages are only
+     * intention locked and each returned tuple is locked in shared mode
+     * instead. This suits scans whose tuples the transaction will then
+     * change: transactions changing different tuples of one page do not wait
+     * for each other. A tuple that another transaction deletes or changes so
+     * that it no longer satisfies the predicates while the scan waits for its
+     * lock is skipped. Snapshot scans take no locks either way.
+     *
+     * @param tid the transaction the iterator runs as a part of
+     * @param predicates the predicates over the fields of this file, or null
+     * @param projection projection[i] is true if field i is needed, or null
+     *        for all fields
+     * @param lockTuples true to lock the returned tuples instead of pages
+     */
+    public DbFileIterator iterator(TransactionId tid, Predicate[] predicates, boolean[] projection,
+                                   boolean lockTuples) {
+        return new HeapFileIterator(this, tid, predicates, projection, lockTuples);
     }
 
     public class HeapFileIterator implements DbFileIterator {
 
         private HeapFile heapFile;
         private TransactionId transactionId;
+        private Predicate[] predicates;
+        private boolean[] projection;
+        private final boolean lockTuples;
         private int curIterator;
         private ArrayList<Iterator<Tuple>> pages;
+        // with tuple locks: the tuples that satisfied the predicates when the
+        // scan was opened, and the next one to return after locking it
+        private boolean tupleLocks;
+        private ArrayList<RecordId> candidates;
+        private int nextCandidate;
+        private Tuple nextTuple;
+
+        public HeapFileIterator(HeapFile heapFile, TransactionId transactionId,
+                                Predicate[] predicates, boolean[] projection) {
+            this(heapFile, transactionId, predicates, projection, false);
+        }
 
-        public HeapFileIterator(HeapFile heapFile, TransactionId transactionId) {
+        public HeapFileIterator(HeapFile heapFile, TransactionId transactionId,
+                                Predicate[] predicates, boolean[] projection, boolean lockTuples) {
             this.heapFile = heapFile;
             this.transactionId = transactionId;
+            this.predicates = predicates;
+            this.projection = projection;
+            this.lockTuples = lockTuples;
             pages = new ArrayList<>();
+            candidates = new ArrayList<>();
         }
 
         public void open() throws DbException, TransactionAbortedException {
+            BufferPool pool = Database.getBufferPool();
             int numPages = heapFile.numPages();
+            // the zone map describes the current pages, not the older
+            // versions a snapshot reads
+            boolean skip = predicates != null && predicates.length > 0
+                    && !pool.isSnapshot(transactionId);
+            tupleLocks = skip && lockTuples;
             for (int i = 0; i < numPages; i++) {
+                if (skip && !heapFile.getZoneMap().mayMatch(i, predicates)) {
+                    // no tuple on the page can satisfy the predicates
+                    continue;
+                }
                 HeapPageId pageId = new HeapPageId(heapFile.getId(), i);
-                HeapPage page = (HeapPage) Database.getBufferPool().getPage(this.transactionId, pageId, Permissions.READ_ONLY);
-                pages.add(page.iterator());
+                if (tupleLocks) {
+                    HeapPage page = (HeapPage) pool.getPageForTupleReads(transactionId, pageId);
+                    synchronized (page) {
+                        for (int slot = 0; slot < page.getNumSlots(); slot++) {
+                            if (page.isSlotUsed(slot) && page.slotMatches(slot, predicates)) {
+                                candidates.add(new RecordId(pageId, slot));
+                            }
+                        }
+                    }
+                } else {
+                    HeapPage page = (HeapPage) pool.getPage(this.transactionId, pageId, Permissions.READ_ONLY);
+                    pages.add(page.iterator(predicates, projection));
+                }
             }
 
             curIterator = 0;
+            nextCandidate = 0;
+            nextTuple = null;
             moveToNext();
          }
 
         public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (tupleLocks) {
+                while (nextTuple == null && nextCandidate < candidates.size()) {
+                    nextTuple = lockedTuple(candidates.get(nextCandidate++));
+                }
+                return nextTuple != null;
+            }
             if (curIterator < pages.size()) {
                 return pages.get(curIterator).hasNext();
             } else {
@@ -192,11 +335,33 @@ public class HeapFile implements DbFile {
             }
         }
 
+        /**
+         * @return the tuple rid once it is locked, or null if it was deleted
+         *         or no longer satisfies the predicates by then
+         */
+        private Tuple lockedTuple(RecordId rid) throws DbException, TransactionAbortedException {
+            BufferPool pool = Database.getBufferPool();
+            pool.lockTuple(transactionId, rid, Permissions.READ_ONLY);
+            HeapPage page = (HeapPage) pool.getPageForTupleReads(transactionId, rid.getPageId());
+            synchronized (page) {
+                int slot = rid.getTupleNumber();
+                if (!page.isSlotUsed(slot) || !page.slotMatches(slot, predicates)) {
+                    return null;
+                }
+                return page.getTuple(slot, projection);
+            }
+        }
+
         public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
             if (hasNext() == false) {
                 throw new NoSuchElementException("No next tuple");
             }
 
+            if (tupleLocks) {
+                Tuple tuple = nextTuple;
+                nextTuple = null;
+                return tuple;
+            }
             Tuple tuple = pages.get(curIterator).next();
             moveToNext();
             return tuple;
@@ -214,11 +379,14 @@ public class HeapFile implements DbFile {
 
         public void rewind() throws DbException, TransactionAbortedException {
             pages.clear();
+            candidates.clear();
             open();
         }
 
         public void close() {
             curIterator = pages.size();
+            nextCandidate = candidates.size();
+            nextTuple = null;
         }
     }
 
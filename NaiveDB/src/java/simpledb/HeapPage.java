@@ -13,7 +13,7 @@ import java.io.*;
  * @see BufferPool
  *
  */
-public class HeapPage implements Page {
+public class HeapPage implements SlottedPage {
     private static Logger LOG = Logger.getLogger(HeapPage.class);
 
     final HeapPageId pid;
@@ -22,6 +22,12 @@ public class HeapPage implements Page {
     final Tuple tuples[];
     final int numSlots;
 
+    // the page as read from disk; the tuples of used slots are decoded from
+    // it on first access, so a used slot whose entry in tuples is null still
+    // holds its tuple here
+    private final byte[] data;
+    private final int[] fieldOffsets;
+
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
 
@@ -48,25 +54,22 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
+        this.data = data;
 
+        // read the header slots of this page, the records are only decoded
+        // when they are accessed
+        header = Arrays.copyOf(data, getHeaderSize());
         tuples = new Tuple[numSlots];
-        try {
-            // allocate and read the actual records of this page
-            for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis, i);
-        } catch (NoSuchElementException e) {
-            LOG.error("NoSuchElementException", e);
-            e.printStackTrace();
+
+        fieldOffsets = new int[td.numFields()];
+        for (int j = 1; j < fieldOffsets.length; j++) {
+            fieldOffsets[j] = fieldOffsets[j - 1] + td.getFieldType(j - 1).getLen();
         }
-        dis.close();
 
-        setBeforeImage();
+        synchronized(oldDataLock)
+        {
+            oldData = data.clone();
+        }
 
         isDirty = false;
         transactionId = null;
@@ -127,21 +130,30 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the offset of the record of slotId in the raw page data
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    private int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
+
+    /**
+     * Decode the tuple of slotId from the raw page data.
+     *
+     * @param projection projection[j] is true if field j should be decoded,
+     *        or null to decode all fields; the other fields are skipped by
+     *        offset and left unset in the returned tuple
+     */
+    private Tuple readTuple(int slotId, boolean[] projection) throws NoSuchElementException {
+        return readTuple(data, slotOffset(slotId), slotId, projection);
+    }
+
+    /**
+     * Decode the tuple of slotId from the record at offset in src.
+     */
+    private Tuple readTuple(byte[] src, int offset, int slotId, boolean[] projection)
+            throws NoSuchElementException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(
+                src, offset, td.getSize()));
 
         // read fields in the tuple
         Tuple t = new Tuple(td);
@@ -149,9 +161,16 @@ public class HeapPage implements Page {
         t.setRecordId(rid);
         try {
             for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+                Type type = td.getFieldType(j);
+                if (projection != null && !projection[j]) {
+                    dis.skipBytes(type.getLen());
+                    continue;
+                }
+                t.setField(j, type.parse(dis));
             }
+        } catch (IOException e) {
+            LOG.error(e);
+            throw new NoSuchElementException("error skipping field");
         } catch (java.text.ParseException e) {
             LOG.error(e);
             e.printStackTrace();
@@ -203,6 +222,16 @@ public class HeapPage implements Page {
                 continue;
             }
 
+            // non-empty slot that has never been decoded, copy the raw record
+            if (tuples[i] == null) {
+                try {
+                    dos.write(data, slotOffset(i), td.getSize());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+
             // non-empty slot
             for (int j=0; j<td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
@@ -284,13 +313,28 @@ public class HeapPage implements Page {
             if (isSlotUsed(i)) {
                 continue;
             } else {
-                markSlotUsed(i, true);
-                tuples[i] = t;
+                insertTuple(t, i);
                 break;
             }
         }
     }
 
+    /**
+     * Adds the specified tuple to an empty slot of the page, such as one the
+     * inserting transaction holds the tuple lock of.
+     * @throws DbException if the slot is used
+     * @param t The tuple to add.
+     * @param slot The slot to add it to.
+     */
+    void insertTuple(Tuple t, int slot) throws DbException {
+        if (isSlotUsed(slot)) {
+            throw new DbException("Slot " + slot + " of HeapPage " + toString() + " is used");
+        }
+        markSlotUsed(slot, true);
+        t.setRecordId(new RecordId(pid, slot));
+        tuples[slot] = t;
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -319,6 +363,44 @@ public class HeapPage implements Page {
         return count;
     }
 
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    public byte[] getSlotData(int i) {
+        if (!isSlotUsed(i)) {
+            return null;
+        }
+        if (tuples[i] == null) {
+            return Arrays.copyOfRange(data, slotOffset(i), slotOffset(i) + td.getSize());
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j=0; j<td.numFields(); j++) {
+                tuples[i].getField(j).serialize(dos);
+            }
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    public void setSlotData(int i, byte[] tuple) {
+        if (tuple == null) {
+            markSlotUsed(i, false);
+            tuples[i] = null;
+            return;
+        }
+        if (tuple.length != td.getSize()) {
+            throw new IllegalArgumentException("tuple of " + tuple.length
+                    + " bytes in a slot of " + td.getSize() + " bytes");
+        }
+        tuples[i] = readTuple(tuple, 0, i, null);
+        markSlotUsed(i, true);
+    }
+
     /**
      * Returns true if associated slot on this page is filled.
      */
@@ -344,9 +426,45 @@ public class HeapPage implements Page {
             throw new NoSuchElementException("Not tuple " + i);
         }
 
+        if (this.tuples[i] == null && isSlotUsed(i)) {
+            this.tuples[i] = readTuple(i, null);
+        }
         return this.tuples[i];
     }
 
+    /**
+     * Like {@link #getTuple}, but only decodes the fields in projection if
+     * the tuple has not been decoded yet. Such a partially decoded tuple is
+     * not kept by the page.
+     */
+    Tuple getTuple(int i, boolean[] projection) {
+        if (projection == null || this.tuples[i] != null || !isSlotUsed(i)) {
+            return getTuple(i);
+        }
+        return readTuple(i, projection);
+    }
+
+    /**
+     * Returns true if the tuple in slot i satisfies all of the predicates.
+     * Tuples that have not been decoded yet are tested against the raw page
+     * data, so no Tuple is built for records that do not qualify.
+     */
+    boolean slotMatches(int i, Predicate[] predicates) {
+        Tuple t = tuples[i];
+        int offset = slotOffset(i);
+        for (Predicate p : predicates) {
+            if (t != null) {
+                if (!p.filter(t)) {
+                    return false;
+                }
+            } else if (!p.filter(data, offset + fieldOffsets[p.getField()],
+                    td.getFieldType(p.getField()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Abstraction to fill or clear a slot on this page.
      */
@@ -379,7 +497,28 @@ public class HeapPage implements Page {
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
     public Iterator<Tuple> iterator() {
-        return new HeapPageIterator(this);
+        return new HeapPageIterator(this, null, null);
+    }
+
+    /**
+     * @return an iterator over the tuples on this page that satisfy all of
+     * the predicates; the predicates are evaluated against the raw page data
+     * before the tuples are built
+     * @param predicates the predicates, or null to return all tuples
+     */
+    public Iterator<Tuple> iterator(Predicate[] predicates) {
+        return new HeapPageIterator(this, predicates, null);
+    }
+
+    /**
+     * @return an iterator over the tuples on this page that satisfy all of
+     * the predicates, decoding only the projected fields
+     * @param predicates the predicates, or null to return all tuples
+     * @param projection projection[j] is true if field j is needed by the
+     *        caller, or null to decode all fields
+     */
+    public Iterator<Tuple> iterator(Predicate[] predicates, boolean[] projection) {
+        return new HeapPageIterator(this, predicates, projection);
     }
 
     /**
@@ -387,18 +526,23 @@ public class HeapPage implements Page {
      */
     private static class HeapPageIterator implements Iterator<Tuple> {
         private HeapPage page;
+        private Predicate[] predicates;
+        private boolean[] projection;
         private int numSlots;
         private int index;
 
-        public HeapPageIterator(HeapPage page) {
+        public HeapPageIterator(HeapPage page, Predicate[] predicates, boolean[] projection) {
             this.page = page;
+            this.projection = projection;
+            this.predicates = predicates == null || predicates.length == 0 ? null : predicates;
             this.numSlots = page.getNumTuples();
             index = 0;
             fetchNext();
         }
 
         private void fetchNext() {
-            while (index < numSlots && !page.isSlotUsed(index)) {
+            while (index < numSlots && (!page.isSlotUsed(index)
+                    || (predicates != null && !page.slotMatches(index, predicates)))) {
                 index++;
             }
         }
@@ -415,7 +559,7 @@ public class HeapPage implements Page {
                 throw new NoSuchElementException("Not more elements");
             }
 
-            Tuple ret = page.getTuple(index);
+            Tuple ret = page.getTuple(index, projection);
             // increase index by 1
             index++;
             // find next avalible slot.
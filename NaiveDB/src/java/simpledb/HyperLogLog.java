@@ -0,0 +1,176 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * HyperLogLog is a fixed-size sketch that estimates the number of distinct
+ * values it has seen. It keeps 2^precision one-byte registers no matter how
+ * many values are added; the standard error of the estimate is about
+ * 1.04 / sqrt(2^precision), i.e. roughly 1.6% with the default precision.
+ */
+public class HyperLogLog implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int DEFAULT_PRECISION = 12;
+    public static final int MIN_PRECISION = 4;
+    public static final int MAX_PRECISION = 16;
+
+    private final int precision;
+    private final byte[] registers;
+
+    /**
+     * Create a sketch with the default precision.
+     */
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    /**
+     * Create a sketch with 2^precision registers.
+     *
+     * @param precision
+     *            the number of index bits, between MIN_PRECISION and
+     *            MAX_PRECISION
+     */
+    public HyperLogLog(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("precision must be between "
+                    + MIN_PRECISION + " and " + MAX_PRECISION);
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Add a field value to the sketch.
+     */
+    public void add(Field f) {
+        addHash(hash(f));
+    }
+
+    /**
+     * Add a value that has already been hashed to 64 uniformly distributed
+     * bits.
+     */
+    public void addHash(long hash) {
+        int index = (int) (hash >>> (64 - precision));
+        // rank of the first 1 bit in the remaining bits; the sentinel bit
+        // bounds the rank when all remaining bits are 0
+        long rest = (hash << precision) | (1L << (precision - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+        if (rank > registers[index]) {
+            registers[index] = rank;
+        }
+    }
+
+    /**
+     * @return the estimated number of distinct values added so far
+     */
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) {
+                zeros++;
+            }
+        }
+        double estimate = alpha(m) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            // linear counting is more accurate for small cardinalities
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * Merge the registers of other into this sketch, so that this sketch
+     * estimates the number of distinct values added to either of them.
+     */
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("cannot merge sketches of different precision");
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    /**
+     * Write the sketch to out, see {@link #read(DataInput)}.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(precision);
+        out.write(registers);
+    }
+
+    /**
+     * Read a sketch written by {@link #write(DataOutput)}.
+     */
+    public static HyperLogLog read(DataInput in) throws IOException {
+        int precision = in.readByte();
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IOException("Invalid sketch precision " + precision);
+        }
+        HyperLogLog sketch = new HyperLogLog(precision);
+        in.readFully(sketch.registers);
+        return sketch;
+    }
+
+    private static double alpha(int m) {
+        switch (m) {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / (1 + 1.079 / m);
+        }
+    }
+
+    /**
+     * Hash a field value to 64 bits. Equal fields hash to the same value.
+     */
+    public static long hash(Field f) {
+        long h;
+        if (f instanceof IntField) {
+            h = ((IntField) f).getValue();
+        } else if (f instanceof StringField) {
+            // 64-bit FNV-1a, String.hashCode() has too few bits
+            h = 0xcbf29ce484222325L;
+            String s = ((StringField) f).getValue();
+            for (int i = 0; i < s.length(); i++) {
+                h ^= s.charAt(i);
+                h *= 0x100000001b3L;
+            }
+        } else {
+            h = f.hashCode();
+        }
+        return mix(h);
+    }
+
+    /**
+     * The 64-bit finalizer of MurmurHash3, spreads the input over all bits.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
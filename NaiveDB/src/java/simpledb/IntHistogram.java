@@ -1,193 +1,397 @@
 package simpledb;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.TreeMap;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
 
-/** A class to represent a fixed-width histogram over a single integer-based field.
+/** A class to represent an equi-depth histogram with a most-common-value
+ * list over a single integer-based field.
+ * <p>
+ * The histogram keeps a bounded uniform random sample of the values
+ * (reservoir sampling), plus the exact number, minimum and maximum of the
+ * values. Before estimating, the sample is summarized into
+ * <ul>
+ * <li>the most common values (MCVs) and their frequencies, i.e. the values
+ * that occur clearly more often than the average value, and</li>
+ * <li>equi-depth buckets over the remaining values: every bucket holds the
+ * same number of sampled values, together with its lowest and highest value
+ * and its number of distinct values.</li>
+ * </ul>
+ * Skewed columns (status codes, Zipfian ids) are thus estimated from the
+ * MCV frequencies, and range predicates over the rest get buckets that are
+ * narrow where the values are dense. Estimates binary search the sorted
+ * arrays of the summary, which is rebuilt only once a fraction of the sample
+ * has been replaced since it was built.
+ * <p>
+ * Removing a value only adjusts the number of values: finding it in the
+ * sample would cost a scan of the sample, and taking it out would bias the
+ * reservoir toward later values. The estimates of a table with many deletes
+ * thus drift until its statistics are rebuilt.
  */
 public class IntHistogram {
 
+    /** bounds on the number of sampled values */
+    static final int MIN_SAMPLE_SIZE = 1024;
+    static final int MAX_SAMPLE_SIZE = 32768;
+    /** sampled values per bucket */
+    static final int SAMPLE_PER_BUCKET = 100;
+    /** fraction of the sample that may be replaced before the summary is rebuilt */
+    static final double RESUMMARIZE_FRACTION = 0.1;
+
+    private final int buckets;
+
+    // reservoir sample of the values, sample[0 .. sampleSize)
+    private final int[] sample;
+    private int sampleSize;
+    // the number of values the reservoir was drawn from
+    private long seen;
+    private long random = 0x9e3779b97f4a7c15L;
+
+    // the smallest and largest value added
+    private int minValue;
+    private int maxValue;
+    private int numTuples;
+
+    // summary of the sample, mcvValues is null until it is first built.
+    // The MCVs are sorted by value; mcvCounts and bucketCounts count sampled
+    // values, and mcvCumulative[i] and bucketCumulative[i] are the sums of
+    // mcvCounts[0 .. i) and bucketCounts[0 .. i)
+    private int[] mcvValues;
+    private int[] mcvCounts;
+    private int[] mcvCumulative;
+    private int[] bucketLow;
+    private int[] bucketHigh;
+    private int[] bucketCounts;
+    private int[] bucketDistinct;
+    private int[] bucketCumulative;
+    // the sample size when the summary was built, and the number of sampled
+    // values added or replaced since
+    private int summarySize;
+    private int sampleChanges;
+
     /**
      * Create a new IntHistogram.
-     * 
+     *
      * This IntHistogram should maintain a histogram of integer values that it receives.
      * It should split the histogram into "buckets" buckets.
-     * 
+     *
      * The values that are being histogrammed will be provided one-at-a-time through the "addValue()" function.
-     * 
+     *
      * Your implementation should use space and have execution time that are both
-     * constant with respect to the number of values being histogrammed.  For example, you shouldn't 
+     * constant with respect to the number of values being histogrammed.  For example, you shouldn't
      * simply store every value that you see in a sorted list.
-     * 
+     *
      * @param buckets The number of buckets to split the input value into.
      * @param min The minimum integer value that will ever be passed to this class for histogramming
      * @param max The maximum integer value that will ever be passed to this class for histogramming
      */
-    private int minValue;
-    private int maxValue;
-    private int numBuckets;
-    private int numTuples;
-
-    // Use TreeMap to maintain order of keys. TreeMap also provides bounds operations(e.g. lower key, ceiling key, etc.)
-    private TreeMap<Integer, Integer> histograms;
-    private HashMap<Integer, Double> histogramsLen;
-
     public IntHistogram(int buckets, int min, int max) {
-        minValue = min;
-        maxValue = max;
-        numBuckets = buckets;
-        numTuples = 0;
+        this(buckets);
+    }
 
-        int intervalLen = (max - min + 1) / buckets;
-        int extra = (max - min + 1) % buckets;
-        histograms = new TreeMap<>();
-        histogramsLen = new HashMap<>();
-
-        int cur = min;
-        for (int i = 0; i < buckets; i++) {
-            int curLen = intervalLen;
-            if (extra > 0) {
-                curLen += 1;
-                extra--;
-            }
-            histograms.putIfAbsent(cur + curLen - 1, 0);
-            histogramsLen.putIfAbsent(cur + curLen - 1, curLen * 1.0);
-            cur = cur + curLen;
-        }
+    /**
+     * Create a new IntHistogram whose range is not known in advance. Since
+     * the buckets are placed at the sampled values, the range is never
+     * needed; the (buckets, min, max) constructor is kept for callers that
+     * know it.
+     *
+     * @param buckets The number of buckets to split the input value into.
+     */
+    public IntHistogram(int buckets) {
+        this.buckets = buckets;
+        sample = new int[Math.max(MIN_SAMPLE_SIZE, Math.min(MAX_SAMPLE_SIZE, buckets * SAMPLE_PER_BUCKET))];
+        sampleSize = 0;
+        seen = 0;
+        minValue = Integer.MAX_VALUE;
+        maxValue = Integer.MIN_VALUE;
+        numTuples = 0;
     }
 
     public int getNumTuples() {
         return numTuples;
     }
 
+    /** xorshift64, cheaper than java.util.Random and deterministic */
+    private long nextRandom() {
+        random ^= random << 13;
+        random ^= random >>> 7;
+        random ^= random << 17;
+        return random;
+    }
+
     /**
      * Add a value to the set of values that you are keeping a histogram of.
      * @param v Value to add to the histogram
      */
     public void addValue(int v) {
+        minValue = Math.min(minValue, v);
+        maxValue = Math.max(maxValue, v);
         numTuples++;
-        Integer k = histograms.ceilingKey(v);
-        histograms.put(k, histograms.get(k) + 1);
+        seen++;
+        if (sampleSize < sample.length) {
+            sample[sampleSize++] = v;
+            sampleChanges++;
+        } else {
+            long j = (nextRandom() >>> 1) % seen;
+            if (j < sample.length) {
+                sample[(int) j] = v;
+                sampleChanges++;
+            }
+        }
     }
 
     /**
-     * Estimate the selectivity of a particular predicate and operand on this table.
-     * 
-     * For example, if "op" is "GREATER_THAN" and "v" is 5, 
-     * return your estimate of the fraction of elements that are greater than 5.
-     * 
-     * @param op Operator
-     * @param v Value
-     * @return Predicted selectivity of this particular operator and value
+     * Remove a value that was previously added from the histogram. Only the
+     * number of values changes; the sample and the range are left alone.
+     * @param v Value to remove from the histogram
      */
-    public double estimateSelectivity(Predicate.Op op, int v) {
-        if (op == op.EQUALS) {
-            if (v < minValue || v > maxValue) {
-                return 0;
-            }
-            Map.Entry<Integer, Integer> e = histograms.ceilingEntry(v);
-            return (1 / histogramsLen.get(e.getKey())) * e.getValue() / numTuples;
-        } else if (op == op.GREATER_THAN) {
-            if (v < minValue) {
-                return 1.0;
-            }
+    public void removeValue(int v) {
+        if (numTuples == 0 || v < minValue || v > maxValue) {
+            return;
+        }
+        numTuples--;
+    }
 
-            Double[] ret = {0.0};
-            histograms.forEach(
-                    (k, value) -> {
-                        Map.Entry<Integer, Integer> e = histograms.ceilingEntry(v);
-                        if (e != null && k == e.getKey() && v != k) {
-                            ret[0] += (k - v) / histogramsLen.get(k) * value;
-                        } else if (e != null && k == e.getKey() && v == k) {
-                            ret[0] += 0;
-                        } else if (v < k) {
-                            ret[0] += value;
-                        }
+    /**
+     * Summarize the sample into MCVs and equi-depth buckets, if it was never
+     * summarized or enough of it changed since.
+     */
+    private void summarize() {
+        if (mcvValues != null && sampleChanges < Math.max(1, RESUMMARIZE_FRACTION * summarySize)) {
+            return;
+        }
+        int n = sampleSize;
+        int[] sorted = Arrays.copyOf(sample, n);
+        Arrays.sort(sorted);
+
+        // run-length encode the sorted sample
+        int[] runValues = new int[n];
+        int[] runCounts = new int[n];
+        int runs = 0;
+        for (int i = 0; i < n; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                runValues[runs++] = sorted[i];
             }
-            );
-            return ret[0] / numTuples;
-        } else if (op == op.GREATER_THAN_OR_EQ) {
-            if (v < minValue) {
-                return 1.0;
+            runCounts[runs - 1]++;
+        }
+
+        // a value is common if it occurs more than 1.25 times as often as the
+        // average value, and at least twice so that single samples are not.
+        // At most one MCV per bucket is kept, the most frequent ones.
+        int threshold = Math.max(2, (int) (1.25 * n / Math.max(1, runs)) + 1);
+        int candidates = 0;
+        for (int i = 0; i < runs; i++) {
+            if (runCounts[i] >= threshold) {
+                candidates++;
             }
-            Double[] ret = {0.0};
-            histograms.forEach(
-                    (k, value) -> {
-                        Map.Entry<Integer, Integer> e = histograms.ceilingEntry(v);
-                        if (e != null && k == e.getKey()) {
-                            ret[0] += (k - v + 1) / histogramsLen.get(k) * value;
-                        } else if (v < k) {
-                            ret[0] += value;
-                        }
-                    }
-            );
-            return ret[0] / numTuples;
-        } else if (op == op.LESS_THAN) {
-            // need to check if v is smaller than minValue
-            // because we only save right boundary of our
-            // histogram.
-            if (v < minValue) {
-                return 0;
+        }
+        int numMcvs = Math.min(candidates, buckets);
+        if (numMcvs < candidates) {
+            int[] counts = new int[candidates];
+            for (int i = 0, c = 0; i < runs; i++) {
+                if (runCounts[i] >= threshold) {
+                    counts[c++] = runCounts[i];
+                }
             }
+            Arrays.sort(counts);
+            threshold = counts[candidates - numMcvs];
+        }
 
-            Integer ceilingKey = histograms.ceilingKey(v);
-            if (ceilingKey == null) {
-                // no ceilingKey means that v is greater than
-                // maxValue.
-                return 1.0;
-            }
-            Double[] ret = {0.0};
-            histograms.forEach (
-                    (k, value) -> {
-                        if (ceilingKey == k) {
-                            ret[0] += (histogramsLen.get(k) - (k - v + 1)) / histogramsLen.get(k) * value;
-                        } else if (k < v) {
-                            ret[0] += value;
-                        }
-                    }
-            );
-            return ret[0] / numTuples;
-        } else if (op == op.LESS_THAN_OR_EQ) {
-            // need to check if v is smaller than minValue
-            // because we only save right boundary of our
-            // histogram.
-            if (v < minValue) {
-                return 0;
+        int[] mcvs = new int[numMcvs];
+        int[] mcvFrequencies = new int[numMcvs];
+        int[] rest = new int[n];
+        int restSize = 0;
+        int m = 0;
+        for (int i = 0, pos = 0; i < runs; pos += runCounts[i], i++) {
+            if (runCounts[i] >= threshold && m < numMcvs) {
+                mcvs[m] = runValues[i];
+                mcvFrequencies[m++] = runCounts[i];
+            } else {
+                System.arraycopy(sorted, pos, rest, restSize, runCounts[i]);
+                restSize += runCounts[i];
             }
+        }
 
-            Integer ceilingKey = histograms.ceilingKey(v);
-            if (ceilingKey == null) {
-                // no ceilingKey means that v is greater than
-                // maxValue.
-                return 1.0;
+        int k = Math.min(buckets, restSize);
+        bucketLow = new int[k];
+        bucketHigh = new int[k];
+        bucketCounts = new int[k];
+        bucketDistinct = new int[k];
+        bucketCumulative = new int[k + 1];
+        for (int b = 0; b < k; b++) {
+            int from = (int) ((long) b * restSize / k);
+            int to = (int) ((long) (b + 1) * restSize / k);
+            bucketLow[b] = rest[from];
+            bucketHigh[b] = rest[to - 1];
+            bucketCounts[b] = to - from;
+            int d = 1;
+            for (int i = from + 1; i < to; i++) {
+                if (rest[i] != rest[i - 1]) {
+                    d++;
+                }
             }
-            Double[] ret = {0.0};
-            histograms.forEach (
-                    (k, value) -> {
-                        if (ceilingKey == k) {
-                            ret[0] += (histogramsLen.get(k) - (k - v)) / histogramsLen.get(k) * value;
-                        } else if (k < v) {
-                            ret[0] += value;
-                        }
-                    }
-            );
-            return ret[0] / numTuples;
-        } else if (op == op.NOT_EQUALS) {
-            if (v < minValue || v > maxValue) {
-                return 1;
+            bucketDistinct[b] = d;
+            bucketCumulative[b + 1] = bucketCumulative[b] + bucketCounts[b];
+        }
+        mcvCounts = Arrays.copyOf(mcvFrequencies, m);
+        mcvCumulative = new int[m + 1];
+        for (int i = 0; i < m; i++) {
+            mcvCumulative[i + 1] = mcvCumulative[i] + mcvCounts[i];
+        }
+        mcvValues = Arrays.copyOf(mcvs, m);
+        summarySize = n;
+        sampleChanges = 0;
+    }
+
+    /** @return the index of the first element of a that is >= v */
+    private static int lowerBound(int[] a, int v) {
+        int lo = 0, hi = a.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] < v) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
             }
-            Map.Entry<Integer, Integer> e = histograms.ceilingEntry(v);
-            return 1 - (1 / histogramsLen.get(e.getKey())) * e.getValue() / numTuples;
-        } else {
-            return -1;
         }
+        return lo;
     }
-    
+
+    /** @return the number of sampled values equal to v, interpolated within buckets */
+    private double sampledEqual(int v) {
+        int i = lowerBound(mcvValues, v);
+        if (i < mcvValues.length && mcvValues[i] == v) {
+            return mcvCounts[i];
+        }
+        // buckets whose range contains v, a value may span several buckets
+        double count = 0;
+        for (int b = lowerBound(bucketHigh, v); b < bucketHigh.length && bucketLow[b] <= v; b++) {
+            count += (double) bucketCounts[b] / bucketDistinct[b];
+        }
+        return count;
+    }
+
+    /** @return the number of sampled values less than v, interpolated within buckets */
+    private double sampledLessThan(int v) {
+        double count = mcvCumulative[lowerBound(mcvValues, v)];
+        // buckets that end below v count completely, the ones containing v
+        // in proportion to the part of their range below v
+        int b = lowerBound(bucketHigh, v);
+        count += bucketCumulative[b];
+        for (; b < bucketHigh.length && bucketLow[b] < v; b++) {
+            count += bucketCounts[b] * (double) ((long) v - bucketLow[b])
+                    / ((long) bucketHigh[b] - bucketLow[b] + 1);
+        }
+        return count;
+    }
+
+    /** @return the fraction of the values that are equal to v */
+    private double fractionEqual(int v) {
+        if (numTuples == 0 || v < minValue || v > maxValue) {
+            return 0.0;
+        }
+        summarize();
+        return Math.min(1.0, sampledEqual(v) / summarySize);
+    }
+
+    /** @return the fraction of the values that are less than v */
+    private double fractionLessThan(int v) {
+        if (numTuples == 0 || v <= minValue) {
+            return 0.0;
+        }
+        if (v > maxValue) {
+            return 1.0;
+        }
+        summarize();
+        return Math.min(1.0, sampledLessThan(v) / summarySize);
+    }
+
+    /** @return the fraction of the values that are greater than v */
+    private double fractionGreaterThan(int v) {
+        if (numTuples == 0 || v >= maxValue) {
+            return 0.0;
+        }
+        if (v < minValue) {
+            return 1.0;
+        }
+        return Math.max(0.0, 1.0 - fractionLessThan(v) - fractionEqual(v));
+    }
+
+    /**
+     * Estimate the selectivity of a particular predicate and operand on this table.
+     *
+     * For example, if "op" is "GREATER_THAN" and "v" is 5,
+     * return your estimate of the fraction of elements that are greater than 5.
+     *
+     * @param op Operator
+     * @param v Value
+     * @return Predicted selectivity of this particular operator and value
+     */
+    public double estimateSelectivity(Predicate.Op op, int v) {
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return fractionEqual(v);
+            case NOT_EQUALS:
+                return numTuples == 0 ? 0.0 : 1.0 - fractionEqual(v);
+            case GREATER_THAN:
+                return fractionGreaterThan(v);
+            case GREATER_THAN_OR_EQ:
+                return numTuples == 0 ? 0.0 : 1.0 - fractionLessThan(v);
+            case LESS_THAN:
+                return fractionLessThan(v);
+            case LESS_THAN_OR_EQ:
+                return numTuples == 0 ? 0.0 : 1.0 - fractionGreaterThan(v);
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @return the values of the summary and the fraction of all values each
+     *         stands for, as {values, fractions}: each MCV stands for its
+     *         frequency, and each bucket for its lowest and its highest value
+     *         with half of its values each
+     */
+    double[][] distribution() {
+        if (numTuples == 0) {
+            return new double[][] { new double[0], new double[0] };
+        }
+        summarize();
+        int m = mcvValues.length;
+        int k = bucketLow.length;
+        double[] values = new double[m + 2 * k];
+        double[] fractions = new double[m + 2 * k];
+        for (int i = 0; i < m; i++) {
+            values[i] = mcvValues[i];
+            fractions[i] = (double) mcvCounts[i] / summarySize;
+        }
+        for (int b = 0; b < k; b++) {
+            values[m + 2 * b] = bucketLow[b];
+            values[m + 2 * b + 1] = bucketHigh[b];
+            fractions[m + 2 * b] = fractions[m + 2 * b + 1] = bucketCounts[b] / 2.0 / summarySize;
+        }
+        return new double[][] { values, fractions };
+    }
+
+    /**
+     * Estimate the selectivity of <tt>a op b</tt> over the pairs of a value a
+     * of this histogram and a value b of a distribution returned by
+     * {@link #distribution()}.
+     */
+    double estimateJoinSelectivity(Predicate.Op op, double[][] distribution) {
+        double selectivity = 0;
+        for (int i = 0; i < distribution[0].length; i++) {
+            selectivity += distribution[1][i] * estimateSelectivity(op, (int) distribution[0][i]);
+        }
+        return Math.min(1.0, selectivity);
+    }
+
     /**
      * @return
      *     the average selectivity of this histogram.
-     *     
+     *
      *     This is not an indispensable method to implement the basic
      *     join optimization. It may be needed if you want to
      *     implement a more efficient optimization
@@ -197,18 +401,64 @@ public class IntHistogram {
         // some code goes here
         return 1.0;
     }
-    
+
+    /**
+     * Write the histogram to out, see {@link #read(DataInput)}. The summary
+     * is not written, it is rebuilt from the sample.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(buckets);
+        out.writeInt(minValue);
+        out.writeInt(maxValue);
+        out.writeInt(numTuples);
+        out.writeLong(seen);
+        out.writeLong(random);
+        out.writeInt(sampleSize);
+        for (int i = 0; i < sampleSize; i++) {
+            out.writeInt(sample[i]);
+        }
+    }
+
+    /**
+     * Read a histogram written by {@link #write(DataOutput)}.
+     */
+    public static IntHistogram read(DataInput in) throws IOException {
+        IntHistogram hist = new IntHistogram(in.readInt());
+        hist.minValue = in.readInt();
+        hist.maxValue = in.readInt();
+        hist.numTuples = in.readInt();
+        hist.seen = in.readLong();
+        hist.random = in.readLong();
+        int n = in.readInt();
+        if (n > hist.sample.length) {
+            throw new IOException("Sample of " + n + " values does not fit in the histogram");
+        }
+        for (int i = 0; i < n; i++) {
+            hist.sample[i] = in.readInt();
+        }
+        hist.sampleSize = n;
+        return hist;
+    }
+
     /**
      * @return A string describing this histogram, for debugging purposes
      */
     public String toString() {
         StringBuffer buffer = new StringBuffer();
-        buffer.append("buckets: " + this.numBuckets + " # ");
+        buffer.append("tuples: " + this.numTuples + " # ");
+        buffer.append("sampled: " + this.sampleSize + " # ");
         buffer.append("min: " + this.minValue + " # ");
         buffer.append("max: " + this.maxValue + " # ");
-        int i = 0;
-        for (Map.Entry<Integer, Integer> e : this.histograms.entrySet()) {
-            buffer.append(i + "th key: " + e.getKey() + " value " + e.getValue());
+        if (numTuples > 0) {
+            summarize();
+            for (int i = 0; i < mcvValues.length; i++) {
+                buffer.append("mcv " + mcvValues[i] + " frequency "
+                        + (double) mcvCounts[i] / summarySize + " ");
+            }
+            for (int b = 0; b < bucketLow.length; b++) {
+                buffer.append(b + "th bucket: [" + bucketLow[b] + ", " + bucketHigh[b] + "] distinct "
+                        + bucketDistinct[b] + " ");
+            }
         }
         return buffer.toString();
     }
@@ -22,6 +22,11 @@ public class IntegerAggregator implements Aggregator {
     @Getter
     private TreeMap<Field, Integer> integerAggregator;
     private TreeMap<Field, Integer> counter;
+    private TreeMap<Field, HyperLogLog> sketches;
+
+    // stands in for the group-by value when there is no grouping, TreeMap
+    // does not accept null keys
+    static final Field NO_GROUP_KEY = new IntField(0);
 
     /**
      * Aggregate constructor
@@ -47,6 +52,7 @@ public class IntegerAggregator implements Aggregator {
 
         integerAggregator = new TreeMap<Field, Integer>();
         counter = new TreeMap<Field, Integer>();
+        sketches = new TreeMap<Field, HyperLogLog>();
     }
 
     /**
@@ -57,9 +63,20 @@ public class IntegerAggregator implements Aggregator {
      *            the Tuple containing an aggregate field and a group-by field
      */
     public void mergeTupleIntoGroup(Tuple tup) {
-        Field gbKey = tup.getField(this.gbField);
+        Field gbKey = this.gbField == NO_GROUPING ? NO_GROUP_KEY : tup.getField(this.gbField);
         Field gbValue = tup.getField(this.afield);
 
+        if (aggregatorOp == Op.COUNT_DISTINCT) {
+            HyperLogLog sketch = sketches.get(gbKey);
+            if (sketch == null) {
+                sketch = new HyperLogLog();
+                sketches.put(gbKey, sketch);
+                integerAggregator.put(gbKey, 0);
+            }
+            sketch.add(gbValue);
+            return;
+        }
+
         if (integerAggregator.containsKey(gbKey)) {
             integerAggregator.put(gbKey, aggreate(gbKey, integerAggregator.get(gbKey), ((IntField)gbValue).getValue(), false));
         } else {
@@ -145,7 +162,11 @@ public class IntegerAggregator implements Aggregator {
             isOpen = false;
             nextTuple = null;
 
-            tupleDesc = new TupleDesc(new Type[] {aggregator.getGbFieldType(), Type.INT_TYPE});
+            if (gbField == NO_GROUPING) {
+                tupleDesc = new TupleDesc(new Type[] {Type.INT_TYPE});
+            } else {
+                tupleDesc = new TupleDesc(new Type[] {aggregator.getGbFieldType(), Type.INT_TYPE});
+            }
         }
 
         public void open() throws DbException, TransactionAbortedException {
@@ -172,11 +193,19 @@ public class IntegerAggregator implements Aggregator {
             if (keyValueIter.hasNext()) {
                 Map.Entry<Field, Integer> nextKeyValuePair = keyValueIter.next();
                 Tuple tuple = new Tuple(tupleDesc);
-                tuple.setField(0, nextKeyValuePair.getKey());
+                int value;
                 if (aggregatorOp == Op.AVG) {
-                    tuple.setField(1, new IntField(nextKeyValuePair.getValue() / counter.get(nextKeyValuePair.getKey())));
+                    value = nextKeyValuePair.getValue() / counter.get(nextKeyValuePair.getKey());
+                } else if (aggregatorOp == Op.COUNT_DISTINCT) {
+                    value = (int) sketches.get(nextKeyValuePair.getKey()).estimate();
+                } else {
+                    value = nextKeyValuePair.getValue();
+                }
+                if (gbField == NO_GROUPING) {
+                    tuple.setField(0, new IntField(value));
                 } else {
-                    tuple.setField(1, new IntField(nextKeyValuePair.getValue()));
+                    tuple.setField(0, nextKeyValuePair.getKey());
+                    tuple.setField(1, new IntField(value));
                 }
 
                 return tuple;
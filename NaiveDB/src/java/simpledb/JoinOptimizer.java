@@ -102,17 +102,103 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
-        if (j instanceof LogicalSubplanJoinNode) {
-            // A LogicalSubplanJoinNode represents a subquery.
-            // You do not need to implement proper support for these for Lab 3.
-            return card1 + cost1 + cost2;
-        } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return -1.0;
+        // for a subquery join (LogicalSubplanJoinNode), card2 and cost2 are
+        // the estimates of the subquery plan, see estimateSubplan; it is
+        // executed again for every outer tuple like any inner side
+        return nestedLoopCost(card1, card2, cost1, cost2);
+    }
+
+    /**
+     * Join is a nested-loops join: the inner side is scanned once per outer
+     * tuple, and the predicate is applied to every pair.
+     */
+    private static double nestedLoopCost(int card1, int card2, double cost1, double cost2) {
+        return cost1 + (double) card1 * cost2 + (double) card1 * card2;
+    }
+
+    /**
+     * Estimate the cost of one execution of the plan of a subquery, and the
+     * number of tuples it returns, from the statistics of the tables it
+     * scans.
+     *
+     * @param plan
+     *            the plan of the subquery
+     * @param stats
+     *            The table stats, referenced by table names, not alias
+     * @return the cost and the cardinality of the plan; a plan that cannot
+     *         be estimated (e.g. a table without statistics) costs 0 and
+     *         returns 1 tuple
+     */
+    static double[] estimateSubplan(OpIterator plan, Map<String, TableStats> stats) {
+        try {
+            HashMap<String, Integer> tableAliasToId = new HashMap<String, Integer>();
+            collectScans(plan, tableAliasToId);
+            if (plan instanceof Operator) {
+                OperatorCardinality.updateOperatorCardinality((Operator) plan,
+                        tableAliasToId, stats);
+            }
+            return new double[] { subplanCost(plan, stats), subplanCard(plan, stats) };
+        } catch (RuntimeException e) {
+            return new double[] { 0, 1 };
+        }
+    }
+
+    private static void collectScans(OpIterator o, Map<String, Integer> tableAliasToId) {
+        if (o instanceof SeqScan) {
+            SeqScan scan = (SeqScan) o;
+            tableAliasToId.put(scan.getAlias(), Database.getCatalog().getTableId(scan.getTableName()));
+        } else if (o instanceof BTreeScan) {
+            BTreeScan scan = (BTreeScan) o;
+            tableAliasToId.put(scan.getAlias(), scan.getTableId());
+        } else if (o instanceof Operator) {
+            for (OpIterator child : ((Operator) o).getChildren()) {
+                if (child != null) {
+                    collectScans(child, tableAliasToId);
+                }
+            }
+        }
+    }
+
+    /** @return the estimated cardinality of o, after its operators were updated */
+    private static int subplanCard(OpIterator o, Map<String, TableStats> stats) {
+        if (OperatorCardinality.isScan(o)) {
+            return Math.max(1, OperatorCardinality.scanCardinality(o, stats));
+        } else if (o instanceof Operator) {
+            return Math.max(1, ((Operator) o).getEstimatedCardinality());
+        }
+        return 1;
+    }
+
+    /**
+     * @return the estimated cost of one execution of o: scans cost their IO,
+     *         joins are costed as in estimateJoinCost, and every other
+     *         operator costs 1 per input tuple
+     */
+    private static double subplanCost(OpIterator o, Map<String, TableStats> stats) {
+        if (o instanceof SeqScan) {
+            return stats.get(((SeqScan) o).getTableName()).estimateScanCost();
+        } else if (o instanceof BTreeScan) {
+            BTreeScan scan = (BTreeScan) o;
+            TableStats s = stats.get(scan.getTableName());
+            if (scan.getIndexPredicate() == null) {
+                return s.estimateScanCost();
+            }
+            return s.estimateIndexScanCost(OperatorCardinality.indexSelectivity(scan, s));
+        } else if (!(o instanceof Operator)) {
+            return 0;
         }
+        OpIterator[] children = ((Operator) o).getChildren();
+        if (o instanceof Join) {
+            return nestedLoopCost(subplanCard(children[0], stats), subplanCard(children[1], stats),
+                    subplanCost(children[0], stats), subplanCost(children[1], stats));
+        }
+        double cost = 0;
+        for (OpIterator child : children) {
+            if (child != null) {
+                cost += subplanCost(child, stats) + subplanCard(child, stats);
+            }
+        }
+        return cost;
     }
 
     /**
@@ -137,9 +223,11 @@ public class JoinOptimizer {
     public int estimateJoinCardinality(LogicalJoinNode j, int card1, int card2,
             boolean t1pkey, boolean t2pkey, Map<String, TableStats> stats) {
         if (j instanceof LogicalSubplanJoinNode) {
-            // A LogicalSubplanJoinNode represents a subquery.
-            // You do not need to implement proper support for these for Lab 3.
-            return card1;
+            // card2 is the estimated cardinality of the subquery, whose
+            // result has no primary key
+            return estimateTableJoinCardinality(j.p, j.t1Alias, null,
+                    j.f1PureName, null, card1, card2, t1pkey, false,
+                    stats, p.getTableAliasToIdMapping());
         } else {
             return estimateTableJoinCardinality(j.p, j.t1Alias, j.t2Alias,
                     j.f1PureName, j.f2PureName, card1, card2, t1pkey, t2pkey,
@@ -147,17 +235,101 @@ public class JoinOptimizer {
         }
     }
 
+    /**
+     * Fraction of the cross product that a range join (&lt;, &gt;, ...) is
+     * assumed to produce when the histograms of its fields are not known.
+     */
+    static final double RANGE_JOIN_SELECTIVITY = 0.3;
+
     /**
      * Estimate the join cardinality of two tables.
+     * <p>
+     * An equality join on a primary key produces at most one tuple per tuple
+     * of the other side, so its cardinality is that of the other side (the
+     * smaller one if both sides are keys). Other equality joins produce
+     * card1 * card2 / max(ndv1, ndv2) tuples, where ndv is the number of
+     * distinct values of the join field (see
+     * {@link TableStats#estimateDistinct}): every value of the side with
+     * fewer distinct values is assumed to match. Range joins produce the
+     * fraction of the cross product estimated from the histograms of both
+     * fields, and inequality joins all of it but the equality join. If the
+     * statistics of a side are not known, as for a subquery, equality joins
+     * are assumed to produce as many tuples as the larger side, and range
+     * joins a fixed fraction of the cross product.
      * */
     public static int estimateTableJoinCardinality(Predicate.Op joinOp,
             String table1Alias, String table2Alias, String field1PureName,
             String field2PureName, int card1, int card2, boolean t1pkey,
             boolean t2pkey, Map<String, TableStats> stats,
             Map<String, Integer> tableAliasToId) {
-        int card = 1;
-        // some code goes here
-        return card <= 0 ? 1 : card;
+        TableStats s1 = tableStats(table1Alias, stats, tableAliasToId);
+        TableStats s2 = tableStats(table2Alias, stats, tableAliasToId);
+        int f1 = fieldIndex(table1Alias, field1PureName, tableAliasToId);
+        int f2 = fieldIndex(table2Alias, field2PureName, tableAliasToId);
+        boolean known = s1 != null && s2 != null && f1 >= 0 && f2 >= 0;
+
+        double equalCard;
+        if (t1pkey && t2pkey) {
+            equalCard = Math.min(card1, card2);
+        } else if (t1pkey) {
+            equalCard = card2;
+        } else if (t2pkey) {
+            equalCard = card1;
+        } else if (known) {
+            // a side cannot have more distinct values than tuples
+            double ndv1 = Math.min(s1.estimateDistinct(f1), card1);
+            double ndv2 = Math.min(s2.estimateDistinct(f2), card2);
+            equalCard = (double) card1 * card2 / Math.max(1, Math.max(ndv1, ndv2));
+        } else {
+            equalCard = Math.max(card1, card2);
+        }
+
+        double card;
+        switch (joinOp) {
+            case EQUALS:
+            case LIKE:
+                card = equalCard;
+                break;
+            case NOT_EQUALS:
+                card = (double) card1 * card2 - equalCard;
+                break;
+            default:
+                double selectivity = known ? s1.estimateJoinSelectivity(f1, joinOp, s2, f2) : -1;
+                if (selectivity < 0) {
+                    selectivity = RANGE_JOIN_SELECTIVITY;
+                }
+                card = (double) card1 * card2 * selectivity;
+        }
+        card = Math.min(card, Integer.MAX_VALUE);
+        return card <= 0 ? 1 : (int) card;
+    }
+
+    /**
+     * @return the statistics of the table with alias, or null if they are
+     *         not known
+     */
+    private static TableStats tableStats(String alias, Map<String, TableStats> stats,
+            Map<String, Integer> tableAliasToId) {
+        Integer tableid = alias == null || tableAliasToId == null ? null : tableAliasToId.get(alias);
+        String name = tableid == null ? null : Database.getCatalog().getTableName(tableid);
+        return name == null || stats == null ? null : stats.get(name);
+    }
+
+    /**
+     * @return the index of field pureName in the table with alias, or -1 if
+     *         it is not known
+     */
+    private static int fieldIndex(String alias, String pureName,
+            Map<String, Integer> tableAliasToId) {
+        Integer tableid = alias == null || tableAliasToId == null ? null : tableAliasToId.get(alias);
+        if (tableid == null || pureName == null) {
+            return -1;
+        }
+        try {
+            return Database.getCatalog().getTupleDesc(tableid).fieldNameToIndex(pureName);
+        } catch (NoSuchElementException e) {
+            return -1;
+        }
     }
 
     /**
@@ -170,27 +342,36 @@ public class JoinOptimizer {
      *            The size of the subsets of interest
      * @return a set of all subsets of the specified size
      */
-    @SuppressWarnings("unchecked")
     public <T> Set<Set<T>> enumerateSubsets(Vector<T> v, int size) {
         Set<Set<T>> els = new HashSet<Set<T>>();
-        els.add(new HashSet<T>());
-        // Iterator<Set> it;
-        // long start = System.currentTimeMillis();
-
+        if (size > v.size()) {
+            return els;
+        }
+        // walk the combinations of size indexes in lexicographic order
+        int[] index = new int[size];
         for (int i = 0; i < size; i++) {
-            Set<Set<T>> newels = new HashSet<Set<T>>();
-            for (Set<T> s : els) {
-                for (T t : v) {
-                    Set<T> news = (Set<T>) (((HashSet<T>) s).clone());
-                    if (news.add(t))
-                        newels.add(news);
-                }
-            }
-            els = newels;
+            index[i] = i;
         }
+        while (true) {
+            Set<T> s = new HashSet<T>();
+            for (int i : index) {
+                s.add(v.get(i));
+            }
+            els.add(s);
 
+            int i = size - 1;
+            while (i >= 0 && index[i] == v.size() - size + i) {
+                i--;
+            }
+            if (i < 0) {
+                break;
+            }
+            index[i]++;
+            for (int k = i + 1; k < size; k++) {
+                index[k] = index[k - 1] + 1;
+            }
+        }
         return els;
-
     }
 
     /**
@@ -207,8 +388,9 @@ public class JoinOptimizer {
      * @param explain
      *            Indicates whether your code should explain its query plan or
      *            simply execute it
-     * @return A Vector<LogicalJoinNode> that stores joins in the left-deep
-     *         order in which they should be executed.
+     * @return A Vector<LogicalJoinNode> that stores joins in the order in
+     *         which they should be executed; every join comes after the joins
+     *         that produce its inputs, which may form a bushy tree.
      * @throws ParsingException
      *             when stats or filter selectivities is missing a table in the
      *             join, or or when another internal error occurs
@@ -217,175 +399,304 @@ public class JoinOptimizer {
             HashMap<String, TableStats> stats,
             HashMap<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
-        //Not necessary for labs 1--3
+        if (joins.isEmpty()) {
+            return joins;
+        }
+        BaseTables base = new BaseTables(stats, filterSelectivities);
+
+        PlanCache pc;
+        Vector<LogicalJoinNode> best;
+        if (joins.size() <= MAX_DP_JOINS) {
+            pc = new PlanCache(joins.size());
+            int all = (1 << joins.size()) - 1;
+            best = orderJoinsDP(base, pc, stats);
+            if (best != null && explain) {
+                pc.addSubplans(all);
+            }
+        } else {
+            pc = new PlanCache();
+            best = orderJoinsGreedy(base, pc, stats);
+        }
 
-        // some code goes here
-        //Replace the following
-        return joins;
+        if (best == null) {
+            // the joins do not connect all tables, keep the parse order
+            return joins;
+        }
+        if (explain && !java.awt.GraphicsEnvironment.isHeadless()) {
+            printJoins(best, pc, stats, filterSelectivities);
+        }
+        return best;
     }
 
+    /**
+     * Queries with more joins than this, i.e. more than 12 tables, are
+     * ordered greedily, since the dynamic program considers all 2^n sets of
+     * joins.
+     */
+    static final int MAX_DP_JOINS = 11;
+
     // ===================== Private Methods =================================
 
     /**
-     * This is a helper method that computes the cost and cardinality of joining
-     * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
-     * all of the subsets of size joinSet.size() - 1 have already been computed
-     * and stored in PlanCache pc.
-     * 
-     * @param stats
-     *            table stats for all of the tables, referenced by table names
-     *            rather than alias (see {@link #orderJoins})
-     * @param filterSelectivities
-     *            the selectivities of the filters over each of the tables
-     *            (where tables are indentified by their alias or name if no
-     *            alias is given)
-     * @param joinToRemove
-     *            the join to remove from joinSet
-     * @param joinSet
-     *            the set of joins being considered
-     * @param bestCostSoFar
-     *            the best way to join joinSet so far (minimum of previous
-     *            invocations of computeCostAndCardOfSubplan for this joinSet,
-     *            from returned CostCard)
-     * @param pc
-     *            the PlanCache for this join; should have subplans for all
-     *            plans of size joinSet.size()-1
-     * @return A {@link CostCard} objects desribing the cost, cardinality,
-     *         optimal subplan
-     * @throws ParsingException
-     *             when stats, filterSelectivities, or pc object is missing
-     *             tables involved in join
+     * The scan cost, cardinality and key flags of the base tables of every
+     * join, computed once per {@link #orderJoins} call. Tables are numbered
+     * by their alias, so that sets of tables can be kept as bitmasks.
      */
-    @SuppressWarnings("unchecked")
-    private CostCard computeCostAndCardOfSubplan(
-            HashMap<String, TableStats> stats,
-            HashMap<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
-            double bestCostSoFar, PlanCache pc) throws ParsingException {
-
-        LogicalJoinNode j = joinToRemove;
-
-        Vector<LogicalJoinNode> prevBest;
-
-        if (this.p.getTableId(j.t1Alias) == null)
-            throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
-            throw new ParsingException("Unknown table " + j.t2Alias);
-
-        String table1Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t2Alias));
-        String table1Alias = j.t1Alias;
-        String table2Alias = j.t2Alias;
-
-        Set<LogicalJoinNode> news = (Set<LogicalJoinNode>) ((HashSet<LogicalJoinNode>) joinSet)
-                .clone();
-        news.remove(j);
-
-        double t1cost, t2cost;
-        int t1card, t2card;
-        boolean leftPkey, rightPkey;
-
-        if (news.isEmpty()) { // base case -- both are base relations
-            prevBest = new Vector<LogicalJoinNode>();
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(
-                    filterSelectivities.get(j.t1Alias));
-            leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateTableCardinality(
-                            filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias == null ? false : isPkey(table2Alias,
-                    j.f2PureName);
-        } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
-
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
-                return null;
+    private class BaseTables {
+        final double[] t1Cost, t2Cost;
+        final int[] t1Card, t2Card;
+        final boolean[] t1Pkey, t2Pkey;
+        // the number of the table of each side, t2Table is -1 for subplans
+        final int[] t1Table, t2Table;
+        int numTables = 0;
+
+        BaseTables(HashMap<String, TableStats> stats,
+                HashMap<String, Double> filterSelectivities) throws ParsingException {
+            int n = joins.size();
+            t1Cost = new double[n];
+            t2Cost = new double[n];
+            t1Card = new int[n];
+            t2Card = new int[n];
+            t1Pkey = new boolean[n];
+            t2Pkey = new boolean[n];
+            t1Table = new int[n];
+            t2Table = new int[n];
+            HashMap<String, Integer> tableNumbers = new HashMap<String, Integer>();
+            for (int i = 0; i < n; i++) {
+                LogicalJoinNode j = joins.get(i);
+                TableStats s1 = tableStats(j.t1Alias, stats, filterSelectivities);
+                t1Cost[i] = scanCost(j.t1Alias, s1);
+                t1Card[i] = s1.estimateTableCardinality(filterSelectivities.get(j.t1Alias));
+                t1Pkey[i] = isPkey(j.t1Alias, j.f1PureName);
+                t1Table[i] = tableNumber(tableNumbers, j.t1Alias);
+                if (j instanceof LogicalSubplanJoinNode) {
+                    double[] subplan = estimateSubplan(((LogicalSubplanJoinNode) j).subPlan, stats);
+                    t2Cost[i] = subplan[0];
+                    t2Card[i] = (int) subplan[1];
+                    t2Table[i] = -1;
+                } else {
+                    TableStats s2 = tableStats(j.t2Alias, stats, filterSelectivities);
+                    t2Cost[i] = scanCost(j.t2Alias, s2);
+                    t2Card[i] = s2.estimateTableCardinality(filterSelectivities.get(j.t2Alias));
+                    t2Pkey[i] = isPkey(j.t2Alias, j.f2PureName);
+                    t2Table[i] = tableNumber(tableNumbers, j.t2Alias);
+                }
             }
+        }
 
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
-
-            // estimate cost of right subtree
-            if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
-                t1cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(prevBest);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateTableCardinality(
-                                filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias == null ? false : isPkey(j.t2Alias,
-                        j.f2PureName);
-            } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
-                                                        // (both
-                // shouldn't be)
-                t2cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(
-                        filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
+        /**
+         * @return the cost of the access path physicalPlan chose for the
+         *         table, which is an index scan if that was cheaper
+         */
+        private double scanCost(String alias, TableStats s) {
+            Double cost = p.getScanCost(alias);
+            return cost != null ? cost : s.estimateScanCost();
+        }
 
-            } else {
-                // don't consider this plan if one of j.t1 or j.t2
-                // isn't a table joined in prevBest (cross product)
-                return null;
+        private int tableNumber(HashMap<String, Integer> tableNumbers, String alias) {
+            Integer number = tableNumbers.get(alias);
+            if (number == null) {
+                number = numTables++;
+                tableNumbers.put(alias, number);
             }
+            return number;
+        }
+    }
+
+    /**
+     * @return the statistics of the table with the specified alias
+     * @throws ParsingException
+     *             if there are no statistics or no filter selectivity for it
+     */
+    private TableStats tableStats(String alias, HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities) throws ParsingException {
+        Integer tableId = p.getTableId(alias);
+        if (tableId == null) {
+            throw new ParsingException("Unknown table " + alias);
+        }
+        TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+        if (s == null) {
+            throw new ParsingException("No statistics for table " + alias);
+        }
+        if (!filterSelectivities.containsKey(alias)) {
+            throw new ParsingException("No filter selectivity for table " + alias);
         }
+        return s;
+    }
 
-        // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+    /** The join a plan performs last, and the cost and cardinality of the plan */
+    private static class JoinStep {
+        LogicalJoinNode join;
+        double cost;
+        int card;
+    }
 
-        LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
-            boolean tmp;
-            j = j2;
-            cost1 = cost2;
-            tmp = rightPkey;
-            rightPkey = leftPkey;
-            leftPkey = tmp;
+    /**
+     * Compute the cost and cardinality of performing the i-th join on two
+     * inputs, trying both orders of inner and outer. Input 1 contains the
+     * left table of the join, input 2 the right table.
+     *
+     * @return the step, or null if it does not cost less than bestCostSoFar
+     */
+    private JoinStep joinStep(int i, double cost1, int card1, boolean pkey1,
+            double cost2, int card2, boolean pkey2, double bestCostSoFar,
+            HashMap<String, TableStats> stats) {
+        LogicalJoinNode j = joins.get(i);
+        double cost = estimateJoinCost(j, card1, card2, cost1, cost2);
+        if (!(j instanceof LogicalSubplanJoinNode)) {
+            // swapping inner and outer keeps the kind of join predicate, so
+            // the swapped node is only created if it is cheaper
+            double swappedCost = estimateJoinCost(j, card2, card1, cost2, cost1);
+            if (swappedCost < cost) {
+                j = j.swapInnerOuter();
+                cost = swappedCost;
+                int card = card1;
+                card1 = card2;
+                card2 = card;
+                boolean pkey = pkey1;
+                pkey1 = pkey2;
+                pkey2 = pkey;
+            }
         }
-        if (cost1 >= bestCostSoFar)
+        if (cost >= bestCostSoFar) {
             return null;
+        }
+        JoinStep step = new JoinStep();
+        step.join = j;
+        step.cost = cost;
+        step.card = estimateJoinCardinality(j, card1, card2, pkey1, pkey2, stats);
+        return step;
+    }
 
-        CostCard cc = new CostCard();
-
-        cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
-                rightPkey, stats);
-        cc.cost = cost1;
-        cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
-        cc.plan.addElement(j); // prevbest is left -- add new join to end
-        return cc;
+    /**
+     * Selinger-style dynamic programming over bitmasks of joins, extended
+     * to bushy plans: the best plan of a set of joins performs one of them,
+     * the root, last, on the best plans of two disjoint subsets of the
+     * other joins, or on a base table where a subset is empty. Left-deep
+     * plans are the special case where one input is always a base table.
+     * Masks are visited in increasing order, so every subset is planned
+     * before its supersets. Plans that would need a cross product are not
+     * considered.
+     *
+     * @return the best order of all joins, or null if they do not connect
+     *         all tables
+     */
+    private Vector<LogicalJoinNode> orderJoinsDP(BaseTables base, PlanCache pc,
+            HashMap<String, TableStats> stats) {
+        int n = joins.size();
+        int all = (1 << n) - 1;
+        // the tables joined by the joins in a mask, and whether one of them
+        // joins on a primary key
+        long[] tables = new long[all + 1];
+        boolean[] pkeys = new boolean[all + 1];
+        for (int mask = 1; mask <= all; mask++) {
+            int low = Integer.numberOfTrailingZeros(mask);
+            int rest = mask & (mask - 1);
+            tables[mask] = tables[rest] | 1L << base.t1Table[low]
+                    | (base.t2Table[low] < 0 ? 0 : 1L << base.t2Table[low]);
+            pkeys[mask] = pkeys[rest] || base.t1Pkey[low] || base.t2Pkey[low];
+
+            double bestCostSoFar = Double.MAX_VALUE;
+            for (int bits = mask; bits != 0; bits &= bits - 1) {
+                int i = Integer.numberOfTrailingZeros(bits);
+                long t1 = 1L << base.t1Table[i];
+                long t2 = base.t2Table[i] < 0 ? 0 : 1L << base.t2Table[i];
+                int others = mask & ~(1 << i);
+                // every split of the other joins into the input with the
+                // left table (left) and the input with the right table
+                for (int left = others; ; left = (left - 1) & others) {
+                    int right = others & ~left;
+                    long leftTables = left == 0 ? t1 : tables[left];
+                    long rightTables = right == 0 ? t2 : tables[right];
+                    if ((left == 0 || pc.hasPlan(left)) && (right == 0 || pc.hasPlan(right))
+                            && (leftTables & t1) != 0 && (right == 0 || (rightTables & t2) != 0)
+                            && (leftTables & rightTables) == 0) {
+                        JoinStep step = joinStep(i,
+                                left == 0 ? base.t1Cost[i] : pc.getCost(left),
+                                left == 0 ? base.t1Card[i] : pc.getCard(left),
+                                left == 0 ? base.t1Pkey[i] : pkeys[left],
+                                right == 0 ? base.t2Cost[i] : pc.getCost(right),
+                                right == 0 ? base.t2Card[i] : pc.getCard(right),
+                                right == 0 ? base.t2Pkey[i] : pkeys[right],
+                                bestCostSoFar, stats);
+                        if (step != null) {
+                            bestCostSoFar = step.cost;
+                            pc.addPlan(mask, i, step.join, left, step.cost, step.card);
+                        }
+                    }
+                    if (left == 0) {
+                        break;
+                    }
+                }
+            }
+        }
+        return pc.getOrder(all);
     }
 
     /**
-     * Return true if the specified table is in the list of joins, false
-     * otherwise
+     * Greedy ordering for queries with too many joins to plan exactly: start
+     * with the cheapest single join, then repeatedly add the join to a table
+     * of the plan that keeps the plan cheapest. The plan of every prefix is
+     * added to pc.
+     *
+     * @return the order of all joins, or null if they do not connect all
+     *         tables
      */
-    private boolean doesJoin(Vector<LogicalJoinNode> joinlist, String table) {
-        for (LogicalJoinNode j : joinlist) {
-            if (j.t1Alias.equals(table)
-                    || (j.t2Alias != null && j.t2Alias.equals(table)))
-                return true;
+    private Vector<LogicalJoinNode> orderJoinsGreedy(BaseTables base, PlanCache pc,
+            HashMap<String, TableStats> stats) {
+        int n = joins.size();
+        boolean[] done = new boolean[n];
+        boolean[] joined = new boolean[base.numTables];
+        Vector<LogicalJoinNode> order = new Vector<LogicalJoinNode>();
+        double planCost = 0;
+        int planCard = 0;
+        boolean planPkey = false;
+        for (int k = 0; k < n; k++) {
+            JoinStep best = null;
+            int bestIndex = -1;
+            for (int i = 0; i < n; i++) {
+                if (done[i]) {
+                    continue;
+                }
+                double cost1 = base.t1Cost[i], cost2 = base.t2Cost[i];
+                int card1 = base.t1Card[i], card2 = base.t2Card[i];
+                boolean pkey1 = base.t1Pkey[i], pkey2 = base.t2Pkey[i];
+                if (k == 0) {
+                    // both inputs are base tables
+                } else if (joined[base.t1Table[i]]) {
+                    cost1 = planCost;
+                    card1 = planCard;
+                    pkey1 = planPkey;
+                } else if (base.t2Table[i] >= 0 && joined[base.t2Table[i]]) {
+                    cost2 = planCost;
+                    card2 = planCard;
+                    pkey2 = planPkey;
+                } else {
+                    continue;
+                }
+                JoinStep step = joinStep(i, cost1, card1, pkey1, cost2, card2, pkey2,
+                        best == null ? Double.MAX_VALUE : best.cost, stats);
+                if (step != null) {
+                    best = step;
+                    bestIndex = i;
+                }
+            }
+            if (best == null) {
+                return null;
+            }
+            done[bestIndex] = true;
+            joined[base.t1Table[bestIndex]] = true;
+            if (base.t2Table[bestIndex] >= 0) {
+                joined[base.t2Table[bestIndex]] = true;
+            }
+            planCost = best.cost;
+            planCard = best.card;
+            planPkey = planPkey || base.t1Pkey[bestIndex] || base.t2Pkey[bestIndex];
+            order.add(best.join);
+            pc.addPlan(new HashSet<LogicalJoinNode>(order), planCost, planCard,
+                    new Vector<LogicalJoinNode>(order));
         }
-        return false;
+        return order;
     }
 
     /**
@@ -404,20 +715,6 @@ public class JoinOptimizer {
         return pkey1.equals(field);
     }
 
-    /**
-     * Return true if a primary key field is joined by one of the joins in
-     * joinlist
-     */
-    private boolean hasPkey(Vector<LogicalJoinNode> joinlist) {
-        for (LogicalJoinNode j : joinlist) {
-            if (isPkey(j.t1Alias, j.f1PureName)
-                    || (j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName)))
-                return true;
-        }
-        return false;
-
-    }
-
     /**
      * Helper function to display a Swing window with a tree representation of
      * the specified list of joins. See {@link #orderJoins}, which may want to
@@ -470,9 +767,11 @@ public class JoinOptimizer {
             // Double c = pc.getCost(pathSoFar);
             neither = true;
 
+            // with bushy plans, the joins so far need not form one subplan
+            boolean known = pc.getOrder(pathSoFar) != null;
             root = new DefaultMutableTreeNode("Join " + j + " (Cost ="
-                    + pc.getCost(pathSoFar) + ", card = "
-                    + pc.getCard(pathSoFar) + ")");
+                    + (known ? pc.getCost(pathSoFar) : "?") + ", card = "
+                    + (known ? pc.getCard(pathSoFar) : "?") + ")");
             DefaultMutableTreeNode n = m.get(j.t1Alias);
             if (n == null) { // never seen this table before
                 n = new DefaultMutableTreeNode(j.t1Alias
@@ -0,0 +1,435 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * LockManager keeps the locks of transactions on a hierarchy of granules:
+ * tables, their pages, and the tuples on those pages (keyed by the table
+ * id, the {@link PageId} and the {@link RecordId}). A lock on a granule
+ * first takes an intention lock on each granule above it, so two
+ * transactions can write different tuples of one page, and a lock on a
+ * whole page or table still sees every tuple lock below it.
+ * <p>
+ * A transaction that holds more than a set number of tuple locks on a
+ * page has them escalated to one lock on the page, and more than a set
+ * number of locks below a table to one lock on the table, which keeps
+ * the lock table small for transactions that touch many tuples.
+ * <p>
+ * Waiting for a lock that can never be granted because of a cycle of
+ * waiting transactions throws {@link TransactionAbortedException}.
+ */
+class LockManager {
+
+    /** The lock modes, from weakest to strongest */
+    enum LockMode {
+        /** intention to lock some granules below in shared mode */
+        IS,
+        /** intention to lock some granules below in exclusive mode */
+        IX,
+        /** shared */
+        S,
+        /** shared, with the intention to lock some granules below in exclusive mode */
+        SIX,
+        /** exclusive */
+        X;
+
+        private static final boolean[][] COMPATIBLE = {
+            //          IS     IX     S      SIX    X
+            /* IS  */ { true,  true,  true,  true,  false },
+            /* IX  */ { true,  true,  false, false, false },
+            /* S   */ { true,  false, true,  false, false },
+            /* SIX */ { true,  false, false, false, false },
+            /* X   */ { false, false, false, false, false },
+        };
+
+        /** @return true if two transactions may hold this and m together */
+        boolean compatible(LockMode m) {
+            return COMPATIBLE[ordinal()][m.ordinal()];
+        }
+
+        /** @return the weakest mode that grants both this and m */
+        LockMode combine(LockMode m) {
+            if (this == m || m == IS) {
+                return this;
+            }
+            if (this == IS) {
+                return m;
+            }
+            if (this == X || m == X) {
+                return X;
+            }
+            // two of IX, S and SIX
+            return SIX;
+        }
+
+        /** @return true if this grants everything m grants */
+        boolean covers(LockMode m) {
+            return combine(m) == this;
+        }
+
+        /** @return the intention lock taken on the granules above */
+        LockMode intention() {
+            return this == IS || this == S ? IS : IX;
+        }
+
+        /** @return the lock this grants on every granule below, or null */
+        LockMode implied() {
+            switch (this) {
+            case X:
+                return X;
+            case S:
+            case SIX:
+                return S;
+            default:
+                return null;
+            }
+        }
+
+        /** @return true if this lets the holder change granules below */
+        boolean writes() {
+            return this == IX || this == SIX || this == X;
+        }
+    }
+
+    /** Default number of tuple locks on a page that escalate to a page lock */
+    static final int DEFAULT_TUPLES_PER_PAGE = 64;
+    /** Default number of locks below a table that escalate to a table lock */
+    static final int DEFAULT_LOCKS_PER_TABLE = 1024;
+
+    private static class Request {
+        final Object granule;
+        final LockMode mode;
+
+        Request(Object granule, LockMode mode) {
+            this.granule = granule;
+            this.mode = mode;
+        }
+    }
+
+    // the holders of the locks on each granule
+    private final HashMap<Object, HashMap<TransactionId, LockMode>> granted = new HashMap<>();
+    // the locks of each transaction
+    private final HashMap<TransactionId, HashMap<Object, LockMode>> held = new HashMap<>();
+    // the number of locks of each transaction below each granule
+    private final HashMap<TransactionId, HashMap<Object, Integer>> below = new HashMap<>();
+    // the lock each blocked transaction waits for
+    private final HashMap<TransactionId, Request> waiting = new HashMap<>();
+
+    private int tuplesPerPage = DEFAULT_TUPLES_PER_PAGE;
+    private int locksPerTable = DEFAULT_LOCKS_PER_TABLE;
+
+    /**
+     * Set the escalation thresholds.
+     *
+     * @param tuplesPerPage
+     *            a transaction holding more tuple locks on a page locks the
+     *            page instead
+     * @param locksPerTable
+     *            a transaction holding more locks below a table locks the
+     *            table instead
+     */
+    synchronized void setEscalation(int tuplesPerPage, int locksPerTable) {
+        this.tuplesPerPage = tuplesPerPage;
+        this.locksPerTable = locksPerTable;
+    }
+
+    /** @return the granule above g, or null for a table */
+    private static Object parent(Object g) {
+        if (g instanceof RecordId) {
+            return ((RecordId) g).getPageId();
+        }
+        if (g instanceof PageId) {
+            return ((PageId) g).getTableId();
+        }
+        return null;
+    }
+
+    /**
+     * Lock a page, and the table it belongs to in the matching intention
+     * mode, waiting as long as needed.
+     */
+    synchronized void lockPage(TransactionId tid, PageId pid, LockMode mode)
+            throws TransactionAbortedException {
+        lock(tid, pid, mode, true);
+        escalate(tid, pid);
+    }
+
+    /** Lock a whole table, waiting as long as needed. */
+    synchronized void lockTable(TransactionId tid, int tableId, LockMode mode)
+            throws TransactionAbortedException {
+        lock(tid, Integer.valueOf(tableId), mode, true);
+    }
+
+    /**
+     * Lock a tuple, and the page and table above it in the matching
+     * intention mode.
+     *
+     * @param wait
+     *            false to return at once if a lock is held by another
+     *            transaction; tuple locks are then not escalated
+     * @return true if the lock was granted
+     */
+    synchronized boolean lockTuple(TransactionId tid, RecordId rid, LockMode mode, boolean wait)
+            throws TransactionAbortedException {
+        if (!lock(tid, rid, mode, wait)) {
+            return false;
+        }
+        if (wait) {
+            escalate(tid, rid.getPageId());
+        }
+        return true;
+    }
+
+    private boolean lock(TransactionId tid, Object g, LockMode mode, boolean wait)
+            throws TransactionAbortedException {
+        if (covered(tid, g, mode)) {
+            return true;
+        }
+        Object parent = parent(g);
+        if (parent != null && !lock(tid, parent, mode.intention(), wait)) {
+            return false;
+        }
+        return acquire(tid, g, mode, wait);
+    }
+
+    /** @return true if tid holds mode on g, directly or through a granule above */
+    private boolean covered(TransactionId tid, Object g, LockMode mode) {
+        LockMode own = modeOf(tid, g);
+        if (own != null && own.covers(mode)) {
+            return true;
+        }
+        for (Object p = parent(g); p != null; p = parent(p)) {
+            LockMode m = modeOf(tid, p);
+            if (m != null && m.implied() != null && m.implied().covers(mode)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private LockMode modeOf(TransactionId tid, Object g) {
+        HashMap<Object, LockMode> locks = held.get(tid);
+        return locks == null ? null : locks.get(g);
+    }
+
+    /** Acquire mode on g alone, combined with the lock tid holds on it */
+    private boolean acquire(TransactionId tid, Object g, LockMode mode, boolean wait)
+            throws TransactionAbortedException {
+        LockMode current = modeOf(tid, g);
+        LockMode wanted = current == null ? mode : current.combine(mode);
+        if (wanted == current) {
+            return true;
+        }
+        while (!grantable(tid, g, wanted)) {
+            if (!wait) {
+                return false;
+            }
+            waiting.put(tid, new Request(g, wanted));
+            if (deadlocked(tid)) {
+                waiting.remove(tid);
+                throw new TransactionAbortedException();
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                waiting.remove(tid);
+                Thread.currentThread().interrupt();
+                throw new TransactionAbortedException();
+            }
+        }
+        waiting.remove(tid);
+
+        granted.computeIfAbsent(g, k -> new HashMap<>()).put(tid, wanted);
+        held.computeIfAbsent(tid, k -> new HashMap<>()).put(g, wanted);
+        if (current == null) {
+            count(tid, g, 1);
+        }
+        return true;
+    }
+
+    private boolean grantable(TransactionId tid, Object g, LockMode mode) {
+        HashMap<TransactionId, LockMode> holders = granted.get(g);
+        if (holders != null) {
+            for (Map.Entry<TransactionId, LockMode> e : holders.entrySet()) {
+                if (!e.getKey().equals(tid) && !e.getValue().compatible(mode)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** @return the transactions holding locks that tid waits for */
+    private List<TransactionId> blockers(TransactionId tid) {
+        ArrayList<TransactionId> blockers = new ArrayList<>();
+        Request r = waiting.get(tid);
+        if (r != null && granted.containsKey(r.granule)) {
+            for (Map.Entry<TransactionId, LockMode> e : granted.get(r.granule).entrySet()) {
+                if (!e.getKey().equals(tid) && !e.getValue().compatible(r.mode)) {
+                    blockers.add(e.getKey());
+                }
+            }
+        }
+        return blockers;
+    }
+
+    /** @return true if the transactions tid waits for wait for tid in turn */
+    private boolean deadlocked(TransactionId tid) {
+        HashSet<TransactionId> seen = new HashSet<>();
+        ArrayDeque<TransactionId> todo = new ArrayDeque<>(blockers(tid));
+        while (!todo.isEmpty()) {
+            TransactionId t = todo.pop();
+            if (t.equals(tid)) {
+                return true;
+            }
+            if (seen.add(t)) {
+                todo.addAll(blockers(t));
+            }
+        }
+        return false;
+    }
+
+    /** Add delta to the number of locks of tid below each granule above g */
+    private void count(TransactionId tid, Object g, int delta) {
+        HashMap<Object, Integer> counts = below.computeIfAbsent(tid, k -> new HashMap<>());
+        for (Object p = parent(g); p != null; p = parent(p)) {
+            int n = counts.getOrDefault(p, 0) + delta;
+            if (n == 0) {
+                counts.remove(p);
+            } else {
+                counts.put(p, n);
+            }
+        }
+    }
+
+    private int countBelow(TransactionId tid, Object g) {
+        HashMap<Object, Integer> counts = below.get(tid);
+        return counts == null ? 0 : counts.getOrDefault(g, 0);
+    }
+
+    /**
+     * Escalate the tuple locks of tid on a page to a page lock, and its locks
+     * below the table of the page to a table lock, if there are too many.
+     */
+    synchronized void escalate(TransactionId tid, PageId pid) throws TransactionAbortedException {
+        if (countBelow(tid, pid) > tuplesPerPage) {
+            escalateTo(tid, pid);
+        }
+        Integer table = pid.getTableId();
+        if (countBelow(tid, table) > locksPerTable) {
+            escalateTo(tid, table);
+        }
+    }
+
+    private void escalateTo(TransactionId tid, Object g) throws TransactionAbortedException {
+        ArrayList<Object> finer = new ArrayList<>();
+        LockMode mode = LockMode.S;
+        for (Map.Entry<Object, LockMode> e : held.get(tid).entrySet()) {
+            if (isBelow(e.getKey(), g)) {
+                finer.add(e.getKey());
+                if (e.getValue().writes()) {
+                    mode = LockMode.X;
+                }
+            }
+        }
+        lock(tid, g, mode, true);
+        for (Object f : finer) {
+            release(tid, f);
+        }
+    }
+
+    private static boolean isBelow(Object g, Object above) {
+        for (Object p = parent(g); p != null; p = parent(p)) {
+            if (p.equals(above)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void release(TransactionId tid, Object g) {
+        HashMap<Object, LockMode> locks = held.get(tid);
+        if (locks == null || locks.remove(g) == null) {
+            return;
+        }
+        HashMap<TransactionId, LockMode> holders = granted.get(g);
+        holders.remove(tid);
+        if (holders.isEmpty()) {
+            granted.remove(g);
+        }
+        count(tid, g, -1);
+        notifyAll();
+    }
+
+    /** Release the lock of tid on a page and its tuple locks on the page */
+    synchronized void releasePage(TransactionId tid, PageId pid) {
+        HashMap<Object, LockMode> locks = held.get(tid);
+        if (locks == null) {
+            return;
+        }
+        for (Object g : new ArrayList<>(locks.keySet())) {
+            if (g.equals(pid) || isBelow(g, pid)) {
+                release(tid, g);
+            }
+        }
+    }
+
+    /** Release all locks of tid */
+    synchronized void releaseAll(TransactionId tid) {
+        HashMap<Object, LockMode> locks = held.remove(tid);
+        below.remove(tid);
+        if (locks != null) {
+            for (Object g : locks.keySet()) {
+                HashMap<TransactionId, LockMode> holders = granted.get(g);
+                holders.remove(tid);
+                if (holders.isEmpty()) {
+                    granted.remove(g);
+                }
+            }
+        }
+        notifyAll();
+    }
+
+    /** @return true if tid holds a lock on a page, or a table lock covering it */
+    synchronized boolean holdsLock(TransactionId tid, PageId pid) {
+        return modeOf(tid, pid) != null || covered(tid, pid, LockMode.S);
+    }
+
+    /** @return the mode tid holds on g itself, or null */
+    synchronized LockMode heldMode(TransactionId tid, Object g) {
+        return modeOf(tid, g);
+    }
+
+    /** @return true if some transaction may be changing the page */
+    synchronized boolean isWriteLocked(PageId pid) {
+        HashMap<TransactionId, LockMode> table = granted.get(pid.getTableId());
+        if (table != null && table.containsValue(LockMode.X)) {
+            return true;
+        }
+        HashMap<TransactionId, LockMode> page = granted.get(pid);
+        if (page != null) {
+            for (LockMode m : page.values()) {
+                if (m.writes()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if some transaction holds an intention to write tuples of
+     *         the page, so that other transactions may write other tuples of
+     *         it at the same time
+     */
+    synchronized boolean hasTupleWriters(PageId pid) {
+        HashMap<TransactionId, LockMode> page = granted.get(pid);
+        return page != null && (page.containsValue(LockMode.IX) || page.containsValue(LockMode.SIX));
+    }
+
+    /** @return the number of locks tid holds */
+    synchronized int numLocks(TransactionId tid) {
+        HashMap<Object, LockMode> locks = held.get(tid);
+        return locks == null ? 0 : locks.size();
+    }
+}
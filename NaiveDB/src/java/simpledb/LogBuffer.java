@@ -0,0 +1,146 @@
+package simpledb;
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LogBuffer is the in-memory tail of a {@link LogFile}.
+ * <p>
+ * The log sequence number (LSN) of a record is the position in the log at
+ * which it starts. Appending a record reserves its LSN with an atomic
+ * fetch-and-add on the end of the log, so appenders do not take a lock: each
+ * of them copies its record into its own region of a ring buffer,
+ * concurrently with the others. A record is complete once it and every record
+ * before it have been copied; the completed prefix of the buffer is written
+ * to the file by {@link #drain}, in large sequential writes, by one thread at
+ * a time.
+ * <p>
+ * The trailing offset of every record, which is its own LSN, is written by
+ * the buffer, so the records handed to {@link #append} leave it out.
+ */
+class LogBuffer {
+
+    /** Writes the completed records of the buffer to the log file */
+    interface Drainer {
+        void drain() throws IOException;
+    }
+
+    /** Where drained records are written */
+    interface Sink {
+        /** Write len bytes of b at the given LSN */
+        void write(long lsn, byte[] b, int off, int len) throws IOException;
+    }
+
+    private final byte[] buf;
+    // the LSN of the next record to be reserved
+    private final AtomicLong reserved = new AtomicLong();
+    // the records before completed have been copied into the buffer
+    private final AtomicLong completed = new AtomicLong();
+    // the records before written are in the log file; only changed by the
+    // thread draining the buffer
+    private volatile long written;
+
+    /**
+     * @param capacity
+     *            the size of the buffer, in bytes, which bounds the size of
+     *            a record
+     * @param start
+     *            the LSN of the first record, the end of the log
+     */
+    LogBuffer(int capacity, long start) {
+        if (capacity < LogFile.LONG_SIZE) {
+            throw new IllegalArgumentException("log buffer too small");
+        }
+        buf = new byte[capacity];
+        reset(start);
+    }
+
+    /**
+     * Start the buffer over at the given LSN. The caller must make sure that
+     * no record is being appended and that the buffer has been drained.
+     */
+    void reset(long start) {
+        written = start;
+        completed.set(start);
+        reserved.set(start);
+    }
+
+    /** @return the LSN the next record will get */
+    long tail() {
+        return reserved.get();
+    }
+
+    /** @return the LSN up to which the log is in the file */
+    long written() {
+        return written;
+    }
+
+    /**
+     * Append a record. Returns once the record and all records before it are
+     * in the buffer, so a drain after it returns writes the record.
+     *
+     * @param record
+     *            the record, without its trailing offset
+     * @param drainer
+     *            called to make room when the buffer is full
+     * @return the LSN of the record
+     */
+    long append(byte[] record, Drainer drainer) throws IOException {
+        int length = record.length + LogFile.LONG_SIZE;
+        if (length > buf.length) {
+            throw new IOException("log record of " + length
+                    + " bytes does not fit into the log buffer of " + buf.length + " bytes");
+        }
+        long lsn = reserved.getAndAdd(length);
+        long end = lsn + length;
+
+        // the region may still hold records that are not in the file
+        while (end - written > buf.length) {
+            drainer.drain();
+            if (end - written > buf.length) {
+                Thread.yield();
+            }
+        }
+
+        copy(record, 0, record.length, lsn);
+        byte[] offset = new byte[LogFile.LONG_SIZE];
+        for (int i = 0; i < offset.length; i++) {
+            offset[i] = (byte) (lsn >>> (8 * (offset.length - 1 - i)));
+        }
+        copy(offset, 0, offset.length, lsn + record.length);
+
+        // records complete in LSN order, so wait for the ones before
+        while (completed.get() != lsn) {
+            Thread.yield();
+        }
+        completed.set(end);
+        return lsn;
+    }
+
+    private void copy(byte[] src, int from, int length, long lsn) {
+        int pos = (int) (lsn % buf.length);
+        int first = Math.min(length, buf.length - pos);
+        System.arraycopy(src, from, buf, pos, first);
+        System.arraycopy(src, from + first, buf, 0, length - first);
+    }
+
+    /**
+     * Write the completed records that are not in the file yet. The caller
+     * must hold the lock of the log file.
+     *
+     * @return the LSN up to which the log is in the file
+     */
+    long drain(Sink sink) throws IOException {
+        long from = written;
+        long to = completed.get();
+        if (to > from) {
+            int pos = (int) (from % buf.length);
+            int length = (int) (to - from);
+            int first = Math.min(length, buf.length - pos);
+            sink.write(from, buf, pos, first);
+            sink.write(from + first, buf, 0, length - first);
+            written = to;
+        }
+        return to;
+    }
+}
@@ -3,7 +3,10 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -14,8 +17,18 @@ two-phase locking discipline are followed.  <p>
 <u> Locking note: </u>
 <p>
 
-Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
+Records are not written to the file by the threads that log them:
+they are appended to a {@link LogBuffer} without taking the lock of the
+log, and the buffer is drained to the file under that lock (by whoever
+forces the log, or needs room in the buffer.)  Appenders hold the read
+lock of appendLock, so the methods that reset the log, or need it to
+stand still, take its write lock to wait for them; it must be acquired
+before the lock of the log.  Writers of single tuples log under the
+latch of their page (its monitor), which comes before both.
+<p>
+
+Many of the methods here are synchronized (to prevent concurrent file
+accesses from happening); many of the methods in BufferPool are also
 synchronized (for similar reasons.)  Problem is that BufferPool writes
 log records (on page flushed) and the log file flushes BufferPool
 pages (on checkpoints and recovery.)  This can lead to deadlock.  For
@@ -39,33 +52,62 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log is a sequence of bytes stored in fixed-size segment files
+named after the log file (see LogSegments).  The LSN of a record is its
+position in this sequence; truncating the log removes whole segments,
+so LSNs never change.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The log file itself holds two long integers: the LSN of the last
+written checkpoint, or -1 if there are no checkpoints, and the LSN of
+the first record that is still needed, where the log starts.
+
+<li> All data in the segments consists of log records.  Log
+records are variable length, and the log ends at the first bytes that
+are not a complete record (segments are preallocated with zeros).
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer, the LSN of the record.
+
+<li> There are seven record types: ABORT, COMMIT, UPDATE, TUPLE, CLR,
+BEGIN, and CHECKPOINT
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> An ABORT record is written once the transaction has been rolled
+back.
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  See LogFile.print() for an example.  An image consists of a
+byte tag of the page type (see LogFile.registerPageType()), the table
+id, the page number, and the length and bytes of the page data.
+
+<li>TUPLE RECORDS log an update of a SlottedPage that only changed
+some of its slots, such as inserting or deleting a tuple: for each of
+those slots, its tuple before and after the update (see SlotUpdate).
+LogFile.logWrite() writes them instead of an UPDATE record whenever
+they are smaller.
+
+<li>CLR (compensation) records are written for each UPDATE or TUPLE
+record that is undone.  They consist of the offset of the undone
+record, the type of the change that undid it (UPDATE or TUPLE), and
+the change: an after image or the changed slots.  They are redone but
+never undone.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, and of the
+dirty page table of the buffer pool.  The format of the record is an
+integer count of the number of transactions, as well as a long integer
+transaction id and a long integer first record offset for each active
+transaction; then the long integer offset where redo starts, an integer
+count of dirty pages, and for each of them the page type tag (a byte),
+the table id, the page number, and the long integer offset of the first
+record that dirtied it.  Checkpoints are fuzzy: pages are not flushed
+when they are taken, so recovery redoes from the earliest record that
+dirtied a page still in the table (see logCheckpoint()).
 
 </ul>
 
@@ -74,24 +116,68 @@ for each active transaction.
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
-    Boolean recoveryUndecided; // no call to recover() and no append to log
+    // the checkpoint LSN and the start of the log
+    private RandomAccessFile control;
+    final LogSegments segments;
+    // the log is on disk up to this LSN
+    private long durable;
+    volatile Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
     static final int COMMIT_RECORD = 2;
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int TUPLE_RECORD = 6;
+    static final int CLR_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
-    long currentOffset = -1;//protected by this
-//    int pageSize;
-    int totalRecords = 0; // for PatchTest //protected by this
+    /** Default size of the in-memory log buffer, in bytes, which bounds
+        the size of a log record */
+    public static final int DEFAULT_LOG_BUFFER_SIZE = 1 << 20;
+
+    /** Default size of a segment file of the log, in bytes */
+    public static final long DEFAULT_SEGMENT_SIZE = 1 << 24;
 
-    HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    // the number of threads recovery redoes the log with
+    private volatile int redoThreads = Runtime.getRuntime().availableProcessors();
+
+    // the tail of the log
+    private final LogBuffer buffer;
+    // held shared while appending to the buffer, and exclusively while
+    // the log is rewritten
+    private final ReentrantReadWriteLock appendLock = new ReentrantReadWriteLock();
+//    int pageSize;
+    final AtomicInteger totalRecords = new AtomicInteger(); // for PatchTest
+
+    Map<Long,Long> tidToFirstLogRecord = new ConcurrentHashMap<Long,Long>();
+
+    /** Default time the leader of a group commit waits for other
+        committers to join its flush, in microseconds. With no window, the
+        commits that arrive while a flush is in progress still share the
+        next one. */
+    public static final long DEFAULT_GROUP_COMMIT_WINDOW_MICROS = 0;
+    /** Default number of commits after which the leader of a group commit
+        stops waiting for more committers */
+    public static final int DEFAULT_GROUP_COMMIT_BATCH_SIZE = 64;
+
+    // commits are numbered once their records are in the buffer, so the
+    // records of all commits up to a number are complete
+    private final AtomicLong lastCommit = new AtomicLong();
+    // group commit state, protected by flushLock. The records of commits up
+    // to flushedCommit are on disk, and requestedCommit is the last commit
+    // waiting for a flush
+    private final Object flushLock = new Object();
+    private long groupCommitWindowNanos = DEFAULT_GROUP_COMMIT_WINDOW_MICROS * 1000;
+    private int groupCommitBatchSize = DEFAULT_GROUP_COMMIT_BATCH_SIZE;
+    private boolean flushing = false;
+    private long flushedCommit = 0;
+    private long requestedCommit = 0;
+    private long commitFlushes = 0;
+    private long flushedCommits = 0;
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -105,8 +191,18 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor.
+        @param f The log file's name
+        @param segmentSize The size of a segment file, in bytes
+    */
+    public LogFile(File f, long segmentSize) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        control = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, segmentSize);
+        buffer = new LogBuffer(DEFAULT_LOG_BUFFER_SIZE, 0);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -124,19 +220,72 @@ public class LogFile {
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
     // the log.
     void preAppend() throws IOException {
-        totalRecords++;
+        totalRecords.incrementAndGet();
+        startLog();
+    }
+
+    private void startLog() throws IOException {
         if(recoveryUndecided){
-            recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            appendLock.writeLock().lock();
+            try {
+                synchronized (this) {
+                    if (recoveryUndecided) {
+                        recoveryUndecided = false;
+                        reset();
+                    }
+                }
+            } finally {
+                appendLock.writeLock().unlock();
+            }
         }
     }
 
-    public synchronized int getTotalRecords() {
-        return totalRecords;
+    /** Start an empty log.  The caller must hold the write lock of
+        appendLock and the lock of the log. */
+    private void reset() throws IOException {
+        segments.reset();
+        writeControl(NO_CHECKPOINT_ID, 0);
+        buffer.reset(0);
+        durable = 0;
+    }
+
+    /** Write the checkpoint LSN and the start of the log to the log file
+        and force them to disk */
+    private void writeControl(long checkpoint, long start) throws IOException {
+        control.seek(0);
+        control.writeLong(checkpoint);
+        control.writeLong(start);
+        control.setLength(2 * LONG_SIZE);
+        control.getChannel().force(true);
+    }
+
+    /** Append a record to the log buffer.
+        @param record The record, up to its trailing LSN
+        @return The LSN of the record
+    */
+    private long append(ByteArrayOutputStream record) throws IOException {
+        preAppend();
+        appendLock.readLock().lock();
+        try {
+            return buffer.append(record.toByteArray(), this::drain);
+        } finally {
+            appendLock.readLock().unlock();
+        }
+    }
+
+    /** Write the records in the log buffer to the file, without forcing
+        it to disk */
+    synchronized void drain() throws IOException {
+        buffer.drain(segments::write);
+    }
+
+    /** @return the LSN the next record will get */
+    long tail() {
+        return buffer.tail();
+    }
+
+    public int getTotalRecords() {
+        return totalRecords.get();
     }
     
     /** Write an abort record to the log for the specified tid, force
@@ -149,41 +298,163 @@ public class LogFile {
 
         synchronized (Database.getBufferPool()) {
 
-            synchronized(this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
-            }
+            preAppend();
+            //Debug.log("ABORT");
+            //should we verify that this is a live transaction?
+
+            // must do this here, since rollback only works for
+            // live transactions (needs tidToFirstLogRecord)
+            rollback(tid);
+
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeInt(ABORT_RECORD);
+            out.writeLong(tid.getId());
+            append(record);
+            force();
+            tidToFirstLogRecord.remove(tid.getId());
         }
     }
 
     /** Write a commit record to disk for the specified tid,
         and force the log to disk.
+        <p>
+        Commits are forced in groups: the record is appended to the log
+        buffer, and the committer waits
+        until a flush covers its record. The first committer that finds
+        no flush in progress leads the next one; it waits up to the group
+        commit window for more committers (see {@link #setGroupCommit}),
+        and forces the log once for all of them.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
+    public void logCommit(TransactionId tid) throws IOException {
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(COMMIT_RECORD);
+        out.writeLong(tid.getId());
+        append(record);
+        long commit = lastCommit.incrementAndGet();
         tidToFirstLogRecord.remove(tid.getId());
+        awaitFlush(commit);
+    }
+
+    /** Wait until the record of the given commit is on disk, leading a
+        group flush if none is in progress */
+    private void awaitFlush(long commit) throws IOException {
+        synchronized (flushLock) {
+            requestedCommit = Math.max(requestedCommit, commit);
+            // a leader may be waiting for its batch to fill
+            flushLock.notifyAll();
+        }
+        try {
+            while (true) {
+                long target;
+                synchronized (flushLock) {
+                    while (flushing && flushedCommit < commit) {
+                        flushLock.wait();
+                    }
+                    if (flushedCommit >= commit) {
+                        return;
+                    }
+                    flushing = true;
+                    long deadline = System.nanoTime() + groupCommitWindowNanos;
+                    while (requestedCommit - flushedCommit < groupCommitBatchSize) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        flushLock.wait(remaining / 1000000, (int) (remaining % 1000000));
+                    }
+                    // the records of all commits up to target have been
+                    // appended, so the flush covers them
+                    target = requestedCommit;
+                }
+                boolean forced = false;
+                try {
+                    forceUnlocked();
+                    forced = true;
+                } finally {
+                    synchronized (flushLock) {
+                        flushing = false;
+                        if (forced && target > flushedCommit) {
+                            commitFlushes++;
+                            flushedCommits += target - flushedCommit;
+                            flushedCommit = target;
+                        }
+                        flushLock.notifyAll();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the log to be forced");
+        }
+    }
+
+    /** Force the log without holding the lock of the log, so that the
+        buffer can be drained during the flush */
+    private void forceUnlocked() throws IOException {
+        List<java.nio.channels.FileChannel> channels;
+        long to;
+        synchronized (this) {
+            drain();
+            to = buffer.written();
+            channels = segments.channels(durable, to);
+        }
+        try {
+            for (java.nio.channels.FileChannel channel : channels) {
+                channel.force(true);
+            }
+        } catch (java.nio.channels.ClosedChannelException e) {
+            // a segment was removed meanwhile
+            force();
+            return;
+        }
+        synchronized (this) {
+            durable = Math.max(durable, to);
+        }
+    }
+
+    /** Configure group commit.
+        @param windowMicros how long the leader of a flush waits for more
+            committers, in microseconds; 0 to flush right away
+        @param batchSize the number of commits after which the leader
+            stops waiting
+    */
+    public void setGroupCommit(long windowMicros, int batchSize) {
+        if (windowMicros < 0 || batchSize < 1) {
+            throw new IllegalArgumentException("window must not be negative and batch size must be positive");
+        }
+        synchronized (flushLock) {
+            groupCommitWindowNanos = windowMicros * 1000;
+            groupCommitBatchSize = batchSize;
+        }
+    }
+
+    /** @return the number of times the log was forced for commits */
+    public long getCommitFlushes() {
+        synchronized (flushLock) {
+            return commitFlushes;
+        }
+    }
+
+    /** @return the number of commits made durable by those flushes */
+    public long getFlushedCommits() {
+        synchronized (flushLock) {
+            return flushedCommits;
+        }
+    }
+
+    /** @return the average number of commits per flush, or 0 if there was
+        no commit */
+    public double getCommitsPerFlush() {
+        synchronized (flushLock) {
+            return commitFlushes == 0 ? 0 : (double) flushedCommits / commitFlushes;
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -192,13 +463,16 @@ public class LogFile {
         @param before The before image of the page
         @param after The after image of the page
 
+        If the update only changed slots of a {@link SlottedPage}, a
+        TUPLE record with the changed slots is written instead, which is
+        much smaller than two page images for a single tuple.
+
+        @return The LSN of the record
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
-                                       Page after)
+    public long logWrite(TransactionId tid, Page before,
+                         Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
         /* update record conists of
 
            record type
@@ -207,250 +481,363 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        SlotUpdate update = slotUpdate(before, after);
+        if (update != null) {
+            out.writeInt(TUPLE_RECORD);
+            out.writeLong(tid.getId());
+            update.write(out);
+        } else {
+            out.writeInt(UPDATE_RECORD);
+            out.writeLong(tid.getId());
+
+            writePageData(out,before);
+            writePageData(out,after);
+        }
+        long lsn = append(record);
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+        Debug.log("WRITE, offset = " + lsn);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    /** Write a TUPLE record for an update of slots that the caller made
+        under the tuple locks of the slots, rather than a lock on the
+        whole page, so that the record holds the changes of tid alone.
+        @return The LSN of the record
+    */
+    public long logUpdate(TransactionId tid, SlotUpdate update)
+        throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(TUPLE_RECORD);
+        out.writeLong(tid.getId());
+        update.write(out);
+        return append(record);
+    }
 
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+    /** @return the update from before to after as changes of slots, or
+        null if it changed more than slots, or the page images are
+        smaller */
+    SlotUpdate slotUpdate(Page before, Page after) throws IOException {
+        if (!(after instanceof SlottedPage) || before.getClass() != after.getClass()
+                || !before.getId().equals(after.getId())) {
+            return null;
+        }
+        SlotUpdate update = SlotUpdate.diff((SlottedPage) before, (SlottedPage) after);
+        byte[] afterData = after.getPageData();
+        if (update.size() >= 2 * (afterData.length + 1 + 3 * INT_SIZE)) {
+            return null;
+        }
+        // anything else that changed, like the sibling pointers of a leaf,
+        // needs the page images
+        SlottedPage p = (SlottedPage) pageDecoder(pageTag(before))
+                .decode(before.getId(), before.getPageData());
+        update.redo(p);
+        return Arrays.equals(p.getPageData(), afterData) ? update : null;
+    }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    /** Decodes the logged id of a page of one page type */
+    interface PageIdDecoder {
+        /** @return the id of the page with the given table and number */
+        PageId decode(int tableId, int pageNo);
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    /** Decodes the logged image of a page of one page type */
+    interface PageDecoder {
+        /** @return the page with the given id and data */
+        Page decode(PageId pid, byte[] data) throws IOException;
+    }
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+    /** Tags of the page types that can be logged */
+    static final int HEAP_PAGE = 1;
+    static final int BTREE_ROOT_PTR_PAGE = 2;
+    static final int BTREE_INTERNAL_PAGE = 3;
+    static final int BTREE_LEAF_PAGE = 4;
+    static final int BTREE_HEADER_PAGE = 5;
+
+    private static final HashMap<Class<?>,Integer> pageTags = new HashMap<Class<?>,Integer>();
+    private static final HashMap<Integer,PageIdDecoder> pageIdDecoders = new HashMap<Integer,PageIdDecoder>();
+    private static final HashMap<Integer,PageDecoder> pageDecoders = new HashMap<Integer,PageDecoder>();
+
+    static {
+        registerPageType(HEAP_PAGE, HeapPage.class,
+                (table, pgNo) -> new HeapPageId(table, pgNo),
+                (pid, data) -> new HeapPage((HeapPageId) pid, data));
+        registerPageType(BTREE_ROOT_PTR_PAGE, BTreeRootPtrPage.class,
+                (table, pgNo) -> new BTreePageId(table, pgNo, BTreePageId.ROOT_PTR),
+                (pid, data) -> new BTreeRootPtrPage((BTreePageId) pid, data));
+        registerPageType(BTREE_INTERNAL_PAGE, BTreeInternalPage.class,
+                (table, pgNo) -> new BTreePageId(table, pgNo, BTreePageId.INTERNAL),
+                (pid, data) -> new BTreeInternalPage((BTreePageId) pid, data, keyField(pid)));
+        registerPageType(BTREE_LEAF_PAGE, BTreeLeafPage.class,
+                (table, pgNo) -> new BTreePageId(table, pgNo, BTreePageId.LEAF),
+                (pid, data) -> new BTreeLeafPage((BTreePageId) pid, data, keyField(pid)));
+        registerPageType(BTREE_HEADER_PAGE, BTreeHeaderPage.class,
+                (table, pgNo) -> new BTreePageId(table, pgNo, BTreePageId.HEADER),
+                (pid, data) -> new BTreeHeaderPage((BTreePageId) pid, data));
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    private static int keyField(PageId pid) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).keyField();
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    /** Register a page type, so that its pages can be logged.
+        @param tag The tag of the page type in the log, below 256
+        @param pageClass The class of the pages
+        @param ids Rebuilds the id of a page from its table and number
+        @param decoder Rebuilds a page from its logged image
+    */
+    static synchronized void registerPageType(int tag, Class<? extends Page> pageClass,
+                                              PageIdDecoder ids, PageDecoder decoder) {
+        if (tag <= 0 || tag > 255 || pageDecoders.containsKey(tag)) {
+            throw new IllegalArgumentException("invalid or duplicate page type tag " + tag);
+        }
+        pageTags.put(pageClass, tag);
+        pageIdDecoders.put(tag, ids);
+        pageDecoders.put(tag, decoder);
+    }
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+    /** @return the id of a page of the given type */
+    static PageId pageId(int tag, int tableId, int pageNo) throws IOException {
+        pageDecoder(tag);
+        PageIdDecoder ids;
+        synchronized (LogFile.class) {
+            ids = pageIdDecoders.get(tag);
+        }
+        return ids.decode(tableId, pageNo);
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    static synchronized int pageTag(Page p) throws IOException {
+        Integer tag = pageTags.get(p.getClass());
+        if (tag == null) {
+            throw new IOException("no page type registered for " + p.getClass().getName());
+        }
+        return tag;
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    static synchronized PageDecoder pageDecoder(int tag) throws IOException {
+        PageDecoder decoder = pageDecoders.get(tag);
+        if (decoder == null) {
+            throw new IOException("unknown page type " + tag + " in log");
+        }
+        return decoder;
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    void writePageData(DataOutput raf, Page p) throws IOException{
+        PageId pid = p.getId();
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+        //page data is:
+        // page type tag (byte)
+        // table id
+        // page number
+        // page data length
+        // page data
+        // the category of a BTreePageId is implied by the page type
+
+        raf.writeByte(pageTag(p));
+        raf.writeInt(pid.getTableId());
+        raf.writeInt(pid.getPageNumber());
+        byte[] pageData = p.getPageData();
+        raf.writeInt(pageData.length);
+        raf.write(pageData);
+        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
-        }
-        return newPage;
+    Page readPageData(DataInput raf) throws IOException {
+        int tag = raf.readUnsignedByte();
+        PageId pid = pageId(tag, raf.readInt(), raf.readInt());
+        byte[] pageData = new byte[raf.readInt()];
+        raf.readFully(pageData);
+        return pageDecoder(tag).decode(pid, pageData);
+    }
 
+    /** Copy a page image from one log to another, without decoding it */
+    void copyPageData(DataInput in, DataOutput out) throws IOException {
+        int tag = in.readUnsignedByte();
+        pageDecoder(tag); // fail on anything that is not a page image
+        out.writeByte(tag);
+        out.writeInt(in.readInt());
+        out.writeInt(in.readInt());
+        byte[] pageData = new byte[in.readInt()];
+        in.readFully(pageData);
+        out.writeInt(pageData.length);
+        out.write(pageData);
     }
 
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
     */
-    public synchronized  void logXactionBegin(TransactionId tid)
+    public void logXactionBegin(TransactionId tid)
         throws IOException {
         Debug.log("BEGIN");
         if(tidToFirstLogRecord.get(tid.getId()) != null){
             System.err.printf("logXactionBegin: already began this tid\n");
             throw new IOException("double logXactionBegin()");
         }
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        long lsn;
+        // a checkpoint must not come between the record and the entry
+        appendLock.readLock().lock();
+        try {
+            lsn = buffer.append(record.toByteArray(), this::drain);
+            tidToFirstLogRecord.put(tid.getId(), lsn);
+        } finally {
+            appendLock.readLock().unlock();
+        }
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        Debug.log("BEGIN OFFSET = " + lsn);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.
+        <p>
+        The checkpoint is fuzzy: it does not flush the buffer pool, and
+        only blocks appenders while it copies the transaction table and
+        the dirty page table.  Redo starts from the earliest record that
+        dirtied a page in that table, or from the end of the log at the
+        time of the copy, if that is earlier: a page that is not in the
+        table has all changes logged before it on disk.  Dirty pages are
+        written in the background (see
+        {@link BufferPool#startBackgroundWriter}), which moves the redo
+        start forward.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+        preAppend();
+        LinkedHashMap<Long,Long> active;
+        long redoLsn;
+        Map<PageId,Long> dirtyPages;
+        BufferPool pool = Database.getBufferPool();
+        // no records are appended while the tables are copied
+        appendLock.writeLock().lock();
+        try {
+            active = new LinkedHashMap<Long,Long>(tidToFirstLogRecord);
+            redoLsn = buffer.tail();
+            dirtyPages = Database.getLogFile() == this ? pool.getDirtyPageTable()
+                    : new HashMap<PageId,Long>();
+            for (long recLSN : dirtyPages.values()) {
+                redoLsn = Math.min(redoLsn, recLSN);
             }
+        } finally {
+            appendLock.writeLock().unlock();
         }
 
-        logTruncate();
-    }
-
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(CHECKPOINT_RECORD);
+        out.writeLong(-1); //no tid , but leave space for convenience
+
+        //write list of outstanding transactions
+        out.writeInt(active.size());
+        for (Map.Entry<Long,Long> e : active.entrySet()) {
+            Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+            out.writeLong(e.getKey());
+            out.writeLong(e.getValue());
+        }
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        //write the dirty page table; a page that is no longer cached
+        //was written since the copy
+        ByteArrayOutputStream dpt = new ByteArrayOutputStream();
+        DataOutputStream dptOut = new DataOutputStream(dpt);
+        int numDirty = 0;
+        for (Map.Entry<PageId,Long> e : dirtyPages.entrySet()) {
+            Page p = pool.cachedPage(e.getKey());
+            if (p != null) {
+                dptOut.writeByte(pageTag(p));
+                dptOut.writeInt(e.getKey().getTableId());
+                dptOut.writeInt(e.getKey().getPageNumber());
+                dptOut.writeLong(e.getValue());
+                numDirty++;
             }
+        }
+        out.writeLong(redoLsn);
+        out.writeInt(numDirty);
+        dpt.writeTo(out);
 
-            int numOutstanding = raf.readInt();
+        long startCpOffset;
+        appendLock.readLock().lock();
+        try {
+            startCpOffset = append(record);
+        } finally {
+            appendLock.readLock().unlock();
+        }
+        force();
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        //once the CP is on disk, make sure the CP location in the log
+        // file is updated
+        synchronized (this) {
+            writeControl(startCpOffset, logStart());
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+        logTruncate();
+    }
 
-        raf.seek(minLogRecord);
+    /** Return the lock that keeps a logged change and the dirty page
+        table consistent: while it is held, a checkpoint does not copy
+        the table.  Held by the buffer pool between logging a page and
+        noting the LSN of the page.  The log is started first, which
+        takes the write lock. */
+    java.util.concurrent.locks.Lock lsnLock() throws IOException {
+        startLog();
+        return appendLock.readLock();
+    }
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
+    /** @return the LSN of the first record that is still needed.  The
+        caller must hold the lock of the log. */
+    private long logStart() throws IOException {
+        control.seek(LONG_SIZE);
+        return control.readLong();
+    }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+    /** @return the LSN of the last checkpoint, or NO_CHECKPOINT_ID.  The
+        caller must hold the lock of the log. */
+    private long checkpointLsn() throws IOException {
+        control.seek(0);
+        return control.readLong();
+    }
 
-            } catch (EOFException e) {
-                break;
-            }
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption.  Records are not copied: the segments that only hold
+        records before the first one recovery needs are removed, or kept
+        for reuse (see {@link LogSegments#dropBefore}). */
+    public void logTruncate() throws IOException {
+        preAppend();
+        synchronized (this) {
+            drain();
+            truncate();
         }
+    }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+    private void truncate() throws IOException {
+        long cpLoc = checkpointLsn();
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            // nothing is known to be unneeded
+            return;
+        }
+
+        // recovery reads from the redo start of the checkpoint, and from
+        // the first record of the transactions active then
+        LogRecord checkpoint = readRecord(new DataInputStream(segments.reader(cpLoc)), cpLoc);
+        if (checkpoint.type != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
+        long minLogRecord = Math.min(cpLoc, checkpoint.redoLsn);
+        for (long firstLogRecord : checkpoint.active.values()) {
+            minLogRecord = Math.min(minLogRecord, firstLogRecord);
+        }
+        if (minLogRecord <= logStart()) {
+            return;
+        }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+        Debug.log("TRUNCATING LOG; NEW START : " + minLogRecord);
+        // the new start is on disk before the segments go away
+        writeControl(cpLoc, minLogRecord);
+        segments.dropBefore(minLogRecord, buffer.written());
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -458,27 +845,193 @@ public class LogFile {
         transaction semantics, this should not be called on
         transactions that have already committed (though this may not
         be enforced by this method.)
+        <p>
+        Changes that have not been logged yet are taken back in the
+        buffer pool (see {@link BufferPool#revertPages}); the logged
+        ones are undone newest first, writing a CLR for each, whether
+        the page is still in the buffer pool or was stolen to disk.
 
         @param tid The transaction to rollback
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
+        // the lock of the buffer pool keeps recovery from resetting the
+        // log while records are undone
         synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-                preAppend();
-                // some code goes here
+            preAppend();
+            Long first = tidToFirstLogRecord.get(tid.getId());
+            if (first == null) {
+                throw new NoSuchElementException("transaction " + tid.getId() + " is not live");
+            }
+            ArrayList<LogRecord> records = new ArrayList<LogRecord>();
+            synchronized (this) {
+                drain();
+                readRecords(first, records);
+            }
+            ArrayList<LogRecord> own = new ArrayList<LogRecord>();
+            for (LogRecord r : records) {
+                if (r.tid == tid.getId()) {
+                    own.add(r);
+                }
             }
+
+            final BufferPool pool = Database.getBufferPool();
+            final TransactionId t = tid;
+            pool.revertPages(tid);
+            undo(tid.getId(), own, new PageStore() {
+                public Page getPage(PageId pid) throws IOException {
+                    return pool.recoveryPage(pid);
+                }
+                public void putPage(Page p, long lsn) throws IOException {
+                    pool.installPage(p, t, lsn);
+                }
+            });
         }
     }
 
+    /** Where rollback and recovery get the pages they change, and put
+        them back */
+    interface PageStore {
+        Page getPage(PageId pid) throws IOException;
+        /** @param lsn The LSN of the record that changed the page */
+        void putPage(Page p, long lsn) throws IOException;
+    }
+
+    /** Undo the updates of one transaction, newest first, writing a CLR
+        for each.  Updates that a CLR shows to be undone already, by a
+        rollback that a crash interrupted, are skipped.
+
+        @param records The records of the transaction, in log order
+    */
+    private void undo(long tid, List<LogRecord> records, PageStore pages)
+        throws IOException {
+        int i = records.size() - 1;
+        while (i >= 0) {
+            LogRecord r = records.get(i);
+            if (r.type == CLR_RECORD) {
+                // the compensated update and all after it were undone
+                while (i >= 0 && records.get(i).lsn >= r.undone) {
+                    i--;
+                }
+                continue;
+            }
+            if (r.type == UPDATE_RECORD || r.type == TUPLE_RECORD) {
+                PageId pid = r.getPageId();
+                Page current = pages.getPage(pid);
+                // other transactions may be writing other tuples of the
+                // page under their tuple locks
+                synchronized (current) {
+                    Page p = r.undo(current);
+                    long lsn = logCompensation(tid, r);
+                    pages.putPage(p, lsn);
+                }
+            }
+            i--;
+        }
+    }
+
+    /** Write a CLR for an update that was undone
+        @return The LSN of the CLR
+    */
+    private long logCompensation(long tid, LogRecord undone) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(CLR_RECORD);
+        out.writeLong(tid);
+        out.writeLong(undone.lsn);
+        if (undone.update != null) {
+            out.writeInt(TUPLE_RECORD);
+            undone.update.inverse().write(out);
+        } else {
+            out.writeInt(UPDATE_RECORD);
+            writePageData(out, undone.before);
+        }
+        return append(record);
+    }
+
+    /** Read the log record that starts at the current position of in
+        @param lsn The position of the record
+    */
+    private LogRecord readRecord(DataInput in, long lsn) throws IOException {
+        int type = in.readInt();
+        LogRecord r = new LogRecord(lsn, type, in.readLong());
+        switch (type) {
+        case UPDATE_RECORD:
+            r.before = readPageData(in);
+            r.after = readPageData(in);
+            break;
+        case TUPLE_RECORD:
+            r.update = SlotUpdate.read(in);
+            break;
+        case CLR_RECORD:
+            r.undone = in.readLong();
+            if (in.readInt() == UPDATE_RECORD) {
+                r.after = readPageData(in);
+            } else {
+                r.update = SlotUpdate.read(in);
+            }
+            break;
+        case CHECKPOINT_RECORD:
+            r.active = new LinkedHashMap<Long,Long>();
+            int n = in.readInt();
+            while (n-- > 0) {
+                long tid = in.readLong();
+                r.active.put(tid, in.readLong());
+            }
+            r.redoLsn = in.readLong();
+            r.dirtyPages = new HashMap<PageId,Long>();
+            n = in.readInt();
+            while (n-- > 0) {
+                int tag = in.readUnsignedByte();
+                int table = in.readInt();
+                int pageNo = in.readInt();
+                r.dirtyPages.put(pageId(tag, table, pageNo), in.readLong());
+            }
+            break;
+        case ABORT_RECORD:
+        case COMMIT_RECORD:
+        case BEGIN_RECORD:
+            break;
+        default:
+            throw new IOException("unknown log record type " + type + " at " + lsn);
+        }
+        if (in.readLong() != lsn) {
+            throw new IOException("corrupt log record at " + lsn);
+        }
+        return r;
+    }
+
+    /** Read the records from the given LSN to the end of the log.  The
+        caller must hold the lock of the log.
+        @return The LSN after the last complete record; a record that a
+        crash cut short, or the zeros after the last record, are not read
+    */
+    private long readRecords(long from, List<LogRecord> records) throws IOException {
+        LogSegments.Input input = segments.reader(from);
+        DataInputStream in = new DataInputStream(input);
+        long end = from;
+        while (true) {
+            try {
+                records.add(readRecord(in, end));
+            } catch (IOException e) {
+                break;
+            }
+            end = input.position();
+        }
+        return end;
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                control.close();
+                segments.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -488,23 +1041,230 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Recovery follows ARIES.  Analysis reads the log from the redo
+        start of the last checkpoint (and from the first record of the
+        transactions that were active then) to rebuild the transaction
+        table, the transactions without a COMMIT or ABORT record, and the
+        dirty page table, the first record that changed each page, which
+        starts from the table the checkpoint recorded.  Redo
+        repeats history: every change from the first record in the
+        dirty page table on is applied again, including CLRs.  The
+        changes are physical, so applying one to a page that already has
+        it does no harm.  Records of different pages are independent, so
+        redo runs on several threads (see {@link #setRedoThreads}).  Undo
+        then rolls back the transactions left in
+        the transaction table like {@link #rollback}, and writes their
+        ABORT records.  Finally the pages are written and the log forced.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                recoveryUndecided = false;
-                // some code goes here
+            appendLock.writeLock().lock();
+            try {
+                synchronized (this) {
+                    recoveryUndecided = false;
+                    if (control.length() < 2 * LONG_SIZE) {
+                        reset();
+                        return;
+                    }
+                    recoverLog();
+                }
+            } finally {
+                appendLock.writeLock().unlock();
             }
-         }
+        }
+    }
+
+    private void recoverLog() throws IOException {
+        long cp = checkpointLsn();
+        long redoStart = logStart();
+        long scanStart = redoStart;
+
+        // analysis: the transaction table maps the transactions that did
+        // not finish to their records
+        LinkedHashMap<Long,List<LogRecord>> transactions = new LinkedHashMap<Long,List<LogRecord>>();
+        HashMap<PageId,Long> dirtyPages = new HashMap<PageId,Long>();
+        if (cp != NO_CHECKPOINT_ID) {
+            LogRecord checkpoint = readRecord(new DataInputStream(segments.reader(cp)), cp);
+            redoStart = scanStart = checkpoint.redoLsn;
+            dirtyPages.putAll(checkpoint.dirtyPages);
+            for (Map.Entry<Long,Long> e : checkpoint.active.entrySet()) {
+                transactions.put(e.getKey(), new ArrayList<LogRecord>());
+                scanStart = Math.min(scanStart, e.getValue());
+            }
+        }
+        ArrayList<LogRecord> records = new ArrayList<LogRecord>();
+        long end = readRecords(scanStart, records);
+        segments.clearFrom(end);
+        buffer.reset(end);
+        durable = end;
+
+        for (LogRecord r : records) {
+            switch (r.type) {
+            case BEGIN_RECORD:
+                transactions.put(r.tid, new ArrayList<LogRecord>());
+                break;
+            case COMMIT_RECORD:
+            case ABORT_RECORD:
+                transactions.remove(r.tid);
+                break;
+            case CHECKPOINT_RECORD:
+                break;
+            default:
+                List<LogRecord> own = transactions.get(r.tid);
+                if (own == null) {
+                    own = new ArrayList<LogRecord>();
+                    transactions.put(r.tid, own);
+                }
+                own.add(r);
+                if (r.lsn >= redoStart && !dirtyPages.containsKey(r.getPageId())) {
+                    dirtyPages.put(r.getPageId(), r.lsn);
+                }
+            }
+        }
+
+        final HashMap<PageId,Page> pages = new HashMap<PageId,Page>();
+        PageStore store = new PageStore() {
+            public Page getPage(PageId pid) {
+                Page p = pages.get(pid);
+                if (p == null) {
+                    p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+                }
+                return p;
+            }
+            public void putPage(Page p, long lsn) {
+                pages.put(p.getId(), p);
+            }
+        };
+
+        // redo, in parallel for pages in different partitions; the
+        // records of a page stay in log order within its partition
+        int threads = redoThreads;
+        ArrayList<List<LogRecord>> partitions = new ArrayList<List<LogRecord>>();
+        for (int i = 0; i < threads; i++) {
+            partitions.add(new ArrayList<LogRecord>());
+        }
+        for (LogRecord r : records) {
+            if (r.changesPage() && r.lsn >= redoStart) {
+                PageId pid = r.getPageId();
+                Long recLSN = dirtyPages.get(pid);
+                if (recLSN != null && r.lsn >= recLSN) {
+                    partitions.get(Math.floorMod(pid.hashCode(), threads)).add(r);
+                }
+            }
+        }
+        if (threads == 1) {
+            pages.putAll(redo(partitions.get(0)));
+        } else {
+            java.util.concurrent.ExecutorService workers =
+                java.util.concurrent.Executors.newFixedThreadPool(threads);
+            try {
+                ArrayList<java.util.concurrent.Future<Map<PageId,Page>>> redone =
+                    new ArrayList<java.util.concurrent.Future<Map<PageId,Page>>>();
+                for (final List<LogRecord> partition : partitions) {
+                    redone.add(workers.submit(() -> redo(partition)));
+                }
+                for (java.util.concurrent.Future<Map<PageId,Page>> f : redone) {
+                    pages.putAll(f.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted during redo");
+            } catch (java.util.concurrent.ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("redo failed", e.getCause());
+            } finally {
+                workers.shutdownNow();
+            }
+        }
+
+        // undo
+        for (Map.Entry<Long,List<LogRecord>> e : transactions.entrySet()) {
+            undo(e.getKey(), e.getValue(), store);
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeInt(ABORT_RECORD);
+            out.writeLong(e.getKey());
+            append(record);
+        }
+        tidToFirstLogRecord.clear();
+
+        // the CLRs go to disk before the pages they describe
+        force();
+        BufferPool pool = Database.getBufferPool();
+        for (Page p : pages.values()) {
+            Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+            pool.discardPage(p.getId());
+        }
+    }
+
+    /** Redo the changes of a list of records, in order, on pages read from
+        disk.
+        @return The changed pages
+    */
+    private static Map<PageId,Page> redo(List<LogRecord> records) throws IOException {
+        HashMap<PageId,Page> pages = new HashMap<PageId,Page>();
+        for (LogRecord r : records) {
+            PageId pid = r.getPageId();
+            Page p = pages.get(pid);
+            if (p == null) {
+                p = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            }
+            pages.put(pid, r.redo(p));
+        }
+        return pages;
+    }
+
+    /** Set the number of threads recovery redoes the log with.  Pages are
+        partitioned among them by the hash of their id.
+        @param threads The number of threads; 1 to redo on the recovering
+            thread
+    */
+    public void setRedoThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("at least one redo thread is needed");
+        }
+        redoThreads = threads;
     }
 
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
-        // some code goes here
+        ArrayList<LogRecord> records = new ArrayList<LogRecord>();
+        synchronized (this) {
+            drain();
+            if (control.length() < 2 * LONG_SIZE) {
+                System.out.println("EMPTY LOG");
+                return;
+            }
+            System.out.println("CHECKPOINT AT " + checkpointLsn());
+            readRecords(logStart(), records);
+        }
+        String[] names = { null, "ABORT", "COMMIT", "UPDATE", "BEGIN", "CHECKPOINT", "TUPLE", "CLR" };
+        for (LogRecord r : records) {
+            StringBuilder line = new StringBuilder();
+            line.append(r.lsn).append(": ").append(names[r.type]).append(" tid=").append(r.tid);
+            if (r.changesPage()) {
+                PageId pid = r.getPageId();
+                line.append(" table=").append(pid.getTableId()).append(" page=").append(pid.getPageNumber());
+            }
+            if (r.type == CLR_RECORD) {
+                line.append(" undoes ").append(r.undone);
+            }
+            if (r.active != null) {
+                line.append(" active=").append(r.active);
+                line.append(" redo=").append(r.redoLsn);
+                line.append(" dirty=").append(r.dirtyPages);
+            }
+            System.out.println(line);
+        }
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        drain();
+        segments.force(durable, buffer.written());
+        durable = buffer.written();
     }
 
 }
@@ -0,0 +1,92 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * LogRecord is a record read back from a {@link LogFile}, for rollback and
+ * recovery.
+ * <p>
+ * UPDATE, TUPLE and CLR records change a page. A CLR (compensation log
+ * record) is written for each update that is undone, and holds the change
+ * that undid it; it is only ever redone, and records which update it
+ * compensated, so that an update is not undone twice when a rollback is
+ * interrupted by a crash.
+ */
+class LogRecord {
+
+    /** The LSN of the record, its offset in the log file */
+    final long lsn;
+    /** The type of the record, one of the record types of LogFile */
+    final int type;
+    /** The id of the transaction the record belongs to */
+    final long tid;
+
+    /** The page images of an UPDATE record; a CLR only has an after image */
+    Page before;
+    Page after;
+    /** The changed slots of a TUPLE record, or of a CLR */
+    SlotUpdate update;
+    /** The LSN of the update a CLR compensated */
+    long undone = -1;
+    /** The active transactions of a CHECKPOINT record, with their first
+        records */
+    Map<Long, Long> active;
+    /** The LSN where redo starts, and the dirty page table, of a CHECKPOINT
+        record */
+    long redoLsn = -1;
+    Map<PageId, Long> dirtyPages;
+
+    LogRecord(long lsn, int type, long tid) {
+        this.lsn = lsn;
+        this.type = type;
+        this.tid = tid;
+    }
+
+    /** @return true if the record changes a page */
+    boolean changesPage() {
+        return type == LogFile.UPDATE_RECORD || type == LogFile.TUPLE_RECORD
+                || type == LogFile.CLR_RECORD;
+    }
+
+    /** @return the id of the page the record changes */
+    PageId getPageId() throws IOException {
+        if (update != null) {
+            return update.getPageId();
+        }
+        return after.getId();
+    }
+
+    /**
+     * Apply the change of the record to a page.
+     *
+     * @param current
+     *            the page as it is now
+     * @return the page after the change, which may be current
+     */
+    Page redo(Page current) {
+        if (update != null) {
+            update.redo((SlottedPage) current);
+            return current;
+        }
+        return after;
+    }
+
+    /**
+     * Take back the change of an UPDATE or TUPLE record from a page.
+     *
+     * @param current
+     *            the page as it is now
+     * @return the page before the change, which may be current
+     */
+    Page undo(Page current) {
+        if (type == LogFile.CLR_RECORD) {
+            throw new IllegalStateException("compensation records are not undone");
+        }
+        if (update != null) {
+            update.undo((SlottedPage) current);
+            return current;
+        }
+        return before;
+    }
+}
@@ -0,0 +1,275 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * LogSegments stores the records of a {@link LogFile} in fixed-size segment
+ * files. The log is a sequence of bytes addressed by LSN; segment n holds the
+ * bytes from n * segmentSize up to (n + 1) * segmentSize, and is named after
+ * the log file with the number appended (<tt>log.00000003</tt>). Records may
+ * span two segments.
+ * <p>
+ * A segment is preallocated to its full size when it is created, so writing
+ * the log never extends a file. Truncating the log removes the segments that
+ * only hold records before the truncation point; a few of them are kept,
+ * zeroed and renamed to the numbers of the next segments, so that they are
+ * reused instead of allocated again. The log ends where the bytes stop
+ * forming valid records, which is at the latest at the zeros past the last
+ * record.
+ * <p>
+ * Not thread safe: the log file calls it under its own lock.
+ */
+class LogSegments {
+
+    /** The number of removed segments kept for reuse */
+    static final int RECYCLED_SEGMENTS = 2;
+
+    private static final int ZERO_CHUNK = 1 << 16;
+
+    private final File base;
+    private final long segmentSize;
+    // the segment files, by number: the ones holding the log, followed by
+    // the ones waiting for reuse
+    private final TreeMap<Long, RandomAccessFile> segments = new TreeMap<Long, RandomAccessFile>();
+
+    /**
+     * Open the segments of a log file.
+     *
+     * @param base
+     *            the log file, which the segment files are named after
+     * @param segmentSize
+     *            the size of a segment, in bytes
+     */
+    LogSegments(File base, long segmentSize) throws IOException {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("segment size must be positive");
+        }
+        this.base = base;
+        this.segmentSize = segmentSize;
+        File dir = base.getAbsoluteFile().getParentFile();
+        String prefix = base.getName() + ".";
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.startsWith(prefix) && name.length() > prefix.length()
+                        && name.substring(prefix.length()).matches("[0-9]+")) {
+                    segments.put(Long.parseLong(name.substring(prefix.length())),
+                            new RandomAccessFile(f, "rw"));
+                }
+            }
+        }
+    }
+
+    long segmentSize() {
+        return segmentSize;
+    }
+
+    /** @return the file of segment n */
+    File segmentFile(long n) {
+        return new File(base.getPath() + String.format(".%08d", n));
+    }
+
+    /** @return the numbers of the segment files, in order */
+    Set<Long> segmentNumbers() {
+        return Collections.unmodifiableSet(segments.keySet());
+    }
+
+    private RandomAccessFile segment(long n) throws IOException {
+        RandomAccessFile raf = segments.get(n);
+        if (raf == null) {
+            raf = new RandomAccessFile(segmentFile(n), "rw");
+            raf.setLength(segmentSize);
+            segments.put(n, raf);
+        }
+        return raf;
+    }
+
+    /** Write len bytes of b at the given LSN, creating segments as needed */
+    void write(long lsn, byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            long n = lsn / segmentSize;
+            long pos = lsn % segmentSize;
+            int chunk = (int) Math.min(len, segmentSize - pos);
+            RandomAccessFile raf = segment(n);
+            raf.seek(pos);
+            raf.write(b, off, chunk);
+            lsn += chunk;
+            off += chunk;
+            len -= chunk;
+        }
+    }
+
+    /**
+     * @return the channels of the segments holding the bytes from one LSN
+     *         up to another, to force them to disk
+     */
+    List<FileChannel> channels(long from, long to) {
+        ArrayList<FileChannel> channels = new ArrayList<FileChannel>();
+        if (to > from) {
+            for (RandomAccessFile raf : segments.subMap(from / segmentSize, true,
+                    (to - 1) / segmentSize, true).values()) {
+                channels.add(raf.getChannel());
+            }
+        }
+        return channels;
+    }
+
+    /** Force the bytes from one LSN up to another to disk */
+    void force(long from, long to) throws IOException {
+        for (FileChannel channel : channels(from, to)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * @return a stream of the log from the given LSN on, which ends after
+     *         the last segment
+     */
+    Input reader(long lsn) {
+        return new Input(lsn);
+    }
+
+    /**
+     * Remove the segments that end at or before the given LSN, reusing up
+     * to {@link #RECYCLED_SEGMENTS} of them as the segments after the one
+     * holding end, the end of the log.
+     */
+    void dropBefore(long lsn, long end) throws IOException {
+        long last = end / segmentSize;
+        while (!segments.isEmpty() && (segments.firstKey() + 1) * segmentSize <= lsn
+                && segments.firstKey() < last) {
+            long n = segments.firstKey();
+            RandomAccessFile raf = segments.remove(n);
+            raf.close();
+            File f = segmentFile(n);
+            long next = (segments.isEmpty() ? last : Math.max(segments.lastKey(), last)) + 1;
+            if (next - last <= RECYCLED_SEGMENTS) {
+                File to = segmentFile(next);
+                if (!f.renameTo(to)) {
+                    throw new IOException("could not rename " + f + " to " + to);
+                }
+                raf = new RandomAccessFile(to, "rw");
+                zero(raf, 0);
+                segments.put(next, raf);
+            } else if (!f.delete()) {
+                throw new IOException("could not delete " + f);
+            }
+        }
+    }
+
+    /**
+     * Zero the log from the given LSN on, such as the rest of a record cut
+     * short by a crash. The log is written in order, so zeroing stops at the
+     * first chunk that is all zeros already.
+     */
+    void clearFrom(long lsn) throws IOException {
+        byte[] chunk = new byte[ZERO_CHUNK];
+        byte[] zeros = new byte[ZERO_CHUNK];
+        for (Map.Entry<Long, RandomAccessFile> e : segments.tailMap(lsn / segmentSize, true).entrySet()) {
+            RandomAccessFile raf = e.getValue();
+            long pos = Math.max(0, lsn - e.getKey() * segmentSize);
+            while (pos < segmentSize) {
+                int n = (int) Math.min(ZERO_CHUNK, segmentSize - pos);
+                raf.seek(pos);
+                raf.readFully(chunk, 0, n);
+                if (isZero(chunk, n)) {
+                    return;
+                }
+                raf.seek(pos);
+                raf.write(zeros, 0, n);
+                pos += n;
+            }
+        }
+    }
+
+    private static boolean isZero(byte[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (b[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void zero(RandomAccessFile raf, long from) throws IOException {
+        byte[] zeros = new byte[ZERO_CHUNK];
+        raf.seek(from);
+        for (long pos = from; pos < segmentSize; pos += ZERO_CHUNK) {
+            raf.write(zeros, 0, (int) Math.min(ZERO_CHUNK, segmentSize - pos));
+        }
+        raf.setLength(segmentSize);
+    }
+
+    /** Remove all segments */
+    void reset() throws IOException {
+        for (Map.Entry<Long, RandomAccessFile> e : segments.entrySet()) {
+            e.getValue().close();
+            segmentFile(e.getKey()).delete();
+        }
+        segments.clear();
+    }
+
+    void close() throws IOException {
+        for (RandomAccessFile raf : segments.values()) {
+            raf.close();
+        }
+    }
+
+    /** A stream of the log from an LSN on, which knows its position */
+    class Input extends InputStream {
+        private final byte[] buf = new byte[ZERO_CHUNK];
+        private long bufStart;
+        private int bufLength = 0;
+        private int bufPos = 0;
+
+        private Input(long lsn) {
+            bufStart = lsn;
+        }
+
+        /** @return the LSN of the next byte */
+        long position() {
+            return bufStart + bufPos;
+        }
+
+        private boolean fill() throws IOException {
+            bufStart += bufLength;
+            bufLength = 0;
+            bufPos = 0;
+            RandomAccessFile raf = segments.get(bufStart / segmentSize);
+            if (raf == null) {
+                return false;
+            }
+            long pos = bufStart % segmentSize;
+            raf.seek(pos);
+            int n = raf.read(buf, 0, (int) Math.min(buf.length, segmentSize - pos));
+            if (n <= 0) {
+                return false;
+            }
+            bufLength = n;
+            return true;
+        }
+
+        public int read() throws IOException {
+            if (bufPos == bufLength && !fill()) {
+                return -1;
+            }
+            return buf[bufPos++] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (bufPos == bufLength && !fill()) {
+                return -1;
+            }
+            int n = Math.min(len, bufLength - bufPos);
+            System.arraycopy(buf, bufPos, b, off, n);
+            bufPos += n;
+            return n;
+        }
+    }
+}
@@ -1,7 +1,11 @@
 package simpledb;
+import java.util.List;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Set;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
@@ -36,6 +40,18 @@ public class LogicalPlan {
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
     private String query;
+    // true if joins are already in the order physicalPlan should use
+    private boolean joinOrderFixed = false;
+    // if positive, physicalPlan makes plans that re-order their joins when
+    // the size of a filtered table is off by more than this factor
+    private double adaptiveThreshold = 0;
+    // the predicates the last physicalPlan created for the filters
+    private Vector<Predicate> filterPredicates = new Vector<Predicate>();
+    // the cost of the access path the last physicalPlan chose for each
+    // table, and the index scan that evaluates each predicate it pushed into
+    // the index of its table
+    private HashMap<String,Double> scanCosts = new HashMap<String,Double>();
+    private IdentityHashMap<Predicate,BTreeScan> indexScans = new IdentityHashMap<Predicate,BTreeScan>();
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -66,6 +82,91 @@ public class LogicalPlan {
         return query;
     }
 
+    /** Create a copy of this plan that compares its filters against the
+        specified constants instead, and that joins the tables in the order
+        this plan's last call to {@link #physicalPlan} chose, without running
+        the optimizer again. Used to execute a cached plan with new constants.
+
+        @param constants the constants of the filters, in the order of {@link #getFilters}
+        @return the new plan
+    */
+    LogicalPlan withConstants(List<String> constants) {
+        if (constants.size() != filters.size()) {
+            throw new IllegalArgumentException("expected " + filters.size()
+                    + " constants, got " + constants.size());
+        }
+        LogicalPlan lp = new LogicalPlan();
+        lp.joins = joins;
+        lp.tables = tables;
+        lp.tableMap = tableMap;
+        lp.selectList = selectList;
+        lp.groupByField = groupByField;
+        lp.hasAgg = hasAgg;
+        lp.aggOp = aggOp;
+        lp.aggField = aggField;
+        lp.oByAsc = oByAsc;
+        lp.hasOrderBy = hasOrderBy;
+        lp.oByField = oByField;
+        lp.query = query;
+        lp.joinOrderFixed = true;
+        lp.adaptiveThreshold = adaptiveThreshold;
+        for (int i = 0; i < filters.size(); i++) {
+            LogicalFilterNode lf = filters.get(i);
+            lp.filters.addElement(new LogicalFilterNode(lf.tableAlias,
+                    lf.fieldPureName, lf.p, constants.get(i)));
+        }
+        return lp;
+    }
+
+    /** Make {@link #physicalPlan} build adaptive plans, which read the
+        tables that have filters before joining them, and re-order the
+        joins if the number of tuples of one of them is more than threshold
+        times larger or smaller than estimated. See {@link AdaptiveJoin}.
+        @param threshold the factor, or 0 to build plans that do not adapt
+    */
+    public void setAdaptiveThreshold(double threshold) {
+        if (threshold != 0 && threshold < 1)
+            throw new IllegalArgumentException("threshold must be 0 or at least 1");
+        this.adaptiveThreshold = threshold;
+    }
+
+    /** @return the filters of this plan, in the order they were added */
+    Vector<LogicalFilterNode> getFilters() {
+        return filters;
+    }
+
+    /** @return the predicates the last call to {@link #physicalPlan} created
+        for the filters of this plan, in the order of {@link #getFilters}
+    */
+    Vector<Predicate> getFilterPredicates() {
+        return filterPredicates;
+    }
+
+    /** @return the index scans the last call to {@link #physicalPlan}
+        chose, by the predicate each of them evaluates instead of a filter
+    */
+    IdentityHashMap<Predicate,BTreeScan> getIndexScans() {
+        return indexScans;
+    }
+
+    /** @return the estimated cost of the access path the last call to
+        {@link #physicalPlan} chose for a table, or null if it has not
+        chosen one
+        @param alias the alias of the table
+    */
+    Double getScanCost(String alias) {
+        return scanCosts.get(alias);
+    }
+
+    /** @return true if this plan joins with a subquery */
+    boolean hasSubqueries() {
+        for (LogicalJoinNode lj : joins) {
+            if (lj instanceof LogicalSubplanJoinNode)
+                return true;
+        }
+        return false;
+    }
+
     /** Given a table alias, return id of the table object (this id can be supplied to {@link Catalog#getDatabaseFile(int)}).
         Aliases are added as base tables are added via {@link #addScan}.
 
@@ -266,13 +367,65 @@ public class LogicalPlan {
         if (s.equals("AVG")) return Aggregator.Op.AVG;
         if (s.equals("SUM")) return Aggregator.Op.SUM;
         if (s.equals("COUNT")) return Aggregator.Op.COUNT;
+        if (s.equals("COUNT_DISTINCT")) return Aggregator.Op.COUNT_DISTINCT;
         if (s.equals("MIN")) return Aggregator.Op.MIN;
         if (s.equals("MAX")) return Aggregator.Op.MAX;
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Find a materialized aggregate view registered with the BufferPool that
+     *  answers this plan.  Only plans aggregating a single table without any
+     *  filters or joins can be answered from a view.
+     *  @return the matching view, or null if there is none
+     *  @throws ParsingException if the aggregate operator is not valid
+     */
+    private AggregateView findAggregateView() throws ParsingException {
+        if (tables.size() != 1 || !filters.isEmpty() || !joins.isEmpty())
+            return null;
+
+        LogicalScanNode table = tables.firstElement();
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        int afield, gfield;
+        try {
+            afield = td.fieldNameToIndex(aggField.split("[.]")[1]);
+            gfield = groupByField == null ? Aggregator.NO_GROUPING
+                    : td.fieldNameToIndex(groupByField.split("[.]")[1]);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        return Database.getBufferPool().getAggregateView(table.t, afield, gfield, getAggOp(aggOp));
+    }
+
+    /** Add the qualified names of the fields referenced by the select list,
+     *  joins, aggregate and ORDER BY of this plan to fields.
+     *  @return false if the select list contains *, in which case every
+     *    field is needed
+     */
+    private boolean collectReferencedFields(Set<String> fields) {
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.equals("null.*"))
+                return false;
+            fields.add(si.fname);
+        }
+        for (LogicalJoinNode lj : joins) {
+            fields.add(lj.t1Alias + "." + lj.f1PureName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                fields.add(lj.t2Alias + "." + lj.f2PureName);
+        }
+        if (aggField != null)
+            fields.add(aggField);
+        if (groupByField != null)
+            fields.add(groupByField);
+        if (oByField != null)
+            fields.add(oByField);
+        return true;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
+     *   A table stored in a {@link BTreeFile} is read with a {@link BTreeScan} of the range its most
+     *   selective filter on the key selects when that is estimated to be cheaper than a full scan.
+     *   If an adaptive threshold is set, the joins run in an {@link AdaptiveJoin}.
      *  @param t The transaction that the returned OpIterator will run as a part of
      *  @param baseTableStats a HashMap providing a {@link TableStats}
      *    object for each table used in the LogicalPlan.  This should
@@ -286,9 +439,10 @@ public class LogicalPlan {
      */ 
     public OpIterator physicalPlan(TransactionId t, Map<String,TableStats> baseTableStats, boolean explain) throws ParsingException {
         Iterator<LogicalScanNode> tableIt = tables.iterator();
-        HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        HashMap<String,SeqScan> scans = new HashMap<String,SeqScan>();
+        HashSet<String> referencedFields = new HashSet<String>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -300,12 +454,17 @@ public class LogicalPlan {
             }
             
             subplanMap.put(table.alias,ss);
+            scans.put(table.alias, ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
 
         }
 
+        filterPredicates = new Vector<Predicate>();
+        HashMap<String,ArrayList<Predicate>> tablePredicates = new HashMap<String,ArrayList<Predicate>>();
+        HashMap<String,Predicate> indexCandidates = new HashMap<String,Predicate>();
+        HashMap<String,Double> indexSelectivities = new HashMap<String,Double>();
         Iterator<LogicalFilterNode> filterIt = filters.iterator();        
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
@@ -334,79 +493,110 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            filterPredicates.addElement(p);
+            if (!tablePredicates.containsKey(lf.tableAlias))
+                tablePredicates.put(lf.tableAlias, new ArrayList<Predicate>());
+            tablePredicates.get(lf.tableAlias).add(p);
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
             double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
+            // the most selective predicate on the key of a B+ tree can be
+            // evaluated by a range scan of the tree
+            DbFile file = Database.getCatalog().getDatabaseFile(this.getTableId(lf.tableAlias));
+            if (file instanceof BTreeFile && p.getField() == ((BTreeFile) file).keyField()
+                    && p.getOp() != Predicate.Op.LIKE && p.getOp() != Predicate.Op.NOT_EQUALS
+                    && (indexCandidates.get(lf.tableAlias) == null
+                        || sel < indexSelectivities.get(lf.tableAlias))) {
+                indexCandidates.put(lf.tableAlias, p);
+                indexSelectivities.put(lf.tableAlias, sel);
+            }
+
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
-        
-        JoinOptimizer jo = new JoinOptimizer(this,joins);
 
-        joins = jo.orderJoins(statsMap,filterSelectivities,explain);
-
-        Iterator<LogicalJoinNode> joinIt = joins.iterator();
-        while (joinIt.hasNext()) {
-            LogicalJoinNode lj = joinIt.next();
-            OpIterator plan1;
-            OpIterator plan2;
-            boolean isSubqueryJoin = lj instanceof LogicalSubplanJoinNode;
-            String t1name, t2name;
-
-            if (equivMap.get(lj.t1Alias)!=null)
-                t1name = equivMap.get(lj.t1Alias);
-            else
-                t1name = lj.t1Alias;
-
-            if (equivMap.get(lj.t2Alias)!=null)
-                t2name = equivMap.get(lj.t2Alias);
-            else
-                t2name = lj.t2Alias;
+        // prefer the selectivities earlier queries observed for the same filters
+        for (Map.Entry<String,ArrayList<Predicate>> e : tablePredicates.entrySet()) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(e.getKey())));
+            Double observed = s.getObservedSelectivity(CardinalityFeedback.key(e.getValue()));
+            if (observed != null)
+                filterSelectivities.put(e.getKey(), observed);
+        }
 
-            plan1 = subplanMap.get(t1name);
+        // choose between a full scan and an index range scan of each table
+        scanCosts = new HashMap<String,Double>();
+        indexScans = new IdentityHashMap<Predicate,BTreeScan>();
+        for (LogicalScanNode table : tables) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            double cost = s.estimateScanCost();
+            Predicate p = indexCandidates.get(table.alias);
+            if (p != null) {
+                double indexCost = s.estimateIndexScanCost(indexSelectivities.get(table.alias));
+                if (indexCost < cost) {
+                    cost = indexCost;
+                    BTreeScan scan = new BTreeScan(t, table.t, table.alias,
+                            new IndexPredicate(p.getOp(), p.getOperand()));
+                    subplanMap.put(table.alias, scan);
+                    scans.remove(table.alias);
+                    indexScans.put(p, scan);
+                }
+            }
+            scanCosts.put(table.alias, cost);
+        }
 
-            if (isSubqueryJoin) {
-                plan2 = ((LogicalSubplanJoinNode)lj).subPlan;
-                if (plan2 == null) 
-                    throw new ParsingException("Invalid subquery.");
-            } else { 
-                plan2 = subplanMap.get(t2name);
+        for (int i = 0; i < filters.size(); i++) {
+            LogicalFilterNode lf = filters.get(i);
+            Predicate p = filterPredicates.get(i);
+            OpIterator subplan = subplanMap.get(lf.tableAlias);
+            if (indexScans.containsKey(p)) {
+                // the index scan returns exactly the tuples that satisfy p
+                continue;
             }
-            
-            if (plan1 == null)
-                throw new ParsingException("Unknown table in WHERE clause " + lj.t1Alias);
-            if (plan2 == null)
-                throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
-            
-            OpIterator j;
-            j = jo.instantiateJoin(lj,plan1,plan2);
-            subplanMap.put(t1name, j);
+            if (subplan instanceof SeqScan && ((SeqScan) subplan).canPushPredicates()) {
+                // evaluate the predicate in the scan, on the raw page data
+                ((SeqScan) subplan).addPredicate(p);
+            } else {
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+                referencedFields.add(lf.fieldQuantifiedName);
+            }
+        }
+        
+        // let the scans skip the fields no operator above them refers to
+        if (collectReferencedFields(referencedFields)) {
+            for (SeqScan ss : scans.values()) {
+                TupleDesc td = ss.getTupleDesc();
+                boolean[] projection = new boolean[td.numFields()];
+                for (int i = 0; i < projection.length; i++) {
+                    projection[i] = referencedFields.contains(td.getFieldName(i));
+                }
+                ss.setProjection(projection);
+            }
+        }
 
-            if (!isSubqueryJoin) {
-                subplanMap.remove(t2name);
-                equivMap.put(t2name,t1name);  //keep track of the fact that this new node contains both tables
-                    //make sure anything that was equiv to lj.t2 (which we are just removed) is
-                    // marked as equiv to lj.t1 (which we are replacing lj.t2 with.)
-                    for (java.util.Map.Entry<String, String> s: equivMap.entrySet()) {
-                        String val = s.getValue();
-                        if (val.equals(t2name)) {
-                            s.setValue(t1name);
-                        }
-                    }
-                    
-                // subplanMap.put(lj.t2, j);
+        // in adaptive mode, read the filtered tables first, so that the
+        // joins can be re-ordered if their sizes were misestimated
+        HashMap<String,Materialize> materialized = new HashMap<String,Materialize>();
+        if (adaptiveThreshold > 0 && !joins.isEmpty()) {
+            for (String alias : tablePredicates.keySet()) {
+                Materialize m = new Materialize(subplanMap.get(alias));
+                subplanMap.put(alias, m);
+                materialized.put(alias, m);
             }
-            
         }
+        HashMap<String,OpIterator> leaves = new HashMap<String,OpIterator>(subplanMap);
 
-        if (subplanMap.size() > 1) {
-            throw new ParsingException("Query does not include join expressions joining all nodes!");
+        JoinOptimizer jo = new JoinOptimizer(this,joins);
+
+        if (!joinOrderFixed)
+            joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+
+        OpIterator node = instantiateJoins(joins, subplanMap, jo);
+        if (!materialized.isEmpty()) {
+            node = new AdaptiveJoin(this, joins, leaves, materialized, statsMap,
+                    filterSelectivities, node, adaptiveThreshold);
         }
-        
-        OpIterator node =  (OpIterator)(subplanMap.entrySet().iterator().next().getValue());
 
         //walk the select list, to determine order in which to project output fields
         ArrayList<Integer> outFields = new ArrayList<Integer>();
@@ -460,18 +650,24 @@ public class LogicalPlan {
 
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
-            Aggregate aggNode;
-            try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
-            } catch (NoSuchElementException e) {
-                throw new simpledb.ParsingException(e);
-            } catch (IllegalArgumentException e) {
-                throw new simpledb.ParsingException(e);
+            AggregateView view = findAggregateView();
+            if (view != null) {
+                // answer from the maintained state instead of scanning the table
+                node = view.iterator(t, tables.firstElement().alias);
+            } else {
+                Aggregate aggNode;
+                try {
+                    aggNode = new Aggregate(node,
+                                            td.fieldNameToIndex(aggField),
+                                            groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
+                                    getAggOp(aggOp));
+                } catch (NoSuchElementException e) {
+                    throw new simpledb.ParsingException(e);
+                } catch (IllegalArgumentException e) {
+                    throw new simpledb.ParsingException(e);
+                }
+                node = aggNode;
             }
-            node = aggNode;
         }
 
         if (hasOrderBy) {
@@ -481,6 +677,79 @@ public class LogicalPlan {
         return new Project(outFields, outTypes, node);
     }
 
+    /** Instantiate the joins of this plan, in order, over the subplans of
+     *  its tables.
+     *  @param joins the joins, every join after the joins of both of its inputs
+     *  @param subplans the subplan of each table alias; joined subplans are
+     *    replaced by the join, so only the root remains
+     *  @param jo the optimizer that instantiates the joins
+     *  @throws ParsingException if the joins do not join all tables
+     *  @return the root of the joins
+     */
+    OpIterator instantiateJoins(Vector<LogicalJoinNode> joins,
+            HashMap<String,OpIterator> subplans, JoinOptimizer jo) throws ParsingException {
+        HashMap<String,String> equivMap = new HashMap<String,String>();
+        Iterator<LogicalJoinNode> joinIt = joins.iterator();
+        while (joinIt.hasNext()) {
+            LogicalJoinNode lj = joinIt.next();
+            OpIterator plan1;
+            OpIterator plan2;
+            boolean isSubqueryJoin = lj instanceof LogicalSubplanJoinNode;
+            String t1name, t2name;
+
+            if (equivMap.get(lj.t1Alias)!=null)
+                t1name = equivMap.get(lj.t1Alias);
+            else
+                t1name = lj.t1Alias;
+
+            if (equivMap.get(lj.t2Alias)!=null)
+                t2name = equivMap.get(lj.t2Alias);
+            else
+                t2name = lj.t2Alias;
+
+            plan1 = subplans.get(t1name);
+
+            if (isSubqueryJoin) {
+                plan2 = ((LogicalSubplanJoinNode)lj).subPlan;
+                if (plan2 == null) 
+                    throw new ParsingException("Invalid subquery.");
+            } else { 
+                plan2 = subplans.get(t2name);
+            }
+        
+            if (plan1 == null)
+                throw new ParsingException("Unknown table in WHERE clause " + lj.t1Alias);
+            if (plan2 == null)
+                throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
+        
+            OpIterator j;
+            j = jo.instantiateJoin(lj,plan1,plan2);
+            subplans.put(t1name, j);
+
+            if (!isSubqueryJoin) {
+                subplans.remove(t2name);
+                equivMap.put(t2name,t1name);  //keep track of the fact that this new node contains both tables
+                    //make sure anything that was equiv to lj.t2 (which we are just removed) is
+                    // marked as equiv to lj.t1 (which we are replacing lj.t2 with.)
+                    for (java.util.Map.Entry<String, String> s: equivMap.entrySet()) {
+                        String val = s.getValue();
+                        if (val.equals(t2name)) {
+                            s.setValue(t1name);
+                        }
+                    }
+                
+                // subplans.put(lj.t2, j);
+            }
+        
+        }
+
+        if (subplans.size() > 1) {
+            throw new ParsingException("Query does not include join expressions joining all nodes!");
+        }
+    
+        return subplans.entrySet().iterator().next().getValue();
+    }
+
     public static void main(String argv[]) {
         // construct a 3-column table schema
         Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
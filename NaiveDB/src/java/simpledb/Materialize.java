@@ -0,0 +1,106 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Materialize is a pipeline breaker that reads all tuples of its child into
+ * memory when it is opened, and then returns them from memory. Rewinding it
+ * does not rescan the child, which makes it a cheap inner input of a nested
+ * loops join, and once it is built its exact cardinality is known before any
+ * tuple has been returned, see {@link AdaptiveJoin}.
+ */
+public class Materialize extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private OpIterator child;
+    private ArrayList<Tuple> tuples = null;
+    private long builtRows = -1;
+    private Iterator<Tuple> it;
+
+    /**
+     * @param child
+     *            the tuples to materialize
+     */
+    public Materialize(OpIterator child) {
+        this.child = child;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    /**
+     * Read all tuples of the child, unless they have been read since this
+     * operator was last closed.
+     */
+    void build() throws DbException, TransactionAbortedException {
+        if (tuples != null) {
+            return;
+        }
+        tuples = new ArrayList<Tuple>();
+        child.open();
+        try {
+            while (child.hasNext()) {
+                tuples.add(child.next());
+            }
+        } finally {
+            child.close();
+        }
+        builtRows = tuples.size();
+    }
+
+    /** @return true if the tuples of the child are in memory */
+    boolean isBuilt() {
+        return tuples != null;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        build();
+        it = tuples.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        tuples = null;
+        it = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it = tuples.iterator();
+    }
+
+    /**
+     * @return the number of tuples of the child, which is known as soon as
+     *         they have been read, even after this operator is closed
+     */
+    @Override
+    public long getActualCardinality() {
+        return builtRows >= 0 ? builtRows : super.getActualCardinality();
+    }
+
+    @Override
+    public boolean hasCompletedPass() {
+        return builtRows >= 0 || super.hasCompletedPass();
+    }
+
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (it != null && it.hasNext()) {
+            return it.next();
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        child = children[0];
+    }
+}
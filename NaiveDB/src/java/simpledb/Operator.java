@@ -16,14 +16,14 @@ public abstract class Operator implements OpIterator {
             throw new IllegalStateException("Operator not yet open");
         
         if (next == null)
-            next = fetchNext();
+            next = fetch();
         return next != null;
     }
 
     public Tuple next() throws DbException, TransactionAbortedException,
             NoSuchElementException {
         if (next == null) {
-            next = fetchNext();
+            next = fetch();
             if (next == null)
                 throw new NoSuchElementException();
         }
@@ -44,6 +44,23 @@ public abstract class Operator implements OpIterator {
     protected abstract Tuple fetchNext() throws DbException,
             TransactionAbortedException;
 
+    /** fetchNext, counting the tuples of each pass over the output */
+    private Tuple fetch() throws DbException, TransactionAbortedException {
+        Tuple t = fetchNext();
+        if (t != null) {
+            if (passDone) {
+                // rewound after the end of the last pass
+                passDone = false;
+                rowsThisPass = 0;
+            }
+            rowsThisPass++;
+        } else if (!passDone) {
+            passDone = true;
+            lastPassRows = rowsThisPass;
+        }
+        return t;
+    }
+
     /**
      * Closes this iterator. If overridden by a subclass, they should call
      * super.close() in order for Operator's internal state to be consistent.
@@ -57,9 +74,17 @@ public abstract class Operator implements OpIterator {
     private Tuple next = null;
     private boolean open = false;
     private int estimatedCardinality = 0;
+    // the tuples returned in the current pass over the output, and in the
+    // last complete one, or -1 if no pass has completed since open
+    private long rowsThisPass = 0;
+    private long lastPassRows = -1;
+    private boolean passDone = false;
 
     public void open() throws DbException, TransactionAbortedException {
         this.open = true;
+        rowsThisPass = 0;
+        lastPassRows = -1;
+        passDone = false;
     }
 
     /**
@@ -104,4 +129,23 @@ public abstract class Operator implements OpIterator {
         this.estimatedCardinality = card;
     }
 
+    /**
+     * @return The number of tuples this operator returned in its last
+     *         complete pass since it was opened, or so far in the current pass
+     *         if no pass has completed. Operators that are rewound, like the
+     *         inner input of a nested loops join, make one pass per rewind.
+     * */
+    public long getActualCardinality() {
+        return lastPassRows >= 0 ? lastPassRows : rowsThisPass;
+    }
+
+    /**
+     * @return true if this operator has returned all of its tuples at least
+     *         once since it was opened, so that
+     *         {@link #getActualCardinality()} is its exact cardinality
+     * */
+    public boolean hasCompletedPass() {
+        return lastPassRows >= 0;
+    }
+
 }
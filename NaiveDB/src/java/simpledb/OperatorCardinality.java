@@ -41,10 +41,8 @@ public class OperatorCardinality {
                     hasJoinPK = updateOperatorCardinality(
                             (Operator) children[0], tableAliasToId, tableStats);
                     childC = ((Operator) children[0]).getEstimatedCardinality();
-                } else if (children[0] instanceof SeqScan) {
-                    childC = tableStats.get(
-                            ((SeqScan) children[0]).getTableName())
-                            .estimateTableCardinality(1.0);
+                } else if (isScan(children[0])) {
+                    childC = scanCardinality(children[0], tableStats);
                 }
             }
             o.setEstimatedCardinality(childC);
@@ -52,6 +50,48 @@ public class OperatorCardinality {
         }
     }
 
+    /**
+     * @return the estimated number of tuples returned by a scan, taking the
+     *         predicates pushed into it, or its index predicate, into account
+     */
+    static int scanCardinality(OpIterator o,
+            Map<String, TableStats> tableStats) {
+        double selectivity = 1.0;
+        TableStats stats;
+        if (o instanceof BTreeScan) {
+            BTreeScan s = (BTreeScan) o;
+            stats = tableStats.get(s.getTableName());
+            selectivity = indexSelectivity(s, stats);
+        } else {
+            SeqScan s = (SeqScan) o;
+            stats = tableStats.get(s.getTableName());
+            for (Predicate p : s.getPredicates()) {
+                selectivity *= stats.estimateSelectivity(p.getField(), p.getOp(),
+                        p.getOperand());
+            }
+        }
+        return stats.estimateTableCardinality(selectivity);
+    }
+
+    /**
+     * @return the estimated fraction of the tuples of its table that an index
+     *         scan returns
+     */
+    static double indexSelectivity(BTreeScan s, TableStats stats) {
+        IndexPredicate ipred = s.getIndexPredicate();
+        if (ipred == null) {
+            return 1.0;
+        }
+        int key = ((BTreeFile) Database.getCatalog().getDatabaseFile(
+                s.getTableId())).keyField();
+        return stats.estimateSelectivity(key, ipred.getOp(), ipred.getField());
+    }
+
+    /** @return true if o is a scan of a base table */
+    static boolean isScan(OpIterator o) {
+        return o instanceof SeqScan || o instanceof BTreeScan;
+    }
+
     private static boolean updateFilterCardinality(Filter f,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
@@ -77,10 +117,9 @@ public class OperatorCardinality {
                 f.setEstimatedCardinality((int) (oChild
                         .getEstimatedCardinality() * selectivity) + 1);
                 return hasJoinPK;
-            } else if (child instanceof SeqScan) {
-                f.setEstimatedCardinality((int) (tableStats.get(
-                        ((SeqScan) child).getTableName())
-                        .estimateTableCardinality(1.0) * selectivity) + 1);
+            } else if (isScan(child)) {
+                f.setEstimatedCardinality((int) (scanCardinality(
+                        child, tableStats) * selectivity) + 1);
                 return false;
             }
         }
@@ -120,9 +159,8 @@ public class OperatorCardinality {
             child1HasJoinPK = pk || child1HasJoinPK;
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (isScan(child1)) {
+            child1Card = scanCardinality(child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -132,9 +170,8 @@ public class OperatorCardinality {
             child2HasJoinPK = pk || child2HasJoinPK;
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (isScan(child2)) {
+            child2Card = scanCardinality(child2, tableStats);
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -177,9 +214,8 @@ public class OperatorCardinality {
             child1HasJoinPK = pk || child1HasJoinPK;
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (isScan(child1)) {
+            child1Card = scanCardinality(child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -189,9 +225,8 @@ public class OperatorCardinality {
             child2HasJoinPK = pk || child2HasJoinPK;
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (isScan(child2)) {
+            child2Card = scanCardinality(child2, tableStats);
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -219,9 +254,8 @@ public class OperatorCardinality {
             return hasJoinPK;
         }
 
-        if (child instanceof SeqScan) {
-            childCard = (int) (tableStats.get(((SeqScan) child).getTableName())
-                    .estimateTableCardinality(1.0));
+        if (isScan(child)) {
+            childCard = scanCardinality(child, tableStats);
         }
 
         String[] tmp = a.groupFieldName().split("[.]");
@@ -7,8 +7,9 @@ package simpledb;
  * Pages may be "dirty", indicating that they have been modified since they
  * were last written out to disk.
  *
- * For recovery purposes, pages MUST have a single constructor of the form:
- *     Page(PageId id, byte[] data)
+ * For recovery purposes, the type of a page MUST be registered with
+ * {@link LogFile#registerPageType}, which tells the log how to rebuild a page
+ * from its id and data.
  */
 public interface Page {
 
@@ -0,0 +1,212 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * PageVersions keeps the committed versions of pages that read-only
+ * transactions may need, so that they read a snapshot of the database
+ * without taking locks (see {@link BufferPool#beginSnapshot}).
+ * <p>
+ * Commits are numbered by a logical clock, and a snapshot reads, for each
+ * page, the last version committed at or before its start. When a writer
+ * locks a page, the committed contents of the page are kept as its first
+ * version, before the writer changes it; each commit adds the contents its
+ * writer left. Versions that no snapshot can read anymore are dropped, and
+ * so is the whole chain of a page once the page itself holds its only
+ * version, so only pages written while snapshots are open use memory.
+ * <p>
+ * A page that several writers change under tuple locks holds the changes of
+ * all of them, so the version a commit adds to it is the last version with
+ * the tuple updates of the committing writer applied, not the page.
+ */
+class PageVersions {
+
+    private static class Version {
+        final long ts;
+        final int pageType;
+        final byte[] data;
+
+        Version(long ts, int pageType, byte[] data) {
+            this.ts = ts;
+            this.pageType = pageType;
+            this.data = data;
+        }
+    }
+
+    // the timestamp of the last commit
+    private long clock = 0;
+    // the open snapshots, with the timestamps they read at
+    private final HashMap<TransactionId, Long> snapshots = new HashMap<TransactionId, Long>();
+    // the committed versions of pages, oldest first
+    private final HashMap<PageId, ArrayList<Version>> chains = new HashMap<PageId, ArrayList<Version>>();
+    // the pages each writer locked, mapped to the tuple updates it made to
+    // them, or to null if it locked the whole page
+    private final HashMap<TransactionId, HashMap<PageId, ArrayList<SlotUpdate>>> written =
+            new HashMap<TransactionId, HashMap<PageId, ArrayList<SlotUpdate>>>();
+
+    /** Start a snapshot for tid, which reads the last committed versions */
+    synchronized void begin(TransactionId tid) {
+        snapshots.put(tid, clock);
+    }
+
+    /** @return true if tid reads a snapshot */
+    synchronized boolean isSnapshot(TransactionId tid) {
+        return snapshots.containsKey(tid);
+    }
+
+    /** End the snapshot of tid, and drop the versions only it could read */
+    synchronized void end(TransactionId tid, BufferPool pool) {
+        if (snapshots.remove(tid) != null) {
+            for (PageId pid : new ArrayList<PageId>(chains.keySet())) {
+                prune(pid, pool);
+            }
+        }
+    }
+
+    /**
+     * Keep the committed contents of a page that a writer just locked, unless
+     * they are kept already. No other writer can have changed the page when
+     * there is no chain for it.
+     *
+     * @param whole
+     *            true if tid locked the whole page, false if it only writes
+     *            tuples of it under tuple locks
+     */
+    synchronized void writeLocked(TransactionId tid, Page page, boolean whole) throws IOException {
+        PageId pid = page.getId();
+        if (!chains.containsKey(pid)) {
+            ArrayList<Version> chain = new ArrayList<Version>();
+            chain.add(new Version(0, LogFile.pageTag(page), page.getPageData()));
+            chains.put(pid, chain);
+        }
+        HashMap<PageId, ArrayList<SlotUpdate>> pages = written.get(tid);
+        if (pages == null) {
+            pages = new HashMap<PageId, ArrayList<SlotUpdate>>();
+            written.put(tid, pages);
+        }
+        if (whole) {
+            pages.put(pid, null);
+        } else if (!pages.containsKey(pid)) {
+            pages.put(pid, new ArrayList<SlotUpdate>());
+        }
+    }
+
+    /** Note an update tid made to tuples of a page under tuple locks */
+    synchronized void tupleChanged(TransactionId tid, PageId pid, SlotUpdate update) {
+        HashMap<PageId, ArrayList<SlotUpdate>> pages = written.get(tid);
+        ArrayList<SlotUpdate> updates = pages == null ? null : pages.get(pid);
+        if (updates != null) {
+            updates.add(update);
+        }
+    }
+
+    /**
+     * Add the contents a committing writer left in its pages as their
+     * versions at the next timestamp.
+     */
+    synchronized void committed(TransactionId tid, BufferPool pool) throws IOException {
+        HashMap<PageId, ArrayList<SlotUpdate>> pages = written.get(tid);
+        if (pages == null) {
+            return;
+        }
+        long ts = clock + 1;
+        for (Map.Entry<PageId, ArrayList<SlotUpdate>> e : pages.entrySet()) {
+            ArrayList<Version> chain = chains.get(e.getKey());
+            if (chain == null) {
+                continue;
+            }
+            Version last = chain.get(chain.size() - 1);
+            Page page;
+            if (e.getValue() == null) {
+                page = pool.recoveryPage(e.getKey());
+            } else if (!e.getValue().isEmpty()) {
+                page = LogFile.pageDecoder(last.pageType).decode(e.getKey(), last.data);
+                for (SlotUpdate update : e.getValue()) {
+                    update.redo((SlottedPage) page);
+                }
+            } else {
+                continue;
+            }
+            byte[] data = page.getPageData();
+            if (!Arrays.equals(last.data, data)) {
+                chain.add(new Version(ts, LogFile.pageTag(page), data));
+            }
+        }
+        clock = ts;
+    }
+
+    /**
+     * Forget the pages a writer locked, once it committed or aborted.
+     *
+     * @return the pages, to prune them after the writer released them
+     */
+    synchronized Set<PageId> forget(TransactionId tid) {
+        HashMap<PageId, ArrayList<SlotUpdate>> pages = written.remove(tid);
+        return pages == null ? Collections.<PageId>emptySet() : pages.keySet();
+    }
+
+    /**
+     * @param current
+     *            the page as it is in the buffer pool
+     * @return a private copy of the version of the page that the snapshot of
+     *         tid reads
+     */
+    synchronized Page read(TransactionId tid, Page current) throws IOException {
+        long snapshot = snapshots.get(tid);
+        ArrayList<Version> chain = chains.get(current.getId());
+        int pageType;
+        byte[] data;
+        if (chain == null) {
+            pageType = LogFile.pageTag(current);
+            data = current.getPageData();
+        } else {
+            Version visible = chain.get(0);
+            for (Version v : chain) {
+                if (v.ts <= snapshot) {
+                    visible = v;
+                }
+            }
+            pageType = visible.pageType;
+            data = visible.data;
+        }
+        return LogFile.pageDecoder(pageType).decode(current.getId(), data);
+    }
+
+    /**
+     * Drop the versions of a page that no snapshot reads, and the chain of
+     * the page if the cached page holds its last version and no writer has
+     * it locked.
+     */
+    synchronized void prune(PageId pid, BufferPool pool) {
+        ArrayList<Version> chain = chains.get(pid);
+        if (chain == null) {
+            return;
+        }
+        long oldest = clock;
+        for (long ts : snapshots.values()) {
+            oldest = Math.min(oldest, ts);
+        }
+        // the last version at or before the oldest snapshot is the oldest
+        // one that is read
+        int keep = 0;
+        for (int i = 0; i < chain.size(); i++) {
+            if (chain.get(i).ts <= oldest) {
+                keep = i;
+            }
+        }
+        chain.subList(0, keep).clear();
+
+        if (chain.size() == 1 && !pool.isWriteLocked(pid)) {
+            Page cached = pool.cachedPage(pid);
+            if (cached != null && Arrays.equals(cached.getPageData(), chain.get(0).data)) {
+                chains.remove(pid);
+            }
+        }
+    }
+
+    /** @return the number of pages with kept versions */
+    synchronized int numChains() {
+        return chains.size();
+    }
+}
@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -11,6 +13,9 @@ import jline.SimpleCompletor;
 
 public class Parser {
     static boolean explain = false;
+    // if positive, queries re-order their joins when the size of a filtered
+    // table is off by more than this factor, see AdaptiveJoin
+    static double adaptiveThreshold = 0;
 
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
@@ -225,6 +230,12 @@ public class Parser {
                 aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
                 aggFun = si.getAggregate();
+                // Zql hands COUNT(DISTINCT x) over as COUNT with the operand "distinct x"
+                if (aggFun.equalsIgnoreCase("count")
+                        && aggField.toLowerCase().startsWith("distinct ")) {
+                    aggField = aggField.substring("distinct ".length()).trim();
+                    aggFun = Aggregator.Op.COUNT_DISTINCT.toString();
+                }
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
@@ -273,12 +284,29 @@ public class Parser {
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
 
+    private final QueryPlanCache planCache = new QueryPlanCache();
+
+    /** @return the cache of the plans of the SELECT statements this parser ran */
+    public QueryPlanCache getPlanCache() {
+        return planCache;
+    }
+
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
+        return handleQueryStatement(parseQueryLogicalPlan(tId, s), tId);
+    }
+
+    /**
+     * Create the query that runs a logical plan, e.g. one from the
+     * {@link QueryPlanCache}.
+     */
+    public Query handleQueryStatement(LogicalPlan lp, TransactionId tId)
+            throws TransactionAbortedException, DbException, IOException,
+            simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
-        LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        lp.setAdaptiveThreshold(adaptiveThreshold);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -419,14 +447,31 @@ public class Parser {
             processExpression(tid, (ZExpression) s.getWhere(), lp);
         lp.addProjectField("null.*", null);
 
-        OpIterator op = new Delete(tid, lp.physicalPlan(tid,
-                TableStats.getStatsMap(), false));
+        OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        lockScannedTuples(plan);
+        OpIterator op = new Delete(tid, plan);
         sdbq.setPhysicalPlan(op);
 
         return sdbq;
 
     }
 
+    /**
+     * Make the scans of plan lock the tuples they return instead of their
+     * pages, since the statement will change them.
+     */
+    private static void lockScannedTuples(OpIterator plan) {
+        if (plan instanceof SeqScan) {
+            ((SeqScan) plan).setTupleLocking(true);
+        } else if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                if (child != null) {
+                    lockScannedTuples(child);
+                }
+            }
+        }
+    }
+
     public void handleTransactStatement(ZTransactStmt s)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
@@ -492,9 +537,104 @@ public class Parser {
         return curtrans;
     }
 
+    private final HashMap<String, PreparedStatement> preparedStatements = new HashMap<String, PreparedStatement>();
+
+    /**
+     * Prepare a SELECT statement with <tt>?</tt> placeholders, to be executed
+     * many times with different constants, see {@link PreparedStatement}.
+     */
+    public PreparedStatement prepare(String sql) throws simpledb.ParsingException {
+        return new PreparedStatement(sql, this, explain);
+    }
+
+    private static final Pattern PREPARE = Pattern.compile(
+            "\\s*prepare\\s+(\\w+)\\s+as\\s+(.*)",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern EXECUTE = Pattern.compile(
+            "\\s*execute\\s+(\\w+)\\s*(?:\\((.*)\\))?\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern DEALLOCATE = Pattern.compile(
+            "\\s*deallocate\\s+(\\w+)\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Handle the shell commands for prepared statements:
+     * <tt>PREPARE name AS SELECT ...;</tt> prepares a statement with
+     * <tt>?</tt> placeholders, <tt>EXECUTE name (value, ...);</tt> runs it
+     * with the values bound to the placeholders, and
+     * <tt>DEALLOCATE name;</tt> drops it.
+     *
+     * @return true if s was one of these commands
+     */
+    private boolean handlePreparedStatementCommand(String s) {
+        Matcher m = PREPARE.matcher(s);
+        if (m.matches()) {
+            try {
+                preparedStatements.put(m.group(1), prepare(m.group(2)));
+                System.out.println("Prepared " + m.group(1) + ".");
+            } catch (simpledb.ParsingException e) {
+                System.out.println("Invalid SQL expression: \n \t" + e.getMessage());
+            }
+            return true;
+        }
+        m = DEALLOCATE.matcher(s);
+        if (m.matches()) {
+            if (preparedStatements.remove(m.group(1)) == null) {
+                System.out.println("No prepared statement " + m.group(1));
+            }
+            return true;
+        }
+        m = EXECUTE.matcher(s);
+        if (!m.matches()) {
+            return false;
+        }
+        PreparedStatement ps = preparedStatements.get(m.group(1));
+        if (ps == null) {
+            System.out.println("No prepared statement " + m.group(1));
+            return true;
+        }
+        // the values are constants separated by commas
+        StringBuilder text = new StringBuilder();
+        ArrayList<String> values = new ArrayList<String>();
+        String args = m.group(2) == null ? "" : m.group(2);
+        if (!QueryPlanCache.scan(args, text, values, false) || values.contains(null)
+                || !text.toString().matches("\\s*(\\?\\s*(,\\s*\\?\\s*)*)?")) {
+            System.out.println("Invalid parameter list: " + args);
+            return true;
+        }
+        if (values.size() != ps.getParameterCount()) {
+            System.out.println(m.group(1) + " has " + ps.getParameterCount()
+                    + " parameters, got " + values.size());
+            return true;
+        }
+        try {
+            for (int i = 0; i < values.size(); i++) {
+                ps.setParameter(i + 1, values.get(i));
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return true;
+        }
+        processNextStatement(null, null, null, null, ps);
+        return true;
+    }
+
+    /**
+     * Run a statement. A SELECT statement whose normalized text is in the
+     * {@link QueryPlanCache} reuses the cached plan instead of being parsed
+     * and optimized again. Also handles the PREPARE, EXECUTE and DEALLOCATE
+     * commands for prepared statements.
+     */
     public void processNextStatement(String s) {
+        if (handlePreparedStatementCommand(s)) {
+            return;
+        }
+        ArrayList<String> constants = new ArrayList<String>();
+        String key = QueryPlanCache.normalize(s, constants);
+        LogicalPlan cached = key == null ? null : planCache.get(key, constants);
         try {
-            processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")));
+            processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")),
+                    key, constants, cached, null);
         } catch (UnsupportedEncodingException e) {
             e.printStackTrace();
             throw new RuntimeException(e);
@@ -502,9 +642,28 @@ public class Parser {
     }
 
     public void processNextStatement(InputStream is) {
+        processNextStatement(is, null, null, null, null);
+    }
+
+    /**
+     * @param key
+     *            the normalized statement, or null if its plan should not be
+     *            cached
+     * @param constants
+     *            the constants of the statement
+     * @param cached
+     *            the cached plan of the statement, or null to parse it
+     * @param prepared
+     *            the prepared statement to execute instead, or null
+     */
+    private void processNextStatement(InputStream is, String key,
+            List<String> constants, LogicalPlan cached, PreparedStatement prepared) {
         try {
-            ZqlParser p = new ZqlParser(is);
-            ZStatement s = p.readStatement();
+            ZStatement s = null;
+            if (cached == null && prepared == null) {
+                ZqlParser p = new ZqlParser(is);
+                s = p.readStatement();
+            }
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -517,16 +676,22 @@ public class Parser {
                             + curtrans.getId().getId());
                 }
                 try {
-                    if (s instanceof ZInsert)
+                    if (prepared != null)
+                        query = prepared.execute(curtrans.getId());
+                    else if (cached != null)
+                        query = handleQueryStatement(cached, curtrans.getId());
+                    else if (s instanceof ZInsert)
                         query = handleInsertStatement((ZInsert) s,
                                 curtrans.getId());
                     else if (s instanceof ZDelete)
                         query = handleDeleteStatement((ZDelete) s,
                                 curtrans.getId());
-                    else if (s instanceof ZQuery)
+                    else if (s instanceof ZQuery) {
                         query = handleQueryStatement((ZQuery) s,
                                 curtrans.getId());
-                    else {
+                        if (key != null)
+                            planCache.put(key, constants, query.getLogicalPlan());
+                    } else {
                         System.out
                                 .println("Can't parse "
                                         + s
@@ -581,11 +746,11 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "prepare", "execute", "deallocate" };
 
     public static void main(String argv[]) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 6) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -595,7 +760,7 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile] [-sample fraction] [-adaptive factor]";
     static final int SLEEP_TIME = 1000;
 
     protected void shutdown() {
@@ -607,9 +772,9 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
 
         String queryFile = null;
+        double sampleFraction = 1.0;
 
         if (argv.length > 1) {
             for (int i = 1; i < argv.length; i++) {
@@ -625,12 +790,32 @@ public class Parser {
                     }
                     queryFile = argv[i];
 
+                } else if (argv[i].equals("-sample")) {
+                    if (++i == argv.length) {
+                        System.out.println("Expected fraction after -sample\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    sampleFraction = Double.parseDouble(argv[i]);
+                    System.out.println("Building statistics from "
+                            + sampleFraction + " of the pages.");
+                } else if (argv[i].equals("-adaptive")) {
+                    if (++i == argv.length) {
+                        System.out.println("Expected factor after -adaptive\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    adaptiveThreshold = Double.parseDouble(argv[i]);
+                    System.out.println("Re-ordering joins when a table is "
+                            + adaptiveThreshold + " times larger or smaller than estimated.");
                 } else {
                     System.out.println("Unknown argument " + argv[i] + "\n "
                             + usage);
                 }
             }
         }
+        TableStats.loadStatistics(TableStats.statsFileFor(argv[0]), sampleFraction);
+
         if (!interactive) {
             try {
                 // curtrans = new Transaction();
@@ -674,7 +859,6 @@ public class Parser {
                     buffer.append(line.substring(0, split + 1));
                     String cmd = buffer.toString().trim();
                     cmd = cmd.substring(0, cmd.length() - 1).trim() + ";";
-                    byte[] statementBytes = cmd.getBytes("UTF-8");
                     if (cmd.equalsIgnoreCase("quit;")
                             || cmd.equalsIgnoreCase("exit;")) {
                         shutdown();
@@ -683,8 +867,7 @@ public class Parser {
                     }
 
                     long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
+                    processNextStatement(cmd);
                     long time = System.currentTimeMillis() - startTime;
                     System.out.printf("----------------\n%.2f seconds\n\n",
                             ((double) time / 1000.0));
@@ -1,15 +1,54 @@
 package simpledb;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Set;
 import java.util.Vector;
 
 /** A PlanCache is a helper class that can be used to store the best
- * way to order a given set of joins */
+ * way to order a given set of joins.
+ * <p>
+ * Besides the map from sets of joins to plans, a PlanCache created for n
+ * joins has a dense cache indexed by bitmask, where bit i stands for the
+ * i-th join. It keeps only the root join of the best plan of every mask and
+ * how the other joins are split between its two inputs; the inputs are the
+ * best plans of those submasks, so {@link #getOrder(int)} rebuilds the
+ * (possibly bushy) plan by walking down through the masks. */
 public class PlanCache {
     HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>> bestOrders= new HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>>();
     HashMap<Set<LogicalJoinNode>,Double> bestCosts= new HashMap<Set<LogicalJoinNode>,Double>();
     HashMap<Set<LogicalJoinNode>,Integer> bestCardinalities = new HashMap<Set<LogicalJoinNode>,Integer>();
-    
+
+    // dense cache, indexed by bitmask of joins; lastIndex[mask] is -1 if
+    // there is no plan for mask. leftMask[mask] holds the joins of one input
+    // of the root join, the other input has the rest
+    private final double[] maskCosts;
+    private final int[] maskCardinalities;
+    private final int[] lastIndex;
+    private final LogicalJoinNode[] lastJoin;
+    private final int[] leftMask;
+
+    /** Create a PlanCache without a dense cache */
+    public PlanCache() {
+        this(0);
+    }
+
+    /** Create a PlanCache with a dense cache for the subsets of numJoins joins
+        @param numJoins the number of joins, at most 30
+    */
+    public PlanCache(int numJoins) {
+        if (numJoins > 30) {
+            throw new IllegalArgumentException("too many joins for a dense plan cache: " + numJoins);
+        }
+        int size = numJoins == 0 ? 0 : 1 << numJoins;
+        maskCosts = new double[size];
+        maskCardinalities = new int[size];
+        lastIndex = new int[size];
+        lastJoin = new LogicalJoinNode[size];
+        leftMask = new int[size];
+        Arrays.fill(lastIndex, -1);
+    }
+
     /** Add a new cost, cardinality and ordering for a particular join set.  Does not verify that the
         new cost is less than any previously added cost -- simply adds or replaces an existing plan for the
         specified join set
@@ -19,32 +58,112 @@ public class PlanCache {
         @param order the ordering of the joins in the plan
     */
     void addPlan(Set<LogicalJoinNode> s, double cost, int card, Vector<LogicalJoinNode> order) {
-        bestOrders.put(s,order);                        
+        bestOrders.put(s,order);
         bestCosts.put(s,cost);
         bestCardinalities.put(s,card);
     }
-    
-    /** Find the best join order in the cache for the specified plan 
+
+    /** Find the best join order in the cache for the specified plan
         @param s the set of joins to look up the best order for
         @return the best order for s in the cache
     */
     Vector<LogicalJoinNode> getOrder(Set<LogicalJoinNode> s) {
         return bestOrders.get(s);
     }
-    
-    /** Find the cost of the best join order in the cache for the specified plan 
+
+    /** Find the cost of the best join order in the cache for the specified plan
         @param s the set of joins to look up the best cost for
         @return the cost of the best order for s in the cache
     */
     double getCost(Set<LogicalJoinNode> s) {
         return bestCosts.get(s);
     }
-    
-    /** Find the cardinality of the best join order in the cache for the specified plan 
+
+    /** Find the cardinality of the best join order in the cache for the specified plan
         @param s the set of joins to look up the best cardinality for
         @return the cardinality of the best order for s in the cache
     */
     int getCard(Set<LogicalJoinNode> s) {
         return bestCardinalities.get(s);
     }
+
+    /** Add or replace the left-deep plan of the joins in mask
+        @param mask the bitmask of the joins of the plan
+        @param last the index of the join that the plan performs last
+        @param join that join, possibly with inner and outer swapped
+        @param cost the estimated cost of the plan
+        @param card the estimated cardinality of the plan
+    */
+    void addPlan(int mask, int last, LogicalJoinNode join, double cost, int card) {
+        addPlan(mask, last, join, mask & ~(1 << last), cost, card);
+    }
+
+    /** Add or replace the plan of the joins in mask
+        @param mask the bitmask of the joins of the plan
+        @param last the index of the join that the plan performs last
+        @param join that join, possibly with inner and outer swapped
+        @param left the bitmask of the joins of one input of join, the
+            other input has the other joins of mask
+        @param cost the estimated cost of the plan
+        @param card the estimated cardinality of the plan
+    */
+    void addPlan(int mask, int last, LogicalJoinNode join, int left, double cost, int card) {
+        maskCosts[mask] = cost;
+        maskCardinalities[mask] = card;
+        lastIndex[mask] = last;
+        lastJoin[mask] = join;
+        leftMask[mask] = left;
+    }
+
+    /** @return true if there is a plan for the joins in mask */
+    boolean hasPlan(int mask) {
+        return lastIndex[mask] >= 0;
+    }
+
+    /** @return the cost of the best plan for the joins in mask */
+    double getCost(int mask) {
+        return maskCosts[mask];
+    }
+
+    /** @return the cardinality of the best plan for the joins in mask */
+    int getCard(int mask) {
+        return maskCardinalities[mask];
+    }
+
+    /** @return the best order of the joins in mask, or null if there is no
+        plan for it. Every join comes after the joins of both of its inputs.
+    */
+    Vector<LogicalJoinNode> getOrder(int mask) {
+        if (!hasPlan(mask)) {
+            return null;
+        }
+        Vector<LogicalJoinNode> order = new Vector<LogicalJoinNode>();
+        appendOrder(mask, order);
+        return order;
+    }
+
+    private void appendOrder(int mask, Vector<LogicalJoinNode> order) {
+        if (mask == 0) {
+            return;
+        }
+        int rest = mask & ~(1 << lastIndex[mask]);
+        appendOrder(leftMask[mask], order);
+        appendOrder(rest & ~leftMask[mask], order);
+        order.add(lastJoin[mask]);
+    }
+
+    /** Add the best plan of mask and of each of its subplans to the map
+        from sets of joins to plans, e.g. to display them
+        @param mask the bitmask of the joins of the plan
+    */
+    void addSubplans(int mask) {
+        if (mask == 0) {
+            return;
+        }
+        Vector<LogicalJoinNode> order = getOrder(mask);
+        addPlan(new HashSet<LogicalJoinNode>(order), maskCosts[mask], maskCardinalities[mask], order);
+        int rest = mask & ~(1 << lastIndex[mask]);
+        addSubplans(leftMask[mask]);
+        addSubplans(rest & ~leftMask[mask]);
+    }
 }
@@ -91,6 +91,22 @@ public class Predicate implements Serializable {
         // some code goes here
         return operand;
     }
+
+    /**
+     * Replace the operand, e.g. to bind a parameter of a prepared statement.
+     * Takes effect the next time the plan containing this predicate is
+     * opened.
+     *
+     * @param operand
+     *            field value to compare passed in tuples to, of the same
+     *            type as the previous operand
+     */
+    public void setOperand(Field operand) {
+        if (operand.getType() != this.operand.getType()) {
+            throw new IllegalArgumentException("operand must be of type " + this.operand.getType());
+        }
+        this.operand = operand;
+    }
     
     /**
      * Compares the field number of t specified in the constructor to the
@@ -107,6 +123,50 @@ public class Predicate implements Serializable {
         return t.getField(filed).compare(op, operand);
     }
 
+    /**
+     * Like {@link #filter(Tuple)}, but compares the field as it is stored in
+     * serialized form (see {@link Field#serialize}) without building a Tuple
+     * or, for integer fields, a Field.
+     *
+     * @param data
+     *            the serialized data
+     * @param offset
+     *            the offset of the field to compare in data
+     * @param type
+     *            the type of the field to compare
+     * @return true if the comparison is true, false otherwise.
+     */
+    public boolean filter(byte[] data, int offset, Type type) {
+        if (type == Type.INT_TYPE) {
+            int value = ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                    | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+            int other = ((IntField) operand).getValue();
+            switch (op) {
+                case EQUALS:
+                case LIKE:
+                    return value == other;
+                case NOT_EQUALS:
+                    return value != other;
+                case GREATER_THAN:
+                    return value > other;
+                case GREATER_THAN_OR_EQ:
+                    return value >= other;
+                case LESS_THAN:
+                    return value < other;
+                case LESS_THAN_OR_EQ:
+                    return value <= other;
+                default:
+                    return false;
+            }
+        }
+
+        // strings are stored as a 4 byte length followed by the bytes
+        int len = ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+        String value = new String(data, offset + 4, len);
+        return new StringField(value, Type.STRING_LEN).compare(op, operand);
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string"
@@ -0,0 +1,206 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * A PreparedStatement is a SELECT statement that is parsed and optimized
+ * once and can then be executed many times with different constants.
+ * <p>
+ * The statement may contain <tt>?</tt> placeholders wherever a filter in
+ * the WHERE clause compares a field with a constant, e.g.
+ * <tt>SELECT * FROM emp WHERE emp.dept = ? AND emp.salary &gt; ?</tt>.
+ * Parameters are numbered from 1 in the order the placeholders appear. The
+ * physical plan is built when the statement is prepared; setting a parameter
+ * binds the value into the {@link Predicate} of its filter, and
+ * {@link #execute} re-opens the same plan as a part of the given
+ * transaction. The join order and the access paths are chosen for the
+ * placeholders' default values (0, or the string "0"), since the actual
+ * constants are not known yet; an index scan is re-targeted to the bound
+ * value of its predicate on every execution.
+ * <p>
+ * A PreparedStatement can run one execution at a time.
+ */
+public class PreparedStatement {
+
+    private final String sql;
+    private final OpIterator plan;
+    // the predicate each parameter is bound into
+    private final Predicate[] parameters;
+    private final boolean[] bound;
+    // the index scans of the plan, by the predicate each of them evaluates
+    private final IdentityHashMap<Predicate, BTreeScan> indexScans;
+
+    /**
+     * Prepare a SELECT statement.
+     *
+     * @param sql
+     *            the statement, with <tt>?</tt> placeholders
+     * @param parser
+     *            the parser to parse the statement with
+     * @param explain
+     *            whether the optimizer should explain the plan
+     * @throws ParsingException
+     *             if the statement is not a valid SELECT statement, or a
+     *             placeholder is not the constant of a filter
+     */
+    public PreparedStatement(String sql, Parser parser, boolean explain) throws ParsingException {
+        this.sql = sql;
+        StringBuilder text = new StringBuilder(sql.length());
+        ArrayList<String> constants = new ArrayList<String>();
+        if (!QueryPlanCache.scan(sql, text, constants, true)) {
+            throw new ParsingException("Unterminated string in " + sql);
+        }
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = parser.generateLogicalPlan(tid, text.toString());
+        if (lp.hasSubqueries()) {
+            throw new ParsingException("Subqueries are not supported in prepared statements");
+        }
+        Vector<LogicalFilterNode> filters = lp.getFilters();
+        if (filters.size() != constants.size()) {
+            throw new ParsingException("Constants and placeholders are only supported in filters of prepared statements");
+        }
+        plan = lp.physicalPlan(tid, TableStats.getStatsMap(), explain);
+        indexScans = lp.getIndexScans();
+
+        Vector<Predicate> predicates = lp.getFilterPredicates();
+        ArrayList<Predicate> params = new ArrayList<Predicate>();
+        for (int i = 0; i < constants.size(); i++) {
+            if (constants.get(i) == null) {
+                params.add(predicates.get(i));
+            }
+        }
+        parameters = params.toArray(new Predicate[params.size()]);
+        bound = new boolean[parameters.length];
+    }
+
+    /** @return the text of the statement */
+    public String getSql() {
+        return sql;
+    }
+
+    /** @return the number of placeholders of the statement */
+    public int getParameterCount() {
+        return parameters.length;
+    }
+
+    /**
+     * @param index
+     *            the number of the parameter, from 1
+     * @return the type of the field the parameter is compared with
+     */
+    public Type getParameterType(int index) {
+        return parameter(index).getOperand().getType();
+    }
+
+    private Predicate parameter(int index) {
+        if (index < 1 || index > parameters.length) {
+            throw new IllegalArgumentException("No parameter " + index + ", the statement has "
+                    + parameters.length);
+        }
+        return parameters[index - 1];
+    }
+
+    /**
+     * Bind a value to a parameter compared with an integer field.
+     *
+     * @param index
+     *            the number of the parameter, from 1
+     * @throws IllegalArgumentException
+     *             if the parameter is compared with a string field
+     */
+    public void setInt(int index, int value) {
+        setParameter(index, new IntField(value));
+    }
+
+    /**
+     * Bind a value to a parameter compared with a string field.
+     *
+     * @param index
+     *            the number of the parameter, from 1
+     * @throws IllegalArgumentException
+     *             if the parameter is compared with an integer field
+     */
+    public void setString(int index, String value) {
+        setParameter(index, new StringField(value, Type.STRING_LEN));
+    }
+
+    /**
+     * Bind a value given as text, e.g. typed into the shell, to a parameter,
+     * converting it to the type of the parameter.
+     *
+     * @param index
+     *            the number of the parameter, from 1
+     * @throws IllegalArgumentException
+     *             if the value is not a valid integer for an integer
+     *             parameter
+     */
+    public void setParameter(int index, String value) {
+        if (getParameterType(index) == Type.INT_TYPE) {
+            try {
+                setInt(index, Integer.parseInt(value));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Parameter " + index + " must be an integer, not "
+                        + value);
+            }
+        } else {
+            setString(index, value);
+        }
+    }
+
+    private void setParameter(int index, Field value) {
+        Predicate p = parameter(index);
+        if (value.getType() != p.getOperand().getType()) {
+            throw new IllegalArgumentException("Parameter " + index + " is of type "
+                    + p.getOperand().getType());
+        }
+        p.setOperand(value);
+        bound[index - 1] = true;
+    }
+
+    /** Unbind all parameters */
+    public void clearParameters() {
+        java.util.Arrays.fill(bound, false);
+    }
+
+    /**
+     * Create a query that runs the prepared plan with the bound parameters
+     * as a part of transaction tid. The query must be closed before the
+     * statement is executed again.
+     *
+     * @throws DbException
+     *             if a parameter has not been bound
+     */
+    public Query execute(TransactionId tid) throws DbException {
+        for (int i = 0; i < bound.length; i++) {
+            if (!bound[i]) {
+                throw new DbException("Parameter " + (i + 1) + " has not been bound");
+            }
+        }
+        setTransactionId(plan, tid);
+        for (Map.Entry<Predicate, BTreeScan> e : indexScans.entrySet()) {
+            Predicate p = e.getKey();
+            e.getValue().setIndexPredicate(new IndexPredicate(p.getOp(), p.getOperand()));
+        }
+        return new Query(plan, tid);
+    }
+
+    private static void setTransactionId(OpIterator o, TransactionId tid) {
+        if (o instanceof SeqScan) {
+            ((SeqScan) o).setTransactionId(tid);
+        } else if (o instanceof BTreeScan) {
+            ((BTreeScan) o).setTransactionId(tid);
+        } else if (o instanceof AggregateView.Scan) {
+            ((AggregateView.Scan) o).setTransactionId(tid);
+        } else if (o instanceof Operator) {
+            for (OpIterator child : ((Operator) o).getChildren()) {
+                if (child != null) {
+                    setTransactionId(child, tid);
+                }
+            }
+        }
+    }
+}
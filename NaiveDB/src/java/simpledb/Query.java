@@ -86,8 +86,11 @@ public class Query implements Serializable {
         return op.next();
     }
 
-    /** Close the iterator */
+    /** Close the iterator, feeding the cardinalities it observed back into
+     * the statistics of its tables, see {@link CardinalityFeedback} */
     public void close() throws IOException {
+        if (started)
+            CardinalityFeedback.record(op);
         op.close();
         started = false;
     }
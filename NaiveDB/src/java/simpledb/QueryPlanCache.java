@@ -0,0 +1,254 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * QueryPlanCache keeps the optimized plans of recently run SELECT statements,
+ * so that a repeated query skips parsing and join ordering.
+ * <p>
+ * Plans are keyed by the normalized text of the query (see
+ * {@link #normalize}), in which every numeric and string constant is
+ * replaced by <tt>?</tt>, so queries that differ only in their constants
+ * share a plan. A cached plan is a template: the {@link LogicalPlan} with
+ * the join order the optimizer chose for the first query. A hit binds the
+ * new constants into its filters and instantiates the operators for the
+ * current transaction, which is cheap compared to parsing and optimizing.
+ * <p>
+ * The cache holds at most a fixed number of plans and evicts the least
+ * recently used one. All plans are dropped when a table is added to or
+ * removed from the catalog, or when the statistics of a table are replaced,
+ * since the chosen join orders may no longer be the best.
+ */
+public class QueryPlanCache {
+
+    /** The number of plans a cache created without a capacity holds */
+    public static final int DEFAULT_CAPACITY = 128;
+
+    private final LinkedHashMap<String, LogicalPlan> plans;
+
+    // the catalog and statistics the cached plans were made with
+    private Catalog catalog;
+    private long catalogVersion;
+    private long statsVersion;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    public QueryPlanCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the maximum number of cached plans
+     */
+    public QueryPlanCache(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        plans = new LinkedHashMap<String, LogicalPlan>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, LogicalPlan> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Normalize the text of a statement: collapse whitespace, drop the
+     * trailing semicolon, and replace every numeric and quoted string
+     * constant by <tt>?</tt>.
+     *
+     * @param sql
+     *            the statement
+     * @param constants
+     *            the constants of the statement are appended to this list, in
+     *            the order they appear, strings without their quotes
+     * @return the normalized statement, or null if it is not a SELECT
+     *         statement or cannot be normalized
+     */
+    public static String normalize(String sql, List<String> constants) {
+        StringBuilder key = new StringBuilder(sql.length());
+        int first = constants.size();
+        if (!scan(sql, key, constants, false) || constants.subList(first, constants.size()).contains(null)) {
+            // unterminated string, or a placeholder that would be
+            // indistinguishable from a constant
+            return null;
+        }
+        int end = key.length();
+        while (end > 0 && (key.charAt(end - 1) == ';' || key.charAt(end - 1) == ' ')) {
+            end--;
+        }
+        key.setLength(end);
+        if (!key.toString().toLowerCase().startsWith("select ")) {
+            return null;
+        }
+        return key.toString();
+    }
+
+    /**
+     * Scan the constants of a statement: numbers that are not part of an
+     * identifier, and quoted strings, in which '' stands for a quote. A
+     * <tt>?</tt> outside of a string is a placeholder for a constant.
+     *
+     * @param sql
+     *            the statement
+     * @param text
+     *            the statement is appended to this, with whitespace collapsed
+     *            and, if keepConstants is false, every constant and
+     *            placeholder replaced by <tt>?</tt>; if keepConstants is
+     *            true, constants are kept and placeholders replaced by
+     *            <tt>0</tt>, so that the text can be parsed
+     * @param constants
+     *            the constants are appended to this list in the order they
+     *            appear, strings without their quotes, placeholders as null
+     * @return false if a string is not terminated
+     */
+    static boolean scan(String sql, StringBuilder text, List<String> constants,
+            boolean keepConstants) {
+        int n = sql.length();
+        int i = 0;
+        while (i < n) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                while (i < n && Character.isWhitespace(sql.charAt(i))) {
+                    i++;
+                }
+                if (text.length() > 0) {
+                    text.append(' ');
+                }
+            } else if (c == '\'') {
+                StringBuilder value = new StringBuilder();
+                int start = i++;
+                while (true) {
+                    if (i >= n) {
+                        return false;
+                    }
+                    char d = sql.charAt(i++);
+                    if (d == '\'') {
+                        if (i < n && sql.charAt(i) == '\'') {
+                            value.append('\'');
+                            i++;
+                        } else {
+                            break;
+                        }
+                    } else {
+                        value.append(d);
+                    }
+                }
+                constants.add(value.toString());
+                text.append(keepConstants ? sql.substring(start, i) : "?");
+            } else if (Character.isDigit(c) && !isIdentifierChar(text)) {
+                int start = i;
+                while (i < n && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                constants.add(sql.substring(start, i));
+                text.append(keepConstants ? sql.substring(start, i) : "?");
+            } else if (c == '?') {
+                constants.add(null);
+                text.append(keepConstants ? "0" : "?");
+                i++;
+            } else {
+                text.append(c);
+                i++;
+            }
+        }
+        return true;
+    }
+
+    /** @return true if the last character of text continues an identifier */
+    private static boolean isIdentifierChar(StringBuilder text) {
+        if (text.length() == 0) {
+            return false;
+        }
+        char c = text.charAt(text.length() - 1);
+        return Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '$';
+    }
+
+    /**
+     * Look up the plan of a normalized query and bind constants into it.
+     *
+     * @param key
+     *            the normalized query, see {@link #normalize}
+     * @param constants
+     *            the constants of the query
+     * @return a plan of the query that keeps the cached join order, or null
+     *         if there is none
+     */
+    public synchronized LogicalPlan get(String key, List<String> constants) {
+        invalidateIfStale();
+        LogicalPlan template = plans.get(key);
+        if (template == null || template.getFilters().size() != constants.size()) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return template.withConstants(constants);
+    }
+
+    /**
+     * Cache the plan of a query, after {@link LogicalPlan#physicalPlan} has
+     * ordered its joins. The plan is not cached if it joins with a subquery,
+     * whose plan is already instantiated, or if its filters do not compare
+     * against exactly the constants of the query, in order, e.g. because
+     * some constant is not in a filter.
+     *
+     * @param key
+     *            the normalized query, see {@link #normalize}
+     * @param constants
+     *            the constants of the query
+     * @param lp
+     *            the plan of the query
+     * @return true if the plan was cached
+     */
+    public synchronized boolean put(String key, List<String> constants, LogicalPlan lp) {
+        if (lp.hasSubqueries() || lp.getFilters().size() != constants.size()) {
+            return false;
+        }
+        for (int i = 0; i < constants.size(); i++) {
+            if (!constants.get(i).equals(lp.getFilters().get(i).c)) {
+                return false;
+            }
+        }
+        invalidateIfStale();
+        plans.put(key, lp.withConstants(new ArrayList<String>(constants)));
+        return true;
+    }
+
+    /** Drop all plans if the catalog or the statistics have changed */
+    private void invalidateIfStale() {
+        Catalog current = Database.getCatalog();
+        if (catalog != current || catalogVersion != current.getVersion()
+                || statsVersion != TableStats.getVersion()) {
+            plans.clear();
+            catalog = current;
+            catalogVersion = current.getVersion();
+            statsVersion = TableStats.getVersion();
+        }
+    }
+
+    /** Drop all plans */
+    public synchronized void clear() {
+        plans.clear();
+    }
+
+    /** @return the number of cached plans */
+    public synchronized int size() {
+        invalidateIfStale();
+        return plans.size();
+    }
+
+    /** @return the number of lookups that found a plan */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** @return the number of lookups that did not find a plan */
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
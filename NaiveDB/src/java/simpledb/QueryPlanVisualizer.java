@@ -13,7 +13,10 @@ public class QueryPlanVisualizer {
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
+    static final String INDEX_SCAN = "index scan";
     static final String ORDERBY = "o";
+    static final String MATERIALIZE = "materialize";
+    static final String ADAPTIVE = "adaptive";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
 
@@ -65,17 +68,40 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
-//            TupleDesc td = s.getTupleDesc();
+        if (queryPlan instanceof SeqScan || queryPlan instanceof BTreeScan) {
+            String tableName;
+            String alias;
+            StringBuilder preds = new StringBuilder();
+            String scan = SCAN;
+            if (queryPlan instanceof SeqScan) {
+                SeqScan s = (SeqScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                TupleDesc td = s.getTupleDesc();
+                for (Predicate p : s.getPredicates()) {
+                    preds.append(preds.length() == 0 ? ", " : " AND ")
+                            .append(td.getFieldName(p.getField())).append(p.getOp())
+                            .append(p.getOperand());
+                }
+            } else {
+                BTreeScan s = (BTreeScan) queryPlan;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+                scan = INDEX_SCAN;
+                IndexPredicate ipred = s.getIndexPredicate();
+                if (ipred != null) {
+                    int key = ((BTreeFile) Database.getCatalog().getDatabaseFile(
+                            s.getTableId())).keyField();
+                    preds.append(", ").append(s.getTupleDesc().getFieldName(key))
+                            .append(ipred.getOp()).append(ipred.getField());
+                }
+            }
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
+                    .format("%1$s(%2$s%3$s)", scan, tableName + alias, preds);
             if (SCAN.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
@@ -217,6 +243,24 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
+            } else if (plan instanceof Materialize || plan instanceof AdaptiveJoin) {
+                String name = plan instanceof Materialize ? MATERIALIZE : ADAPTIVE;
+                thisNode.text = String.format("%1$s,card:%2$d", name,
+                        plan.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (name.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = name.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - name.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
             } else if (plan instanceof OrderBy) {
                 OrderBy o = (OrderBy) plan;
                 thisNode.text = String.format(
@@ -0,0 +1,165 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * SampleEstimate estimates COUNT, SUM and AVG of an integer field from a
+ * {@link SampleScan} over a fraction of the pages of a table, together with
+ * the half-width of a 95% confidence interval for each estimate.
+ * <p>
+ * The sampled pages are a simple random sample of clusters: each page
+ * contributes its tuple count m_i and field sum y_i. With N pages in the
+ * table and n sampled pages, SUM is estimated as N/n * sum(y_i) and AVG as
+ * the ratio sum(y_i) / sum(m_i). The variance is computed from the spread of
+ * the per-page values, so tables whose values are clustered on pages get
+ * correspondingly wider bounds. Small samples use the quantile of Student's
+ * t distribution instead of the normal distribution. When every page is
+ * sampled the estimates are exact and the bounds are 0.
+ */
+public class SampleEstimate {
+
+    /** z value of a two-sided 95% confidence interval */
+    public static final double Z_95 = 1.96;
+
+    // t values of a two-sided 95% confidence interval, by degrees of freedom
+    private static final double[] T_95 = {Double.POSITIVE_INFINITY,
+            12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+            2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+            2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042};
+
+    /**
+     * @return the multiplier of the standard error of a two-sided 95%
+     *         confidence interval estimated from a sample of size n
+     */
+    static double quantile95(int n) {
+        return n - 1 < T_95.length ? T_95[n - 1] : Z_95;
+    }
+
+    private final int numPages;
+    private final int sampledPages;
+    private final double count;
+    private final double countError;
+    private final double sum;
+    private final double sumError;
+    private final double avg;
+    private final double avgError;
+
+    private SampleEstimate(int numPages, long[] pageCounts, long[] pageSums) {
+        int n = pageCounts.length;
+        this.numPages = numPages;
+        this.sampledPages = n;
+
+        double totalCount = 0, totalSum = 0;
+        for (int i = 0; i < n; i++) {
+            totalCount += pageCounts[i];
+            totalSum += pageSums[i];
+        }
+        double scale = n == 0 ? 0 : (double) numPages / n;
+        count = scale * totalCount;
+        sum = scale * totalSum;
+        avg = totalCount == 0 ? Double.NaN : totalSum / totalCount;
+
+        if (n == numPages) {
+            countError = sumError = avgError = 0;
+        } else if (n < 2 || totalCount == 0) {
+            countError = sumError = avgError = Double.POSITIVE_INFINITY;
+        } else {
+            double meanCount = totalCount / n;
+            double meanSum = totalSum / n;
+            double ssCount = 0, ssSum = 0, ssRatio = 0;
+            for (int i = 0; i < n; i++) {
+                ssCount += (pageCounts[i] - meanCount) * (pageCounts[i] - meanCount);
+                ssSum += (pageSums[i] - meanSum) * (pageSums[i] - meanSum);
+                double residual = pageSums[i] - avg * pageCounts[i];
+                ssRatio += residual * residual;
+            }
+            // finite population correction, we sample pages without replacement
+            double fpc = 1 - (double) n / numPages;
+            double q = quantile95(n);
+            countError = q * numPages * Math.sqrt(fpc * ssCount / (n - 1) / n);
+            sumError = q * numPages * Math.sqrt(fpc * ssSum / (n - 1) / n);
+            avgError = q * Math.sqrt(fpc * ssRatio / (n - 1) / n) / meanCount;
+        }
+    }
+
+    /**
+     * Estimate the aggregates of field over a sample of the pages of a table.
+     *
+     * @param tid
+     *            the transaction the sample is read as a part of
+     * @param tableid
+     *            the table to sample, must be stored in a {@link HeapFile}
+     * @param field
+     *            the index of the integer field to aggregate
+     * @param fraction
+     *            the fraction of the pages to read, in (0, 1]
+     * @param seed
+     *            the seed of the random page selection
+     */
+    public static SampleEstimate estimate(TransactionId tid, int tableid, int field,
+                                          double fraction, long seed)
+            throws DbException, TransactionAbortedException {
+        if (Database.getCatalog().getTupleDesc(tableid).getFieldType(field) != Type.INT_TYPE) {
+            throw new IllegalArgumentException("Can only estimate aggregates of integer fields");
+        }
+        SampleScan scan = new SampleScan(tid, tableid, null, fraction, seed);
+        int numPages = scan.numTablePages();
+        scan.open();
+        // sampled pages without tuples count too, so the totals are kept by
+        // the page each tuple comes from
+        int[] pages = scan.getSampledPages();
+        long[] pageCounts = new long[pages.length];
+        long[] pageSums = new long[pages.length];
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            int i = Arrays.binarySearch(pages, t.getRecordId().getPageId().getPageNumber());
+            pageCounts[i]++;
+            pageSums[i] += ((IntField) t.getField(field)).getValue();
+        }
+        scan.close();
+        return new SampleEstimate(numPages, pageCounts, pageSums);
+    }
+
+    public int getNumPages() {
+        return numPages;
+    }
+
+    public int getSampledPages() {
+        return sampledPages;
+    }
+
+    /** @return the estimated number of tuples of the table */
+    public double getCount() {
+        return count;
+    }
+
+    /** @return the half-width of the 95% confidence interval of getCount() */
+    public double getCountError() {
+        return countError;
+    }
+
+    /** @return the estimated SUM of the field */
+    public double getSum() {
+        return sum;
+    }
+
+    /** @return the half-width of the 95% confidence interval of getSum() */
+    public double getSumError() {
+        return sumError;
+    }
+
+    /** @return the estimated AVG of the field, NaN if no tuple was sampled */
+    public double getAvg() {
+        return avg;
+    }
+
+    /** @return the half-width of the 95% confidence interval of getAvg() */
+    public double getAvgError() {
+        return avgError;
+    }
+
+    public String toString() {
+        return String.format("sum=%.1f +/- %.1f, avg=%.3f +/- %.3f, count=%.1f +/- %.1f (%d of %d pages)",
+                sum, sumError, avg, avgError, count, countError, sampledPages, numPages);
+    }
+}
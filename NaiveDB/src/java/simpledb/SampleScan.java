@@ -0,0 +1,149 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SampleScan is a page-level sampling access method, similar to
+ * <tt>TABLESAMPLE SYSTEM</tt>: it picks a random subset of the pages of a
+ * table and returns every tuple on those pages, so only the sampled pages
+ * are read. The same seed always samples the same pages.
+ */
+public class SampleScan implements OpIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private final int tableid;
+    private final String tableAlias;
+    private final double fraction;
+    private final long seed;
+
+    private int[] pages;
+    private int curPage;
+    private Iterator<Tuple> pageIterator;
+    private boolean open = false;
+
+    /**
+     * Creates a sampling scan over the specified table as a part of the
+     * specified transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan, must be stored in a {@link HeapFile}
+     * @param tableAlias
+     *            the alias of this table, see {@link SeqScan}
+     * @param fraction
+     *            the fraction of the pages to read, in (0, 1]
+     * @param seed
+     *            the seed of the random page selection
+     */
+    public SampleScan(TransactionId tid, int tableid, String tableAlias, double fraction, long seed) {
+        if (fraction <= 0 || fraction > 1) {
+            throw new IllegalArgumentException("fraction must be in (0, 1]");
+        }
+        if (!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile)) {
+            throw new IllegalArgumentException("SampleScan only supports heap files");
+        }
+        this.tid = tid;
+        this.tableid = tableid;
+        this.tableAlias = tableAlias;
+        this.fraction = fraction;
+        this.seed = seed;
+    }
+
+    public String getTableName() {
+        return Database.getCatalog().getTableName(tableid);
+    }
+
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    /**
+     * @return the number of pages of the table at the time of open()
+     */
+    public int numTablePages() {
+        return ((HeapFile) Database.getCatalog().getDatabaseFile(tableid)).numPages();
+    }
+
+    /**
+     * Choose n = ceil(fraction * numPages) distinct pages uniformly at random
+     * (a partial Fisher-Yates shuffle), returned in ascending order so that
+     * they are read sequentially.
+     */
+    static int[] choosePages(int numPages, double fraction, long seed) {
+        int n = Math.min(numPages, (int) Math.ceil(fraction * numPages));
+        int[] all = new int[numPages];
+        for (int i = 0; i < numPages; i++) {
+            all[i] = i;
+        }
+        Random random = new Random(seed);
+        for (int i = 0; i < n; i++) {
+            int j = i + random.nextInt(numPages - i);
+            int tmp = all[i];
+            all[i] = all[j];
+            all[j] = tmp;
+        }
+        int[] chosen = Arrays.copyOf(all, n);
+        Arrays.sort(chosen);
+        return chosen;
+    }
+
+    /**
+     * @return the page numbers read by this scan, valid after open()
+     */
+    public int[] getSampledPages() {
+        return pages;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        pages = choosePages(numTablePages(), fraction, seed);
+        curPage = 0;
+        pageIterator = null;
+        open = true;
+    }
+
+    public TupleDesc getTupleDesc() {
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+        Type[] types = new Type[td.numFields()];
+        String[] names = new String[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            types[i] = td.getFieldType(i);
+            names[i] = tableAlias + "." + td.getFieldName(i);
+        }
+        return new TupleDesc(types, names);
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (!open) {
+            throw new DbException("Has not called open()");
+        }
+        while (pageIterator == null || !pageIterator.hasNext()) {
+            if (curPage >= pages.length) {
+                return false;
+            }
+            HeapPageId pid = new HeapPageId(tableid, pages[curPage++]);
+            pageIterator = ((HeapPage) Database.getBufferPool()
+                    .getPage(tid, pid, Permissions.READ_ONLY)).iterator();
+        }
+        return true;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        if (hasNext()) {
+            return pageIterator.next();
+        }
+        throw new NoSuchElementException("Sample Scan: no next tuple");
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        curPage = 0;
+        pageIterator = null;
+    }
+
+    public void close() {
+        open = false;
+        pageIterator = null;
+    }
+}
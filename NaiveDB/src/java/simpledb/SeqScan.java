@@ -18,9 +18,17 @@ public class SeqScan implements OpIterator {
     private int tableid;
     private String tableAlias;
     private DbFileIterator dbFileIterator;
+    private ArrayList<Predicate> predicates = new ArrayList<>();
+    private boolean[] projection = null;
+    private boolean lockTuples = false;
 
     private boolean open = false;
     private Page next = null;
+    // the tuples returned in the current pass over the table, and in the
+    // last complete one, or -1 if no pass has completed since open
+    private long rowsThisPass = 0;
+    private long lastPassRows = -1;
+    private boolean passDone = false;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -80,6 +88,92 @@ public class SeqScan implements OpIterator {
         // some code goes here
         this.tableid = tableid;
         this.tableAlias = tableAlias;
+        this.predicates.clear();
+        this.projection = null;
+    }
+
+    /**
+     * Run this scan as a part of another transaction from the next open()
+     * on, e.g. when a prepared plan is executed again.
+     */
+    void setTransactionId(TransactionId tid) {
+        this.tid = tid;
+    }
+
+    /**
+     * @return true if predicates can be pushed into this scan, which is the
+     *         case when the table is stored in a {@link HeapFile}
+     */
+    public boolean canPushPredicates() {
+        return Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile;
+    }
+
+    /**
+     * Push a predicate into this scan: only tuples satisfying all of the
+     * pushed predicates are returned. The predicates are evaluated in one
+     * pass over the raw page data, before the tuples are built.
+     *
+     * @param p a predicate over the fields of the scanned table
+     * @throws IllegalStateException if {@link #canPushPredicates()} is false
+     */
+    public void addPredicate(Predicate p) {
+        if (!canPushPredicates()) {
+            throw new IllegalStateException("Predicates can only be pushed into heap file scans");
+        }
+        predicates.add(p);
+    }
+
+    /**
+     * @return the predicates pushed into this scan
+     */
+    public List<Predicate> getPredicates() {
+        return Collections.unmodifiableList(predicates);
+    }
+
+    /**
+     * Restrict the fields decoded by this scan. The returned tuples keep the
+     * full TupleDesc, but fields that are not projected are left unset, so
+     * their bytes are skipped instead of parsed. Only has an effect on heap
+     * files.
+     *
+     * @param projection projection[i] is true if field i is needed by the
+     *        plan, or null to decode all fields
+     */
+    public void setProjection(boolean[] projection) {
+        this.projection = projection;
+    }
+
+    public boolean[] getProjection() {
+        return projection;
+    }
+
+    /**
+     * Lock the returned tuples instead of the pages they are on, for scans
+     * whose tuples the transaction will then change, like the child of a
+     * DELETE. Transactions changing different tuples of one page then do not
+     * wait for each other. Only has an effect on heap file scans with pushed
+     * predicates, see {@link HeapFile#iterator(TransactionId, Predicate[],
+     * boolean[], boolean)}.
+     */
+    public void setTupleLocking(boolean lockTuples) {
+        this.lockTuples = lockTuples;
+    }
+
+    /**
+     * @return the number of tuples, after the pushed predicates, this scan
+     *         returned in its last complete pass since it was opened, or so
+     *         far in the current pass if no pass has completed
+     */
+    public long getActualCardinality() {
+        return lastPassRows >= 0 ? lastPassRows : rowsThisPass;
+    }
+
+    /**
+     * @return true if this scan has read the whole table at least once since
+     *         it was opened
+     */
+    public boolean hasCompletedPass() {
+        return lastPassRows >= 0;
     }
 
     public SeqScan(TransactionId tid, int tableId) {
@@ -94,8 +188,16 @@ public class SeqScan implements OpIterator {
      */
     public void open() throws DbException, TransactionAbortedException {
         this.open = true;
+        rowsThisPass = 0;
+        lastPassRows = -1;
+        passDone = false;
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableid);
-        dbFileIterator = dbFile.iterator(tid);
+        if (dbFile instanceof HeapFile && (!predicates.isEmpty() || projection != null)) {
+            dbFileIterator = ((HeapFile) dbFile).iterator(tid,
+                    predicates.toArray(new Predicate[predicates.size()]), projection, lockTuples);
+        } else {
+            dbFileIterator = dbFile.iterator(tid);
+        }
         dbFileIterator.open();
 
     }
@@ -112,7 +214,14 @@ public class SeqScan implements OpIterator {
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
-        return Database.getCatalog().getTupleDesc(this.tableid);
+        TupleDesc td = Database.getCatalog().getTupleDesc(this.tableid);
+        Type[] types = new Type[td.numFields()];
+        String[] names = new String[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            types[i] = td.getFieldType(i);
+            names[i] = tableAlias + "." + td.getFieldName(i);
+        }
+        return new TupleDesc(types, names);
     }
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
@@ -120,13 +229,24 @@ public class SeqScan implements OpIterator {
         if (!open) {
             throw new DbException("Has not called open()");
         }
-        return dbFileIterator.hasNext();
+        boolean hasNext = dbFileIterator.hasNext();
+        if (!hasNext && !passDone) {
+            passDone = true;
+            lastPassRows = rowsThisPass;
+        }
+        return hasNext;
     }
 
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
         if (hasNext()) {
+            if (passDone) {
+                // rewound after the end of the last pass
+                passDone = false;
+                rowsThisPass = 0;
+            }
+            rowsThisPass++;
             return dbFileIterator.next();
         } else {
             throw new NoSuchElementException("Seq Scan: Not next Tuple");
@@ -0,0 +1,179 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * SlotUpdate is the body of a tuple-level log record: the slots of one
+ * {@link SlottedPage} that an update changed, each with its contents before
+ * and after the update. Inserting a tuple changes a slot from empty to the
+ * tuple, deleting it from the tuple to empty, and a record moved to another
+ * slot (as in a {@link BTreeLeafPage}) changes both slots, so the used bits of
+ * the header follow from the slot contents.
+ * <p>
+ * Redoing or undoing an update sets the slots to their contents after or
+ * before it, which gives the same page however often it is repeated.
+ */
+class SlotUpdate {
+
+    private final int pageType;
+    private final int tableId;
+    private final int pageNo;
+    private final int[] slots;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private SlotUpdate(int pageType, int tableId, int pageNo,
+            int[] slots, byte[][] before, byte[][] after) {
+        this.pageType = pageType;
+        this.tableId = tableId;
+        this.pageNo = pageNo;
+        this.slots = slots;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * @return the slots that differ between before and after, which must be
+     *         images of the same page
+     */
+    static SlotUpdate diff(SlottedPage before, SlottedPage after) throws IOException {
+        if (before.getNumSlots() != after.getNumSlots()) {
+            throw new IllegalArgumentException("images of different pages");
+        }
+        ArrayList<Integer> changed = new ArrayList<Integer>();
+        ArrayList<byte[]> b = new ArrayList<byte[]>();
+        ArrayList<byte[]> a = new ArrayList<byte[]>();
+        for (int i = 0; i < before.getNumSlots(); i++) {
+            byte[] bi = before.getSlotData(i);
+            byte[] ai = after.getSlotData(i);
+            if (!Arrays.equals(bi, ai)) {
+                changed.add(i);
+                b.add(bi);
+                a.add(ai);
+            }
+        }
+        int[] slots = new int[changed.size()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = changed.get(i);
+        }
+        PageId pid = after.getId();
+        return new SlotUpdate(LogFile.pageTag(after), pid.getTableId(), pid.getPageNumber(),
+                slots, b.toArray(new byte[0][]), a.toArray(new byte[0][]));
+    }
+
+    /**
+     * @return the update of one slot of a page from the given contents to
+     *         its contents now
+     */
+    static SlotUpdate of(SlottedPage page, int slot, byte[] before) throws IOException {
+        PageId pid = page.getId();
+        return new SlotUpdate(LogFile.pageTag(page), pid.getTableId(), pid.getPageNumber(),
+                new int[] { slot }, new byte[][] { before }, new byte[][] { page.getSlotData(slot) });
+    }
+
+    /** @return the id of the updated page */
+    PageId getPageId() throws IOException {
+        return LogFile.pageId(pageType, tableId, pageNo);
+    }
+
+    /** @return the number of changed slots */
+    int numSlots() {
+        return slots.length;
+    }
+
+    /** @return the number of bytes write writes */
+    int size() {
+        int size = 1 + 3 * LogFile.INT_SIZE;
+        for (int i = 0; i < slots.length; i++) {
+            size += 3 * LogFile.INT_SIZE;
+            size += before[i] == null ? 0 : before[i].length;
+            size += after[i] == null ? 0 : after[i].length;
+        }
+        return size;
+    }
+
+    /** @return the update that takes the slots back to their contents
+        before this update */
+    SlotUpdate inverse() {
+        int n = slots.length;
+        int[] s = new int[n];
+        byte[][] b = new byte[n][];
+        byte[][] a = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            s[i] = slots[n - 1 - i];
+            b[i] = after[n - 1 - i];
+            a[i] = before[n - 1 - i];
+        }
+        return new SlotUpdate(pageType, tableId, pageNo, s, b, a);
+    }
+
+    /** Set the changed slots of p to their contents after the update */
+    void redo(SlottedPage p) {
+        for (int i = 0; i < slots.length; i++) {
+            p.setSlotData(slots[i], after[i]);
+        }
+    }
+
+    /** Set the changed slots of p to their contents before the update */
+    void undo(SlottedPage p) {
+        for (int i = slots.length - 1; i >= 0; i--) {
+            p.setSlotData(slots[i], before[i]);
+        }
+    }
+
+    /*
+     * The format is: the page type tag (a byte), the table id, the page
+     * number, the number of changed slots, and for each of them its number
+     * and its contents before and after the update. Contents are a length,
+     * -1 for an empty slot, followed by the bytes of the tuple.
+     */
+
+    void write(DataOutput out) throws IOException {
+        out.writeByte(pageType);
+        out.writeInt(tableId);
+        out.writeInt(pageNo);
+        out.writeInt(slots.length);
+        for (int i = 0; i < slots.length; i++) {
+            out.writeInt(slots[i]);
+            writeSlot(out, before[i]);
+            writeSlot(out, after[i]);
+        }
+    }
+
+    private static void writeSlot(DataOutput out, byte[] data) throws IOException {
+        if (data == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(data.length);
+            out.write(data);
+        }
+    }
+
+    static SlotUpdate read(DataInput in) throws IOException {
+        int pageType = in.readUnsignedByte();
+        LogFile.pageDecoder(pageType); // fail on an unknown page type
+        int tableId = in.readInt();
+        int pageNo = in.readInt();
+        int n = in.readInt();
+        int[] slots = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            slots[i] = in.readInt();
+            before[i] = readSlot(in);
+            after[i] = readSlot(in);
+        }
+        return new SlotUpdate(pageType, tableId, pageNo, slots, before, after);
+    }
+
+    private static byte[] readSlot(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return data;
+    }
+}
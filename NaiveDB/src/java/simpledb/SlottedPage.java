@@ -0,0 +1,26 @@
+package simpledb;
+
+/**
+ * SlottedPage is a page that stores tuples in fixed-size slots. Its updates
+ * can be logged slot by slot (see {@link SlotUpdate}) rather than as whole
+ * before and after images of the page.
+ */
+public interface SlottedPage extends Page {
+
+    /** @return the number of slots of this page */
+    public int getNumSlots();
+
+    /** @return true if slot i holds a tuple */
+    public boolean isSlotUsed(int i);
+
+    /**
+     * @return the serialized tuple in slot i, or null if the slot is empty
+     */
+    public byte[] getSlotData(int i);
+
+    /**
+     * Put a serialized tuple into slot i and mark the slot used, or mark it
+     * empty if data is null.
+     */
+    public void setSlotData(int i, byte[] data);
+}
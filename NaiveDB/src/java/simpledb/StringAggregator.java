@@ -18,19 +18,20 @@ public class StringAggregator implements Aggregator {
 
     @Getter
     private TreeMap<Field, List<String>> stringAggregator;
+    private TreeMap<Field, HyperLogLog> sketches;
 
     /**
      * Aggregate constructor
      * @param gbfield the 0-based index of the group-by field in the tuple, or NO_GROUPING if there is no grouping
      * @param gbfieldtype the type of the group by field (e.g., Type.INT_TYPE), or null if there is no grouping
      * @param afield the 0-based index of the aggregate field in the tuple
-     * @param what aggregation operator to use -- only supports COUNT
-     * @throws IllegalArgumentException if what != COUNT
+     * @param what aggregation operator to use -- only supports COUNT and COUNT_DISTINCT
+     * @throws IllegalArgumentException if what is not COUNT or COUNT_DISTINCT
      */
 
     public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
-        if (what != Op.COUNT) {
-            throw new IllegalArgumentException("Only support COUNT type");
+        if (what != Op.COUNT && what != Op.COUNT_DISTINCT) {
+            throw new IllegalArgumentException("Only support COUNT and COUNT_DISTINCT type");
         }
 
         // some code goes here
@@ -39,6 +40,7 @@ public class StringAggregator implements Aggregator {
         this.afield = afield;
         this.aggregatorOp = what;
         stringAggregator = new TreeMap<Field, List<String>>();
+        sketches = new TreeMap<Field, HyperLogLog>();
     }
 
     /**
@@ -46,7 +48,7 @@ public class StringAggregator implements Aggregator {
      * @param tup the Tuple containing an aggregate field and a group-by field
      */
     public void mergeTupleIntoGroup(Tuple tup) {
-        Field gbKey = tup.getField(this.gbField);
+        Field gbKey = this.gbField == NO_GROUPING ? IntegerAggregator.NO_GROUP_KEY : tup.getField(this.gbField);
         StringField gbValue = (StringField)tup.getField(this.afield);
 
         switch (aggregatorOp) {
@@ -59,6 +61,16 @@ public class StringAggregator implements Aggregator {
                     stringAggregator.put(gbKey, arr);
                 }
                 break;
+            case COUNT_DISTINCT:
+                // only the sketch is kept, the values themselves are not needed
+                HyperLogLog sketch = sketches.get(gbKey);
+                if (sketch == null) {
+                    sketch = new HyperLogLog();
+                    sketches.put(gbKey, sketch);
+                    stringAggregator.put(gbKey, Collections.<String>emptyList());
+                }
+                sketch.add(gbValue);
+                break;
             default:
                 break;
         }
@@ -87,7 +99,11 @@ public class StringAggregator implements Aggregator {
 
         public StringAggregatorIterator(StringAggregator aggregator) {
             stringAggregator = aggregator.getStringAggregator();
-            tupleDesc = new TupleDesc(new Type[] {aggregator.getGbFieldType(), Type.INT_TYPE});
+            if (gbField == NO_GROUPING) {
+                tupleDesc = new TupleDesc(new Type[] {Type.INT_TYPE});
+            } else {
+                tupleDesc = new TupleDesc(new Type[] {aggregator.getGbFieldType(), Type.INT_TYPE});
+            }
         }
 
         public void open() throws DbException, TransactionAbortedException {
@@ -115,8 +131,18 @@ public class StringAggregator implements Aggregator {
             if (keyValueIter.hasNext()) {
                 Map.Entry<Field, List<String>> nextKeyValuePair = keyValueIter.next();
                 Tuple tuple = new Tuple(tupleDesc);
-                tuple.setField(0, nextKeyValuePair.getKey());
-                tuple.setField(1, new IntField(nextKeyValuePair.getValue().size()));
+                int value;
+                if (aggregatorOp == Op.COUNT_DISTINCT) {
+                    value = (int) sketches.get(nextKeyValuePair.getKey()).estimate();
+                } else {
+                    value = nextKeyValuePair.getValue().size();
+                }
+                if (gbField == NO_GROUPING) {
+                    tuple.setField(0, new IntField(value));
+                } else {
+                    tuple.setField(0, nextKeyValuePair.getKey());
+                    tuple.setField(1, new IntField(value));
+                }
                 return tuple;
             } else {
                 return null;
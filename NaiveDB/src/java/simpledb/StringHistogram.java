@@ -1,8 +1,12 @@
 package simpledb;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
- * A class to represent a fixed-width histogram over a single String-based
- * field.
+ * A class to represent an equi-depth histogram with a most-common-value
+ * list over a single String-based field.
  */
 public class StringHistogram {
     final IntHistogram hist;
@@ -20,6 +24,10 @@ public class StringHistogram {
         hist = new IntHistogram(buckets, minVal(), maxVal());
     }
 
+    private StringHistogram(IntHistogram hist) {
+        this.hist = hist;
+    }
+
     /**
      * Convert a string to an integer, with the property that if the return
      * value(s1) < return value(s2), then s1 < s2
@@ -65,6 +73,11 @@ public class StringHistogram {
         hist.addValue(val);
     }
 
+    /** Remove a value that was previously added from the histogram */
+    public void removeValue(String s) {
+        hist.removeValue(stringToInt(s));
+    }
+
     /**
      * Estimate the selectivity (as a double between 0 and 1) of the specified
      * predicate over the specified string
@@ -89,4 +102,14 @@ public class StringHistogram {
     public double avgSelectivity() {
         return hist.avgSelectivity();
     }
+
+    /** Write the histogram to out, see {@link #read(DataInput)} */
+    public void write(DataOutput out) throws IOException {
+        hist.write(out);
+    }
+
+    /** Read a histogram written by {@link #write(DataOutput)} */
+    public static StringHistogram read(DataInput in) throws IOException {
+        return new StringHistogram(IntHistogram.read(in));
+    }
 }
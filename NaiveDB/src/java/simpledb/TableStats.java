@@ -1,29 +1,58 @@
 package simpledb;
 
-import javafx.util.Pair;
-import org.apache.commons.lang3.tuple.MutablePair;
+import org.apache.log4j.Logger;
 
+import java.io.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
  * query. 
+ * <p>
+ * The statistics can be persisted to a stats file next to the catalog (see
+ * {@link #loadStatistics}), so that they are only rebuilt for tables whose
+ * data file grew or shrank by more than REFRESH_FRACTION since they were
+ * saved. While the database runs, the BufferPool reports every inserted and
+ * deleted tuple, which updates the histograms and row count in place; once
+ * the number of changes exceeds REFRESH_FRACTION of the table, the
+ * statistics are rebuilt in the background, since deletes cannot narrow the
+ * histogram ranges. The statistics are saved again whenever they are
+ * rebuilt and at shutdown, together with the number of changes, so the
+ * incremental updates are kept across restarts.
  * 
  * This class is not needed in implementing lab1 and lab2.
  */
 public class TableStats {
+    private static Logger LOG = Logger.getLogger(TableStats.class);
 
     private static final ConcurrentHashMap<String, TableStats> statsMap = new ConcurrentHashMap<String, TableStats>();
 
     static final int IOCOSTPERPAGE = 1000;
 
+    // incremented whenever the statistics of a table are replaced
+    private static final AtomicLong version = new AtomicLong();
+
+    /**
+     * @return a number that changes whenever the statistics of a table are
+     *         replaced, so that cached plans can tell they are stale
+     */
+    public static long getVersion() {
+        return version.get();
+    }
+
     public static TableStats getTableStats(String tablename) {
         return statsMap.get(tablename);
     }
 
     public static void setTableStats(String tablename, TableStats stats) {
         statsMap.put(tablename, stats);
+        version.incrementAndGet();
     }
     
     public static void setStatsMap(HashMap<String,TableStats> s)
@@ -32,6 +61,7 @@ public class TableStats {
             java.lang.reflect.Field statsMapF = TableStats.class.getDeclaredField("statsMap");
             statsMapF.setAccessible(true);
             statsMapF.set(null, s);
+            version.incrementAndGet();
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -49,15 +79,190 @@ public class TableStats {
     }
 
     public static void computeStatistics() {
+        computeStatistics(1.0);
+    }
+
+    /**
+     * Compute the statistics of all tables in the catalog, in parallel.
+     *
+     * @param sampleFraction
+     *            the fraction of the pages of each heap file to build the
+     *            statistics from, 1.0 to read every page
+     */
+    public static void computeStatistics(final double sampleFraction) {
+        ArrayList<Integer> tableids = new ArrayList<>();
         Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        while (tableIt.hasNext()) {
+            tableids.add(tableIt.next());
+        }
+        computeStatistics(tableids, sampleFraction);
+    }
 
+    private static void computeStatistics(List<Integer> tableids, final double sampleFraction) {
         System.out.println("Computing table stats.");
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+        LinkedHashMap<Integer, Future<TableStats>> futures = new LinkedHashMap<>();
+        for (final int tableid : tableids) {
+            futures.put(tableid, executor.submit(() -> new TableStats(tableid, IOCOSTPERPAGE, sampleFraction)));
+        }
+        for (Map.Entry<Integer, Future<TableStats>> e : futures.entrySet()) {
+            try {
+                setTableStats(Database.getCatalog().getTableName(e.getKey()), e.getValue().get());
+            } catch (InterruptedException ex) {
+                ex.printStackTrace();
+            } catch (ExecutionException ex) {
+                ex.printStackTrace();
+            }
+        }
+        executor.shutdown();
+        System.out.println("Done.");
+    }
+
+    private static final int STATS_MAGIC = 0x53544156;
+
+    // the file loadStatistics read the statistics from, rebuilt statistics
+    // are saved to it
+    private static volatile File statsFile = null;
+    private static boolean saveAtShutdown = false;
+
+    /**
+     * @return the stats file of the catalog in catalogFile: the catalog file
+     *         with its extension replaced by <tt>.stats</tt>
+     */
+    public static File statsFileFor(String catalogFile) {
+        String path = new File(catalogFile).getAbsolutePath();
+        int dot = path.lastIndexOf('.');
+        if (dot > path.lastIndexOf(File.separatorChar)) {
+            path = path.substring(0, dot);
+        }
+        return new File(path + ".stats");
+    }
+
+    /**
+     * Load the statistics of all tables in the catalog from file, computing
+     * them for the tables that are not in it or whose data file has changed
+     * too much since it was written, and save the result back to file.
+     * Statistics that are rebuilt later in the background are saved to the
+     * same file, and all statistics are saved to it at shutdown.
+     *
+     * @param file
+     *            the stats file, need not exist
+     * @param sampleFraction
+     *            the fraction of the pages of each heap file to compute
+     *            missing statistics from
+     */
+    public static void loadStatistics(File file, double sampleFraction) {
+        statsFile = file;
+        synchronized (TableStats.class) {
+            if (!saveAtShutdown) {
+                saveAtShutdown = true;
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    File f = statsFile;
+                    if (f != null) {
+                        saveStatistics(f);
+                    }
+                }, "TableStats save"));
+            }
+        }
+        Map<String, TableStats> loaded = readStatistics(file);
+
+        ArrayList<Integer> missing = new ArrayList<>();
+        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
         while (tableIt.hasNext()) {
             int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+            String name = Database.getCatalog().getTableName(tableid);
+            TableStats stats = loaded.get(name);
+            if (stats != null) {
+                setTableStats(name, stats);
+            } else {
+                missing.add(tableid);
+            }
         }
-        System.out.println("Done.");
+        System.out.println("Loaded stats of " + (loaded.size()) + " tables from " + file + ".");
+        if (!missing.isEmpty()) {
+            computeStatistics(missing, sampleFraction);
+            saveStatistics(file);
+        }
+    }
+
+    /**
+     * Save the statistics of all tables in the catalog to file. The file is
+     * written under a temporary name and then renamed, so a crash leaves
+     * either the old or the new file.
+     */
+    public static synchronized void saveStatistics(File file) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            ArrayList<TableStats> all = new ArrayList<>();
+            Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+            while (tableIt.hasNext()) {
+                TableStats stats = getTableStats(Database.getCatalog().getTableName(tableIt.next()));
+                if (stats != null && dataLength(stats.tableid) >= 0) {
+                    all.add(stats);
+                }
+            }
+            out.writeInt(STATS_MAGIC);
+            out.writeInt(all.size());
+            for (TableStats stats : all) {
+                stats.write(out);
+            }
+        } catch (IOException e) {
+            // the statistics are recomputed at the next start
+            LOG.error(e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                LOG.error("Could not rename " + tmp + " to " + file);
+            }
+        }
+    }
+
+    /**
+     * @return the statistics in file, by table name, of the tables of the
+     *         catalog whose schema did not change and whose data file did not
+     *         change too much since it was written
+     */
+    private static Map<String, TableStats> readStatistics(File file) {
+        HashMap<String, TableStats> loaded = new HashMap<>();
+        if (!file.exists()) {
+            return loaded;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != STATS_MAGIC) {
+                LOG.info("Ignoring stats file " + file + " with a different layout");
+                return loaded;
+            }
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String name = in.readUTF();
+                TableStats stats = read(in, name);
+                if (stats != null) {
+                    loaded.put(name, stats);
+                }
+            }
+        } catch (IOException e) {
+            LOG.error(e);
+            loaded.clear();
+        }
+        return loaded;
+    }
+
+    /**
+     * @return the length of the file that stores tableid, or -1 if it is not
+     *         a plain file
+     */
+    private static long dataLength(int tableid) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (file instanceof HeapFile) {
+            return ((HeapFile) file).getFile().length();
+        } else if (file instanceof BTreeFile) {
+            return ((BTreeFile) file).getFile().length();
+        }
+        return -1;
     }
 
     /**
@@ -69,8 +274,58 @@ public class TableStats {
 
     private TreeMap<Integer, IntHistogram> intHistogramTreeMap;
     private TreeMap<Integer, StringHistogram> stringHistogramTreeMap;
+    // a sketch of the distinct values of every field
+    private TreeMap<Integer, HyperLogLog> distinctSketches;
     private int tableid;
     private int ioCostPerPage;
+    private int numTuples;
+    private double sampleFraction;
+    // the number of tuples the statistics were built from
+    private int sampledTuples;
+
+    /**
+     * Fraction of the tuples of a table that may be inserted or deleted before
+     * its statistics are rebuilt, and the minimum number of changes, so that
+     * small tables are not rebuilt over and over.
+     */
+    static final double REFRESH_FRACTION = 0.2;
+    static final int REFRESH_MIN_CHANGES = 1000;
+
+    // tuples inserted or deleted since the statistics were built, when the
+    // table had builtTuples tuples
+    private int changes = 0;
+    private int builtTuples;
+    private boolean refreshScheduled = false;
+
+    // the changes of transactions that have not completed yet, which only
+    // count once they commit
+    private static final ConcurrentHashMap<TransactionId, List<Change>> pendingChanges =
+            new ConcurrentHashMap<>();
+
+    /**
+     * A change to a table done by a transaction that has not completed yet.
+     */
+    private static class Change {
+        final int tableid;
+        final Tuple tuple;
+        final boolean inserted;
+
+        Change(int tableid, Tuple tuple, boolean inserted) {
+            this.tableid = tableid;
+            this.tuple = tuple;
+            this.inserted = inserted;
+        }
+    }
+
+    private static final ExecutorService refresher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "TableStats refresh");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // scans of files other than heap files go through the BufferPool, which
+    // does not support concurrent scans by parallel statistics builders
+    private static final Object bufferPoolScanLock = new Object();
 
     /**
      * Create a new TableStats object, that keeps track of statistics on each
@@ -83,78 +338,335 @@ public class TableStats {
      *            sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
+        this(tableid, ioCostPerPage, 1.0);
+    }
+
+    /**
+     * Create a new TableStats object from a single pass over the table, or
+     * over a random sample of its pages.
+     * <p>
+     * The integer histograms need no declared range (see
+     * {@link IntHistogram#IntHistogram(int)}), so no separate pass is needed
+     * to find the minimum and maximum of each column. Pages of heap files are
+     * read directly from the file rather than through the BufferPool, so
+     * building statistics neither fills the BufferPool nor takes locks.
+     *
+     * @param tableid
+     *            The table over which to compute statistics
+     * @param ioCostPerPage
+     *            The cost per page of IO.
+     * @param sampleFraction
+     *            the fraction of the pages of a heap file to read, in (0, 1];
+     *            the number of tuples is scaled up accordingly. Other files
+     *            are always read completely.
+     */
+    public TableStats(int tableid, int ioCostPerPage, double sampleFraction) {
+        if (sampleFraction <= 0 || sampleFraction > 1) {
+            throw new IllegalArgumentException("sampleFraction must be in (0, 1]");
+        }
         this.tableid = tableid;
         this.ioCostPerPage = ioCostPerPage;
+        this.sampleFraction = sampleFraction;
 
         intHistogramTreeMap = new TreeMap<>();
         stringHistogramTreeMap = new TreeMap<>();
+        distinctSketches = new TreeMap<>();
 
         DbFile file = Database.getCatalog().getDatabaseFile(tableid);
         TupleDesc tupleDesc = file.getTupleDesc();
-        int numFields = tupleDesc.numFields();
-        DbFileIterator iterator = file.iterator(new TransactionId());
-        ArrayList<MutablePair<Integer, Integer>> extrameValues = new ArrayList<>();
-        for (int i = 0; i < numFields; i++) {
-            extrameValues.add(new MutablePair<>(Integer.MAX_VALUE, Integer.MIN_VALUE));
+        for (int i = 0; i < tupleDesc.numFields(); i++) {
+            if (tupleDesc.getFieldType(i) == Type.INT_TYPE) {
+                intHistogramTreeMap.put(i, new IntHistogram(NUM_HIST_BINS));
+            } else {
+                stringHistogramTreeMap.put(i, new StringHistogram(NUM_HIST_BINS));
+            }
+            distinctSketches.put(i, new HyperLogLog());
         }
 
-
-        // first scan to find all extreme values for Int Type.
-        try {
-            iterator.open();
-            while (iterator.hasNext()) {
-                Tuple tuple = iterator.next();
-                for (int i = 0; i < numFields; i++) {
-                    Field field = tuple.getField(i);
-                    if (field.getType() == Type.INT_TYPE) {
-                        IntField f = (IntField)field;
-                        if (f.getValue() < extrameValues.get(i).left) {
-                            extrameValues.get(i).left = f.getValue();
-                        }
-
-                        if (f.getValue() > extrameValues.get(i).right) {
-                            extrameValues.get(i).right = f.getValue();
-                        }
+        int scanned = 0;
+        double scale = 1.0;
+        if (file instanceof HeapFile) {
+            HeapFile heapFile = (HeapFile) file;
+            int numPages = heapFile.numPages();
+            int[] pages = SampleScan.choosePages(numPages, sampleFraction, tableid);
+            for (int pageNo : pages) {
+                // prefer the cached version, which has the changes that
+                // have not been written to disk yet
+                HeapPageId pid = new HeapPageId(tableid, pageNo);
+                Page cached = Database.getBufferPool().cachedPage(pid);
+                HeapPage page = (HeapPage) (cached != null ? cached : heapFile.readPage(pid));
+                Iterator<Tuple> it = page.iterator();
+                while (it.hasNext()) {
+                    addTuple(it.next());
+                    scanned++;
+                }
+            }
+            if (pages.length > 0) {
+                scale = (double) numPages / pages.length;
+            }
+        } else {
+            synchronized (bufferPoolScanLock) {
+                TransactionId tid = new TransactionId();
+                DbFileIterator iterator = file.iterator(tid);
+                try {
+                    iterator.open();
+                    while (iterator.hasNext()) {
+                        addTuple(iterator.next());
+                        scanned++;
                     }
+                    iterator.close();
+                    Database.getBufferPool().transactionComplete(tid);
+                } catch (DbException e) {
+                    e.printStackTrace();
+                } catch (TransactionAbortedException e) {
+                    e.printStackTrace();
+                } catch (java.io.IOException e) {
+                    e.printStackTrace();
                 }
             }
-        } catch (DbException e) {
-            e.printStackTrace();
-        } catch (TransactionAbortedException e) {
-            e.printStackTrace();
         }
+        numTuples = (int) Math.round(scanned * scale);
+        builtTuples = numTuples;
+        sampledTuples = scanned;
+    }
 
-        // create histogram for all
+    private void addTuple(Tuple tuple) {
+        for (Map.Entry<Integer, IntHistogram> e : intHistogramTreeMap.entrySet()) {
+            e.getValue().addValue(((IntField) tuple.getField(e.getKey())).getValue());
+        }
+        for (Map.Entry<Integer, StringHistogram> e : stringHistogramTreeMap.entrySet()) {
+            e.getValue().addValue(((StringField) tuple.getField(e.getKey())).getValue());
+        }
+        for (Map.Entry<Integer, HyperLogLog> e : distinctSketches.entrySet()) {
+            e.getValue().add(tuple.getField(e.getKey()));
+        }
+    }
+
+    private void removeTuple(Tuple tuple) {
+        for (Map.Entry<Integer, IntHistogram> e : intHistogramTreeMap.entrySet()) {
+            e.getValue().removeValue(((IntField) tuple.getField(e.getKey())).getValue());
+        }
+        for (Map.Entry<Integer, StringHistogram> e : stringHistogramTreeMap.entrySet()) {
+            e.getValue().removeValue(((StringField) tuple.getField(e.getKey())).getValue());
+        }
+    }
+
+    private TableStats(int tableid, int ioCostPerPage, double sampleFraction, int numTuples) {
+        this.tableid = tableid;
+        this.ioCostPerPage = ioCostPerPage;
+        this.sampleFraction = sampleFraction;
+        this.numTuples = numTuples;
+        this.builtTuples = numTuples;
+        this.sampledTuples = numTuples;
+        intHistogramTreeMap = new TreeMap<>();
+        stringHistogramTreeMap = new TreeMap<>();
+        distinctSketches = new TreeMap<>();
+    }
+
+    /**
+     * Write the statistics to out, together with the name, schema and data
+     * file length of the table, so that read can tell whether they are still
+     * valid, and the number of changes since they were built.
+     */
+    private synchronized void write(DataOutputStream out) throws IOException {
+        out.writeUTF(Database.getCatalog().getTableName(tableid));
+        out.writeLong(dataLength(tableid));
+        out.writeInt(ioCostPerPage);
+        out.writeDouble(sampleFraction);
+        out.writeInt(numTuples);
+        out.writeInt(builtTuples);
+        out.writeInt(changes);
+        out.writeInt(sampledTuples);
+        out.writeInt(intHistogramTreeMap.size() + stringHistogramTreeMap.size());
+        for (Map.Entry<Integer, IntHistogram> e : intHistogramTreeMap.entrySet()) {
+            out.writeInt(e.getKey());
+            out.writeByte(Type.INT_TYPE.ordinal());
+            e.getValue().write(out);
+            distinctSketches.get(e.getKey()).write(out);
+        }
+        for (Map.Entry<Integer, StringHistogram> e : stringHistogramTreeMap.entrySet()) {
+            out.writeInt(e.getKey());
+            out.writeByte(Type.STRING_TYPE.ordinal());
+            e.getValue().write(out);
+            distinctSketches.get(e.getKey()).write(out);
+        }
+    }
+
+    /**
+     * Read statistics written by write, after the name of their table.
+     *
+     * @return the statistics, or null if the table is no longer in the
+     *         catalog, its schema changed, or its data file grew or shrank by
+     *         more than REFRESH_FRACTION, as when it was written without the
+     *         database
+     */
+    private static TableStats read(DataInputStream in, String name) throws IOException {
+        long length = in.readLong();
+        int ioCostPerPage = in.readInt();
+        double sampleFraction = in.readDouble();
+        int numTuples = in.readInt();
+        int builtTuples = in.readInt();
+        int changes = in.readInt();
+        int sampledTuples = in.readInt();
+        int numFields = in.readInt();
+        TreeMap<Integer, IntHistogram> intHistograms = new TreeMap<>();
+        TreeMap<Integer, StringHistogram> stringHistograms = new TreeMap<>();
+        TreeMap<Integer, HyperLogLog> sketches = new TreeMap<>();
         for (int i = 0; i < numFields; i++) {
-            if (tupleDesc.getFieldType(i) == Type.INT_TYPE) {
-                intHistogramTreeMap.put(i, new IntHistogram(NUM_HIST_BINS, extrameValues.get(i).left, extrameValues.get(i).right));
+            int field = in.readInt();
+            if (in.readByte() == Type.INT_TYPE.ordinal()) {
+                intHistograms.put(field, IntHistogram.read(in));
             } else {
-                stringHistogramTreeMap.put(i, new StringHistogram(NUM_HIST_BINS));
+                stringHistograms.put(field, StringHistogram.read(in));
             }
+            sketches.put(field, HyperLogLog.read(in));
         }
 
-        // second scan to add values to histogram
+        int tableid;
         try {
-            iterator.rewind();
-            while (iterator.hasNext()) {
-                Tuple tuple = iterator.next();
-                for (int i = 0; i < numFields; i++) {
-                    Field field = tuple.getField(i);
-                    if (field.getType() == Type.INT_TYPE) {
-                        IntField f = (IntField) field;
-                        intHistogramTreeMap.get(i).addValue(f.getValue());
-                    } else {
-                        StringField f = (StringField) field;
-                        stringHistogramTreeMap.get(i).addValue(f.getValue());
-                    }
+            tableid = Database.getCatalog().getTableId(name);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        long current = dataLength(tableid);
+        if (current < 0 || Math.abs(current - length) > REFRESH_FRACTION * length) {
+            LOG.info("Stats of " + name + " are stale");
+            return null;
+        }
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+        if (td.numFields() != numFields) {
+            return null;
+        }
+        for (int i = 0; i < numFields; i++) {
+            Map<Integer, ?> histograms = td.getFieldType(i) == Type.INT_TYPE ? intHistograms : stringHistograms;
+            if (!histograms.containsKey(i)) {
+                return null;
+            }
+        }
+
+        TableStats stats = new TableStats(tableid, ioCostPerPage, sampleFraction, numTuples);
+        stats.builtTuples = builtTuples;
+        stats.changes = changes;
+        stats.sampledTuples = sampledTuples;
+        stats.intHistogramTreeMap = intHistograms;
+        stats.stringHistogramTreeMap = stringHistograms;
+        stats.distinctSketches = sketches;
+        return stats;
+    }
+
+    /**
+     * Record that tid inserted t into the table. The statistics are updated
+     * when tid commits, see {@link #transactionComplete}.
+     */
+    public void tupleInserted(TransactionId tid, Tuple t) {
+        remember(tid, t, true);
+    }
+
+    /**
+     * Record that tid deleted t from the table. The statistics are updated
+     * when tid commits, see {@link #transactionComplete}.
+     */
+    public void tupleDeleted(TransactionId tid, Tuple t) {
+        remember(tid, t, false);
+    }
+
+    private void remember(TransactionId tid, Tuple t, boolean inserted) {
+        if (tid == null) {
+            // not part of any transaction, so already committed
+            if (inserted) {
+                tupleInserted(t);
+            } else {
+                tupleDeleted(t);
+            }
+            return;
+        }
+        pendingChanges.computeIfAbsent(tid, k -> Collections.synchronizedList(new ArrayList<>()))
+                .add(new Change(tableid, t, inserted));
+    }
+
+    /**
+     * Called by the BufferPool when tid completes. The changes of a committed
+     * transaction are applied to the current statistics of their tables,
+     * those of an aborted one dropped.
+     */
+    public static void transactionComplete(TransactionId tid, boolean commit) {
+        List<Change> changes = pendingChanges.remove(tid);
+        if (changes == null || !commit) {
+            return;
+        }
+        synchronized (changes) {
+            for (Change c : changes) {
+                String name = Database.getCatalog().getTableName(c.tableid);
+                TableStats stats = name == null ? null : getTableStats(name);
+                if (stats == null) {
+                    continue;
+                }
+                if (c.inserted) {
+                    stats.tupleInserted(c.tuple);
+                } else {
+                    stats.tupleDeleted(c.tuple);
                 }
             }
-        } catch (DbException e) {
-            e.printStackTrace();
-        } catch (TransactionAbortedException e) {
-            e.printStackTrace();
         }
+    }
+
+    /**
+     * Update the statistics for a tuple inserted into the table.
+     */
+    public synchronized void tupleInserted(Tuple t) {
+        addTuple(t);
+        numTuples++;
+        tupleChanged();
+    }
+
+    /**
+     * Update the statistics for a tuple deleted from the table.
+     */
+    public synchronized void tupleDeleted(Tuple t) {
+        removeTuple(t);
+        numTuples = Math.max(0, numTuples - 1);
+        tupleChanged();
+    }
+
+    /**
+     * @return the number of tuples inserted or deleted since the statistics
+     *         were built
+     */
+    public synchronized int getChanges() {
+        return changes;
+    }
+
+    private void tupleChanged() {
+        changes++;
+        if (!refreshScheduled && changes >= Math.max(REFRESH_MIN_CHANGES, REFRESH_FRACTION * builtTuples)) {
+            refreshScheduled = true;
+            refresher.submit(this::refresh);
+        }
+    }
 
+    /**
+     * Rebuild the statistics of the table and replace these with them,
+     * unless these have been replaced in the meantime.
+     */
+    private void refresh() {
+        String name = Database.getCatalog().getTableName(tableid);
+        if (name == null) {
+            return;
+        }
+        try {
+            TableStats fresh = new TableStats(tableid, ioCostPerPage, sampleFraction);
+            if (statsMap.replace(name, this, fresh)) {
+                version.incrementAndGet();
+                LOG.info("Rebuilt stats of " + name);
+                File file = statsFile;
+                if (file != null) {
+                    saveStatistics(file);
+                }
+            }
+        } catch (RuntimeException e) {
+            // keep the incrementally maintained statistics
+            LOG.error("Could not rebuild stats of " + name, e);
+        }
     }
 
     /**
@@ -170,7 +682,42 @@ public class TableStats {
      * @return The estimated cost of scanning the table.
      */
     public double estimateScanCost() {
-        return ((HeapFile)Database.getCatalog().getDatabaseFile(tableid)).numPages() * ioCostPerPage;
+        return numPages() * ioCostPerPage;
+    }
+
+    /**
+     * The number of entries an internal page of a B+ tree is assumed to
+     * point to, to estimate the height of the tree.
+     */
+    static final int BTREE_FANOUT = 100;
+
+    /**
+     * Estimates the cost of scanning the range of the B+ tree of this table
+     * that holds a fraction selectivity of its tuples: one page per level to
+     * descend from the root, plus the leaf pages of the range. The tuples are
+     * stored in the leaves in key order, so the matching tuples are on
+     * adjacent pages.
+     *
+     * @param selectivity
+     *            the selectivity of the range predicate on the key field
+     * @return The estimated cost of the index range scan, comparable to
+     *         {@link #estimateScanCost}
+     */
+    public double estimateIndexScanCost(double selectivity) {
+        int pages = numPages();
+        double height = Math.ceil(Math.log(Math.max(pages, 2)) / Math.log(BTREE_FANOUT));
+        return (height + Math.max(1, Math.ceil(selectivity * pages))) * ioCostPerPage;
+    }
+
+    /** @return the number of pages of the file that stores the table */
+    private int numPages() {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (file instanceof HeapFile) {
+            return ((HeapFile) file).numPages();
+        } else if (file instanceof BTreeFile) {
+            return ((BTreeFile) file).numPages();
+        }
+        return 1;
     }
 
     /**
@@ -182,18 +729,9 @@ public class TableStats {
      * @return The estimated cardinality of the scan with the specified
      *         selectivityFactor
      */
-    public int estimateTableCardinality(double selectivityFactor) {
+    public synchronized int estimateTableCardinality(double selectivityFactor) {
 
-        return (int)(getNumberTupleInTable() * selectivityFactor);
-    }
-
-    private int getNumberTupleInTable() {
-        if (intHistogramTreeMap.size() > 0) {
-            IntHistogram intHistogram = intHistogramTreeMap.values().iterator().next();
-            return intHistogram.getNumTuples();
-        } else {
-            return 0;
-        }
+        return (int)(numTuples * selectivityFactor);
     }
 
     /**
@@ -223,7 +761,7 @@ public class TableStats {
      * @return The estimated selectivity (fraction of tuples that satisfy) the
      *         predicate
      */
-    public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
+    public synchronized double estimateSelectivity(int field, Predicate.Op op, Field constant) {
         if (intHistogramTreeMap.containsKey(field)) {
             return intHistogramTreeMap.get(field).estimateSelectivity(op, ((IntField)constant).getValue());
         } else if (stringHistogramTreeMap.containsKey(field)) {
@@ -233,12 +771,108 @@ public class TableStats {
         }
     }
 
+    /**
+     * Estimate the number of distinct values of a field. Values that were
+     * deleted are still counted until the statistics are rebuilt.
+     * <p>
+     * Statistics built from a sample only saw some of the values. The values
+     * of the rest of the table are assumed to be new in the proportion of
+     * the sampled tuples whose value no other sampled tuple had, roughly: a
+     * field whose sampled values all differ is taken to be unique, and one
+     * whose sampled values repeat a lot to have shown all of its values.
+     *
+     * @param field
+     *            the index of the field
+     * @return the estimated number of distinct values, between 1 and the
+     *         number of tuples
+     */
+    public synchronized int estimateDistinct(int field) {
+        HyperLogLog sketch = distinctSketches.get(field);
+        if (sketch == null || numTuples == 0) {
+            return 1;
+        }
+        double distinct = sketch.estimate();
+        if (sampleFraction < 1 && sampledTuples > 0 && sampledTuples < numTuples) {
+            double unique = Math.min(1.0, distinct / sampledTuples);
+            distinct += (numTuples - sampledTuples) * unique * unique;
+        }
+        return (int) Math.max(1, Math.min(numTuples, Math.round(distinct)));
+    }
+
+    /**
+     * Estimate the selectivity of the join predicate <tt>field op
+     * otherField</tt> over the cross product of this table and other, from
+     * their histograms.
+     *
+     * @return the estimated selectivity, or -1 if the fields are not both
+     *         integer fields
+     */
+    public double estimateJoinSelectivity(int field, Predicate.Op op, TableStats other,
+            int otherField) {
+        double[][] distribution;
+        synchronized (other) {
+            IntHistogram histogram = other.intHistogramTreeMap.get(otherField);
+            if (histogram == null) {
+                return -1;
+            }
+            distribution = histogram.distribution();
+        }
+        synchronized (this) {
+            IntHistogram histogram = intHistogramTreeMap.get(field);
+            if (histogram == null) {
+                return -1;
+            }
+            return histogram.estimateJoinSelectivity(op, distribution);
+        }
+    }
+
+    /**
+     * The number of observed selectivities a TableStats keeps, the least
+     * recently used ones are dropped first
+     */
+    static final int MAX_OBSERVED_SELECTIVITIES = 256;
+
+    // selectivities of conjunctions of predicates observed while running
+    // queries, keyed by CardinalityFeedback.key
+    private final LinkedHashMap<String, Double> observedSelectivities =
+            new LinkedHashMap<String, Double>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                protected boolean removeEldestEntry(Map.Entry<String, Double> eldest) {
+                    return size() > MAX_OBSERVED_SELECTIVITIES;
+                }
+            };
+
+    /**
+     * Record the selectivity a conjunction of predicates on this table had
+     * when a query ran, so that later queries with the same predicates use it
+     * instead of the estimate from the histograms.
+     *
+     * @param predicates
+     *            the conjunction, see {@link CardinalityFeedback#key}
+     * @param selectivity
+     *            the fraction of the tuples of the table that satisfied it
+     */
+    public synchronized void recordObservedSelectivity(String predicates, double selectivity) {
+        observedSelectivities.put(predicates, Math.max(0.0, Math.min(1.0, selectivity)));
+    }
+
+    /**
+     * @param predicates
+     *            a conjunction of predicates, see {@link CardinalityFeedback#key}
+     * @return the selectivity the conjunction was last observed to have, or
+     *         null if no query with it has run since the statistics were built
+     */
+    public synchronized Double getObservedSelectivity(String predicates) {
+        return observedSelectivities.get(predicates);
+    }
+
     /**
      * return the total number of tuples in this table
      * */
-    public int totalTuples() {
+    public synchronized int totalTuples() {
         // some code goes here
-        return 0;
+        return numTuples;
     }
 
 }
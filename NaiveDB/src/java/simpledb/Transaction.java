@@ -9,15 +9,31 @@ import java.io.*;
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly true for a transaction that only reads, from a
+     *        snapshot of the database as of its start, without taking locks
+     *        (see {@link BufferPool#beginSnapshot})
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly) {
+            // nothing to log or recover
+            Database.getBufferPool().beginSnapshot(tid);
+            return;
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -29,6 +45,10 @@ public class Transaction {
         return tid;
     }
 
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
     /** Finish the transaction */
     public void commit() throws IOException {
         transactionComplete(false);
@@ -44,11 +64,14 @@ public class Transaction {
 
         if (started) {
             //write commit / abort records
-            if (abort) {
+            if (readOnly) {
+                // a snapshot has nothing to commit or roll back
+            } else if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
+                //log the changes of the dirty pages of this transaction;
+                //the pages are written later (NO-FORCE)
+                Database.getBufferPool().logPages(tid);
                 Database.getLogFile().logCommit(tid);
             }
 
@@ -93,6 +93,10 @@ public class Tuple implements Serializable {
     public String toString() {
         StringBuilder column = new StringBuilder();
         for (Map.Entry<Integer, Field> entry : fieldTreeMap.entrySet()) {
+            // fields that were not decoded by a projecting scan are unset
+            if (entry.getValue() == null) {
+                continue;
+            }
             column.append(entry.getValue().toString() + "\t");
         }
         column.deleteCharAt(column.length() - 1);
@@ -121,21 +125,15 @@ public class Tuple implements Serializable {
     public static Tuple merge(Tuple t1, Tuple t2) {
         TupleDesc mergedTupleDesc = TupleDesc.merge(t1.getTupleDesc(), t2.getTupleDesc());
         Tuple ret = new Tuple(mergedTupleDesc);
-        Iterator<Field> fieldsOfT1 = t1.fields();
 
-        int i = 0;
-        while (fieldsOfT1.hasNext()) {
-            Field field = fieldsOfT1.next();
-            ret.setField(i, field);
-            i++;
+        // copy by index, the tuples may have unset fields (see SeqScan#setProjection)
+        for (Map.Entry<Integer, Field> entry : t1.fieldTreeMap.entrySet()) {
+            ret.setField(entry.getKey(), entry.getValue());
         }
 
-        Iterator<Field> fieldsOfT2 = t2.fields();
-
-        while (fieldsOfT2.hasNext()) {
-            Field field = fieldsOfT2.next();
-            ret.setField(i, field);
-            i++;
+        int offset = t1.getTupleDesc().numFields();
+        for (Map.Entry<Integer, Field> entry : t2.fieldTreeMap.entrySet()) {
+            ret.setField(offset + entry.getKey(), entry.getValue());
         }
 
         return ret;
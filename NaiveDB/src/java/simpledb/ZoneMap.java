@@ -0,0 +1,309 @@
+package simpledb;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * ZoneMap keeps the minimum and maximum of every integer column of every
+ * page of a {@link HeapFile}, so that scans with pushed-down predicates can
+ * skip pages whose values cannot satisfy them.
+ * <p>
+ * The range of a page is recomputed whenever the page is written or read from
+ * disk while no transaction may be changing it, and widened by every insert;
+ * deletes leave it unchanged, so a range may be wider than the values
+ * actually on the page but never narrower. A page that is written or read
+ * while a transaction is writing it may hold uncommitted deletes, so its
+ * range is only widened, never narrowed to them. A page whose range is not
+ * known is never skipped.
+ * <p>
+ * The zone map is persisted next to the data file (<tt>table.dat</tt> has
+ * its zone map in <tt>table.zm</tt>) as a 24 byte header (magic number,
+ * number of integer columns, and the length and modification time of the
+ * data file when the side file was last written) followed by one fixed-size
+ * record per page: a known flag byte and a (min, max) int pair per integer
+ * column. A side file whose data file no longer has that length and
+ * modification time is discarded, since the data file was then written
+ * without it. The side file of a data file in the temporary directory is
+ * deleted on exit, like the data file.
+ */
+public class ZoneMap {
+    private static Logger LOG = Logger.getLogger(ZoneMap.class);
+
+    private static final int MAGIC = 0x5a4d4151;
+    private static final int HEADER_SIZE = 24;
+
+    private final File dataFile;
+    private final File file;
+    // the indexes of the integer columns, and the reverse mapping
+    private final int[] intColumns;
+    private final int[] columnSlot;
+    private final int recordSize;
+
+    private boolean loaded = false;
+    private boolean[] known = new boolean[0];
+    // mins[page][slot] and maxs[page][slot] for slot = columnSlot[field]
+    private int[][] mins = new int[0][];
+    private int[][] maxs = new int[0][];
+
+    /**
+     * Create the zone map of the heap file stored in dataFile.
+     *
+     * @param dataFile the data file of the heap file
+     * @param td the schema of the heap file
+     */
+    public ZoneMap(File dataFile, TupleDesc td) {
+        this.dataFile = dataFile;
+        String path = dataFile.getPath();
+        if (path.endsWith(".dat")) {
+            path = path.substring(0, path.length() - ".dat".length());
+        }
+        this.file = new File(path + ".zm");
+        if (isTemporary(dataFile)) {
+            file.deleteOnExit();
+        }
+
+        int n = 0;
+        columnSlot = new int[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            columnSlot[i] = td.getFieldType(i) == Type.INT_TYPE ? n++ : -1;
+        }
+        intColumns = new int[n];
+        for (int i = 0; i < td.numFields(); i++) {
+            if (columnSlot[i] >= 0) {
+                intColumns[columnSlot[i]] = i;
+            }
+        }
+        recordSize = 1 + 8 * n;
+    }
+
+    /** @return true if f is in the temporary directory */
+    private static boolean isTemporary(File f) {
+        try {
+            File tmp = new File(System.getProperty("java.io.tmpdir")).getCanonicalFile();
+            return tmp.equals(f.getCanonicalFile().getParentFile());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the file the zone map is persisted in
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return false if no tuple on page pageNo can satisfy all of the
+     *         predicates, true if some may
+     */
+    public synchronized boolean mayMatch(int pageNo, Predicate[] predicates) {
+        load();
+        if (pageNo >= known.length || !known[pageNo]) {
+            return true;
+        }
+        int[] min = mins[pageNo], max = maxs[pageNo];
+        if (intColumns.length > 0 && min[0] > max[0]) {
+            // no tuples on the page
+            return false;
+        }
+        for (Predicate p : predicates) {
+            int slot = columnSlot[p.getField()];
+            if (slot < 0) {
+                continue;
+            }
+            int v = ((IntField) p.getOperand()).getValue();
+            boolean possible;
+            switch (p.getOp()) {
+                case EQUALS:
+                case LIKE:
+                    possible = min[slot] <= v && v <= max[slot];
+                    break;
+                case NOT_EQUALS:
+                    possible = !(min[slot] == v && max[slot] == v);
+                    break;
+                case GREATER_THAN:
+                    possible = max[slot] > v;
+                    break;
+                case GREATER_THAN_OR_EQ:
+                    possible = max[slot] >= v;
+                    break;
+                case LESS_THAN:
+                    possible = min[slot] < v;
+                    break;
+                case LESS_THAN_OR_EQ:
+                    possible = min[slot] <= v;
+                    break;
+                default:
+                    possible = true;
+            }
+            if (!possible) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Widen the range of page pageNo to include t. Only in memory, the page
+     * will be persisted with its exact range when it is written.
+     */
+    public synchronized void tupleInserted(int pageNo, Tuple t) {
+        load();
+        if (pageNo >= known.length || !known[pageNo]) {
+            return;
+        }
+        for (int slot = 0; slot < intColumns.length; slot++) {
+            int v = ((IntField) t.getField(intColumns[slot])).getValue();
+            mins[pageNo][slot] = Math.min(mins[pageNo][slot], v);
+            maxs[pageNo][slot] = Math.max(maxs[pageNo][slot], v);
+        }
+    }
+
+    /**
+     * Recompute the exact range of page from its tuples and persist it.
+     * Called when the page is written to or read from disk.
+     *
+     * @param page the page
+     * @param onlyIfUnknown if true, pages whose range is already known are
+     *        left alone
+     */
+    public synchronized void pageUpdated(HeapPage page, boolean onlyIfUnknown) {
+        load();
+        int pageNo = page.getId().getPageNumber();
+        if (onlyIfUnknown && pageNo < known.length && known[pageNo]) {
+            return;
+        }
+        ensureCapacity(pageNo + 1);
+        int[][] range = range(page);
+        known[pageNo] = true;
+        mins[pageNo] = range[0];
+        maxs[pageNo] = range[1];
+        persist(pageNo);
+    }
+
+    /**
+     * Widen the range of page to include all of its tuples, without
+     * narrowing it. Called instead of {@link #pageUpdated} when the page may
+     * hold uncommitted changes, and when a rollback puts tuples back.
+     */
+    public synchronized void pageWidened(HeapPage page) {
+        load();
+        int pageNo = page.getId().getPageNumber();
+        if (pageNo >= known.length || !known[pageNo]) {
+            return;
+        }
+        int[][] range = range(page);
+        for (int slot = 0; slot < intColumns.length; slot++) {
+            mins[pageNo][slot] = Math.min(mins[pageNo][slot], range[0][slot]);
+            maxs[pageNo][slot] = Math.max(maxs[pageNo][slot], range[1][slot]);
+        }
+        persist(pageNo);
+    }
+
+    /** @return the minimums and the maximums of the tuples of page */
+    private int[][] range(HeapPage page) {
+        int[] min = new int[intColumns.length];
+        int[] max = new int[intColumns.length];
+        Arrays.fill(min, Integer.MAX_VALUE);
+        Arrays.fill(max, Integer.MIN_VALUE);
+        boolean[] projection = new boolean[columnSlot.length];
+        for (int field : intColumns) {
+            projection[field] = true;
+        }
+        Iterator<Tuple> it = page.iterator(null, projection);
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            for (int slot = 0; slot < intColumns.length; slot++) {
+                int v = ((IntField) t.getField(intColumns[slot])).getValue();
+                min[slot] = Math.min(min[slot], v);
+                max[slot] = Math.max(max[slot], v);
+            }
+        }
+        return new int[][] { min, max };
+    }
+
+    private void ensureCapacity(int numPages) {
+        if (known.length >= numPages) {
+            return;
+        }
+        int n = Math.max(numPages, known.length * 2);
+        known = Arrays.copyOf(known, n);
+        mins = Arrays.copyOf(mins, n);
+        maxs = Arrays.copyOf(maxs, n);
+    }
+
+    /**
+     * Read the persisted zone map, once.
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+        boolean discard = false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != intColumns.length) {
+                LOG.info("Discarding zone map " + file + " with a different layout");
+                discard = true;
+            } else if (in.readLong() != dataFile.length()
+                    || in.readLong() != dataFile.lastModified()) {
+                LOG.info("Discarding stale zone map " + file);
+                discard = true;
+            }
+            int numPages = discard ? 0
+                    : (int) ((file.length() - HEADER_SIZE) / recordSize);
+            ensureCapacity(numPages);
+            for (int i = 0; i < numPages; i++) {
+                known[i] = in.readByte() != 0;
+                mins[i] = new int[intColumns.length];
+                maxs[i] = new int[intColumns.length];
+                for (int slot = 0; slot < intColumns.length; slot++) {
+                    mins[i][slot] = in.readInt();
+                    maxs[i][slot] = in.readInt();
+                }
+                if (!known[i]) {
+                    mins[i] = maxs[i] = null;
+                }
+            }
+        } catch (IOException e) {
+            LOG.error(e);
+            Arrays.fill(known, false);
+        }
+        if (discard) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Write the record of pageNo to the side file, along with the current
+     * length and modification time of the data file.
+     */
+    private void persist(int pageNo) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(recordSize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.writeInt(MAGIC);
+            raf.writeInt(intColumns.length);
+            raf.writeLong(dataFile.length());
+            raf.writeLong(dataFile.lastModified());
+            dos.writeByte(known[pageNo] ? 1 : 0);
+            for (int slot = 0; slot < intColumns.length; slot++) {
+                dos.writeInt(mins[pageNo][slot]);
+                dos.writeInt(maxs[pageNo][slot]);
+            }
+            raf.seek(HEADER_SIZE + (long) pageNo * recordSize);
+            raf.write(baos.toByteArray());
+        } catch (IOException e) {
+            // the zone map is only an optimization, the scan reads the page
+            LOG.error(e);
+            known[pageNo] = false;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class AccessPathTest extends SimpleDbTestBase {
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private BTreeFile bf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        // keys from 0 to 999, so every key is stored about 20 times, which
+        // spreads some of them over two leaf pages
+        BTreeFile random = BTreeUtility.createRandomBTreeFile(2, 20000, 1000, null, tuples, 0);
+        bf = new BTreeFile(random.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(bf, "b");
+        TableStats.setTableStats("b", new TableStats(bf.getId(), TableStats.IOCOSTPERPAGE));
+    }
+
+    private LogicalPlan plan(String sql) throws Exception {
+        return new Parser().generateLogicalPlan(new TransactionId(), sql);
+    }
+
+    /** @return the scan at the bottom of a plan that reads a single table */
+    private static OpIterator leaf(OpIterator o) {
+        while (o instanceof Operator) {
+            o = ((Operator) o).getChildren()[0];
+        }
+        return o;
+    }
+
+    @Test public void indexScanCost() {
+        TableStats s = TableStats.getTableStats("b");
+        assertTrue(s.estimateIndexScanCost(0.001) < s.estimateScanCost());
+        assertTrue(s.estimateIndexScanCost(1.0) > s.estimateScanCost());
+    }
+
+    /**
+     * A selective filter on the key should be evaluated by a range scan of
+     * the B+ tree, with the other filters above it.
+     */
+    @Test public void selectiveKeyFilterUsesIndex() throws Exception {
+        for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.EQUALS,
+                Predicate.Op.LESS_THAN, Predicate.Op.GREATER_THAN_OR_EQ }) {
+            int key = op == Predicate.Op.GREATER_THAN_OR_EQ ? 990 : op == Predicate.Op.LESS_THAN ? 10 : 500;
+            LogicalPlan lp = plan("SELECT * FROM b WHERE b.c0 " + op + " " + key + " AND b.c1 < 50000;");
+            OpIterator it = lp.physicalPlan(new TransactionId(), TableStats.getStatsMap(), false);
+
+            OpIterator scan = leaf(it);
+            assertTrue(scan instanceof BTreeScan);
+            IndexPredicate ipred = ((BTreeScan) scan).getIndexPredicate();
+            assertEquals(op, ipred.getOp());
+            assertEquals(new IntField(key), ipred.getField());
+            assertNotNull(lp.getScanCost("b"));
+            assertTrue(lp.getScanCost("b") < TableStats.getTableStats("b").estimateScanCost());
+            SystemTestUtil.matchTuples(it, SystemTestUtil.filterTuples(tuples,
+                    new Predicate(0, op, new IntField(key)),
+                    new Predicate(1, Predicate.Op.LESS_THAN, new IntField(50000))));
+        }
+    }
+
+    /**
+     * A range that covers most of the table is cheaper to read with a full
+     * scan.
+     */
+    @Test public void wideRangeUsesSeqScan() throws Exception {
+        LogicalPlan lp = plan("SELECT * FROM b WHERE b.c0 > 5;");
+        OpIterator it = lp.physicalPlan(new TransactionId(), TableStats.getStatsMap(), false);
+        assertTrue(leaf(it) instanceof SeqScan);
+        assertTrue(lp.getIndexScans().isEmpty());
+        SystemTestUtil.matchTuples(it, SystemTestUtil.filterTuples(tuples,
+                new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(5))));
+
+        // a filter on another field cannot use the index
+        lp = plan("SELECT * FROM b WHERE b.c1 = 7;");
+        lp.physicalPlan(new TransactionId(), TableStats.getStatsMap(), false);
+        assertTrue(lp.getIndexScans().isEmpty());
+    }
+
+    /**
+     * A prepared statement should re-target its index scan to the value bound
+     * to the parameter.
+     */
+    @Test public void preparedIndexScan() throws Exception {
+        PreparedStatement ps = new Parser().prepare("SELECT * FROM b WHERE b.c0 = ?;");
+        for (int key = 100; key < 105; key++) {
+            ps.setInt(1, key);
+            Query q = ps.execute(new TransactionId());
+            SystemTestUtil.matchTuples(q.getPhysicalPlan(), SystemTestUtil.filterTuples(tuples,
+                    new Predicate(0, Predicate.Op.EQUALS, new IntField(key))));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(AccessPathTest.class);
+    }
+}
@@ -0,0 +1,146 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class AdaptiveJoinTest extends SimpleDbTestBase {
+
+    private static final String QUERY =
+            "SELECT * FROM a, b, c WHERE a.c0 = b.c0 AND b.c1 = c.c1 AND a.c1 = 7;";
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        HeapFile a = SystemTestUtil.createRandomHeapFile(2, 1000, 10, null, null, "c");
+        HeapFile b = SystemTestUtil.createRandomHeapFile(2, 200, 10, null, null, "c");
+        HeapFile c = SystemTestUtil.createRandomHeapFile(2, 30, 10, null, null, "c");
+        Database.getCatalog().addTable(a, "a");
+        Database.getCatalog().addTable(b, "b");
+        Database.getCatalog().addTable(c, "c");
+
+        // statistics of a table in which c1 is always 5, so a.c1 = 7 is
+        // estimated to select almost nothing, while it selects a tenth of a
+        Map<Integer, Integer> columnSpecification = new HashMap<Integer, Integer>();
+        columnSpecification.put(1, 5);
+        HeapFile stale = SystemTestUtil.createRandomHeapFile(2, 1000, 10, columnSpecification, null, "c");
+        TableStats.setTableStats("a", new TableStats(stale.getId(), TableStats.IOCOSTPERPAGE));
+        TableStats.setTableStats("b", new TableStats(b.getId(), TableStats.IOCOSTPERPAGE));
+        TableStats.setTableStats("c", new TableStats(c.getId(), TableStats.IOCOSTPERPAGE));
+    }
+
+    private static AdaptiveJoin findAdaptiveJoin(OpIterator o) {
+        while (o instanceof Operator) {
+            if (o instanceof AdaptiveJoin) {
+                return (AdaptiveJoin) o;
+            }
+            o = ((Operator) o).getChildren()[0];
+        }
+        return null;
+    }
+
+    @Test public void rowCounters() throws Exception {
+        OpIterator scan = TestUtil.createTupleList(1, new int[] { 1, 2, 3, 4, 5, 6 });
+        Filter f = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(2)), scan);
+        f.open();
+        f.next();
+        assertEquals(1, f.getActualCardinality());
+        assertFalse(f.hasCompletedPass());
+        while (f.hasNext()) {
+            f.next();
+        }
+        assertTrue(f.hasCompletedPass());
+        assertEquals(4, f.getActualCardinality());
+
+        // a second pass keeps the count of the complete first one
+        f.rewind();
+        f.next();
+        assertEquals(4, f.getActualCardinality());
+        f.close();
+
+        Materialize m = new Materialize(TestUtil.createTupleList(1, new int[] { 1, 2, 3 }));
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        for (int i = 1; i <= 3; i++) {
+            rows.add(new ArrayList<Integer>(Arrays.asList(i)));
+        }
+        SystemTestUtil.matchTuples(m, rows);
+        assertEquals(3, m.getActualCardinality());
+    }
+
+    /**
+     * A query should record the selectivity of the filters it observed.
+     */
+    @Test public void feedbackIntoTableStats() throws Exception {
+        Predicate p = new Predicate(1, Predicate.Op.EQUALS, new IntField(7));
+        String key = CardinalityFeedback.key(Collections.singletonList(p));
+        TableStats stats = TableStats.getTableStats("a");
+        assertNull(stats.getObservedSelectivity(key));
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, "SELECT * FROM a WHERE a.c1 = 7;");
+        Query q = new Query(lp.physicalPlan(tid, TableStats.getStatsMap(), false), tid);
+        q.start();
+        int n = 0;
+        while (q.hasNext()) {
+            q.next();
+            n++;
+        }
+        q.close();
+
+        assertNotNull(stats.getObservedSelectivity(key));
+        assertEquals((double) n / stats.totalTuples(), stats.getObservedSelectivity(key), 1e-9);
+    }
+
+    /**
+     * With an adaptive threshold, a misestimated filter should make the plan
+     * re-order its joins, and return the same tuples.
+     */
+    @Test public void reoptimizeMisestimatedJoin() throws Exception {
+        LogicalPlan lp = new Parser().generateLogicalPlan(new TransactionId(), QUERY);
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        OpIterator plain = lp.physicalPlan(new TransactionId(), TableStats.getStatsMap(), false);
+        plain.open();
+        while (plain.hasNext()) {
+            expected.add(SystemTestUtil.tupleToList(plain.next()));
+        }
+        plain.close();
+        assertTrue(expected.size() > 0);
+
+        lp = new Parser().generateLogicalPlan(new TransactionId(), QUERY);
+        lp.setAdaptiveThreshold(4);
+        OpIterator it = lp.physicalPlan(new TransactionId(), TableStats.getStatsMap(), false);
+        AdaptiveJoin aj = findAdaptiveJoin(it);
+        assertNotNull(aj);
+        SystemTestUtil.matchTuples(it, expected);
+        assertTrue(aj.isReoptimized());
+    }
+
+    @Test public void noAdaptiveJoinWithoutThreshold() throws Exception {
+        LogicalPlan lp = new Parser().generateLogicalPlan(new TransactionId(), QUERY);
+        assertNull(findAdaptiveJoin(lp.physicalPlan(new TransactionId(), TableStats.getStatsMap(), false)));
+        assertTrue(AdaptiveJoin.misestimated(100, 1, 4));
+        assertFalse(AdaptiveJoin.misestimated(100, 30, 4));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(AdaptiveJoinTest.class);
+    }
+}
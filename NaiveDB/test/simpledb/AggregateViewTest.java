@@ -0,0 +1,312 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class AggregateViewTest extends SimpleDbTestBase {
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile f;
+    private int tableId;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        f = SystemTestUtil.createRandomHeapFile(2, 500, 10, null, tuples, "c");
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        tableId = f.getId();
+    }
+
+    private AggregateView createView(Aggregator.Op op, TransactionId tid) throws Exception {
+        AggregateView view = new AggregateView(tableId, 1, 0, op);
+        view.populate(tid);
+        Database.getBufferPool().registerAggregateView(view);
+        return view;
+    }
+
+    private static Map<Integer, Integer> viewToMap(AggregateView view, TransactionId tid)
+            throws Exception {
+        HashMap<Integer, Integer> result = new HashMap<Integer, Integer>();
+        OpIterator it = view.iterator(tid, "t");
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            result.put(((IntField) t.getField(0)).getValue(), ((IntField) t.getField(1)).getValue());
+        }
+        it.close();
+        return result;
+    }
+
+    private Map<Integer, Integer> expected(Aggregator.Op op) {
+        HashMap<Integer, Integer> result = new HashMap<Integer, Integer>();
+        HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        for (ArrayList<Integer> t : tuples) {
+            int g = t.get(0), v = t.get(1);
+            Integer prev = result.get(g);
+            counts.put(g, counts.containsKey(g) ? counts.get(g) + 1 : 1);
+            if (prev == null) {
+                result.put(g, op == Aggregator.Op.COUNT ? 1 : v);
+            } else if (op == Aggregator.Op.MIN) {
+                result.put(g, Math.min(prev, v));
+            } else if (op == Aggregator.Op.MAX) {
+                result.put(g, Math.max(prev, v));
+            } else if (op == Aggregator.Op.COUNT) {
+                result.put(g, prev + 1);
+            } else {
+                result.put(g, prev + v);
+            }
+        }
+        if (op == Aggregator.Op.AVG) {
+            for (Map.Entry<Integer, Integer> e : result.entrySet()) {
+                e.setValue(e.getValue() / counts.get(e.getKey()));
+            }
+        }
+        return result;
+    }
+
+    private static Tuple makeTuple(int g, int v) {
+        Tuple t = new Tuple(Utility.getTupleDesc(2));
+        t.setField(0, new IntField(g));
+        t.setField(1, new IntField(v));
+        return t;
+    }
+
+    /**
+     * The populated view should agree with a full recomputation.
+     */
+    @Test public void populate() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (Aggregator.Op op : new Aggregator.Op[]{Aggregator.Op.COUNT, Aggregator.Op.SUM,
+                Aggregator.Op.AVG, Aggregator.Op.MIN, Aggregator.Op.MAX}) {
+            Assert.assertEquals(expected(op), viewToMap(createView(op, tid), tid));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Inserts through the BufferPool should be reflected without a rescan.
+     */
+    @Test public void insertMaintainsView() throws Exception {
+        TransactionId tid = new TransactionId();
+        AggregateView sum = createView(Aggregator.Op.SUM, tid);
+        AggregateView max = createView(Aggregator.Op.MAX, tid);
+
+        Database.getBufferPool().insertTuple(tid, tableId, makeTuple(3, 1000));
+        Database.getBufferPool().insertTuple(tid, tableId, makeTuple(42, 7));
+        tuples.add(new ArrayList<Integer>(java.util.Arrays.asList(3, 1000)));
+        tuples.add(new ArrayList<Integer>(java.util.Arrays.asList(42, 7)));
+
+        Assert.assertEquals(expected(Aggregator.Op.SUM), viewToMap(sum, tid));
+        Assert.assertEquals(expected(Aggregator.Op.MAX), viewToMap(max, tid));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Deleting the current minimum of a group should expose the next smallest
+     * value, and deleting the last tuple of a group should remove the group.
+     */
+    @Test public void deleteMaintainsMin() throws Exception {
+        TransactionId tid = new TransactionId();
+        AggregateView min = createView(Aggregator.Op.MIN, tid);
+
+        int group = tuples.get(0).get(0);
+        int minValue = expected(Aggregator.Op.MIN).get(group);
+
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        ArrayList<Tuple> toDelete = new ArrayList<Tuple>();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (((IntField) t.getField(0)).getValue() == group
+                    && ((IntField) t.getField(1)).getValue() == minValue) {
+                toDelete.add(t);
+            }
+        }
+        it.close();
+        for (Tuple t : toDelete) {
+            Database.getBufferPool().deleteTuple(tid, t);
+        }
+        for (int i = tuples.size() - 1; i >= 0; i--) {
+            if (tuples.get(i).get(0) == group && tuples.get(i).get(1) == minValue) {
+                tuples.remove(i);
+            }
+        }
+
+        Assert.assertEquals(expected(Aggregator.Op.MIN), viewToMap(min, tid));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The changes of an aborted transaction should be reverted.
+     */
+    @Test public void abortRevertsView() throws Exception {
+        TransactionId tid = new TransactionId();
+        AggregateView count = createView(Aggregator.Op.COUNT, tid);
+        Map<Integer, Integer> before = viewToMap(count, tid);
+
+        Database.getBufferPool().insertTuple(tid, tableId, makeTuple(1, 1));
+        Database.getBufferPool().insertTuple(tid, tableId, makeTuple(99, 1));
+        Assert.assertFalse(before.equals(viewToMap(count, tid)));
+
+        Database.getBufferPool().transactionComplete(tid, false);
+        Assert.assertEquals(before, viewToMap(count, tid));
+    }
+
+    /**
+     * Reads the view as reader in a new thread, into result.
+     */
+    private static Thread readView(final AggregateView view, final TransactionId reader,
+            final Map<Integer, Integer> result, final ArrayList<Throwable> errors) {
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    result.putAll(viewToMap(view, reader));
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    /**
+     * Other transactions should not see the changes of a transaction before
+     * it commits, but wait for it.
+     */
+    @Test public void uncommittedChangesAreHidden() throws Exception {
+        TransactionId tid = new TransactionId();
+        AggregateView count = createView(Aggregator.Op.COUNT, tid);
+        Database.getBufferPool().transactionComplete(tid);
+        TransactionId writer = new TransactionId();
+        TransactionId reader = new TransactionId();
+
+        Database.getBufferPool().insertTuple(writer, tableId, makeTuple(99, 1));
+        Map<Integer, Integer> seen = new HashMap<Integer, Integer>();
+        ArrayList<Throwable> errors = new ArrayList<Throwable>();
+        Thread read = readView(count, reader, seen, errors);
+        read.join(500);
+        Assert.assertTrue("the reader did not wait for the writer", read.isAlive());
+        tuples.add(new ArrayList<Integer>(java.util.Arrays.asList(99, 1)));
+        Assert.assertEquals(expected(Aggregator.Op.COUNT), viewToMap(count, writer));
+
+        Database.getBufferPool().transactionComplete(writer);
+        read.join(10000);
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+        Assert.assertEquals(expected(Aggregator.Op.COUNT), seen);
+        Database.getBufferPool().transactionComplete(reader);
+    }
+
+    /**
+     * A transaction reading the view twice should get the same results,
+     * since writers wait for it.
+     */
+    @Test public void viewReadsAreRepeatable() throws Exception {
+        TransactionId tid = new TransactionId();
+        AggregateView count = createView(Aggregator.Op.COUNT, tid);
+        Database.getBufferPool().transactionComplete(tid);
+        final TransactionId writer = new TransactionId();
+        TransactionId reader = new TransactionId();
+
+        Map<Integer, Integer> before = viewToMap(count, reader);
+        final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+        Thread write = new Thread() {
+            public void run() {
+                try {
+                    Database.getBufferPool().insertTuple(writer, tableId, makeTuple(99, 1));
+                    Database.getBufferPool().transactionComplete(writer);
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }
+        };
+        write.start();
+        write.join(500);
+        Assert.assertTrue("the writer did not wait for the reader", write.isAlive());
+        Assert.assertEquals(before, viewToMap(count, reader));
+
+        Database.getBufferPool().transactionComplete(reader);
+        write.join(10000);
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+        tuples.add(new ArrayList<Integer>(java.util.Arrays.asList(99, 1)));
+        TransactionId after = new TransactionId();
+        Assert.assertEquals(expected(Aggregator.Op.COUNT), viewToMap(count, after));
+        Database.getBufferPool().transactionComplete(after);
+    }
+
+    /**
+     * A snapshot should not see changes committed after it started.
+     */
+    @Test public void snapshotIgnoresLaterCommits() throws Exception {
+        TransactionId tid = new TransactionId();
+        AggregateView count = createView(Aggregator.Op.COUNT, tid);
+        Database.getBufferPool().transactionComplete(tid);
+        Map<Integer, Integer> before = expected(Aggregator.Op.COUNT);
+
+        Transaction snapshot = new Transaction(true);
+        snapshot.start();
+        TransactionId writer = new TransactionId();
+        Database.getBufferPool().insertTuple(writer, tableId, makeTuple(99, 1));
+        Database.getBufferPool().transactionComplete(writer);
+
+        Assert.assertEquals(before, viewToMap(count, snapshot.getId()));
+        snapshot.commit();
+    }
+
+    /**
+     * COUNT without grouping over an empty table should give 0.
+     */
+    @Test public void countOfEmptyTable() throws Exception {
+        HeapFile empty = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        TransactionId tid = new TransactionId();
+        AggregateView count = new AggregateView(empty.getId(), 1, Aggregator.NO_GROUPING,
+                Aggregator.Op.COUNT);
+        count.populate(tid);
+        OpIterator it = count.iterator(tid, "t");
+        it.open();
+        Assert.assertTrue(it.hasNext());
+        Assert.assertEquals(new IntField(0), it.next().getField(0));
+        Assert.assertFalse(it.hasNext());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A matching query should be answered from the view.
+     */
+    @Test public void planUsesView() throws Exception {
+        TransactionId tid = new TransactionId();
+        AggregateView sum = createView(Aggregator.Op.SUM, tid);
+        String name = Database.getCatalog().getTableName(tableId);
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(tableId, "t");
+        lp.addProjectField("t.c0", null);
+        lp.addProjectField("t.c1", "sum");
+        lp.addAggregate("sum", "t.c1", "t.c0");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(tableId, 1));
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+
+        Assert.assertTrue(plan instanceof Project);
+        Assert.assertTrue(((Project) plan).getChildren()[0] instanceof AggregateView.Scan);
+
+        HashMap<Integer, Integer> result = new HashMap<Integer, Integer>();
+        plan.open();
+        while (plan.hasNext()) {
+            Tuple t = plan.next();
+            result.put(((IntField) t.getField(0)).getValue(), ((IntField) t.getField(1)).getValue());
+        }
+        plan.close();
+        Assert.assertEquals(viewToMap(sum, tid), result);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+}
@@ -0,0 +1,156 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class FilterPushdownTest extends SimpleDbTestBase {
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile f;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        f = SystemTestUtil.createRandomHeapFile(3, 3000, 100, null, tuples, "c");
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+    }
+
+    /**
+     * Predicates evaluated on the raw page bytes should agree with Filter.
+     */
+    @Test public void pushedPredicates() throws Exception {
+        TransactionId tid = new TransactionId();
+        Predicate p1 = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(30));
+        Predicate p2 = new Predicate(2, Predicate.Op.LESS_THAN_OR_EQ, new IntField(60));
+
+        SeqScan scan = new SeqScan(tid, f.getId(), "t");
+        scan.addPredicate(p1);
+        scan.addPredicate(p2);
+        ArrayList<ArrayList<Integer>> expected = SystemTestUtil.filterTuples(tuples, p1, p2);
+        SystemTestUtil.matchTuples(scan, expected);
+
+        OpIterator filtered = new Filter(p2, new Filter(p1, new SeqScan(tid, f.getId(), "t")));
+        SystemTestUtil.matchTuples(filtered, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Tuples that were inserted after the page was read are tested as Tuples.
+     */
+    @Test public void decodedAndRawTuples() throws Exception {
+        HeapPageId pid = new HeapPageId(f.getId(), 0);
+        HeapPage page = (HeapPage) f.readPage(pid);
+        page.deleteTuple(page.iterator().next());
+        Tuple t = new Tuple(f.getTupleDesc());
+        t.setField(0, new IntField(1000));
+        t.setField(1, new IntField(0));
+        t.setField(2, new IntField(0));
+        page.insertTuple(t);
+
+        Predicate p = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(999));
+        java.util.Iterator<Tuple> it = page.iterator(new Predicate[]{p});
+        assertTrue(it.hasNext());
+        assertEquals(t, it.next());
+        assertTrue(!it.hasNext());
+
+        // round trip through the page data keeps the undecoded tuples intact
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        int n = 0;
+        java.util.Iterator<Tuple> all = copy.iterator();
+        while (all.hasNext()) {
+            all.next();
+            n++;
+        }
+        assertEquals(copy.numSlots - copy.getNumEmptySlots(), n);
+        assertEquals(Arrays.toString(page.getPageData()), Arrays.toString(copy.getPageData()));
+    }
+
+    /**
+     * The planner should push filters into the scan instead of stacking
+     * Filter operators.
+     */
+    @Test public void plannerPushesFilters() throws Exception {
+        TransactionId tid = new TransactionId();
+        String name = Database.getCatalog().getTableName(f.getId());
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(f.getId(), "t");
+        lp.addProjectField("t.c0", null);
+        lp.addFilter("t.c0", Predicate.Op.GREATER_THAN, "30");
+        lp.addFilter("t.c2", Predicate.Op.LESS_THAN_OR_EQ, "60");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(f.getId(), 1));
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+
+        OpIterator child = ((Project) plan).getChildren()[0];
+        assertTrue(child instanceof SeqScan);
+        assertEquals(2, ((SeqScan) child).getPredicates().size());
+        SystemTestUtil.matchTuples(plan, SystemTestUtil.projectTuples(SystemTestUtil.filterTuples(tuples,
+                new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(30)),
+                new Predicate(2, Predicate.Op.LESS_THAN_OR_EQ, new IntField(60))), 0));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A projecting scan should only set the projected fields, and joins over
+     * such tuples should keep every field at its index.
+     */
+    @Test public void projectedScan() throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, f.getId(), "t");
+        scan.setProjection(new boolean[]{false, true, false});
+        scan.open();
+        assertTrue(scan.hasNext());
+        Tuple t = scan.next();
+        assertEquals(null, t.getField(0));
+        assertTrue(t.getField(1) != null);
+        assertEquals(null, t.getField(2));
+        scan.close();
+
+        Tuple other = new Tuple(Utility.getTupleDesc(1));
+        other.setField(0, new IntField(7));
+        Tuple merged = Tuple.merge(t, other);
+        assertEquals(t.getField(1), merged.getField(1));
+        assertEquals(new IntField(7), merged.getField(3));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The planner should only decode the referenced fields.
+     */
+    @Test public void plannerPushesProjection() throws Exception {
+        TransactionId tid = new TransactionId();
+        String name = Database.getCatalog().getTableName(f.getId());
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(f.getId(), "t");
+        lp.addProjectField("t.c2", null);
+        lp.addFilter("t.c0", Predicate.Op.GREATER_THAN, "30");
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(f.getId(), 1));
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+
+        SeqScan scan = (SeqScan) ((Project) plan).getChildren()[0];
+        assertTrue(Arrays.equals(new boolean[]{false, false, true}, scan.getProjection()));
+        SystemTestUtil.matchTuples(plan, SystemTestUtil.projectTuples(SystemTestUtil.filterTuples(tuples,
+                new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(30))), 2));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FilterPushdownTest.class);
+    }
+}
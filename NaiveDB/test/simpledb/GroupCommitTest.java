@@ -0,0 +1,102 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.CyclicBarrier;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+
+    private File logFile;
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        logFile = File.createTempFile("groupcommit", ".log");
+        logFile.deleteOnExit();
+        log = new LogFile(logFile);
+    }
+
+    @After public void tearDown() {
+        TestUtil.deleteLogSegments(logFile);
+    }
+
+    private void commit() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logCommit(tid);
+    }
+
+    /**
+     * A single committer forces the log for every commit.
+     */
+    @Test public void sequentialCommits() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            commit();
+        }
+        assertEquals(5, log.getCommitFlushes());
+        assertEquals(5, log.getFlushedCommits());
+        assertEquals(1.0, log.getCommitsPerFlush(), 1e-9);
+    }
+
+    /**
+     * Concurrent committers should share flushes, and every commit must be
+     * covered by one.
+     */
+    @Test public void concurrentCommitsShareFlushes() throws Exception {
+        final int threads = 8;
+        final int commits = 20;
+        // wait long enough for all threads to join each flush
+        log.setGroupCommit(200000, threads);
+        final CyclicBarrier barrier = new CyclicBarrier(threads);
+        final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < commits; j++) {
+                            barrier.await();
+                            commit();
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            workers.add(t);
+            t.start();
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(threads * commits, log.getFlushedCommits());
+        assertTrue("commits per flush: " + log.getCommitsPerFlush(),
+                log.getCommitsPerFlush() > 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidBatchSize() {
+        log.setGroupCommit(0, 0);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
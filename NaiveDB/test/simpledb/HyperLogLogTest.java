@@ -0,0 +1,109 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HyperLogLogTest extends SimpleDbTestBase {
+
+    private static void assertWithin(long expected, long actual, double relativeError) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                Math.abs(actual - expected) <= relativeError * expected);
+    }
+
+    /**
+     * Large cardinalities should be within a few standard errors (1.6%).
+     */
+    @Test public void estimateLarge() {
+        HyperLogLog hll = new HyperLogLog();
+        for (int i = 0; i < 200000; i++) {
+            hll.add(new IntField(i));
+            hll.add(new IntField(i)); // duplicates must not count
+        }
+        assertWithin(200000, hll.estimate(), 0.05);
+    }
+
+    /**
+     * Small cardinalities go through linear counting and should be close to
+     * exact.
+     */
+    @Test public void estimateSmall() {
+        HyperLogLog hll = new HyperLogLog();
+        assertEquals(0, hll.estimate());
+        for (int i = 0; i < 100; i++) {
+            hll.add(new StringField("value" + (i % 50), Type.STRING_LEN));
+        }
+        assertWithin(50, hll.estimate(), 0.05);
+    }
+
+    @Test public void merge() {
+        HyperLogLog a = new HyperLogLog(10);
+        HyperLogLog b = new HyperLogLog(10);
+        for (int i = 0; i < 30000; i++) {
+            a.add(new IntField(i));
+            b.add(new IntField(i + 15000));
+        }
+        a.merge(b);
+        assertWithin(45000, a.estimate(), 0.1);
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void badPrecision() {
+        new HyperLogLog(HyperLogLog.MAX_PRECISION + 1);
+    }
+
+    /**
+     * COUNT_DISTINCT through the aggregators, with and without grouping.
+     */
+    @Test public void countDistinctAggregate() throws Exception {
+        // column 0: i % 4, column 1: i % 1000
+        int[][] rows = new int[8000][];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new int[]{i % 4, i % 1000};
+        }
+        int[] data = flatten(rows);
+
+        Aggregate agg = new Aggregate(TestUtil.createTupleList(2, data), 1, Aggregator.NO_GROUPING, Aggregator.Op.COUNT_DISTINCT);
+        agg.open();
+        Tuple t = agg.next();
+        assertWithin(1000, ((IntField) t.getField(0)).getValue(), 0.05);
+        agg.close();
+
+        agg = new Aggregate(TestUtil.createTupleList(2, data), 1, 0, Aggregator.Op.COUNT_DISTINCT);
+        agg.open();
+        HashMap<Integer, Integer> groups = new HashMap<Integer, Integer>();
+        while (agg.hasNext()) {
+            t = agg.next();
+            groups.put(((IntField) t.getField(0)).getValue(), ((IntField) t.getField(1)).getValue());
+        }
+        agg.close();
+        assertEquals(4, groups.size());
+        for (int count : groups.values()) {
+            assertWithin(250, count, 0.05);
+        }
+    }
+
+    private static int[] flatten(int[][] rows) {
+        int[] result = new int[rows.length * rows[0].length];
+        int i = 0;
+        for (int[] row : rows) {
+            for (int v : row) {
+                result[i++] = v;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HyperLogLogTest.class);
+    }
+}
@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.util.Random;
+
 import org.junit.Test;
 import org.junit.Assert;
 
@@ -174,4 +176,151 @@ public class IntHistogramTest {
 		Assert.assertTrue(h.estimateSelectivity(Op.NOT_EQUALS, 3) < 0.001);
 		Assert.assertTrue(h.estimateSelectivity(Op.NOT_EQUALS, 8) > 0.01);
 	}
+
+	/**
+	 * A histogram without a declared range should grow it as values arrive,
+	 * in either direction, and still give sensible estimates.
+	 */
+	@Test public void streamingRebinTest() {
+		IntHistogram h = new IntHistogram(10);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.EQUALS, 5), 0.0);
+
+		// grow upwards, then downwards past the first value
+		for (int c = 0; c < 1000; c++) {
+			h.addValue(c);
+		}
+		for (int c = -1000; c < 0; c++) {
+			h.addValue(c);
+		}
+		Assert.assertEquals(2000, h.getNumTuples());
+		Assert.assertEquals(0.5, h.estimateSelectivity(Op.LESS_THAN, 0), 0.05);
+		Assert.assertEquals(0.25, h.estimateSelectivity(Op.GREATER_THAN_OR_EQ, 500), 0.05);
+		Assert.assertEquals(1.0 / 2000, h.estimateSelectivity(Op.EQUALS, 17), 0.0005);
+		Assert.assertTrue(h.estimateSelectivity(Op.GREATER_THAN, 999) < 0.001);
+		Assert.assertTrue(h.estimateSelectivity(Op.LESS_THAN, -1000) < 0.001);
+	}
+
+	/**
+	 * Extreme values should not overflow the bucket arithmetic.
+	 */
+	@Test public void streamingExtremesTest() {
+		IntHistogram h = new IntHistogram(100);
+		h.addValue(Integer.MAX_VALUE);
+		h.addValue(Integer.MIN_VALUE);
+		h.addValue(0);
+		Assert.assertEquals(1.0 / 3, h.estimateSelectivity(Op.LESS_THAN, -(1 << 30)), 0.01);
+		Assert.assertEquals(1.0 / 3, h.estimateSelectivity(Op.GREATER_THAN, 1 << 30), 0.01);
+		Assert.assertEquals(1.0, h.estimateSelectivity(Op.LESS_THAN_OR_EQ, Integer.MAX_VALUE), 0.0);
+	}
+
+	/**
+	 * Compare the estimates of h with the real selectivities of values, for
+	 * EQUALS on every value in [lo, hi] and LESS_THAN on every tenth one.
+	 * @return the largest absolute error of {EQUALS, LESS_THAN}
+	 */
+	private double[] maxErrors(IntHistogram h, int[] values, int lo, int hi) {
+		int[] counts = new int[hi - lo + 2];
+		for (int v : values) {
+			counts[v - lo]++;
+		}
+		double[] errors = new double[2];
+		int less = 0;
+		for (int v = lo; v <= hi; v++) {
+			double eq = (double) counts[v - lo] / values.length;
+			errors[0] = Math.max(errors[0], Math.abs(eq - h.estimateSelectivity(Op.EQUALS, v)));
+			if ((v - lo) % 10 == 0) {
+				double lt = (double) less / values.length;
+				errors[1] = Math.max(errors[1], Math.abs(lt - h.estimateSelectivity(Op.LESS_THAN, v)));
+			}
+			less += counts[v - lo];
+		}
+		return errors;
+	}
+
+	/**
+	 * Accuracy on Zipfian ids: the frequent ids should be estimated from
+	 * the MCV list, the tail and the ranges from the equi-depth buckets.
+	 */
+	@Test public void zipfianAccuracyTest() {
+		final int ids = 1000, n = 200000;
+		double[] cdf = new double[ids];
+		double total = 0;
+		for (int i = 0; i < ids; i++) {
+			total += 1.0 / (i + 1);
+			cdf[i] = total;
+		}
+		Random random = new Random(33);
+		int[] values = new int[n];
+		IntHistogram h = new IntHistogram(100);
+		for (int i = 0; i < n; i++) {
+			double u = random.nextDouble() * total;
+			int id = java.util.Arrays.binarySearch(cdf, u);
+			values[i] = (id < 0 ? -id - 1 : id) + 1;
+			h.addValue(values[i]);
+		}
+		double[] errors = maxErrors(h, values, 1, ids);
+		// the most common id has a frequency of 0.13, a fixed-width bucket
+		// of 10 ids would estimate 0.03 for it
+		Assert.assertTrue("EQUALS error " + errors[0], errors[0] < 0.01);
+		Assert.assertTrue("LESS_THAN error " + errors[1], errors[1] < 0.02);
+		Assert.assertEquals(0.134, h.estimateSelectivity(Op.EQUALS, 1), 0.01);
+	}
+
+	/**
+	 * Accuracy on a column of a few skewed status codes.
+	 */
+	@Test public void statusCodeAccuracyTest() {
+		final int n = 100000;
+		Random random = new Random(404);
+		int[] values = new int[n];
+		IntHistogram h = new IntHistogram(100);
+		for (int i = 0; i < n; i++) {
+			double u = random.nextDouble();
+			if (u < 0.80) {
+				values[i] = 200;
+			} else if (u < 0.90) {
+				values[i] = 404;
+			} else if (u < 0.95) {
+				values[i] = 500;
+			} else if (u < 0.98) {
+				values[i] = 301;
+			} else {
+				values[i] = 100 + random.nextInt(500);
+			}
+			h.addValue(values[i]);
+		}
+		double[] errors = maxErrors(h, values, 100, 599);
+		Assert.assertTrue("EQUALS error " + errors[0], errors[0] < 0.01);
+		Assert.assertTrue("LESS_THAN error " + errors[1], errors[1] < 0.02);
+		Assert.assertEquals(0.8, h.estimateSelectivity(Op.EQUALS, 200), 0.01);
+		Assert.assertEquals(0.2, h.estimateSelectivity(Op.NOT_EQUALS, 200), 0.01);
+		Assert.assertTrue(h.estimateSelectivity(Op.EQUALS, 250) < 0.005);
+	}
+
+	/**
+	 * Removed values should only change the number of values, and a written
+	 * histogram should read back with the same estimates.
+	 */
+	@Test public void removeAndPersistTest() throws java.io.IOException {
+		IntHistogram h = new IntHistogram(10);
+		for (int c = 0; c < 100; c++) {
+			h.addValue(c % 10);
+		}
+		double equal = h.estimateSelectivity(Op.EQUALS, 3);
+		for (int c = 0; c < 10; c++) {
+			h.removeValue(3);
+		}
+		Assert.assertEquals(90, h.getNumTuples());
+		Assert.assertEquals(equal, h.estimateSelectivity(Op.EQUALS, 3), 0.0);
+		Assert.assertEquals(0.3, h.estimateSelectivity(Op.LESS_THAN, 3), 0.05);
+
+		java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+		h.write(new java.io.DataOutputStream(bytes));
+		IntHistogram read = IntHistogram.read(new java.io.DataInputStream(
+				new java.io.ByteArrayInputStream(bytes.toByteArray())));
+		for (int v = -1; v <= 10; v++) {
+			Assert.assertEquals(h.estimateSelectivity(Op.LESS_THAN, v), read.estimateSelectivity(Op.LESS_THAN, v), 0.0);
+			Assert.assertEquals(h.estimateSelectivity(Op.EQUALS, v), read.estimateSelectivity(Op.EQUALS, v), 0.0);
+		}
+	}
 }
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Vector;
 
 import org.junit.Assert;
@@ -265,6 +266,38 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(cardinality == 800 || cardinality == 2000);
     }
 
+    /**
+     * Joins without keys should be estimated from the statistics of their
+     * fields: equality joins from the number of distinct values, range joins
+     * from the histograms.
+     */
+    @Test
+    public void estimateJoinCardinalityFromStats() throws ParsingException {
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        JoinOptimizer j = new JoinOptimizer(p.generateLogicalPlan(tid,
+                "SELECT * FROM " + tableName1 + " t1, " + tableName2
+                        + " t2 WHERE t1.c3 = t2.c4;"),
+                new Vector<LogicalJoinNode>());
+
+        // every column has 20 distinct values
+        int cardinality = j.estimateJoinCardinality(new LogicalJoinNode("t1", "t2",
+                "c3", "c4", Predicate.Op.EQUALS), 1000, 10000, false, false,
+                TableStats.getStatsMap());
+        Assert.assertTrue(cardinality > 450000 && cardinality < 550000);
+
+        // a < b holds for (1 - 1/20) / 2 of the pairs of uniform values
+        cardinality = j.estimateJoinCardinality(new LogicalJoinNode("t1", "t2",
+                "c3", "c4", Predicate.Op.LESS_THAN), 1000, 10000, false, false,
+                TableStats.getStatsMap());
+        Assert.assertTrue(cardinality > 4000000 && cardinality < 5500000);
+
+        cardinality = j.estimateJoinCardinality(new LogicalJoinNode("t1", "t2",
+                "c3", "c4", Predicate.Op.NOT_EQUALS), 1000, 10000, false, false,
+                TableStats.getStatsMap());
+        Assert.assertTrue(cardinality > 9450000 && cardinality < 9550000);
+    }
+
     /**
      * Determine whether the orderJoins implementation is doing a reasonable job
      * of ordering joins, and not taking an unreasonable amount of time to do so
@@ -621,4 +654,150 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * Order a chain of joins between numTables tables t0 .. t(numTables-1)
+     * of increasing size, and check that the result is a valid plan over
+     * all joins.
+     *
+     * @return the time orderJoins took, in milliseconds
+     */
+    private double orderChainJoins(int numTables) throws IOException,
+            DbException, TransactionAbortedException, ParsingException {
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        StringBuilder from = new StringBuilder();
+        StringBuilder where = new StringBuilder();
+        for (int i = 0; i < numTables; i++) {
+            ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10 * (i + 1),
+                    100, null, tuples, "c");
+            String name = "t" + i;
+            Database.getCatalog().addTable(f, name);
+            stats.put(name, new TableStats(f.getId(), 100));
+            filterSelectivities.put(name, 1.0);
+            from.append(i == 0 ? "" : ", ").append(name);
+            if (i > 0) {
+                nodes.add(new LogicalJoinNode("t" + (i - 1), name, "c1", "c0",
+                        Predicate.Op.EQUALS));
+                where.append(i == 1 ? "" : " AND ").append("t" + (i - 1) + ".c1 = " + name + ".c0");
+            }
+        }
+        Collections.shuffle(nodes, new java.util.Random(numTables));
+        JoinOptimizer j = new JoinOptimizer(new Parser().generateLogicalPlan(
+                new TransactionId(), "SELECT t0.c0 FROM " + from + " WHERE " + where + ";"), nodes);
+
+        // warm up, then time
+        j.orderJoins(stats, filterSelectivities, false);
+        long start = System.nanoTime();
+        Vector<LogicalJoinNode> result = j.orderJoins(stats, filterSelectivities, false);
+        double millis = (System.nanoTime() - start) / 1e6;
+
+        Assert.assertEquals(nodes.size(), result.size());
+        assertValidPlan(result, numTables);
+        return millis;
+    }
+
+    /**
+     * Check that every join in order joins two different subplans, i.e. that
+     * the order describes a (possibly bushy) tree over numTables tables.
+     */
+    private static void assertValidPlan(Vector<LogicalJoinNode> order, int numTables) {
+        HashMap<String, HashSet<String>> subplans = new HashMap<String, HashSet<String>>();
+        for (LogicalJoinNode node : order) {
+            HashSet<String> s1 = subplans.get(node.t1Alias);
+            HashSet<String> s2 = subplans.get(node.t2Alias);
+            if (s1 == null) {
+                s1 = new HashSet<String>(Collections.singleton(node.t1Alias));
+            }
+            if (s2 == null) {
+                s2 = new HashSet<String>(Collections.singleton(node.t2Alias));
+            }
+            Assert.assertTrue("join " + node + " within one subplan", s1 != s2);
+            s1.addAll(s2);
+            for (String table : s1) {
+                subplans.put(table, s1);
+            }
+        }
+        Assert.assertEquals(numTables, subplans.get(order.lastElement().t1Alias).size());
+    }
+
+    /**
+     * A PlanCache should rebuild bushy plans: every join comes after the
+     * joins of both of its inputs.
+     */
+    @Test
+    public void bushyPlanCacheTest() {
+        LogicalJoinNode ab = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS);
+        LogicalJoinNode bc = new LogicalJoinNode("b", "c", "c0", "c0", Predicate.Op.EQUALS);
+        LogicalJoinNode cd = new LogicalJoinNode("c", "d", "c0", "c0", Predicate.Op.EQUALS);
+        PlanCache pc = new PlanCache(3);
+        pc.addPlan(1, 0, ab, 1, 1);
+        pc.addPlan(4, 2, cd, 1, 1);
+        // bc performed last, on (ab) and (cd)
+        pc.addPlan(7, 1, bc, 1, 5, 1);
+
+        Vector<LogicalJoinNode> order = pc.getOrder(7);
+        Assert.assertEquals(3, order.size());
+        Assert.assertEquals(bc, order.get(2));
+        assertValidPlan(order, 4);
+
+        pc.addSubplans(7);
+        Assert.assertEquals(order, pc.getOrder(new HashSet<LogicalJoinNode>(order)));
+        Assert.assertEquals(5, pc.getCost(new HashSet<LogicalJoinNode>(order)), 0);
+        Assert.assertNotNull(pc.getOrder(Collections.singleton(cd)));
+    }
+
+    /**
+     * A subquery join should be costed from the estimated cost and
+     * cardinality of the subquery plan, not as if it returned one tuple.
+     */
+    @Test
+    public void subplanJoinCostTest() throws ParsingException {
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(tableName1, stats1);
+        stats.put(tableName2, stats2);
+        TransactionId tid = new TransactionId();
+
+        OpIterator scan = new SeqScan(tid, tableId2, "t2");
+        double[] scanEstimate = JoinOptimizer.estimateSubplan(scan, stats);
+        Assert.assertEquals(stats2.estimateScanCost(), scanEstimate[0], 0.001);
+        Assert.assertEquals(10000, scanEstimate[1], 0.001);
+
+        // c0 is uniform in [0, 20), so about 1/20 of the tuples pass
+        OpIterator filter = new Filter(new Predicate(0, Predicate.Op.EQUALS,
+                new IntField(3)), new SeqScan(tid, tableId2, "t2"));
+        double[] filterEstimate = JoinOptimizer.estimateSubplan(filter, stats);
+        Assert.assertEquals(stats2.estimateScanCost() + 10000, filterEstimate[0], 0.001);
+        Assert.assertTrue(filterEstimate[1] > 200 && filterEstimate[1] < 800);
+
+        LogicalJoinNode subplanJoin = new LogicalSubplanJoinNode("t1", "c1",
+                filter, Predicate.Op.EQUALS);
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        nodes.add(subplanJoin);
+        Parser p = new Parser();
+        JoinOptimizer j = new JoinOptimizer(p.generateLogicalPlan(tid,
+                "SELECT * FROM " + tableName1 + " t1;"), nodes);
+        double cost = j.estimateJoinCost(subplanJoin, 1000, (int) filterEstimate[1],
+                stats1.estimateScanCost(), filterEstimate[0]);
+        // the subquery is executed once per outer tuple
+        Assert.assertTrue(cost > 1000 * filterEstimate[0]);
+        // a small outer table may match many tuples of the subquery
+        Assert.assertEquals((int) filterEstimate[1], j.estimateJoinCardinality(subplanJoin,
+                10, (int) filterEstimate[1], false, false, stats));
+    }
+
+    /**
+     * The dynamic program over bitmasks should plan the largest query it
+     * handles quickly, and larger queries should be ordered greedily.
+     */
+    @Test(timeout = 60000)
+    public void planningTimeTest() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        double dpMillis = orderChainJoins(JoinOptimizer.MAX_DP_JOINS + 1);
+        Assert.assertTrue("planning took " + dpMillis + " ms", dpMillis < 250);
+        double greedyMillis = orderChainJoins(30);
+        Assert.assertTrue("planning took " + greedyMillis + " ms", greedyMillis < 50);
+    }
 }
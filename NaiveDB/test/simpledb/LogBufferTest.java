@@ -0,0 +1,202 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogBufferTest extends SimpleDbTestBase {
+
+    private final ArrayList<File> files = new ArrayList<File>();
+
+    private File tempFile() throws IOException {
+        File f = File.createTempFile("logbuffer", ".log");
+        f.deleteOnExit();
+        files.add(f);
+        return f;
+    }
+
+    @After public void tearDown() {
+        for (File f : files) {
+            TestUtil.deleteLogSegments(f);
+        }
+    }
+
+    private static byte[] record(int type, long id) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(type);
+        out.writeLong(id);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Run threads that each call body the given number of times, and fail
+     * if any of them throws.
+     */
+    private static void runConcurrently(int threads, final int times, final Body body)
+            throws Exception {
+        final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final int thread = i;
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < times; j++) {
+                            body.run(thread, j);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            workers.add(t);
+            t.start();
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    private interface Body {
+        void run(int thread, int i) throws Exception;
+    }
+
+    /**
+     * Concurrent appends to a buffer much smaller than the log must wrap
+     * around and still produce every record, ending with its own LSN.
+     */
+    @Test public void concurrentAppendsWrapAround() throws Exception {
+        final RandomAccessFile raf = new RandomAccessFile(tempFile(), "rw");
+        raf.writeLong(LogFile.NO_CHECKPOINT_ID);
+        final LogBuffer buffer = new LogBuffer(64, raf.length());
+        final LogBuffer.Drainer drainer = () -> {
+            synchronized (raf) {
+                buffer.drain((lsn, b, off, len) -> {
+                    raf.seek(lsn);
+                    raf.write(b, off, len);
+                });
+            }
+        };
+        runConcurrently(4, 200, (thread, i) -> buffer.append(
+                record(LogFile.BEGIN_RECORD, thread * 1000 + i), drainer));
+        drainer.drain();
+        assertEquals(buffer.tail(), buffer.written());
+        assertEquals(buffer.tail(), raf.length());
+
+        HashSet<Long> ids = new HashSet<Long>();
+        raf.seek(LogFile.LONG_SIZE);
+        while (raf.getFilePointer() < raf.length()) {
+            long start = raf.getFilePointer();
+            assertEquals(LogFile.BEGIN_RECORD, raf.readInt());
+            assertTrue(ids.add(raf.readLong()));
+            assertEquals(start, raf.readLong());
+        }
+        assertEquals(800, ids.size());
+        raf.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void recordLargerThanBuffer() throws Exception {
+        LogBuffer buffer = new LogBuffer(16, 0);
+        buffer.append(record(LogFile.BEGIN_RECORD, 1), () -> { });
+    }
+
+    /**
+     * Transactions logged concurrently must leave a well formed log, in
+     * which each BEGIN precedes the COMMIT of its transaction.
+     */
+    @Test public void concurrentTransactions() throws Exception {
+        File f = tempFile();
+        final LogFile log = new LogFile(f);
+        runConcurrently(8, 50, (thread, i) -> {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            log.logCommit(tid);
+        });
+        assertEquals(800, log.getTotalRecords());
+
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        assertEquals(LogFile.NO_CHECKPOINT_ID, raf.readLong());
+        raf.close();
+        LogSegments.Input input = log.segments.reader(0);
+        DataInputStream in = new DataInputStream(input);
+        HashMap<Long, Integer> state = new HashMap<Long, Integer>();
+        while (input.position() < log.tail()) {
+            long start = input.position();
+            int type = in.readInt();
+            long tid = in.readLong();
+            if (type == LogFile.BEGIN_RECORD) {
+                assertEquals(null, state.put(tid, type));
+            } else {
+                assertEquals(LogFile.COMMIT_RECORD, type);
+                assertEquals(Integer.valueOf(LogFile.BEGIN_RECORD), state.put(tid, type));
+            }
+            assertEquals(start, in.readLong());
+        }
+        assertEquals(400, state.size());
+    }
+
+    /**
+     * A checkpoint must see the records still in the buffer, and the log
+     * must stay appendable after it was truncated.
+     */
+    @Test public void checkpointAfterBufferedRecords() throws Exception {
+        File f = tempFile();
+        LogFile log = new LogFile(f);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        log.logXactionBegin(t1);
+        log.logXactionBegin(t2);
+        log.logCommit(t1);
+        log.logCheckpoint();
+        log.logCommit(t2);
+
+        RandomAccessFile control = new RandomAccessFile(f, "r");
+        long cp = control.readLong();
+        control.close();
+        LogSegments.Input input = log.segments.reader(cp);
+        DataInputStream in = new DataInputStream(input);
+        assertEquals(LogFile.CHECKPOINT_RECORD, in.readInt());
+        in.readLong();
+        assertEquals(1, in.readInt());
+        assertEquals(t2.getId(), in.readLong());
+        long firstRecord = in.readLong();
+        // redo starts at the end of the log when the checkpoint was
+        // taken, as no page is dirty
+        assertEquals(cp, in.readLong());
+        assertEquals(0, in.readInt());
+        assertEquals(cp, in.readLong());
+
+        long start = input.position();
+        assertEquals(LogFile.COMMIT_RECORD, in.readInt());
+        assertEquals(t2.getId(), in.readLong());
+        assertEquals(start, in.readLong());
+        assertEquals(log.tail(), input.position());
+
+        in = new DataInputStream(log.segments.reader(firstRecord));
+        assertEquals(LogFile.BEGIN_RECORD, in.readInt());
+        assertEquals(t2.getId(), in.readLong());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogBufferTest.class);
+    }
+}
@@ -0,0 +1,95 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogPageDataTest extends SimpleDbTestBase {
+
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = File.createTempFile("logpagedata", ".log");
+        f.deleteOnExit();
+        log = new LogFile(f);
+    }
+
+    private byte[] write(Page p) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        log.writePageData(new DataOutputStream(bytes), p);
+        return bytes.toByteArray();
+    }
+
+    private Page read(byte[] image) throws IOException {
+        return log.readPageData(new DataInputStream(new ByteArrayInputStream(image)));
+    }
+
+    private void assertRoundTrip(Page p) throws IOException {
+        byte[] image = write(p);
+        // tag, table id, page number and length
+        assertEquals(1 + 3 * LogFile.INT_SIZE + p.getPageData().length, image.length);
+        Page q = read(image);
+        assertEquals(p.getClass(), q.getClass());
+        assertEquals(p.getId(), q.getId());
+        assertArrayEquals(p.getPageData(), q.getPageData());
+    }
+
+    @Test public void heapPage() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        assertRoundTrip(f.readPage(new HeapPageId(f.getId(), 0)));
+    }
+
+    @Test public void btreePages() throws Exception {
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 2000, null, null, 0);
+        Database.getCatalog().addTable(f);
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) f.readPage(BTreeRootPtrPage.getId(f.getId()));
+        assertRoundTrip(rootPtr);
+        BTreePageId rootId = rootPtr.getRootId();
+        assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+        BTreeInternalPage root = (BTreeInternalPage) f.readPage(rootId);
+        assertRoundTrip(root);
+        assertRoundTrip(f.readPage(root.iterator().next().getLeftChild()));
+    }
+
+    /**
+     * Truncating the log copies page images without decoding them.
+     */
+    @Test public void copyPageData() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        byte[] image = write(f.readPage(new HeapPageId(f.getId(), 0)));
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        log.copyPageData(new DataInputStream(new ByteArrayInputStream(image)),
+                new DataOutputStream(copy));
+        assertArrayEquals(image, copy.toByteArray());
+    }
+
+    @Test public void unknownPageType() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        byte[] image = write(f.readPage(new HeapPageId(f.getId(), 0)));
+        image[0] = (byte) 200;
+        try {
+            read(image);
+            assertTrue("expected an IOException", false);
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogPageDataTest.class);
+    }
+}
@@ -0,0 +1,136 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Set;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogSegmentsTest extends SimpleDbTestBase {
+
+    private final ArrayList<File> files = new ArrayList<File>();
+
+    private File tempFile() throws IOException {
+        File f = File.createTempFile("logsegments", ".log");
+        f.deleteOnExit();
+        files.add(f);
+        return f;
+    }
+
+    @After public void tearDown() {
+        for (File f : files) {
+            TestUtil.deleteLogSegments(f);
+        }
+    }
+
+    private static void logTransactions(LogFile log, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            log.logCommit(tid);
+        }
+    }
+
+    /**
+     * Bytes written across segment boundaries read back in order, and every
+     * segment file has its full size from the start.
+     */
+    @Test public void writesSpanSegments() throws Exception {
+        File f = tempFile();
+        LogSegments segments = new LogSegments(f, 16);
+        byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        segments.write(0, data, 0, 30);
+        segments.write(30, data, 30, 70);
+        assertEquals(7, segments.segmentNumbers().size());
+        for (long n : segments.segmentNumbers()) {
+            assertEquals(16, segments.segmentFile(n).length());
+        }
+
+        LogSegments.Input in = segments.reader(5);
+        for (int i = 5; i < data.length; i++) {
+            assertEquals(i, in.read());
+        }
+        assertEquals(100, in.position());
+        // the rest of the last segment is zeros
+        for (int i = 100; i < 112; i++) {
+            assertEquals(0, in.read());
+        }
+        assertEquals(-1, in.read());
+        segments.reset();
+    }
+
+    /**
+     * Truncation removes whole segments, keeping some of them for reuse,
+     * without moving the records that are left.
+     */
+    @Test public void truncationRecyclesSegments() throws Exception {
+        File f = tempFile();
+        LogFile log = new LogFile(f, 256);
+        logTransactions(log, 100);
+        long tail = log.tail();
+        log.logCheckpoint();
+        long cp = tail;
+        assertTrue(log.tail() > cp);
+
+        Set<Long> numbers = log.segments.segmentNumbers();
+        long first = numbers.iterator().next();
+        assertEquals(cp / 256, first);
+        long last = (log.tail() - 1) / 256;
+        assertTrue(numbers.size() <= last - first + 1 + LogSegments.RECYCLED_SEGMENTS);
+        for (long n : numbers) {
+            assertEquals(256, log.segments.segmentFile(n).length());
+        }
+
+        // the records keep their LSNs, and the log goes on into the
+        // recycled segments
+        logTransactions(log, 20);
+        long end = log.tail();
+        log.force();
+        LogFile reopened = new LogFile(f, 256);
+        reopened.recover();
+        assertEquals(end, reopened.tail());
+    }
+
+    /**
+     * A record that a crash cut short ends the log, and is zeroed so that
+     * the records appended after recovery are not mixed with it.
+     */
+    @Test public void recoveryDropsTornRecord() throws Exception {
+        File f = tempFile();
+        LogFile log = new LogFile(f, 64);
+        logTransactions(log, 10);
+        log.force();
+        long end = log.tail();
+        byte[] torn = { 0, 0, 0, (byte) LogFile.BEGIN_RECORD, 1, 2, 3 };
+        log.segments.write(end, torn, 0, torn.length);
+        log.force();
+
+        LogFile reopened = new LogFile(f, 64);
+        reopened.recover();
+        assertEquals(end, reopened.tail());
+        logTransactions(reopened, 1);
+        reopened.force();
+        DataInputStream in = new DataInputStream(reopened.segments.reader(end));
+        assertEquals(LogFile.BEGIN_RECORD, in.readInt());
+        in.readLong();
+        assertEquals(end, in.readLong());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogSegmentsTest.class);
+    }
+}
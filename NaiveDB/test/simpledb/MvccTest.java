@@ -0,0 +1,141 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class MvccTest extends SimpleDbTestBase {
+
+    private HeapFile file;
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        file = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+    }
+
+    private Transaction insert(int a, int b) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), file.getId(),
+                Utility.getHeapTuple(new int[] { a, b }));
+        return t;
+    }
+
+    private Transaction snapshot() {
+        Transaction t = new Transaction(true);
+        t.start();
+        return t;
+    }
+
+    /**
+     * A snapshot reads the committed page while a writer holds its lock and
+     * has changed it, and does not wait for the writer.
+     */
+    @Test public void snapshotDoesNotSeeOrWaitForWriter() throws Exception {
+        final Transaction writer = insert(1, 2);
+        final Transaction reader = snapshot();
+        final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+        Thread scan = new Thread() {
+            public void run() {
+                try {
+                    SystemTestUtil.matchTuples(file, reader.getId(), tuples);
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }
+        };
+        scan.start();
+        scan.join(10000);
+        assertTrue("the snapshot waited for the writer", !scan.isAlive());
+        assertTrue(errors.toString(), errors.isEmpty());
+        reader.commit();
+        writer.commit();
+    }
+
+    /**
+     * A snapshot keeps reading the database as of its start after writers
+     * commit, while a later snapshot sees their changes.
+     */
+    @Test public void snapshotIsStable() throws Exception {
+        Transaction old = snapshot();
+        insert(1, 2).commit();
+        ArrayList<ArrayList<Integer>> before = new ArrayList<ArrayList<Integer>>(tuples);
+        tuples.add(SystemTestUtil.tupleToList(Utility.getHeapTuple(new int[] { 1, 2 })));
+
+        Transaction recent = snapshot();
+        insert(3, 4).commit();
+        SystemTestUtil.matchTuples(file, old.getId(), before);
+        SystemTestUtil.matchTuples(file, recent.getId(), tuples);
+        old.commit();
+        recent.commit();
+
+        tuples.add(SystemTestUtil.tupleToList(Utility.getHeapTuple(new int[] { 3, 4 })));
+        Transaction last = snapshot();
+        SystemTestUtil.matchTuples(file, last.getId(), tuples);
+        last.commit();
+        // no version is kept once no snapshot needs it
+        assertEquals(0, Database.getBufferPool().numVersionedPages());
+    }
+
+    /**
+     * The changes of an aborted writer are never visible to snapshots.
+     */
+    @Test public void abortedChangesInvisible() throws Exception {
+        insert(1, 2).abort();
+        Transaction reader = snapshot();
+        SystemTestUtil.matchTuples(file, reader.getId(), tuples);
+        reader.commit();
+    }
+
+    /**
+     * A scan with a pushed-down predicate sees the same tuples of a snapshot
+     * as a full scan, even after a committed delete narrowed the zone map.
+     */
+    @Test public void snapshotIgnoresNarrowedZoneMap() throws Exception {
+        insert(-1, 0).commit();
+        tuples.add(SystemTestUtil.tupleToList(Utility.getHeapTuple(new int[] { -1, 0 })));
+        Predicate p = new Predicate(0, Predicate.Op.EQUALS, new IntField(-1));
+        Transaction reader = snapshot();
+
+        Transaction writer = new Transaction();
+        writer.start();
+        DbFileIterator it = file.iterator(writer.getId(), new Predicate[] { p });
+        it.open();
+        Database.getBufferPool().deleteTuple(writer.getId(), it.next());
+        it.close();
+        writer.commit();
+        Database.getBufferPool().flushAllPages();
+        assertTrue(!file.getZoneMap().mayMatch(0, new Predicate[] { p }));
+
+        SeqScan scan = new SeqScan(reader.getId(), file.getId(), "");
+        scan.addPredicate(p);
+        SystemTestUtil.matchTuples(scan, SystemTestUtil.filterTuples(tuples, p));
+        SystemTestUtil.matchTuples(file, reader.getId(), tuples);
+        reader.commit();
+    }
+
+    @Test(expected = DbException.class)
+    public void snapshotCannotWrite() throws Exception {
+        Transaction reader = snapshot();
+        Database.getBufferPool().getPage(reader.getId(), new HeapPageId(file.getId(), 0),
+                Permissions.READ_WRITE);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MvccTest.class);
+    }
+}
@@ -0,0 +1,116 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PreparedStatementTest extends SimpleDbTestBase {
+
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 2000, 50, null, tuples, "c");
+        Database.getCatalog().addTable(f, "t");
+        TableStats.setTableStats("t", new TableStats(f.getId(), TableStats.IOCOSTPERPAGE));
+    }
+
+    /** @return the tuples with c0 = c0 and c1 < c1Max */
+    private ArrayList<ArrayList<Integer>> expected(int c0, int c1Max) {
+        return SystemTestUtil.filterTuples(tuples,
+                new Predicate(0, Predicate.Op.EQUALS, new IntField(c0)),
+                new Predicate(1, Predicate.Op.LESS_THAN, new IntField(c1Max)));
+    }
+
+    /**
+     * Executing a prepared statement with different parameters should return
+     * the tuples matching each of them.
+     */
+    @Test public void executeWithParameters() throws Exception {
+        PreparedStatement ps = new Parser().prepare(
+                "SELECT t.c1 FROM t WHERE t.c1 < 30 AND t.c0 = ? ORDER BY t.c1;");
+        assertEquals(1, ps.getParameterCount());
+        assertEquals(Type.INT_TYPE, ps.getParameterType(1));
+
+        for (int c0 = 0; c0 < 5; c0++) {
+            ps.setInt(1, c0);
+            SystemTestUtil.matchTuples(ps.execute(new TransactionId()).getPhysicalPlan(),
+                    SystemTestUtil.projectTuples(expected(c0, 30), 1));
+        }
+        // again, with the same parameter
+        SystemTestUtil.matchTuples(ps.execute(new TransactionId()).getPhysicalPlan(),
+                SystemTestUtil.projectTuples(expected(4, 30), 1));
+    }
+
+    @Test public void parameterErrors() throws Exception {
+        PreparedStatement ps = new Parser().prepare("SELECT * FROM t WHERE t.c0 = ? AND t.c1 > ?;");
+        assertEquals(2, ps.getParameterCount());
+        ps.setInt(1, 3);
+        try {
+            ps.execute(new TransactionId());
+            fail("parameter 2 is not bound");
+        } catch (DbException e) {
+            // expected
+        }
+        try {
+            ps.setString(2, "abc");
+            fail("parameter 2 is an integer");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            ps.setInt(3, 1);
+            fail("there is no parameter 3");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        ps.setParameter(2, "10");
+        ps.execute(new TransactionId());
+    }
+
+    @Test(expected = ParsingException.class)
+    public void placeholderOutsideFilter() throws Exception {
+        new Parser().prepare("SELECT * FROM t WHERE t.c0 = t.c1 AND ? = 1;");
+    }
+
+    /**
+     * PREPARE and EXECUTE in the shell.
+     */
+    @Test public void shellCommands() throws Exception {
+        Parser p = new Parser();
+        PrintStream out = System.out;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(buffer));
+        try {
+            p.processNextStatement("PREPARE q AS SELECT * FROM t WHERE t.c0 = ? AND t.c1 < ?;");
+            p.processNextStatement("EXECUTE q (7, 25);");
+            p.processNextStatement("DEALLOCATE q;");
+            p.processNextStatement("EXECUTE q (7, 25);");
+        } finally {
+            System.setOut(out);
+        }
+        String output = buffer.toString();
+        assertTrue(output, output.contains(" " + expected(7, 25).size() + " rows."));
+        assertTrue(output, output.contains("No prepared statement q"));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PreparedStatementTest.class);
+    }
+}
@@ -0,0 +1,125 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class QueryPlanCacheTest extends SimpleDbTestBase {
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile f;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        f = SystemTestUtil.createRandomHeapFile(2, 2000, 50, null, tuples, "c");
+        Database.getCatalog().addTable(f, "t");
+        TableStats.setTableStats("t", new TableStats(f.getId(), TableStats.IOCOSTPERPAGE));
+    }
+
+    /**
+     * Plan sql and cache the plan.
+     */
+    private void plan(QueryPlanCache cache, String sql) throws Exception {
+        ArrayList<String> constants = new ArrayList<String>();
+        String key = QueryPlanCache.normalize(sql, constants);
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, sql);
+        lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(cache.put(key, constants, lp));
+    }
+
+    private LogicalPlan lookup(QueryPlanCache cache, String sql) {
+        ArrayList<String> constants = new ArrayList<String>();
+        return cache.get(QueryPlanCache.normalize(sql, constants), constants);
+    }
+
+    @Test public void normalize() {
+        ArrayList<String> constants = new ArrayList<String>();
+        assertEquals("SELECT t1.c0 FROM t t1 WHERE t1.c0 = ? AND t1.c1 < ? AND t1.name = ?",
+                QueryPlanCache.normalize(" SELECT  t1.c0\n FROM t t1 WHERE t1.c0 = 12 AND t1.c1 < 3 AND t1.name = 'it''s' ;",
+                        constants));
+        assertEquals(Arrays.asList("12", "3", "it's"), constants);
+
+        assertNull(QueryPlanCache.normalize("INSERT INTO t VALUES (1, 2);", new ArrayList<String>()));
+        assertNull(QueryPlanCache.normalize("SELECT * FROM t WHERE t.c0 = 'open", new ArrayList<String>()));
+    }
+
+    /**
+     * A cached plan run with new constants returns the same tuples as a
+     * freshly optimized plan would.
+     */
+    @Test public void bindConstants() throws Exception {
+        QueryPlanCache cache = new QueryPlanCache();
+        plan(cache, "SELECT * FROM t WHERE t.c0 = 3 AND t.c1 < 20;");
+
+        for (int c0 = 0; c0 < 5; c0++) {
+            LogicalPlan lp = lookup(cache, "SELECT * FROM t WHERE t.c0 = " + c0 + " AND t.c1 < 40;");
+            assertNotNull(lp);
+            OpIterator it = lp.physicalPlan(new TransactionId(), TableStats.getStatsMap(), false);
+            SystemTestUtil.matchTuples(it, SystemTestUtil.filterTuples(tuples,
+                    new Predicate(0, Predicate.Op.EQUALS, new IntField(c0)),
+                    new Predicate(1, Predicate.Op.LESS_THAN, new IntField(40))));
+        }
+        assertEquals(5, cache.getHits());
+        assertNull(lookup(cache, "SELECT * FROM t WHERE t.c1 < 40;"));
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test public void evictLeastRecentlyUsed() throws Exception {
+        QueryPlanCache cache = new QueryPlanCache(2);
+        plan(cache, "SELECT * FROM t WHERE t.c0 = 1;");
+        plan(cache, "SELECT * FROM t WHERE t.c1 = 1;");
+        assertNotNull(lookup(cache, "SELECT * FROM t WHERE t.c0 = 2;"));
+        plan(cache, "SELECT * FROM t WHERE t.c0 < 1;");
+
+        assertEquals(2, cache.size());
+        assertNotNull(lookup(cache, "SELECT * FROM t WHERE t.c0 = 3;"));
+        assertNull(lookup(cache, "SELECT * FROM t WHERE t.c1 = 3;"));
+    }
+
+    @Test public void invalidateOnChanges() throws Exception {
+        QueryPlanCache cache = new QueryPlanCache();
+        plan(cache, "SELECT * FROM t WHERE t.c0 = 1;");
+        assertEquals(1, cache.size());
+
+        TableStats.setTableStats("t", new TableStats(f.getId(), TableStats.IOCOSTPERPAGE));
+        assertEquals(0, cache.size());
+
+        plan(cache, "SELECT * FROM t WHERE t.c0 = 1;");
+        Database.getCatalog().addTable(
+                SystemTestUtil.createRandomHeapFile(2, 10, null, null), "u");
+        assertNull(lookup(cache, "SELECT * FROM t WHERE t.c0 = 1;"));
+    }
+
+    /**
+     * The parser should plan a repeated query only once.
+     */
+    @Test public void parserReusesPlans() throws Exception {
+        Parser p = new Parser();
+        p.processNextStatement("SELECT * FROM t WHERE t.c0 = 1;");
+        p.processNextStatement("SELECT * FROM t WHERE t.c0 = 2;");
+        p.processNextStatement("SELECT  *  FROM t WHERE t.c0 = 3 ;");
+        assertEquals(1, p.getPlanCache().size());
+        assertEquals(2, p.getPlanCache().getHits());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(QueryPlanCacheTest.class);
+    }
+}
@@ -0,0 +1,234 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class RecoveryTest extends SimpleDbTestBase {
+
+    private HeapFile file;
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        file = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+    }
+
+    private Transaction insert(int a, int b) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), file.getId(),
+                Utility.getHeapTuple(new int[] { a, b }));
+        return t;
+    }
+
+    /** Lose the buffer pool, and whatever of the log is not forced */
+    private void crash() throws IOException {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getLogFile().recover();
+    }
+
+    /** @return the number of tuples of the first page on disk */
+    private int tuplesOnDisk() {
+        HeapPage p = (HeapPage) file.readPage(new HeapPageId(file.getId(), 0));
+        return p.getNumSlots() - p.getNumEmptySlots();
+    }
+
+    /**
+     * A commit only forces the log, and redo installs its changes.
+     */
+    @Test public void committedSurvivesCrash() throws Exception {
+        insert(1, 2).commit();
+        assertEquals(10, tuplesOnDisk());
+        crash();
+        assertEquals(11, tuplesOnDisk());
+        tuples.add(SystemTestUtil.tupleToList(Utility.getHeapTuple(new int[] { 1, 2 })));
+        SystemTestUtil.matchTuples(file, tuples);
+    }
+
+    /**
+     * An uncommitted change that was stolen to disk is undone.
+     */
+    @Test public void uncommittedStolenChangeUndone() throws Exception {
+        insert(1, 2);
+        Database.getBufferPool().flushAllPages();
+        assertEquals(11, tuplesOnDisk());
+        crash();
+        assertEquals(10, tuplesOnDisk());
+        SystemTestUtil.matchTuples(file, tuples);
+    }
+
+    /**
+     * An abort takes back both the logged and the unlogged changes.
+     */
+    @Test public void abortRollsBack() throws Exception {
+        Transaction t = insert(1, 2);
+        Database.getBufferPool().logPages(t.getId());
+        Database.getBufferPool().flushAllPages();
+        Database.getBufferPool().insertTuple(t.getId(), file.getId(),
+                Utility.getHeapTuple(new int[] { 3, 4 }));
+        t.abort();
+        SystemTestUtil.matchTuples(file, tuples);
+
+        Database.getBufferPool().flushAllPages();
+        assertEquals(10, tuplesOnDisk());
+    }
+
+    /**
+     * A page written with an uncommitted delete of its largest value gets a
+     * narrower zone map range, which the abort widens again, so scans with a
+     * pushed-down predicate still find the tuple.
+     */
+    @Test public void abortRestoresZoneMap() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        DbFileIterator it = file.iterator(t.getId());
+        it.open();
+        Tuple largest = null;
+        while (it.hasNext()) {
+            Tuple next = it.next();
+            if (largest == null || ((IntField) next.getField(0)).getValue()
+                    > ((IntField) largest.getField(0)).getValue()) {
+                largest = next;
+            }
+        }
+        it.close();
+        Database.getBufferPool().deleteTuple(t.getId(), largest);
+        Database.getBufferPool().flushAllPages();
+        t.abort();
+
+        Transaction reader = new Transaction();
+        reader.start();
+        it = file.iterator(reader.getId(), new Predicate[] {
+                new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, largest.getField(0)) });
+        it.open();
+        assertTrue(it.hasNext());
+        assertEquals(largest.getField(0), it.next().getField(0));
+        it.close();
+        reader.commit();
+    }
+
+    /**
+     * Recovering again after a recovery gives the same database: the CLRs
+     * are redone, and the compensated updates are not undone twice.
+     */
+    @Test public void recoveryIsIdempotent() throws Exception {
+        insert(1, 2).commit();
+        insert(3, 4);
+        Database.getBufferPool().flushAllPages();
+        crash();
+        crash();
+        tuples.add(SystemTestUtil.tupleToList(Utility.getHeapTuple(new int[] { 1, 2 })));
+        SystemTestUtil.matchTuples(file, tuples);
+        assertEquals(11, tuplesOnDisk());
+
+        // the log still works after recovery
+        insert(5, 6).commit();
+        crash();
+        tuples.add(SystemTestUtil.tupleToList(Utility.getHeapTuple(new int[] { 5, 6 })));
+        SystemTestUtil.matchTuples(file, tuples);
+        assertTrue(Database.getBufferPool().getDirtyPageTable().isEmpty());
+    }
+
+    /**
+     * A checkpoint does not flush the buffer pool, nor wait for its lock;
+     * redo starts from the dirty page table it recorded.
+     */
+    @Test public void fuzzyCheckpoint() throws Exception {
+        insert(1, 2).commit();
+        final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+        Thread checkpoint = new Thread() {
+            public void run() {
+                try {
+                    Database.getLogFile().logCheckpoint();
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }
+        };
+        synchronized (Database.getBufferPool()) {
+            checkpoint.start();
+            checkpoint.join(10000);
+            assertTrue("checkpoint waited for the buffer pool", !checkpoint.isAlive());
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(10, tuplesOnDisk());
+        assertEquals(1, Database.getBufferPool().getDirtyPageTable().size());
+
+        crash();
+        tuples.add(SystemTestUtil.tupleToList(Utility.getHeapTuple(new int[] { 1, 2 })));
+        SystemTestUtil.matchTuples(file, tuples);
+    }
+
+    /**
+     * Writing out dirty pages empties the dirty page table, so that the
+     * next checkpoint needs no redo of earlier records.
+     */
+    @Test public void backgroundWriterEmptiesDirtyPageTable() throws Exception {
+        insert(1, 2).commit();
+        BufferPool pool = Database.getBufferPool();
+        pool.startBackgroundWriter(1, 10);
+        try {
+            for (int i = 0; i < 1000 && !pool.getDirtyPageTable().isEmpty(); i++) {
+                Thread.sleep(5);
+            }
+        } finally {
+            pool.stopBackgroundWriter();
+        }
+        assertTrue(pool.getDirtyPageTable().isEmpty());
+        assertEquals(11, tuplesOnDisk());
+
+        Database.getLogFile().logCheckpoint();
+        crash();
+        tuples.add(SystemTestUtil.tupleToList(Utility.getHeapTuple(new int[] { 1, 2 })));
+        SystemTestUtil.matchTuples(file, tuples);
+    }
+
+    /**
+     * Redo on several threads installs the committed changes of all pages,
+     * each in log order.
+     */
+    @Test public void parallelRedo() throws Exception {
+        ArrayList<HeapFile> files = new ArrayList<HeapFile>();
+        ArrayList<ArrayList<ArrayList<Integer>>> contents = new ArrayList<ArrayList<ArrayList<Integer>>>();
+        for (int i = 0; i < 4; i++) {
+            ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+            files.add(SystemTestUtil.createRandomHeapFile(2, 10, null, rows));
+            contents.add(rows);
+        }
+        for (int round = 0; round < 5; round++) {
+            Transaction t = new Transaction();
+            t.start();
+            for (int i = 0; i < files.size(); i++) {
+                Tuple tuple = Utility.getHeapTuple(new int[] { i, round });
+                Database.getBufferPool().insertTuple(t.getId(), files.get(i).getId(), tuple);
+                contents.get(i).add(SystemTestUtil.tupleToList(tuple));
+            }
+            t.commit();
+        }
+
+        Database.getLogFile().setRedoThreads(3);
+        crash();
+        for (int i = 0; i < files.size(); i++) {
+            SystemTestUtil.matchTuples(files.get(i), contents.get(i));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
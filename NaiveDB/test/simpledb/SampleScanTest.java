@@ -0,0 +1,118 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SampleScanTest extends SimpleDbTestBase {
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile f;
+    private long exactSum;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // a fixed data set, so that the coverage of the bounds is reproducible
+        tuples = new ArrayList<ArrayList<Integer>>();
+        Random random = new Random(830);
+        for (int i = 0; i < 20000; i++) {
+            tuples.add(new ArrayList<Integer>(Arrays.asList(random.nextInt(1000), random.nextInt(1000))));
+        }
+        File temp = File.createTempFile("sample", ".dat");
+        temp.deleteOnExit();
+        HeapFileEncoder.convert(tuples, temp, BufferPool.getPageSize(), 2);
+        f = Utility.openHeapFile(2, temp);
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        exactSum = 0;
+        for (ArrayList<Integer> t : tuples) {
+            exactSum += t.get(1);
+        }
+    }
+
+    /**
+     * The scan should return exactly the tuples of the chosen pages, and the
+     * same seed should choose the same pages.
+     */
+    @Test public void scanSampledPages() throws Exception {
+        TransactionId tid = new TransactionId();
+        SampleScan scan = new SampleScan(tid, f.getId(), "t", 0.25, 42);
+        scan.open();
+        int[] pages = scan.getSampledPages();
+        assertEquals((int) Math.ceil(0.25 * f.numPages()), pages.length);
+
+        int expected = 0;
+        for (int p : pages) {
+            HeapPage page = (HeapPage) Database.getBufferPool()
+                    .getPage(tid, new HeapPageId(f.getId(), p), Permissions.READ_ONLY);
+            expected += page.numSlots - page.getNumEmptySlots();
+        }
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        assertEquals(expected, count);
+        scan.close();
+
+        SampleScan again = new SampleScan(tid, f.getId(), "t", 0.25, 42);
+        again.open();
+        assertTrue(Arrays.equals(pages, again.getSampledPages()));
+        again.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Sampling every page gives the exact answer with no error.
+     */
+    @Test public void fullSampleIsExact() throws Exception {
+        TransactionId tid = new TransactionId();
+        SampleEstimate est = SampleEstimate.estimate(tid, f.getId(), 1, 1.0, 0);
+        assertEquals(exactSum, est.getSum(), 0.5);
+        assertEquals(tuples.size(), est.getCount(), 0.5);
+        assertEquals(0.0, est.getSumError(), 0.0);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A partial sample should land within its 95% bounds for nearly every
+     * seed.
+     */
+    @Test public void partialSampleWithinBounds() throws Exception {
+        TransactionId tid = new TransactionId();
+        double exactAvg = (double) exactSum / tuples.size();
+        int sumHits = 0, avgHits = 0;
+        int runs = 40;
+        for (int seed = 0; seed < runs; seed++) {
+            SampleEstimate est = SampleEstimate.estimate(tid, f.getId(), 1, 0.2, seed);
+            assertTrue(est.getSampledPages() < est.getNumPages());
+            if (Math.abs(est.getSum() - exactSum) <= est.getSumError()) {
+                sumHits++;
+            }
+            if (Math.abs(est.getAvg() - exactAvg) <= est.getAvgError()) {
+                avgHits++;
+            }
+        }
+        assertTrue("sum within bounds " + sumHits + "/" + runs, sumHits >= runs * 0.8);
+        assertTrue("avg within bounds " + avgHits + "/" + runs, avgHits >= runs * 0.8);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SampleScanTest.class);
+    }
+}
@@ -0,0 +1,123 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SlotUpdateTest extends SimpleDbTestBase {
+
+    private File logFile;
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        logFile = File.createTempFile("slotupdate", ".log");
+        logFile.deleteOnExit();
+        log = new LogFile(logFile);
+    }
+
+    @After public void tearDown() {
+        TestUtil.deleteLogSegments(logFile);
+    }
+
+    /**
+     * Redoing the update on the before image must give the after image, and
+     * undoing it on the after image the before image.
+     */
+    private void assertRedoUndo(SlotUpdate update, Page before, Page after) throws IOException {
+        LogFile.PageDecoder decoder = LogFile.pageDecoder(LogFile.pageTag(after));
+        SlottedPage p = (SlottedPage) decoder.decode(before.getId(), before.getPageData());
+        update.redo(p);
+        assertArrayEquals(after.getPageData(), p.getPageData());
+        update.undo(p);
+        assertArrayEquals(before.getPageData(), p.getPageData());
+
+        // writing and reading the update does not change it
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        update.write(new DataOutputStream(bytes));
+        assertEquals(update.size(), bytes.size());
+        SlotUpdate read = SlotUpdate.read(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(after.getId(), read.getPageId());
+        p = (SlottedPage) decoder.decode(before.getId(), before.getPageData());
+        read.redo(p);
+        assertArrayEquals(after.getPageData(), p.getPageData());
+    }
+
+    @Test public void heapPageInsertAndDelete() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapPage page = (HeapPage) f.readPage(new HeapPageId(f.getId(), 0));
+        HeapPage before = page.getBeforeImage();
+        page.insertTuple(Utility.getHeapTuple(new int[] { 1, 2 }));
+        SlotUpdate insert = log.slotUpdate(before, page);
+        assertNotNull(insert);
+        assertEquals(1, insert.numSlots());
+        assertRedoUndo(insert, before, page);
+
+        page.setBeforeImage();
+        before = page.getBeforeImage();
+        page.deleteTuple(page.getTuple(0));
+        SlotUpdate delete = log.slotUpdate(before, page);
+        assertEquals(1, delete.numSlots());
+        assertRedoUndo(delete, before, page);
+    }
+
+    /**
+     * Inserting into a leaf moves records to keep them sorted, which is
+     * logged as changes of every slot involved.
+     */
+    @Test public void leafPageInsert() throws Exception {
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 100, null, null, 0);
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) f.readPage(BTreeRootPtrPage.getId(f.getId()));
+        BTreeLeafPage leaf = (BTreeLeafPage) f.readPage(rootPtr.getRootId());
+        BTreeLeafPage before = leaf.getBeforeImage();
+        leaf.insertTuple(BTreeUtility.getBTreeTuple(new int[] { -1, 0 }));
+        SlotUpdate update = log.slotUpdate(before, leaf);
+        assertNotNull(update);
+        assertTrue(update.numSlots() > 1);
+        assertRedoUndo(update, before, leaf);
+
+        // a change of a sibling pointer needs the page images
+        leaf.setBeforeImage();
+        before = leaf.getBeforeImage();
+        leaf.setRightSiblingId(new BTreePageId(f.getId(), 7, BTreePageId.LEAF));
+        assertNull(log.slotUpdate(before, leaf));
+    }
+
+    /**
+     * A single tuple insert is logged with a small TUPLE record.
+     */
+    @Test public void logWriteUsesTupleRecord() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapPage page = (HeapPage) f.readPage(new HeapPageId(f.getId(), 0));
+        HeapPage before = page.getBeforeImage();
+        page.insertTuple(Utility.getHeapTuple(new int[] { 1, 2 }));
+        long lsn = log.logWrite(new TransactionId(), before, page);
+        log.force();
+
+        DataInputStream in = new DataInputStream(log.segments.reader(lsn));
+        assertEquals(LogFile.TUPLE_RECORD, in.readInt());
+        long size = log.tail() - lsn;
+        assertTrue("log of " + size + " bytes", size < BufferPool.getPageSize() / 10);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlotUpdateTest.class);
+    }
+}
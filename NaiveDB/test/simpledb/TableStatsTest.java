@@ -1,6 +1,8 @@
 package simpledb;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 
 import org.junit.Before;
@@ -151,4 +153,151 @@ public class TableStatsTest extends SimpleDbTestBase {
 			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.LESS_THAN_OR_EQ, belowMin), 0.001);
 		}
 	}
+
+	/**
+	 * Statistics built from a sample of the pages should scale the number of
+	 * tuples up and keep the selectivities close to the full statistics.
+	 */
+	@Test public void sampledStatsTest() {
+		TableStats full = new TableStats(this.tableId, IO_COST);
+		TableStats sampled = new TableStats(this.tableId, IO_COST, 0.25);
+		Assert.assertEquals(10200, full.totalTuples());
+		Assert.assertEquals(10200, sampled.totalTuples(), 10200 * 0.1);
+		for (int v = 0; v < 32; v += 8) {
+			Assert.assertEquals(full.estimateSelectivity(3, Predicate.Op.LESS_THAN, new IntField(v)),
+					sampled.estimateSelectivity(3, Predicate.Op.LESS_THAN, new IntField(v)), 0.05);
+		}
+	}
+
+	/**
+	 * computeStatistics should build the statistics of every table.
+	 */
+	@Test public void computeStatisticsTest() {
+		TableStats.computeStatistics();
+		TableStats s = TableStats.getTableStats(this.tableName);
+		Assert.assertNotNull(s);
+		Assert.assertEquals(10200, s.totalTuples());
+	}
+
+	private Tuple tuple(int v) {
+		Tuple t = new Tuple(f.getTupleDesc());
+		for (int i = 0; i < 10; i++) {
+			t.setField(i, new IntField(v));
+		}
+		return t;
+	}
+
+	/**
+	 * The number of distinct values should be estimated from a full scan and
+	 * from a sample, in which every value of the column repeats.
+	 */
+	@Test public void estimateDistinctTest() {
+		TableStats full = new TableStats(this.tableId, IO_COST);
+		Assert.assertTrue(full.estimateDistinct(3) >= 30 && full.estimateDistinct(3) <= 34);
+		TableStats sampled = new TableStats(this.tableId, IO_COST, 0.2);
+		Assert.assertTrue(sampled.estimateDistinct(3) >= 30 && sampled.estimateDistinct(3) <= 40);
+	}
+
+	/**
+	 * Saved statistics should be loaded back, with their number of changes,
+	 * unless the data file changed too much.
+	 */
+	@Test public void saveAndLoadStatisticsTest() throws IOException {
+		TableStats.computeStatistics();
+		TableStats s = TableStats.getTableStats(this.tableName);
+		s.tupleInserted(tuple(5));
+		double selectivity = s.estimateSelectivity(3, Predicate.Op.LESS_THAN, new IntField(10));
+
+		File statsFile = File.createTempFile("catalog", ".stats");
+		statsFile.deleteOnExit();
+		TableStats.saveStatistics(statsFile);
+		TableStats.getStatsMap().clear();
+		TableStats.loadStatistics(statsFile, 1.0);
+		TableStats loaded = TableStats.getTableStats(this.tableName);
+		Assert.assertNotSame(s, loaded);
+		Assert.assertEquals(10201, loaded.totalTuples());
+		Assert.assertEquals(1, loaded.getChanges());
+		Assert.assertEquals(s.estimateDistinct(3), loaded.estimateDistinct(3));
+		Assert.assertEquals(selectivity,
+				loaded.estimateSelectivity(3, Predicate.Op.LESS_THAN, new IntField(10)), 1e-9);
+
+		// writing the data file does not invalidate the saved statistics
+		Assert.assertTrue(f.getFile().setLastModified(f.getFile().lastModified() + 5000));
+		TableStats.getStatsMap().clear();
+		TableStats.loadStatistics(statsFile, 1.0);
+		Assert.assertEquals(10201, TableStats.getTableStats(this.tableName).totalTuples());
+
+		// growing it by more than REFRESH_FRACTION does
+		try (RandomAccessFile raf = new RandomAccessFile(f.getFile(), "rw")) {
+			raf.setLength(raf.length() * 2);
+		}
+		TableStats.getStatsMap().clear();
+		TableStats.loadStatistics(statsFile, 1.0);
+		Assert.assertEquals(10200, TableStats.getTableStats(this.tableName).totalTuples());
+	}
+
+	/**
+	 * Inserts and deletes through the BufferPool should update the statistics
+	 * in place once their transaction commits.
+	 */
+	@Test public void incrementalUpdateTest() throws Exception {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		TableStats.setTableStats(this.tableName, s);
+		double before = s.estimateSelectivity(3, Predicate.Op.EQUALS, new IntField(40));
+		Assert.assertEquals(0.0, before, 0.0);
+
+		TransactionId tid = new TransactionId();
+		Tuple t = tuple(40);
+		for (int i = 0; i < 100; i++) {
+			Database.getBufferPool().insertTuple(tid, this.tableId, tuple(40));
+		}
+		Assert.assertEquals(10200, s.totalTuples());
+		Assert.assertEquals(0, s.getChanges());
+		Database.getBufferPool().transactionComplete(tid);
+
+		Assert.assertEquals(10300, s.totalTuples());
+		Assert.assertEquals(100, s.getChanges());
+		Assert.assertTrue(s.estimateSelectivity(3, Predicate.Op.EQUALS, new IntField(40)) > 0.0);
+		Assert.assertEquals(1.0, s.estimateSelectivity(3, Predicate.Op.LESS_THAN_OR_EQ, new IntField(40)), 1e-9);
+
+		s.tupleDeleted(t);
+		Assert.assertEquals(10299, s.totalTuples());
+	}
+
+	/**
+	 * The changes of an aborted transaction should not be counted.
+	 */
+	@Test public void abortedChangesIgnoredTest() throws Exception {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		TableStats.setTableStats(this.tableName, s);
+
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < 100; i++) {
+			Database.getBufferPool().insertTuple(tid, this.tableId, tuple(40));
+		}
+		Database.getBufferPool().transactionComplete(tid, false);
+		Assert.assertEquals(10200, s.totalTuples());
+		Assert.assertEquals(0, s.getChanges());
+		Assert.assertEquals(0.0, s.estimateSelectivity(3, Predicate.Op.EQUALS, new IntField(40)), 0.0);
+	}
+
+	/**
+	 * Enough changes should rebuild the statistics in the background.
+	 */
+	@Test public void backgroundRefreshTest() throws InterruptedException {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		TableStats.setTableStats(this.tableName, s);
+		int threshold = (int) Math.ceil(TableStats.REFRESH_FRACTION * 10200);
+		for (int i = 0; i < threshold; i++) {
+			s.tupleInserted(tuple(1));
+		}
+		for (int i = 0; i < 100 && TableStats.getTableStats(this.tableName) == s; i++) {
+			Thread.sleep(50);
+		}
+		TableStats rebuilt = TableStats.getTableStats(this.tableName);
+		Assert.assertNotSame(s, rebuilt);
+		// the tuples were never added to the table
+		Assert.assertEquals(10200, rebuilt.totalTuples());
+		Assert.assertEquals(0, rebuilt.getChanges());
+	}
 }
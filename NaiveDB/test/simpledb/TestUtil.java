@@ -166,6 +166,24 @@ public class TestUtil {
         }
     }
 
+    /**
+     * Delete the segment files of the log whose control file is base (see
+     * {@link LogSegments}), which are not removed with it.
+     */
+    public static void deleteLogSegments(File base) {
+        final String prefix = base.getName() + ".";
+        File[] segments = base.getAbsoluteFile().getParentFile().listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix) && name.substring(prefix.length()).matches("[0-9]+");
+            }
+        });
+        if (segments != null) {
+            for (File f : segments) {
+                f.delete();
+            }
+        }
+    }
+
     /**
      * @return a byte array containing the contents of the file 'path'
      */
@@ -0,0 +1,279 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TupleLockingTest extends SimpleDbTestBase {
+
+    private HeapFile file;
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        file = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples);
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().setLockEscalation(LockManager.DEFAULT_TUPLES_PER_PAGE,
+                LockManager.DEFAULT_LOCKS_PER_TABLE);
+    }
+
+    private Transaction begin() {
+        Transaction t = new Transaction();
+        t.start();
+        return t;
+    }
+
+    private void insert(Transaction t, int a, int b) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), file.getId(),
+                Utility.getHeapTuple(new int[] { a, b }));
+    }
+
+    /** Delete the tuples with c0 = v like a DELETE statement, see Parser */
+    private void delete(Transaction t, int v) throws Exception {
+        SeqScan scan = new SeqScan(t.getId(), file.getId(), "");
+        scan.addPredicate(new Predicate(0, Predicate.Op.EQUALS, new IntField(v)));
+        scan.setTupleLocking(true);
+        scan.open();
+        while (scan.hasNext()) {
+            Database.getBufferPool().deleteTuple(t.getId(), scan.next());
+        }
+        scan.close();
+    }
+
+    /** Run r on another thread, and return whether it finished in time */
+    private static boolean runsWithoutWaiting(final Runnable r, final ArrayList<Throwable> errors)
+            throws InterruptedException {
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    r.run();
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }
+        };
+        thread.start();
+        thread.join(5000);
+        return !thread.isAlive();
+    }
+
+    private interface Body {
+        void run() throws Exception;
+    }
+
+    private static Runnable unchecked(final Body body) {
+        return new Runnable() {
+            public void run() {
+                try {
+                    body.run();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Two transactions insert into the same page at the same time, and
+     * aborting one of them leaves the tuple of the other.
+     */
+    @Test public void writersShareAPage() throws Exception {
+        final Transaction first = begin();
+        insert(first, 1, 2);
+        final Transaction second = begin();
+        ArrayList<Throwable> errors = new ArrayList<Throwable>();
+        assertTrue("the second writer waited for the first", runsWithoutWaiting(unchecked(new Body() {
+            public void run() throws Exception {
+                insert(second, 3, 4);
+            }
+        }), errors));
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(1, file.numPages());
+
+        first.abort();
+        second.commit();
+        tuples.add(SystemTestUtil.tupleToList(Utility.getHeapTuple(new int[] { 3, 4 })));
+        Transaction reader = begin();
+        SystemTestUtil.matchTuples(file, reader.getId(), tuples);
+        reader.commit();
+    }
+
+    /**
+     * Two DELETE statements remove different tuples of the same page at the
+     * same time.
+     */
+    @Test public void deletesShareAPage() throws Exception {
+        Transaction setup = begin();
+        insert(setup, -1, 0);
+        insert(setup, -2, 0);
+        setup.commit();
+        assertEquals(1, file.numPages());
+
+        final Transaction first = begin();
+        delete(first, -1);
+        final Transaction second = begin();
+        ArrayList<Throwable> errors = new ArrayList<Throwable>();
+        assertTrue("the second delete waited for the first", runsWithoutWaiting(unchecked(new Body() {
+            public void run() throws Exception {
+                delete(second, -2);
+            }
+        }), errors));
+        assertTrue(errors.toString(), errors.isEmpty());
+
+        first.commit();
+        second.commit();
+        Transaction reader = begin();
+        SystemTestUtil.matchTuples(file, reader.getId(), tuples);
+        reader.commit();
+    }
+
+    /**
+     * A transaction that reads the whole page waits for a transaction that
+     * writes tuples of it.
+     */
+    @Test public void pageReaderWaitsForTupleWriter() throws Exception {
+        Transaction writer = begin();
+        insert(writer, 1, 2);
+        final Transaction reader = begin();
+        final PageId pid = new HeapPageId(file.getId(), 0);
+        Thread read = new Thread() {
+            public void run() {
+                try {
+                    Database.getBufferPool().getPage(reader.getId(), pid, Permissions.READ_ONLY);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        read.start();
+        read.join(500);
+        assertTrue("the reader did not wait", read.isAlive());
+        writer.commit();
+        read.join(5000);
+        assertTrue("the reader still waits", !read.isAlive());
+        assertTrue(Database.getBufferPool().holdsLock(reader.getId(), pid));
+        reader.commit();
+    }
+
+    /**
+     * A snapshot sees the tuples of a committed writer but not those of a
+     * writer of the same page that is still running.
+     */
+    @Test public void snapshotSeesCommittedTuplesOnly() throws Exception {
+        Transaction first = begin();
+        insert(first, 1, 2);
+        Transaction second = begin();
+        insert(second, 3, 4);
+        first.commit();
+
+        Transaction snapshot = new Transaction(true);
+        snapshot.start();
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>(tuples);
+        expected.add(SystemTestUtil.tupleToList(Utility.getHeapTuple(new int[] { 1, 2 })));
+        SystemTestUtil.matchTuples(file, snapshot.getId(), expected);
+        snapshot.commit();
+        second.commit();
+    }
+
+    /**
+     * Tuple locks are escalated to a page lock, and then to a table lock,
+     * past the thresholds.
+     */
+    @Test public void escalation() throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        pool.setLockEscalation(4, 1000);
+        Transaction t = begin();
+        PageId pid = new HeapPageId(file.getId(), 0);
+        for (int i = 0; i < 4; i++) {
+            pool.lockTuple(t.getId(), new RecordId(pid, i), Permissions.READ_ONLY);
+        }
+        // four tuples, the page and the table
+        assertEquals(6, pool.numLocks(t.getId()));
+        pool.lockTuple(t.getId(), new RecordId(pid, 4), Permissions.READ_ONLY);
+        assertEquals(2, pool.numLocks(t.getId()));
+        assertTrue(pool.holdsLock(t.getId(), pid));
+        t.commit();
+
+        pool.setLockEscalation(4, 3);
+        t = begin();
+        for (int i = 0; i < 10; i++) {
+            insert(t, i, i);
+        }
+        assertEquals(1, pool.numLocks(t.getId()));
+        t.commit();
+    }
+
+    /**
+     * Of two transactions that wait for each other's tuple locks, one is
+     * aborted.
+     */
+    @Test public void deadlockAborts() throws Exception {
+        final BufferPool pool = Database.getBufferPool();
+        PageId pid = new HeapPageId(file.getId(), 0);
+        final RecordId a = new RecordId(pid, 0);
+        final RecordId b = new RecordId(pid, 1);
+        Transaction first = begin();
+        final Transaction second = begin();
+        pool.lockTuple(first.getId(), a, Permissions.READ_WRITE);
+        pool.lockTuple(second.getId(), b, Permissions.READ_WRITE);
+        final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+        Thread other = new Thread() {
+            public void run() {
+                try {
+                    pool.lockTuple(second.getId(), a, Permissions.READ_WRITE);
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }
+        };
+        other.start();
+        other.join(500);
+        assertTrue(other.isAlive());
+        try {
+            pool.lockTuple(first.getId(), b, Permissions.READ_WRITE);
+            assertTrue("no deadlock was found", false);
+        } catch (TransactionAbortedException expected) {
+        }
+        first.abort();
+        other.join(5000);
+        assertTrue(errors.toString(), errors.isEmpty());
+        second.commit();
+    }
+
+    @Test public void lockModes() {
+        LockManager.LockMode is = LockManager.LockMode.IS;
+        LockManager.LockMode ix = LockManager.LockMode.IX;
+        LockManager.LockMode s = LockManager.LockMode.S;
+        LockManager.LockMode six = LockManager.LockMode.SIX;
+        LockManager.LockMode x = LockManager.LockMode.X;
+        assertTrue(ix.compatible(ix));
+        assertTrue(is.compatible(six));
+        assertTrue(!s.compatible(ix));
+        assertTrue(!x.compatible(is));
+        assertEquals(six, ix.combine(s));
+        assertEquals(x, six.combine(x));
+        assertEquals(s, is.combine(s));
+        assertTrue(six.covers(s));
+        assertTrue(!s.covers(ix));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TupleLockingTest.class);
+    }
+}
@@ -0,0 +1,161 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ZoneMapTest extends SimpleDbTestBase {
+
+    private HeapFile f;
+    private int rowsPerPage;
+
+    /**
+     * Create an append-ordered table: column 0 is the row number.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        int rows = 5000;
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < rows; i++) {
+            ArrayList<Integer> t = new ArrayList<Integer>();
+            t.add(i);
+            t.add(i % 7);
+            tuples.add(t);
+        }
+        File temp = File.createTempFile("zonemap", ".dat");
+        temp.deleteOnExit();
+        HeapFileEncoder.convert(tuples, temp, BufferPool.getPageSize(), 2);
+        f = Utility.openHeapFile(2, temp);
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        rowsPerPage = (BufferPool.getPageSize() * 8) / (f.getTupleDesc().getSize() * 8 + 1);
+    }
+
+    private static int count(DbFileIterator it) throws Exception {
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * After a first read the zone map should exclude pages outside a range.
+     */
+    @Test public void skipsPages() throws Exception {
+        TransactionId tid = new TransactionId();
+        Predicate[] range = new Predicate[]{
+                new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(1000)),
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(1100))};
+
+        // nothing is known before the pages have been read
+        assertTrue(f.getZoneMap().mayMatch(0, range));
+        assertEquals(100, count(f.iterator(tid, range)));
+
+        int candidates = 0;
+        for (int i = 0; i < f.numPages(); i++) {
+            if (f.getZoneMap().mayMatch(i, range)) {
+                candidates++;
+            }
+        }
+        assertTrue(candidates <= 100 / rowsPerPage + 2);
+        assertFalse(f.getZoneMap().mayMatch(0, range));
+        assertEquals(100, count(f.iterator(tid, range)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Inserts must widen the range so that new tuples are not skipped.
+     */
+    @Test public void insertWidensRange() throws Exception {
+        TransactionId tid = new TransactionId();
+        Predicate[] eq = new Predicate[]{new Predicate(0, Predicate.Op.EQUALS, new IntField(-5))};
+        assertEquals(0, count(f.iterator(tid, eq)));
+
+        Tuple t = new Tuple(f.getTupleDesc());
+        t.setField(0, new IntField(-5));
+        t.setField(1, new IntField(0));
+        Database.getBufferPool().insertTuple(tid, f.getId(), t);
+        assertEquals(1, count(f.iterator(tid, eq)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Writing a page with an uncommitted delete must not narrow its range, or
+     * other transactions would skip the page instead of waiting for the
+     * delete to commit or abort.
+     */
+    @Test public void uncommittedDeleteKeepsRange() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Predicate[] eq = new Predicate[]{new Predicate(0, Predicate.Op.EQUALS, new IntField(0))};
+        DbFileIterator it = f.iterator(t.getId(), eq);
+        it.open();
+        Tuple first = it.next();
+        it.close();
+        Database.getBufferPool().deleteTuple(t.getId(), first);
+        Database.getBufferPool().flushAllPages();
+        assertTrue(f.getZoneMap().mayMatch(0, eq));
+
+        t.abort();
+        TransactionId reader = new TransactionId();
+        assertEquals(1, count(f.iterator(reader, eq)));
+        Database.getBufferPool().transactionComplete(reader);
+    }
+
+    /**
+     * The ranges should be persisted and reloaded with the table.
+     */
+    @Test public void persisted() throws Exception {
+        TransactionId tid = new TransactionId();
+        Predicate[] gt = new Predicate[]{new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(4990))};
+        assertEquals(9, count(f.iterator(tid, gt)));
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(f.getZoneMap().getFile().length() > 0);
+
+        HeapFile reopened = new HeapFile(f.getFile(), f.getTupleDesc());
+        assertFalse(reopened.getZoneMap().mayMatch(0, gt));
+        assertTrue(reopened.getZoneMap().mayMatch(f.numPages() - 1, gt));
+    }
+
+    /**
+     * Persisted ranges should be discarded when the data file is rewritten,
+     * even if its modification time is unchanged.
+     */
+    @Test public void rewrittenDataDiscardsRanges() throws Exception {
+        TransactionId tid = new TransactionId();
+        Predicate[] gt = new Predicate[]{new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(4990))};
+        assertEquals(9, count(f.iterator(tid, gt)));
+        Database.getBufferPool().transactionComplete(tid);
+
+        long modified = f.getFile().lastModified();
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        tuples.add(new ArrayList<Integer>(Arrays.asList(5000, 0)));
+        HeapFileEncoder.convert(tuples, f.getFile(), BufferPool.getPageSize(), 2);
+        assertTrue(f.getFile().setLastModified(modified));
+
+        HeapFile reopened = new HeapFile(f.getFile(), f.getTupleDesc());
+        assertTrue(reopened.getZoneMap().mayMatch(0, gt));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ZoneMapTest.class);
+    }
+}
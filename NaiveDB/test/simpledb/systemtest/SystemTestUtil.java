@@ -94,6 +94,44 @@ public class SystemTestUtil {
         return list;
     }
 
+    /**
+     * @return the tuples that satisfy all of the predicates over their
+     *         fields, in order
+     */
+    public static ArrayList<ArrayList<Integer>> filterTuples(
+            List<ArrayList<Integer>> tuples, Predicate... predicates) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            boolean matches = true;
+            for (Predicate p : predicates) {
+                if (!new IntField(t.get(p.getField())).compare(p.getOp(), p.getOperand())) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (matches) {
+                result.add(t);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the tuples reduced to the specified fields, in order
+     */
+    public static ArrayList<ArrayList<Integer>> projectTuples(
+            List<ArrayList<Integer>> tuples, int... fields) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            ArrayList<Integer> projected = new ArrayList<Integer>();
+            for (int field : fields) {
+                projected.add(t.get(field));
+            }
+            result.add(projected);
+        }
+        return result;
+    }
+
     public static void matchTuples(DbFile f, List<ArrayList<Integer>> tuples)
             throws DbException, TransactionAbortedException, IOException {
         TransactionId tid = new TransactionId();